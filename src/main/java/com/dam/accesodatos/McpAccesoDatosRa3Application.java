@@ -5,6 +5,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.ai.mcp.server.annotation.EnableMcpServer;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 /**
  * Aplicación principal para MCP Server RA3 - Hibernate/JPA
@@ -28,6 +29,7 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
  */
 @SpringBootApplication  // ← NO excluir DataSourceAutoConfiguration (necesario para JPA)
 @EnableMcpServer
+@EnableScheduling  // Tareas periódicas (reconciliación de contadores por departamento)
 public class McpAccesoDatosRa3Application {
 
     private static final Logger logger = LoggerFactory.getLogger(McpAccesoDatosRa3Application.class);
@@ -0,0 +1,86 @@
+package com.dam.accesodatos.config;
+
+import com.github.benmanes.caffeine.jcache.configuration.CaffeineConfiguration;
+import com.github.benmanes.caffeine.jcache.spi.CaffeineCachingProvider;
+import org.hibernate.cache.jcache.ConfigSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.cache.CacheManager;
+import javax.cache.spi.CachingProvider;
+import java.net.URI;
+import java.time.Duration;
+import java.util.OptionalLong;
+import java.util.UUID;
+
+/**
+ * Configuración de la caché de segundo nivel (L2) de Hibernate
+ *
+ * RA3 - CONCEPTO: Caché de primer nivel vs segundo nivel
+ * - Primer nivel: el contexto de persistencia (EntityManager), dura una transacción
+ * - Segundo nivel: compartida por todas las sesiones del EntityManagerFactory,
+ *   evita ir a la BD en entityManager.find() de entidades @Cacheable
+ *
+ * Hibernate usa JCache (JSR-107) como API y Caffeine como implementación local.
+ * La región 'users' se crea aquí para poder fijar tamaño máximo y TTL desde
+ * application.yml (ra3.cache.user.*) y se pasa a Hibernate con un
+ * HibernatePropertiesCustomizer.
+ *
+ * Caché de consultas (hibernate.cache.use_query_cache):
+ * Guarda el resultado de consultas JPQL marcadas como cacheables. Hibernate la invalida
+ * automáticamente cuando cambia cualquier fila de la tabla consultada (región interna
+ * default-update-timestamps-region), así que nunca devuelve datos obsoletos.
+ */
+@Configuration
+public class HibernateCacheConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(HibernateCacheConfig.class);
+
+    /** Región de la caché L2 para la entidad User (ver @Cache en User) */
+    public static final String USER_REGION = "users";
+
+    /** Región de la caché de consultas para los listados por departamento */
+    public static final String DEPARTMENT_LIST_REGION = "query.users-by-department";
+
+    /** Región de la caché de consultas para los COUNT por departamento */
+    public static final String DEPARTMENT_COUNT_REGION = "query.count-by-department";
+
+    /**
+     * CacheManager JCache propio de este contexto de Spring.
+     * Se usa una URI única para no compartir regiones con otros contextos de la misma JVM (tests).
+     */
+    @Bean(destroyMethod = "close")
+    public CacheManager hibernateCacheManager(
+            @Value("${ra3.cache.user.max-size:10000}") long maxSize,
+            @Value("${ra3.cache.user.ttl:10m}") Duration ttl,
+            @Value("${ra3.cache.query.max-size:1000}") long queryMaxSize) {
+        CachingProvider provider = new CaffeineCachingProvider();
+        CacheManager cacheManager = provider.getCacheManager(
+                URI.create("ra3-hibernate-" + UUID.randomUUID()), getClass().getClassLoader());
+
+        CaffeineConfiguration<Object, Object> userRegion = new CaffeineConfiguration<>();
+        userRegion.setMaximumSize(OptionalLong.of(maxSize));
+        userRegion.setExpireAfterWrite(OptionalLong.of(ttl.toNanos()));
+        userRegion.setNativeStatisticsEnabled(true); // Contadores de Caffeine (incluye expulsiones)
+        cacheManager.createCache(USER_REGION, userRegion);
+
+        // Una entrada por combinación de consulta + parámetros (pocos departamentos)
+        for (String region : new String[] {DEPARTMENT_LIST_REGION, DEPARTMENT_COUNT_REGION}) {
+            CaffeineConfiguration<Object, Object> queryRegion = new CaffeineConfiguration<>();
+            queryRegion.setMaximumSize(OptionalLong.of(queryMaxSize));
+            cacheManager.createCache(region, queryRegion);
+        }
+
+        logger.info("Caché L2 '{}': máximo {} entidades, TTL {}", USER_REGION, maxSize, ttl);
+        return cacheManager;
+    }
+
+    @Bean
+    public HibernatePropertiesCustomizer hibernateCacheManagerCustomizer(CacheManager hibernateCacheManager) {
+        return properties -> properties.put(ConfigSettings.CACHE_MANAGER, hibernateCacheManager);
+    }
+}
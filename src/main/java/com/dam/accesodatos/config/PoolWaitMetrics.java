@@ -0,0 +1,98 @@
+package com.dam.accesodatos.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tiempo que esperan los hilos para obtener una conexión de cada pool Hikari
+ *
+ * Hikari avisa a su MetricsTracker cada vez que entrega una conexión, con los nanosegundos
+ * que ha tardado (casi 0 si había una libre). Este componente se registra como
+ * MetricsTrackerFactory en todos los HikariDataSource del contexto (primario y réplica) antes
+ * de que arranquen, y acumula por pool: nº de préstamos, espera media/máxima y timeouts.
+ *
+ * Junto con la espera del bulkhead (ToolBulkhead) indica dónde se forma la cola: si el
+ * bulkhead está bien dimensionado la espera en el pool debe quedarse cerca de 0.
+ */
+@Component
+public class PoolWaitMetrics implements MetricsTrackerFactory, BeanPostProcessor {
+
+    /** Contadores de un pool */
+    private static final class PoolWait implements IMetricsTracker {
+
+        private final PoolStats poolStats;
+        private final LongAdder acquired = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAccumulator maxWaitNanos = new LongAccumulator(Long::max, 0);
+        private final LongAdder timeouts = new LongAdder();
+
+        PoolWait(PoolStats poolStats) {
+            this.poolStats = poolStats;
+        }
+
+        @Override
+        public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+            acquired.increment();
+            waitNanos.add(elapsedAcquiredNanos);
+            maxWaitNanos.accumulate(elapsedAcquiredNanos);
+        }
+
+        @Override
+        public void recordConnectionTimeout() {
+            timeouts.increment();
+        }
+
+        Map<String, Object> snapshot() {
+            long count = acquired.sum();
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("active", poolStats.getActiveConnections());
+            stats.put("idle", poolStats.getIdleConnections());
+            stats.put("max", poolStats.getMaxConnections());
+            stats.put("threadsAwaiting", poolStats.getPendingThreads());
+            stats.put("acquired", count);
+            stats.put("avgWaitMs", count == 0 ? 0.0 : waitNanos.sum() / (double) count / 1_000_000);
+            stats.put("maxWaitMs", TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+            stats.put("timeouts", timeouts.sum());
+            return stats;
+        }
+    }
+
+    private final Map<String, PoolWait> pools = new ConcurrentHashMap<>();
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        return pools.computeIfAbsent(poolName, name -> new PoolWait(poolStats));
+    }
+
+    /**
+     * Engancha el tracker a cada HikariDataSource antes de que abra su pool
+     * (Hikari no admite cambiarlo después)
+     */
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) {
+        if (bean instanceof HikariDataSource hikari && hikari.getMetricsTrackerFactory() == null) {
+            hikari.setMetricsTrackerFactory(this);
+        }
+        return bean;
+    }
+
+    /**
+     * Estadísticas por nombre de pool (ra3-primary, ra3-replica...)
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        pools.forEach((name, pool) -> snapshot.put(name, pool.snapshot()));
+        return snapshot;
+    }
+}
@@ -0,0 +1,35 @@
+package com.dam.accesodatos.config;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+
+/**
+ * Identifica al cliente de cada petición para la ventana de retraso de ReadReplicaDataSource
+ *
+ * El cliente es la sesión MCP (cabecera Mcp-Session-Id) o, si no la envía, su IP. Así
+ * "leer lo que acabo de escribir" se cumple entre peticiones distintas del mismo cliente,
+ * aunque cada una se atienda en un hilo distinto.
+ */
+public class ReadReplicaClientFilter extends OncePerRequestFilter {
+
+    static final String SESSION_HEADER = "Mcp-Session-Id";
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String session = request.getHeader(SESSION_HEADER);
+        ReadReplicaDataSource.bindClient(session != null && !session.isBlank()
+                ? "session-" + session
+                : "addr-" + request.getRemoteAddr());
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            ReadReplicaDataSource.clearClient();
+        }
+    }
+}
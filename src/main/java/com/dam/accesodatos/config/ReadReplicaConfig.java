@@ -0,0 +1,101 @@
+package com.dam.accesodatos.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+
+/**
+ * Enrutado lectura/escritura: transacciones readOnly a la réplica, el resto al primario
+ *
+ * RA3 - CONCEPTO: @Transactional(readOnly = true) no es solo una optimización de Hibernate
+ * (flush MANUAL, sin snapshots para dirty checking). Spring marca además la conexión JDBC con
+ * setReadOnly(true), y LazyConnectionDataSourceProxy usa esa marca para elegir el pool:
+ *
+ *   Hibernate pide conexión → proxy perezoso (aún no hay conexión real)
+ *   Spring llama a setReadOnly(true) si la transacción es readOnly
+ *   Primera sentencia SQL → el proxy abre la conexión real:
+ *     - readOnly  → ReadReplicaDataSource (réplica, o primario si hay retraso)
+ *     - escritura → pool primario
+ *
+ * Efecto secundario útil: una transacción que se resuelve entera desde la caché L2 no llega
+ * a ocupar ninguna conexión.
+ *
+ * Cada BD tiene su propio pool Hikari (spring.datasource.hikari.* y ra3.datasource.replica.*).
+ * En local la "réplica" es la misma BD H2 a través de un segundo pool, así que siempre está
+ * sincronizada; en producción basta con apuntar ra3.datasource.replica.url a la réplica real.
+ *
+ * Con ra3.datasource.replica.enabled=false no se crea nada de esto y Spring Boot configura
+ * su DataSource único de siempre.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "ra3.datasource.replica", name = "enabled", havingValue = "true")
+public class ReadReplicaConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReadReplicaConfig.class);
+
+    /** Pool del primario: lecturas y escrituras de transacciones no readOnly */
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        HikariDataSource dataSource = properties.initializeDataSourceBuilder()
+                .type(HikariDataSource.class)
+                .build();
+        dataSource.setPoolName("ra3-primary");
+        return dataSource;
+    }
+
+    /** Pool de la réplica: solo conexiones de solo lectura */
+    @Bean
+    public HikariDataSource replicaDataSource(
+            DataSourceProperties properties,
+            @Value("${ra3.datasource.replica.url}") String url,
+            @Value("${ra3.datasource.replica.username:sa}") String username,
+            @Value("${ra3.datasource.replica.password:}") String password,
+            @Value("${ra3.datasource.replica.max-pool-size:10}") int maxPoolSize) {
+        HikariDataSource dataSource = new HikariDataSource();
+        dataSource.setPoolName("ra3-replica");
+        dataSource.setDriverClassName(properties.determineDriverClassName());
+        dataSource.setJdbcUrl(url);
+        dataSource.setUsername(username);
+        dataSource.setPassword(password);
+        dataSource.setMaximumPoolSize(maxPoolSize);
+        dataSource.setReadOnly(true);
+        return dataSource;
+    }
+
+    @Bean
+    public ReadReplicaDataSource readReplicaDataSource(
+            HikariDataSource replicaDataSource,
+            HikariDataSource primaryDataSource,
+            @Value("${ra3.datasource.replica.max-lag:1s}") Duration maxLag) {
+        return new ReadReplicaDataSource(replicaDataSource, primaryDataSource, maxLag);
+    }
+
+    /** Cliente de cada petición HTTP: la ventana de retraso es por cliente */
+    @Bean
+    public ReadReplicaClientFilter readReplicaClientFilter() {
+        return new ReadReplicaClientFilter();
+    }
+
+    /** DataSource que usan Hibernate, spring.sql.init y el resto de la aplicación */
+    @Bean
+    @Primary
+    public DataSource dataSource(HikariDataSource primaryDataSource, ReadReplicaDataSource readReplicaDataSource,
+                                 @Value("${ra3.datasource.replica.max-lag:1s}") Duration maxLag) {
+        LazyConnectionDataSourceProxy routing = new LazyConnectionDataSourceProxy(primaryDataSource);
+        routing.setReadOnlyDataSource(readReplicaDataSource);
+        logger.info("Lecturas readOnly enrutadas a la réplica (tolerancia de retraso {})", maxLag);
+        return routing;
+    }
+}
@@ -0,0 +1,150 @@
+package com.dam.accesodatos.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.transaction.TransactionExecution;
+import org.springframework.transaction.TransactionExecutionListener;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DataSource de lectura: entrega conexiones de la réplica salvo que sea arriesgado
+ *
+ * Solo lo usa LazyConnectionDataSourceProxy para las transacciones readOnly (ver ReadReplicaConfig).
+ * Vuelve al primario en dos casos:
+ * - Ventana de retraso: si ESTE cliente hizo un COMMIT de escritura hace menos de
+ *   ra3.datasource.replica.max-lag, la réplica puede no tenerlo aún; leer del primario le
+ *   garantiza "leer lo que acabo de escribir"
+ * - Réplica caída: si no se puede abrir conexión con ella, se lee del primario (con aviso en el log)
+ *
+ * La ventana es de cada cliente, no global: las escrituras de un cliente no mandan al primario
+ * las lecturas de los demás. El cliente lo fija ReadReplicaClientFilter en cada petición HTTP
+ * (cabecera Mcp-Session-Id o, si no viene, la IP); fuera de una petición, cada hilo es su propio
+ * cliente.
+ *
+ * Como TransactionExecutionListener, Spring Boot lo registra en el JpaTransactionManager y
+ * recibe afterCommit() de cada transacción; solo las que no son readOnly abren la ventana.
+ */
+public class ReadReplicaDataSource extends AbstractDataSource implements TransactionExecutionListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReadReplicaDataSource.class);
+
+    /** Con más ventanas que esta, cada escritura purga las ya cerradas */
+    private static final int PURGE_THRESHOLD = 10_000;
+
+    /** Cliente de la petición en curso (null fuera de una petición HTTP) */
+    private static final ThreadLocal<String> CURRENT_CLIENT = new ThreadLocal<>();
+
+    private final DataSource replica;
+    private final DataSource primary;
+    private final long maxLagNanos;
+
+    /** Instante (System.nanoTime) del último COMMIT de escritura de cada cliente */
+    private final Map<String, Long> lastWriteNanos = new ConcurrentHashMap<>();
+
+    private final LongAdder replicaConnections = new LongAdder();
+    private final LongAdder primaryFallbacks = new LongAdder();
+
+    @FunctionalInterface
+    private interface ConnectionSource {
+        Connection get(DataSource dataSource) throws SQLException;
+    }
+
+    public ReadReplicaDataSource(DataSource replica, DataSource primary, Duration maxLag) {
+        this.replica = replica;
+        this.primary = primary;
+        this.maxLagNanos = maxLag.toNanos();
+    }
+
+    /**
+     * Asocia el hilo actual a un cliente hasta clearClient()
+     */
+    public static void bindClient(String client) {
+        CURRENT_CLIENT.set(client);
+    }
+
+    public static void clearClient() {
+        CURRENT_CLIENT.remove();
+    }
+
+    /** Cliente del hilo actual: el de la petición o, fuera de una petición, el propio hilo */
+    private static String currentClient() {
+        String client = CURRENT_CLIENT.get();
+        return client != null ? client : "thread-" + Thread.currentThread().threadId();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection(DataSource::getConnection);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return connection(dataSource -> dataSource.getConnection(username, password));
+    }
+
+    private Connection connection(ConnectionSource source) throws SQLException {
+        if (insideLagWindow()) {
+            primaryFallbacks.increment();
+            return source.get(primary);
+        }
+        try {
+            Connection connection = source.get(replica);
+            replicaConnections.increment();
+            return connection;
+        } catch (SQLException e) {
+            logger.warn("Réplica no disponible, la lectura va al primario: {}", e.getMessage());
+            primaryFallbacks.increment();
+            return source.get(primary);
+        }
+    }
+
+    private boolean insideLagWindow() {
+        String client = currentClient();
+        Long lastWrite = lastWriteNanos.get(client);
+        if (lastWrite == null) {
+            return false;
+        }
+        if (System.nanoTime() - lastWrite < maxLagNanos) {
+            return true;
+        }
+        lastWriteNanos.remove(client, lastWrite);
+        return false;
+    }
+
+    @Override
+    public void afterCommit(TransactionExecution transaction, Throwable commitFailure) {
+        if (commitFailure == null && !transaction.isReadOnly()) {
+            recordWrite();
+        }
+    }
+
+    /**
+     * Abre la ventana de retraso del cliente actual. La llaman afterCommit() y quien confirma
+     * escrituras de un cliente desde otro hilo (el group commit de create_user).
+     */
+    public void recordWrite() {
+        long now = System.nanoTime();
+        lastWriteNanos.put(currentClient(), now);
+        if (lastWriteNanos.size() > PURGE_THRESHOLD) {
+            lastWriteNanos.values().removeIf(lastWrite -> now - lastWrite >= maxLagNanos);
+        }
+    }
+
+    /** Conexiones de lectura servidas por la réplica */
+    public long getReplicaConnections() {
+        return replicaConnections.sum();
+    }
+
+    /** Lecturas desviadas al primario (ventana de retraso o réplica caída) */
+    public long getPrimaryFallbacks() {
+        return primaryFallbacks.sum();
+    }
+}
@@ -0,0 +1,109 @@
+package com.dam.accesodatos.config;
+
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Detecta hilos virtuales "anclados" (pinned) a su hilo portador
+ *
+ * Con spring.threads.virtual.enabled cada petición corre en un hilo virtual: cuando se bloquea
+ * (JDBC, Semaphore...) libera su hilo portador para otra petición. Pero si se bloquea dentro
+ * de un bloque synchronized (Java 21) o de código nativo, el portador queda ocupado: con pocos
+ * portadores (uno por núcleo) unas pocas esperas así frenan todo el servidor.
+ *
+ * La JVM publica cada caso como evento JFR jdk.VirtualThreadPinned; este componente lo escucha
+ * en la propia aplicación (RecordingStream) y cuenta eventos, duración total/máxima y dónde
+ * ocurrió el último. Solo se registran bloqueos de al menos
+ * ra3.virtual-threads.pinned-threshold (20ms, el umbral por defecto de JFR).
+ */
+@Component
+public class VirtualThreadPinningMonitor {
+
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreadPinningMonitor.class);
+
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    @Value("${ra3.virtual-threads.monitor-pinning:true}")
+    private boolean enabled;
+
+    @Value("${ra3.virtual-threads.pinned-threshold:20ms}")
+    private Duration threshold;
+
+    private final LongAdder pinnedEvents = new LongAdder();
+    private final LongAdder pinnedNanos = new LongAdder();
+    private final LongAccumulator maxPinnedNanos = new LongAccumulator(Long::max, 0);
+    private volatile String lastPinnedAt;
+
+    private RecordingStream stream;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (!enabled || stream != null) {
+            return;
+        }
+        stream = new RecordingStream();
+        stream.enable(PINNED_EVENT).withThreshold(threshold).withStackTrace();
+        stream.onEvent(PINNED_EVENT, this::record);
+        stream.startAsync();
+        logger.info("Monitor de hilos virtuales anclados activo (umbral {})", threshold);
+    }
+
+    private void record(RecordedEvent event) {
+        long nanos = event.getDuration().toNanos();
+        pinnedEvents.increment();
+        pinnedNanos.add(nanos);
+        maxPinnedNanos.accumulate(nanos);
+
+        RecordedStackTrace stackTrace = event.getStackTrace();
+        if (stackTrace != null) {
+            lastPinnedAt = stackTrace.getFrames().stream()
+                    .filter(RecordedFrame::isJavaFrame)
+                    .map(frame -> frame.getMethod().getType().getName() + "." + frame.getMethod().getName())
+                    .filter(method -> !method.startsWith("java.") && !method.startsWith("jdk."))
+                    .findFirst()
+                    .orElse(null);
+        }
+        logger.debug("Hilo virtual anclado {} ms en {}", TimeUnit.NANOSECONDS.toMillis(nanos), lastPinnedAt);
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (stream != null) {
+            stream.close();
+            stream = null;
+        }
+    }
+
+    /**
+     * Nº de anclajes, tiempo total/máximo y método del último anclaje
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("virtualThreads", virtualThreads);
+        stats.put("monitoring", stream != null);
+        stats.put("pinnedEvents", pinnedEvents.sum());
+        stats.put("pinnedTotalMs", TimeUnit.NANOSECONDS.toMillis(pinnedNanos.sum()));
+        stats.put("maxPinnedMs", TimeUnit.NANOSECONDS.toMillis(maxPinnedNanos.get()));
+        stats.put("lastPinnedAt", lastPinnedAt);
+        return stats;
+    }
+}
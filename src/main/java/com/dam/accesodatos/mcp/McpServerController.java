@@ -1,17 +1,49 @@
 package com.dam.accesodatos.mcp;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import com.dam.accesodatos.config.PoolWaitMetrics;
+import com.dam.accesodatos.config.VirtualThreadPinningMonitor;
 import com.dam.accesodatos.ra3.HibernateUserService;
+import com.dam.accesodatos.ra3.CreateUserGroupCommit;
+import com.dam.accesodatos.ra3.DatabaseGeneration;
+import com.dam.accesodatos.ra3.LoginEventBuffer;
+import com.dam.accesodatos.ra3.UserChangeLog;
+import com.dam.accesodatos.ra3.UserOutboxRelay;
+import com.dam.accesodatos.ra3.UserAutocompleteIndex;
+import com.dam.accesodatos.model.DatabaseRestoreResult;
+import com.dam.accesodatos.model.DatabaseSnapshotResult;
 import com.dam.accesodatos.model.User;
 import com.dam.accesodatos.model.UserCreateDto;
-
+import com.dam.accesodatos.model.UserDetail;
+import com.dam.accesodatos.model.UserExportResult;
+import com.dam.accesodatos.model.UserImportResult;
+import com.dam.accesodatos.model.UserPage;
+import com.dam.accesodatos.model.UserQueryDto;
+import com.dam.accesodatos.model.UserSearchHit;
+import com.dam.accesodatos.model.UserSummary;
+import com.dam.accesodatos.model.UserChangeRecord;
+import com.dam.accesodatos.model.UserChanges;
+import com.dam.accesodatos.model.UserWithStats;
+import com.dam.accesodatos.model.UpsertResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Controlador REST que expone las herramientas MCP via HTTP para operaciones Hibernate/JPA.
@@ -38,6 +70,39 @@ public class McpServerController {
     @Autowired
     private McpToolRegistry toolRegistry;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private ToolBulkhead toolBulkhead;
+
+    @Autowired
+    private PoolWaitMetrics poolWaitMetrics;
+
+    @Autowired
+    private VirtualThreadPinningMonitor pinningMonitor;
+
+    @Autowired
+    private UserAutocompleteIndex autocompleteIndex;
+
+    @Autowired
+    private LoginEventBuffer loginEventBuffer;
+
+    @Autowired
+    private CreateUserGroupCommit createUserGroupCommit;
+
+    @Autowired
+    private UserOutboxRelay outboxRelay;
+
+    @Autowired
+    private UserChangeLog changeLog;
+
+    @Autowired
+    private DatabaseGeneration databaseGeneration;
+
+    @Value("${ra3.stream.fetch-size:500}")
+    private int streamFetchSize;
+
     /**
      * Endpoint de health check
      */
@@ -50,6 +115,24 @@ public class McpServerController {
         return ResponseEntity.ok(health);
     }
 
+    /**
+     * Métricas de ejecución: bulkhead, espera en los pools Hikari y anclajes de hilos virtuales
+     */
+    @GetMapping("/metrics")
+    public ResponseEntity<Map<String, Object>> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("bulkhead", toolBulkhead.snapshot());
+        metrics.put("connectionPools", poolWaitMetrics.snapshot());
+        metrics.put("virtualThreads", pinningMonitor.snapshot());
+        metrics.put("autocompleteIndex", autocompleteIndex.stats());
+        metrics.put("loginBuffer", loginEventBuffer.snapshot());
+        metrics.put("createUserGroupCommit", createUserGroupCommit.snapshot());
+        metrics.put("outboxRelay", outboxRelay.snapshot());
+        metrics.put("userChangeLog", changeLog.snapshot());
+
+        return ResponseEntity.ok(metrics);
+    }
+
     /**
      * Endpoint para listar todas las herramientas MCP disponibles
      */
@@ -109,6 +192,7 @@ public class McpServerController {
 
     /**
      * Crea un nuevo usuario usando persist()
+     * Con ra3.group-commit.enabled el alta se agrupa con las simultáneas en una sola transacción
      */
     @PostMapping("/create_user")
     public ResponseEntity<Map<String, Object>> createUser(@RequestBody Map<String, String> request) {
@@ -121,7 +205,9 @@ public class McpServerController {
             String role = request.get("role");
 
             UserCreateDto dto = new UserCreateDto(name, email, department, role);
-            User user = hibernateUserService.createUser(dto);
+            User user = createUserGroupCommit.isEnabled()
+                    ? createUserGroupCommit.createUser(dto)
+                    : hibernateUserService.createUser(dto);
 
             Map<String, Object> response = new HashMap<>();
             response.put("tool", "create_user");
@@ -142,7 +228,7 @@ public class McpServerController {
     }
 
     /**
-     * Busca un usuario por ID usando find()
+     * Busca un usuario por ID (proyección de solo lectura UserDetail)
      */
     @PostMapping("/find_user_by_id")
     public ResponseEntity<Map<String, Object>> findUserById(@RequestBody Map<String, Object> request) {
@@ -150,7 +236,7 @@ public class McpServerController {
 
         try {
             Long userId = ((Number) request.get("userId")).longValue();
-            User user = hibernateUserService.findUserById(userId);
+            UserDetail user = hibernateUserService.findUserDetailById(userId);
 
             Map<String, Object> response = new HashMap<>();
             response.put("tool", "find_user_by_id");
@@ -171,14 +257,14 @@ public class McpServerController {
     }
 
     /**
-     * Obtiene todos los usuarios usando JPA Repository
+     * Obtiene todos los usuarios (proyecciones de solo lectura UserSummary)
      */
     @PostMapping("/find_all_users")
     public ResponseEntity<Map<String, Object>> findAllUsers() {
         logger.debug("Obteniendo todos los usuarios");
 
         try {
-            List<User> users = hibernateUserService.findAll();
+            List<UserSummary> users = hibernateUserService.findAllSummaries();
 
             Map<String, Object> response = new HashMap<>();
             response.put("tool", "find_all_users");
@@ -200,7 +286,49 @@ public class McpServerController {
     }
 
     /**
-     * Busca usuarios por departamento usando JPQL
+     * Variante streaming de find_all_users: escribe un usuario por línea (NDJSON)
+     * a medida que se leen del cursor JDBC, sin construir la lista completa.
+     *
+     * El buffer de salida se vacía cada 'fetchSize' filas para que el cliente
+     * empiece a recibir datos sin esperar al final de la consulta.
+     */
+    @PostMapping(value = "/find_all_users_stream", produces = "application/x-ndjson")
+    public ResponseEntity<StreamingResponseBody> findAllUsersStream(
+            @RequestParam(name = "fetchSize", defaultValue = "0") int fetchSize) {
+        logger.debug("Obteniendo todos los usuarios en streaming");
+
+        int flushEvery = fetchSize > 0 ? fetchSize : streamFetchSize;
+        StreamingResponseBody body = out -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+                // Sin separador entre valores raíz: cada usuario termina con su propio '\n'
+                generator.setRootValueSeparator(null);
+                long[] written = {0};
+                long count = hibernateUserService.streamAllUsers(fetchSize, user -> {
+                    try {
+                        generator.writeObject(user);
+                        generator.writeRaw('\n');
+                        if (++written[0] % flushEvery == 0) {
+                            generator.flush();
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                logger.debug("find_all_users_stream: {} usuarios enviados", count);
+            } catch (RuntimeException e) {
+                // La cabecera 200 ya se envió: solo se puede cortar el stream y registrar el error
+                logger.error("Error enviando usuarios en streaming", e);
+                throw e;
+            }
+        };
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/x-ndjson"))
+                .body(body);
+    }
+
+    /**
+     * Busca usuarios por departamento usando JPQL (proyecciones de solo lectura UserSummary)
      */
     @PostMapping("/find_users_by_department")
     public ResponseEntity<Map<String, Object>> findUsersByDepartment(@RequestBody Map<String, String> request) {
@@ -208,7 +336,7 @@ public class McpServerController {
 
         try {
             String department = request.get("department");
-            List<User> users = hibernateUserService.findUsersByDepartment(department);
+            List<UserSummary> users = hibernateUserService.findUserSummariesByDepartment(department);
 
             Map<String, Object> response = new HashMap<>();
             response.put("tool", "find_users_by_department");
@@ -228,4 +356,651 @@ public class McpServerController {
             return ResponseEntity.status(500).body(error);
         }
     }
+
+    /**
+     * Usuarios con sus estadísticas de acceso en una sola consulta (LEFT JOIN user_statistics)
+     */
+    @PostMapping("/find_users_with_stats")
+    public ResponseEntity<Map<String, Object>> findUsersWithStats(
+            @RequestBody(required = false) Map<String, String> request) {
+        logger.debug("Obteniendo usuarios con estadísticas");
+
+        try {
+            String department = request != null ? request.get("department") : null;
+            List<UserWithStats> users = hibernateUserService.findUsersWithStats(department);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "find_users_with_stats");
+            response.put("result", users);
+            response.put("count", users.size());
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error obteniendo usuarios con estadísticas", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error obteniendo usuarios con estadísticas: " + e.getMessage());
+            error.put("tool", "find_users_with_stats");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Cambios de usuarios desde una marca:
+     * {"generation": 1736937072004, "updatedAt": "2025-01-15T10:30:00.123456", "id": 42, "limit": 500}
+     * Sin body (o sin updatedAt) devuelve desde el principio
+     */
+    @PostMapping("/find_users_changed_since")
+    public ResponseEntity<Map<String, Object>> findUsersChangedSince(
+            @RequestBody(required = false) Map<String, Object> request) {
+        logger.debug("Obteniendo cambios de usuarios desde una marca");
+
+        try {
+            Map<String, Object> body = request != null ? request : Map.of();
+            LocalDateTime updatedAt = body.get("updatedAt") != null
+                    ? LocalDateTime.parse((String) body.get("updatedAt"))
+                    : null;
+            Long generation = body.get("generation") != null ? ((Number) body.get("generation")).longValue() : null;
+            Long id = body.get("id") != null ? ((Number) body.get("id")).longValue() : null;
+            int limit = body.get("limit") != null ? ((Number) body.get("limit")).intValue() : 0;
+            UserChanges changes = hibernateUserService.findUsersChangedSince(generation, updatedAt, id, limit);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "find_users_changed_since");
+            response.put("result", changes);
+            response.put("count", changes.changed().size() + changes.deletedIds().size());
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error obteniendo cambios de usuarios", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error obteniendo cambios de usuarios: " + e.getMessage());
+            error.put("tool", "find_users_changed_since");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Lee el log de cambios de usuarios: {"offset": 0, "limit": 100, "generation": 1736937072004}
+     * nextOffset es el offset desde el que seguir leyendo en la siguiente llamada. Si la generación
+     * enviada no es la actual (restore_database o BD recreada), resyncRequired: el estado que el
+     * consumidor ha construido con el log ya no es el de la BD
+     */
+    @PostMapping("/read_user_changes")
+    public ResponseEntity<Map<String, Object>> readUserChanges(
+            @RequestBody(required = false) Map<String, Object> request) {
+        try {
+            Map<String, Object> body = request != null ? request : Map.of();
+            long offset = body.get("offset") != null ? ((Number) body.get("offset")).longValue() : 0L;
+            int limit = body.get("limit") != null ? ((Number) body.get("limit")).intValue() : 0;
+            List<UserChangeRecord> records = hibernateUserService.readUserChanges(offset, limit);
+            long generation = databaseGeneration.current();
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "read_user_changes");
+            response.put("result", records);
+            response.put("count", records.size());
+            response.put("nextOffset", records.isEmpty() ? offset : records.get(records.size() - 1).nextOffset());
+            response.put("endOffset", changeLog.endOffset());
+            response.put("generation", generation);
+            response.put("resyncRequired", body.get("generation") != null
+                    && ((Number) body.get("generation")).longValue() != generation);
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error leyendo el log de cambios de usuarios", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error leyendo el log de cambios de usuarios: " + e.getMessage());
+            error.put("tool", "read_user_changes");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Inserta usuarios por bloques leyendo el array JSON del body de forma incremental.
+     *
+     * El body se recorre con un MappingIterator de Jackson, así que nunca se construye
+     * la List<User> completa en memoria.
+     */
+    @PostMapping("/transfer_data_chunked")
+    public ResponseEntity<Map<String, Object>> transferDataChunked(
+            InputStream body,
+            @RequestParam(name = "chunkSize", defaultValue = "0") int chunkSize) {
+        logger.debug("Insertando usuarios por bloques");
+
+        try (MappingIterator<User> users = objectMapper.readerFor(User.class).readValues(body)) {
+            AtomicInteger chunks = new AtomicInteger();
+            long total = hibernateUserService.transferDataChunked(users, chunkSize, persisted -> {
+                chunks.incrementAndGet();
+                logger.info("transfer_data_chunked: {} usuarios persistidos", persisted);
+            });
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "transfer_data_chunked");
+            response.put("result", total);
+            response.put("chunks", chunks.get());
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error insertando usuarios por bloques", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error insertando usuarios por bloques: " + e.getMessage());
+            error.put("tool", "transfer_data_chunked");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Importa usuarios desde un CSV del servidor: {"file": "clientes/acme.csv"}
+     * La ruta es relativa a ra3.csv-import.base-dir
+     */
+    @PostMapping("/import_users_csv")
+    public ResponseEntity<Map<String, Object>> importUsersCsv(@RequestBody Map<String, Object> request) {
+        logger.debug("Importando usuarios desde CSV: {}", request.get("file"));
+
+        try {
+            AtomicInteger chunks = new AtomicInteger();
+            UserImportResult result = hibernateUserService.importUsersCsv((String) request.get("file"), rows -> {
+                chunks.incrementAndGet();
+                logger.info("import_users_csv: {} filas procesadas", rows);
+            });
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "import_users_csv");
+            response.put("result", result);
+            response.put("chunks", chunks.get());
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error importando usuarios desde CSV", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error importando usuarios desde CSV: " + e.getMessage());
+            error.put("tool", "import_users_csv");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Exporta usuarios a un fichero del servidor: {"file": "nightly/users.ucol", "format": "columnar"}
+     * La ruta es relativa a ra3.export.base-dir; format es csv (por defecto) o columnar
+     */
+    @PostMapping("/export_users")
+    public ResponseEntity<Map<String, Object>> exportUsers(@RequestBody Map<String, Object> request) {
+        logger.debug("Exportando usuarios a {}", request.get("file"));
+
+        try {
+            UserExportResult result = hibernateUserService.exportUsers((String) request.get("file"),
+                    (String) request.get("format"),
+                    rows -> logger.info("export_users: {} filas escritas", rows));
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "export_users");
+            response.put("result", result);
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error exportando usuarios", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error exportando usuarios: " + e.getMessage());
+            error.put("tool", "export_users");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Snapshot en caliente de la BD en ra3.snapshot.dir: {"format": "script"} (por defecto) o "backup"
+     */
+    @PostMapping("/snapshot_database")
+    public ResponseEntity<Map<String, Object>> snapshotDatabase(
+            @RequestBody(required = false) Map<String, Object> request) {
+        logger.debug("Creando snapshot de la BD");
+
+        try {
+            DatabaseSnapshotResult result = hibernateUserService.snapshotDatabase(
+                    request != null ? (String) request.get("format") : null);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "snapshot_database");
+            response.put("result", result);
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error creando snapshot de la BD", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error creando snapshot de la BD: " + e.getMessage());
+            error.put("tool", "snapshot_database");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Restaura un snapshot script: {"file": "ra3db-20250115-020000-000.sql.gz"}
+     * El nombre es relativo a ra3.snapshot.dir
+     */
+    @PostMapping("/restore_database")
+    public ResponseEntity<Map<String, Object>> restoreDatabase(@RequestBody Map<String, Object> request) {
+        logger.debug("Restaurando snapshot {}", request.get("file"));
+
+        try {
+            DatabaseRestoreResult result = hibernateUserService.restoreDatabase((String) request.get("file"));
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "restore_database");
+            response.put("result", result);
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error restaurando snapshot de la BD", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error restaurando snapshot de la BD: " + e.getMessage());
+            error.put("tool", "restore_database");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Busca usuarios con filtros dinámicos, paginados por keyset (proyecciones UserSummary)
+     */
+    @PostMapping("/search_users")
+    public ResponseEntity<Map<String, Object>> searchUsers(@RequestBody Map<String, Object> request) {
+        logger.debug("Buscando usuarios con filtros");
+
+        try {
+            UserQueryDto query = new UserQueryDto(
+                    (String) request.get("department"),
+                    (String) request.get("role"),
+                    (Boolean) request.get("active"),
+                    request.get("limit") != null ? ((Number) request.get("limit")).intValue() : null,
+                    request.get("offset") != null ? ((Number) request.get("offset")).intValue() : null);
+            query.setCursor((String) request.get("cursor"));
+
+            UserPage<UserSummary> page = hibernateUserService.searchUserSummaries(query);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "search_users");
+            response.put("result", page.getItems());
+            response.put("count", page.getItems().size());
+            response.put("nextCursor", page.getNextCursor());
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error buscando usuarios", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error buscando usuarios: " + e.getMessage());
+            error.put("tool", "search_users");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Busca usuarios por palabras con el índice de texto completo, ordenados por relevancia
+     */
+    @PostMapping("/search_users_text")
+    public ResponseEntity<Map<String, Object>> searchUsersText(@RequestBody Map<String, Object> request) {
+        logger.debug("Búsqueda de texto completo de usuarios");
+
+        try {
+            String text = (String) request.get("text");
+            int limit = request.get("limit") != null ? ((Number) request.get("limit")).intValue() : 0;
+            List<UserSearchHit> hits = hibernateUserService.searchUsersText(text, limit);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "search_users_text");
+            response.put("result", hits);
+            response.put("count", hits.size());
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error en la búsqueda de texto completo", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error en la búsqueda de texto completo: " + e.getMessage());
+            error.put("tool", "search_users_text");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Registra un acceso de usuario en el buffer write-behind de user_statistics
+     */
+    @PostMapping("/record_login")
+    public ResponseEntity<Map<String, Object>> recordLogin(@RequestBody Map<String, Object> request) {
+        try {
+            Long userId = request.get("userId") != null ? ((Number) request.get("userId")).longValue() : null;
+            boolean recorded = hibernateUserService.recordLogin(userId);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "record_login");
+            response.put("result", recorded);
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error registrando acceso", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error registrando acceso: " + e.getMessage());
+            error.put("tool", "record_login");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Autocompletado de usuarios desde el índice de trigramas en memoria
+     */
+    @PostMapping("/autocomplete_users")
+    public ResponseEntity<Map<String, Object>> autocompleteUsers(@RequestBody Map<String, Object> request) {
+        try {
+            String prefix = (String) request.get("prefix");
+            int limit = request.get("limit") != null ? ((Number) request.get("limit")).intValue() : 0;
+            long start = System.nanoTime();
+            List<Long> ids = hibernateUserService.autocompleteUsers(prefix, limit);
+            long micros = (System.nanoTime() - start) / 1_000;
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "autocomplete_users");
+            response.put("result", ids);
+            response.put("tookMicros", micros);
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error en el autocompletado de usuarios", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error en el autocompletado de usuarios: " + e.getMessage());
+            error.put("tool", "autocomplete_users");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Estadísticas de la caché de segundo nivel de User
+     */
+    @PostMapping("/get_cache_statistics")
+    public ResponseEntity<Map<String, Object>> getCacheStatistics() {
+        logger.debug("Obteniendo estadísticas de la caché L2");
+
+        try {
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "get_cache_statistics");
+            response.put("result", hibernateUserService.getCacheStatistics());
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error obteniendo estadísticas de la caché", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error obteniendo estadísticas de la caché: " + e.getMessage());
+            error.put("tool", "get_cache_statistics");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Cuenta usuarios activos por departamento (contadores en memoria o JPQL COUNT)
+     */
+    @PostMapping("/execute_count_by_department")
+    public ResponseEntity<Map<String, Object>> executeCountByDepartment(@RequestBody Map<String, String> request) {
+        logger.debug("Contando usuarios por departamento");
+
+        try {
+            String department = request.get("department");
+            long count = hibernateUserService.executeCountByDepartment(department);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "execute_count_by_department");
+            response.put("result", count);
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error contando usuarios por departamento", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error contando usuarios por departamento: " + e.getMessage());
+            error.put("tool", "execute_count_by_department");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Corrige la deriva de los contadores en memoria por departamento
+     */
+    @PostMapping("/reconcile_department_counters")
+    public ResponseEntity<Map<String, Object>> reconcileDepartmentCounters() {
+        logger.debug("Reconciliando contadores por departamento");
+
+        try {
+            Map<String, Long> drift = hibernateUserService.reconcileDepartmentCounters();
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "reconcile_department_counters");
+            response.put("result", drift);
+            response.put("driftDetected", !drift.isEmpty());
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error reconciliando contadores", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error reconciliando contadores: " + e.getMessage());
+            error.put("tool", "reconcile_department_counters");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Inserta o actualiza usuarios por email con un MERGE por lote
+     */
+    @PostMapping("/upsert_users")
+    public ResponseEntity<Map<String, Object>> upsertUsers(@RequestBody List<UserCreateDto> users) {
+        logger.debug("Upsert de {} usuarios", users.size());
+
+        try {
+            UpsertResult result = hibernateUserService.upsertUsers(users);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "upsert_users");
+            response.put("result", result);
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error en el upsert de usuarios", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error en el upsert de usuarios: " + e.getMessage());
+            error.put("tool", "upsert_users");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Desactiva usuarios por filtro o ids con un único UPDATE JPQL
+     */
+    @PostMapping("/bulk_deactivate_users")
+    public ResponseEntity<Map<String, Object>> bulkDeactivateUsers(@RequestBody Map<String, Object> request) {
+        logger.debug("Desactivación masiva de usuarios");
+
+        try {
+            int affected = hibernateUserService.bulkDeactivateUsers(bulkFilter(request), bulkIds(request));
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "bulk_deactivate_users");
+            response.put("result", affected);
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error en la desactivación masiva", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error en la desactivación masiva: " + e.getMessage());
+            error.put("tool", "bulk_deactivate_users");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Elimina usuarios por filtro o ids con un único DELETE JPQL
+     */
+    @PostMapping("/bulk_delete_users")
+    public ResponseEntity<Map<String, Object>> bulkDeleteUsers(@RequestBody Map<String, Object> request) {
+        logger.debug("Borrado masivo de usuarios");
+
+        try {
+            int affected = hibernateUserService.bulkDeleteUsers(bulkFilter(request), bulkIds(request));
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "bulk_delete_users");
+            response.put("result", affected);
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error en el borrado masivo", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error en el borrado masivo: " + e.getMessage());
+            error.put("tool", "bulk_delete_users");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Cambia el rol de usuarios por filtro o ids con un único UPDATE JPQL
+     */
+    @PostMapping("/bulk_update_role")
+    public ResponseEntity<Map<String, Object>> bulkUpdateRole(@RequestBody Map<String, Object> request) {
+        logger.debug("Cambio masivo de rol");
+
+        try {
+            int affected = hibernateUserService.bulkUpdateRole(bulkFilter(request), bulkIds(request),
+                    (String) request.get("newRole"));
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "bulk_update_role");
+            response.put("result", affected);
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error en el cambio masivo de rol", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error en el cambio masivo de rol: " + e.getMessage());
+            error.put("tool", "bulk_update_role");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * EXPLAIN ANALYZE de las consultas frecuentes; marca las que recorren la tabla entera
+     */
+    @PostMapping("/explain_queries")
+    public ResponseEntity<Map<String, Object>> explainQueries() {
+        logger.debug("Analizando planes de ejecución");
+
+        try {
+            List<Map<String, Object>> report = hibernateUserService.explainQueries();
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("tool", "explain_queries");
+            response.put("result", report);
+            response.put("flagged", report.stream().filter(entry -> Boolean.TRUE.equals(entry.get("flagged"))).count());
+            response.put("status", "success");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error analizando planes de ejecución", e);
+
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Error analizando planes de ejecución: " + e.getMessage());
+            error.put("tool", "explain_queries");
+            error.put("status", "error");
+
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    /**
+     * Filtro de las operaciones masivas: department, role y active del cuerpo
+     */
+    private UserQueryDto bulkFilter(Map<String, Object> request) {
+        return new UserQueryDto(
+                (String) request.get("department"),
+                (String) request.get("role"),
+                (Boolean) request.get("active"),
+                null, null);
+    }
+
+    /**
+     * Lista "ids" del cuerpo, o null si no se envía
+     */
+    private List<Long> bulkIds(Map<String, Object> request) {
+        List<?> ids = (List<?>) request.get("ids");
+        if (ids == null) {
+            return null;
+        }
+        return ids.stream().map(id -> ((Number) id).longValue()).toList();
+    }
 }
@@ -0,0 +1,203 @@
+package com.dam.accesodatos.mcp;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bulkhead de las herramientas MCP: limita cuántas se ejecutan a la vez
+ *
+ * Con hilos virtuales (spring.threads.virtual.enabled) Tomcat ya no se queda sin hilos: puede
+ * aceptar miles de peticiones simultáneas. El límite real pasa a ser el pool de conexiones;
+ * si todas las peticiones llegan a Hikari, las que sobran esperan dentro del pool y acaban en
+ * timeout de conexión.
+ *
+ * Este filtro pone delante un Semaphore justo (FIFO) con tantos permisos como conexiones tiene
+ * el pool primario (ra3.bulkhead.max-concurrent=0) o los que se configuren:
+ * - Cada POST /mcp/* toma un permiso antes de llegar al controlador y lo devuelve al terminar
+ *   (en find_all_users_stream, al terminar de escribir la respuesta asíncrona)
+ * - Mientras espera, la petición es un hilo virtual aparcado: no ocupa hilo del sistema
+ * - Si no consigue permiso en ra3.bulkhead.max-wait responde 503 con Retry-After
+ *
+ * GET /mcp/health y /mcp/tools no tocan la BD y no pasan por el bulkhead.
+ */
+@Component
+public class ToolBulkhead extends OncePerRequestFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ToolBulkhead.class);
+
+    private static final String TOOL_PATH = "/mcp/";
+
+    private static final int HIKARI_DEFAULT_POOL_SIZE = 10;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${ra3.bulkhead.max-concurrent:0}")
+    private int configuredMaxConcurrent;
+
+    @Value("${ra3.bulkhead.max-wait:30s}")
+    private Duration maxWait;
+
+    private Semaphore permits;
+    private int maxConcurrent;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Long::max, 0);
+
+    @Override
+    protected void initFilterBean() throws ServletException {
+        if (permits != null) {
+            return; // Spring (afterPropertiesSet) y Tomcat (init) llaman ambos a este método
+        }
+        maxConcurrent = configuredMaxConcurrent > 0 ? configuredMaxConcurrent : primaryPoolSize();
+        permits = new Semaphore(maxConcurrent, true);
+        logger.info("Bulkhead de herramientas MCP: {} ejecuciones simultáneas, espera máxima {}",
+                maxConcurrent, maxWait);
+    }
+
+    /** maximum-pool-size del pool primario (Hikari lo deja a -1 hasta arrancar si no se configura) */
+    private int primaryPoolSize() throws ServletException {
+        try {
+            int poolSize = dataSource.unwrap(HikariDataSource.class).getMaximumPoolSize();
+            return poolSize > 0 ? poolSize : HIKARI_DEFAULT_POOL_SIZE;
+        } catch (SQLException e) {
+            throw new ServletException("El bulkhead necesita un pool Hikari o ra3.bulkhead.max-concurrent", e);
+        }
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !"POST".equals(request.getMethod()) || !request.getServletPath().startsWith(TOOL_PATH);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        long start = System.nanoTime();
+        if (!acquire()) {
+            rejected.increment();
+            reject(request, response);
+            return;
+        }
+        long waited = System.nanoTime() - start;
+        admitted.increment();
+        waitNanos.add(waited);
+        maxWaitNanos.accumulate(waited);
+
+        boolean releaseLater = false;
+        try {
+            chain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                // StreamingResponseBody: la herramienta sigue ejecutándose en otro hilo
+                request.getAsyncContext().addListener(new ReleaseOnCompletion());
+                releaseLater = true;
+            }
+        } finally {
+            if (!releaseLater) {
+                permits.release();
+            }
+        }
+    }
+
+    private boolean acquire() {
+        try {
+            return permits.tryAcquire(maxWait.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void reject(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String tool = request.getServletPath().substring(TOOL_PATH.length());
+        logger.warn("Bulkhead lleno: {} rechazada tras esperar {}", tool, maxWait);
+
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("error", "Servidor ocupado: no hay capacidad libre tras esperar " + maxWait);
+        error.put("tool", tool);
+        error.put("status", "error");
+
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", "1");
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        objectMapper.writeValue(response.getOutputStream(), error);
+    }
+
+    /** Devuelve el permiso una sola vez al acabar la respuesta asíncrona (bien, con error o por timeout) */
+    private final class ReleaseOnCompletion implements AsyncListener {
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            release();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            release();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            release();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+
+    /**
+     * Capacidad, ocupación y esperas del bulkhead
+     */
+    public Map<String, Object> snapshot() {
+        long count = admitted.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("maxConcurrent", maxConcurrent);
+        stats.put("inFlight", maxConcurrent - permits.availablePermits());
+        stats.put("queued", permits.getQueueLength());
+        stats.put("admitted", count);
+        stats.put("rejected", rejected.sum());
+        stats.put("avgWaitMs", count == 0 ? 0.0 : waitNanos.sum() / (double) count / 1_000_000);
+        stats.put("maxWaitMs", TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+        return stats;
+    }
+}
@@ -0,0 +1,8 @@
+package com.dam.accesodatos.model;
+
+/**
+ * Resultado de restore_database: snapshot restaurado, usuarios que quedan en la BD, nueva
+ * generación de la BD (ver DatabaseGeneration) y duración
+ */
+public record DatabaseRestoreResult(String file, long users, long generation, long elapsedMs) {
+}
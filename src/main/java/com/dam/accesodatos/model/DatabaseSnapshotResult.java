@@ -0,0 +1,10 @@
+package com.dam.accesodatos.model;
+
+import java.util.List;
+
+/**
+ * Resultado de snapshot_database: fichero escrito, formato, tamaño en bytes, duración y
+ * snapshots antiguos borrados por la rotación
+ */
+public record DatabaseSnapshotResult(String file, String format, long bytes, long elapsedMs, List<String> rotated) {
+}
@@ -0,0 +1,12 @@
+package com.dam.accesodatos.model;
+
+/**
+ * Resultado de upsert_users: cuántos usuarios se insertaron, cuántos se actualizaron
+ * y cuántos ya existían con los mismos datos (no se modificaron)
+ */
+public record UpsertResult(int inserted, int updated, int unchanged) {
+
+    public UpsertResult plus(UpsertResult other) {
+        return new UpsertResult(inserted + other.inserted, updated + other.updated, unchanged + other.unchanged);
+    }
+}
@@ -2,6 +2,12 @@ package com.dam.accesodatos.model;
 
 import jakarta.persistence.*;
 import jakarta.validation.constraints.*;
+import com.dam.accesodatos.ra3.DepartmentCountersListener;
+import com.dam.accesodatos.ra3.UserAutocompleteListener;
+import com.dam.accesodatos.ra3.UserOutboxListener;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.DynamicUpdate;
 import java.time.LocalDateTime;
 import java.util.Objects;
 
@@ -17,22 +23,50 @@ import java.util.Objects;
  *
  * ANOTACIONES JPA UTILIZADAS:
  * - @Entity: Marca la clase como entidad JPA gestionada por Hibernate
- * - @Table: Mapea explícitamente a la tabla 'users' de la BD
+ * - @Table: Mapea explícitamente a la tabla 'users' de la BD. Los @Index replican los
+ *   índices compuestos de schema.sql para que el esquema generado por Hibernate (tests) sea igual
  * - @Id: Marca el campo 'id' como clave primaria
- * - @GeneratedValue: El ID es autogenerado por la BD (IDENTITY strategy)
+ * - @GeneratedValue: El ID se obtiene de la secuencia 'users_seq' (SEQUENCE strategy)
+ * - @SequenceGenerator: Reserva bloques de IDs (pooled-lo) para poder agrupar INSERTs en batch
  * - @Column: Mapeo explícito de campos a columnas con restricciones
+ * - @Cacheable + @Cache: La entidad se guarda en la caché de segundo nivel (región 'users').
+ *   READ_WRITE mantiene la caché coherente en persist/merge/remove al hacer commit
+ * - @EntityListeners: DepartmentCountersListener actualiza los contadores por departamento,
+ *   UserAutocompleteListener el índice de autocompletado y UserOutboxListener registra el
+ *   cambio en el outbox
+ * - @DynamicUpdate: el UPDATE solo incluye las columnas modificadas (más la versión)
+ * - @PrePersist/@PreUpdate: updated_at es siempre el momento en que se escribe el cambio
+ * - @Version: bloqueo optimista; el UPDATE lleva "WHERE id = ? AND version = ?" y si no
+ *   afecta a ninguna fila es que otro cliente modificó el usuario antes (OptimisticLockException)
  * - @NotBlank, @Email: Validaciones de Bean Validation
  *
+ * NOTA PEDAGÓGICA (IDENTITY vs SEQUENCE):
+ * Con IDENTITY Hibernate necesita ejecutar cada INSERT inmediatamente para conocer el ID,
+ * por lo que desactiva el batching JDBC (hibernate.jdbc.batch_size no tiene efecto).
+ * Con SEQUENCE y allocationSize=50 Hibernate pide un bloque de 50 IDs con una sola llamada
+ * a la secuencia y puede enviar los INSERTs agrupados en batches de 20.
+ *
  * NOTA PEDAGÓGICA:
  * El constructor sin argumentos es OBLIGATORIO para JPA. Hibernate lo usa
  * para crear instancias mediante reflection al recuperar datos de la BD.
  */
 @Entity
-@Table(name = "users")
+@Table(name = "users", indexes = {
+        @Index(name = "idx_users_dept_active_name", columnList = "department, active, name"),
+        @Index(name = "idx_users_role_name", columnList = "role, name"),
+        @Index(name = "idx_users_name_id", columnList = "name, id"),
+        @Index(name = "idx_users_updated_id", columnList = "updated_at, id")
+})
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "users")
+@EntityListeners({DepartmentCountersListener.class, UserAutocompleteListener.class, UserOutboxListener.class})
+@DynamicUpdate
 public class User {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "users_seq")
+    @SequenceGenerator(name = "users_seq", sequenceName = "users_seq",
+                       initialValue = 100, allocationSize = 50)
     @Column(name = "id")
     private Long id;
 
@@ -63,6 +97,17 @@ public class User {
     @Column(name = "updated_at")
     private LocalDateTime updatedAt;
 
+    @Version
+    @Column(name = "version", nullable = false)
+    private Long version;
+
+    // Estado tal y como está en la BD, para que los listeners detecten cambios de departamento/activo
+    @Transient
+    private String persistedDepartment;
+
+    @Transient
+    private Boolean persistedActive;
+
     // ===== CONSTRUCTOR SIN ARGUMENTOS (OBLIGATORIO PARA JPA) =====
 
     /**
@@ -151,6 +196,47 @@ public class User {
         this.updatedAt = updatedAt;
     }
 
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    // ===== ESTADO PERSISTIDO (CALLBACKS JPA) =====
+
+    /**
+     * updated_at lo pone siempre Hibernate al escribir el cambio, nunca el cliente (transfer_data
+     * acepta entidades completas): find_users_changed_since usa updated_at como marca y una fecha
+     * en el pasado quedaría detrás de la marca de los consumidores.
+     */
+    @PrePersist
+    @PreUpdate
+    void stampUpdatedAt() {
+        this.updatedAt = LocalDateTime.now();
+    }
+
+    /**
+     * Guarda departamento y activo tal y como quedan en la BD tras cargar, insertar
+     * o actualizar. Se ejecuta después de los @EntityListeners.
+     */
+    @PostLoad
+    @PostPersist
+    @PostUpdate
+    void rememberPersistedState() {
+        this.persistedDepartment = this.department;
+        this.persistedActive = this.active;
+    }
+
+    public String persistedDepartment() {
+        return persistedDepartment;
+    }
+
+    public Boolean persistedActive() {
+        return persistedActive;
+    }
+
     // ===== EQUALS Y HASHCODE =====
 
     @Override
@@ -0,0 +1,14 @@
+package com.dam.accesodatos.model;
+
+/**
+ * Registro del log de cambios de usuarios (read_user_changes)
+ *
+ * 'offset' es la posición del registro en el log y 'nextOffset' la del siguiente: el
+ * consumidor guarda nextOffset y continúa desde ahí. 'eventId' es el id de la fila de
+ * user_outbox; la publicación es "al menos una vez", así que un consumidor que no deba
+ * aplicar dos veces el mismo evento descarta los eventId ya vistos. 'event' es el JSON
+ * {"generation", "type", "userId", "version", "occurredAt", "user"}; un cambio de generation
+ * (restore_database o BD recreada) obliga a reconstruir el estado desde la BD.
+ */
+public record UserChangeRecord(long offset, long nextOffset, long eventId, String event) {
+}
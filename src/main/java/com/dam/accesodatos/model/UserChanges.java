@@ -0,0 +1,22 @@
+package com.dam.accesodatos.model;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Resultado de find_users_changed_since: cambios posteriores a una marca (generation, updated_at, id)
+ *
+ * 'changed' son los usuarios creados o modificados y 'deletedIds' los borrados, en orden de
+ * (updated_at / deleted_at, id). La nueva marca (watermarkGeneration, watermarkUpdatedAt,
+ * watermarkId) es la del último cambio devuelto y se envía en la siguiente llamada; si hasMore
+ * es true hay más cambios y se puede pedir la siguiente página enseguida.
+ *
+ * resyncRequired indica que lo que el cliente tiene ya no vale y hay que volver a leer todos
+ * los usuarios: la marca es anterior a la retención de borrados, o es de otra generación de la
+ * BD (se ha restaurado un snapshot o la BD se ha recreado al arrancar). En este último caso la
+ * respuesta ya empieza desde el principio.
+ */
+public record UserChanges(List<User> changed, List<Long> deletedIds, long watermarkGeneration,
+                          LocalDateTime watermarkUpdatedAt, Long watermarkId, boolean hasMore,
+                          boolean resyncRequired) {
+}
@@ -0,0 +1,18 @@
+package com.dam.accesodatos.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * Proyección de solo lectura de User con todas sus columnas, para find_user_by_id
+ *
+ * Es un DTO inmutable, no una entidad gestionada por Hibernate. Se crea a partir de la
+ * entidad obtenida con entityManager.find() para aprovechar la caché de segundo nivel.
+ */
+public record UserDetail(Long id, String name, String email, String department, String role, Boolean active,
+                         LocalDateTime createdAt, LocalDateTime updatedAt) {
+
+    public static UserDetail from(User user) {
+        return new UserDetail(user.getId(), user.getName(), user.getEmail(), user.getDepartment(),
+                user.getRole(), user.getActive(), user.getCreatedAt(), user.getUpdatedAt());
+    }
+}
@@ -0,0 +1,7 @@
+package com.dam.accesodatos.model;
+
+/**
+ * Resultado de export_users: fichero escrito, formato, filas, tamaño en bytes y duración
+ */
+public record UserExportResult(String file, String format, long rows, long bytes, long elapsedMs) {
+}
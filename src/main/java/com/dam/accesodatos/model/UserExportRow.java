@@ -0,0 +1,13 @@
+package com.dam.accesodatos.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * Fila de export_users: un usuario con sus estadísticas de acceso (LEFT JOIN a user_statistics)
+ *
+ * loginCount y lastLogin son null si el usuario no tiene estadísticas.
+ */
+public record UserExportRow(long id, String name, String email, String department, String role, boolean active,
+                            LocalDateTime createdAt, LocalDateTime updatedAt, Integer loginCount,
+                            LocalDateTime lastLogin) {
+}
@@ -0,0 +1,8 @@
+package com.dam.accesodatos.model;
+
+/**
+ * Resultado de import_users_csv: filas leídas, insertadas y rechazadas, y el fichero con
+ * los rechazos (null si no hubo ninguno)
+ */
+public record UserImportResult(long rows, long imported, long rejected, String rejectsFile, long elapsedMs) {
+}
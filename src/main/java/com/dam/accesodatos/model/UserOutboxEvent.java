@@ -0,0 +1,101 @@
+package com.dam.accesodatos.model;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Entidad JPA UserOutboxEvent: cambio de un usuario pendiente de publicar (tabla 'user_outbox')
+ *
+ * Patrón "transactional outbox": el evento se inserta en la misma transacción que el cambio
+ * del usuario (UserOutbox), así que existe si y solo si el cambio se confirmó. Después
+ * UserOutboxRelay lo copia al log de cambios (UserChangeLog) y borra la fila.
+ *
+ * ANOTACIONES JPA UTILIZADAS:
+ * - @SequenceGenerator(allocationSize = 1): UserOutbox inserta con JDBC y toma el id con
+ *   NEXT VALUE FOR user_outbox_seq; el incremento de la secuencia tiene que ser 1
+ * - userVersion: versión del usuario tras el cambio; el JSON del evento lo construye el
+ *   publicador con el estado del usuario, no se guarda aquí
+ */
+@Entity
+@Table(name = "user_outbox")
+public class UserOutboxEvent {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "user_outbox_seq")
+    @SequenceGenerator(name = "user_outbox_seq", sequenceName = "user_outbox_seq", allocationSize = 1)
+    @Column(name = "id")
+    private Long id;
+
+    @Column(name = "event_type", nullable = false, length = 10)
+    private String eventType;
+
+    @Column(name = "user_id", nullable = false)
+    private Long userId;
+
+    @Column(name = "user_version", nullable = false)
+    private Long userVersion;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    /**
+     * Constructor sin argumentos requerido por JPA.
+     */
+    public UserOutboxEvent() {
+    }
+
+    // ===== GETTERS Y SETTERS =====
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getEventType() {
+        return eventType;
+    }
+
+    public void setEventType(String eventType) {
+        this.eventType = eventType;
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public void setUserId(Long userId) {
+        this.userId = userId;
+    }
+
+    public Long getUserVersion() {
+        return userVersion;
+    }
+
+    public void setUserVersion(Long userVersion) {
+        this.userVersion = userVersion;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    // ===== TOSTRING =====
+
+    @Override
+    public String toString() {
+        return "UserOutboxEvent{" +
+                "id=" + id +
+                ", eventType='" + eventType + '\'' +
+                ", userId=" + userId +
+                ", userVersion=" + userVersion +
+                ", createdAt=" + createdAt +
+                '}';
+    }
+}
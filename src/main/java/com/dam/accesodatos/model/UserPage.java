@@ -0,0 +1,41 @@
+package com.dam.accesodatos.model;
+
+import java.util.List;
+
+/**
+ * Página de resultados de search_users
+ *
+ * El tipo de los elementos es la entidad User o una proyección como UserSummary.
+ * 'nextCursor' es un token opaco que se envía en UserQueryDto.cursor para pedir
+ * la página siguiente. Es null cuando no hay más resultados.
+ */
+public class UserPage<T> {
+
+    private final List<T> items;
+    private final String nextCursor;
+
+    public UserPage(List<T> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+
+    @Override
+    public String toString() {
+        return "UserPage{" +
+                "items=" + items.size() +
+                ", nextCursor='" + nextCursor + '\'' +
+                '}';
+    }
+}
@@ -3,6 +3,10 @@ package com.dam.accesodatos.model;
 /**
  * DTO para consultas de usuarios con filtros opcionales
  * Usado en herramientas MCP para búsquedas parametrizadas
+ *
+ * Paginación: 'limit' indica el tamaño de página y 'cursor' es el token opaco
+ * 'nextCursor' devuelto por la página anterior (paginación por keyset).
+ * 'offset' solo se aplica a la primera página (sin cursor).
  */
 public class UserQueryDto {
 
@@ -11,6 +15,7 @@ public class UserQueryDto {
     private Boolean active;
     private Integer limit;
     private Integer offset;
+    private String cursor;
 
     public UserQueryDto() {
         this.limit = 10; // Por defecto 10 registros
@@ -65,6 +70,14 @@ public class UserQueryDto {
         this.offset = offset;
     }
 
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
     @Override
     public String toString() {
         return "UserQueryDto{" +
@@ -73,6 +86,7 @@ public class UserQueryDto {
                 ", active=" + active +
                 ", limit=" + limit +
                 ", offset=" + offset +
+                ", cursor='" + cursor + '\'' +
                 '}';
     }
 }
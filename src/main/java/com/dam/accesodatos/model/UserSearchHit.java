@@ -0,0 +1,9 @@
+package com.dam.accesodatos.model;
+
+/**
+ * Resultado de search_users_text: columnas de UserSummary más la puntuación de relevancia
+ * (mayor = más relevante; ver UserFullTextIndex para los pesos de cada columna)
+ */
+public record UserSearchHit(Long id, String name, String email, String department, String role, Boolean active,
+                            int score) {
+}
@@ -0,0 +1,108 @@
+package com.dam.accesodatos.model;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.OnDelete;
+import org.hibernate.annotations.OnDeleteAction;
+import java.time.LocalDateTime;
+
+/**
+ * Entidad JPA UserStatistics: estadísticas de acceso de un usuario (tabla 'user_statistics')
+ *
+ * Hay como mucho una fila por usuario: el índice único idx_user_statistics_user_id lo
+ * garantiza y es el que usa el JOIN de find_users_with_stats para buscar las estadísticas
+ * de cada usuario sin recorrer la tabla.
+ *
+ * ANOTACIONES JPA UTILIZADAS:
+ * - @ManyToOne(fetch = LAZY) + @JoinColumn: la FK user_id apunta a users(id). La relación es
+ *   unidireccional (User no conoce sus estadísticas) y perezosa: cargar una UserStatistics
+ *   no carga su User. Es 1:1 por el índice único; con @OneToOne Hibernate añadiría otra
+ *   restricción UNIQUE sobre user_id, duplicando ese índice
+ * - @OnDelete(CASCADE): replica el "ON DELETE CASCADE" de schema.sql en el esquema generado
+ *   por Hibernate (tests); al borrar un usuario la BD borra sus estadísticas
+ * - @GeneratedValue(IDENTITY): el id lo asigna la columna IDENTITY de la tabla
+ *
+ * NOTA PEDAGÓGICA (problema N+1):
+ * Recorrer una lista de N usuarios y pedir las estadísticas de cada uno ejecuta 1 + N
+ * consultas. find_users_with_stats las trae todas en una sola con LEFT JOIN.
+ */
+@Entity
+@Table(name = "user_statistics", indexes = {
+        @Index(name = "idx_user_statistics_user_id", columnList = "user_id", unique = true)
+})
+public class UserStatistics {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id")
+    private Long id;
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "user_id", nullable = false)
+    @OnDelete(action = OnDeleteAction.CASCADE)
+    private User user;
+
+    @Column(name = "login_count")
+    private Integer loginCount;
+
+    @Column(name = "last_login")
+    private LocalDateTime lastLogin;
+
+    /**
+     * Constructor sin argumentos requerido por JPA.
+     */
+    public UserStatistics() {
+        this.loginCount = 0;
+    }
+
+    public UserStatistics(User user, Integer loginCount, LocalDateTime lastLogin) {
+        this.user = user;
+        this.loginCount = loginCount;
+        this.lastLogin = lastLogin;
+    }
+
+    // ===== GETTERS Y SETTERS =====
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public void setUser(User user) {
+        this.user = user;
+    }
+
+    public Integer getLoginCount() {
+        return loginCount;
+    }
+
+    public void setLoginCount(Integer loginCount) {
+        this.loginCount = loginCount;
+    }
+
+    public LocalDateTime getLastLogin() {
+        return lastLogin;
+    }
+
+    public void setLastLogin(LocalDateTime lastLogin) {
+        this.lastLogin = lastLogin;
+    }
+
+    // ===== TOSTRING =====
+
+    @Override
+    public String toString() {
+        // Sin user: evita inicializar el proxy perezoso
+        return "UserStatistics{" +
+                "id=" + id +
+                ", loginCount=" + loginCount +
+                ", lastLogin=" + lastLogin +
+                '}';
+    }
+}
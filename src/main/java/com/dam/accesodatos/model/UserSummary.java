@@ -0,0 +1,15 @@
+package com.dam.accesodatos.model;
+
+/**
+ * Proyección de solo lectura de User para herramientas que devuelven listas
+ *
+ * Se construye directamente en la consulta con una expresión constructor de JPQL:
+ *   SELECT new com.dam.accesodatos.model.UserSummary(u.id, u.name, ...) FROM User u
+ *
+ * DIFERENCIAS vs devolver la entidad User:
+ * - Solo se leen las columnas que necesita la herramienta (sin created_at/updated_at)
+ * - El resultado NO es una entidad gestionada: Hibernate no la guarda en el contexto
+ *   de persistencia ni crea snapshots para dirty checking
+ */
+public record UserSummary(Long id, String name, String email, String department, String role, Boolean active) {
+}
@@ -0,0 +1,73 @@
+package com.dam.accesodatos.model;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Entidad JPA UserTombstone: marca de un usuario borrado (tabla 'user_tombstones')
+ *
+ * deleteUser y bulk_delete_users guardan una por usuario borrado en la misma transacción
+ * que el DELETE. find_users_changed_since las lee por (deleted_at, user_id), igual que lee
+ * los usuarios por (updated_at, id), para que los sistemas que sincronizan se enteren de
+ * los borrados sin comparar la tabla entera.
+ *
+ * ANOTACIONES JPA UTILIZADAS:
+ * - @Id sin @GeneratedValue: la clave es el ID del usuario borrado (los IDs no se reutilizan)
+ * - @Index: replica idx_user_tombstones_deleted_id de schema.sql en el esquema generado por
+ *   Hibernate (tests)
+ *
+ * Se borran pasado ra3.change-feed.tombstone-retention: quien sincronice con una marca más
+ * antigua tiene que volver a leer todos los usuarios (UserChanges.resyncRequired).
+ */
+@Entity
+@Table(name = "user_tombstones", indexes = {
+        @Index(name = "idx_user_tombstones_deleted_id", columnList = "deleted_at, user_id")
+})
+public class UserTombstone {
+
+    @Id
+    @Column(name = "user_id")
+    private Long userId;
+
+    @Column(name = "deleted_at", nullable = false)
+    private LocalDateTime deletedAt;
+
+    /**
+     * Constructor sin argumentos requerido por JPA.
+     */
+    public UserTombstone() {
+    }
+
+    public UserTombstone(Long userId, LocalDateTime deletedAt) {
+        this.userId = userId;
+        this.deletedAt = deletedAt;
+    }
+
+    // ===== GETTERS Y SETTERS =====
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public void setUserId(Long userId) {
+        this.userId = userId;
+    }
+
+    public LocalDateTime getDeletedAt() {
+        return deletedAt;
+    }
+
+    public void setDeletedAt(LocalDateTime deletedAt) {
+        this.deletedAt = deletedAt;
+    }
+
+    // ===== TOSTRING =====
+
+    @Override
+    public String toString() {
+        return "UserTombstone{" +
+                "userId=" + userId +
+                ", deletedAt=" + deletedAt +
+                '}';
+    }
+}
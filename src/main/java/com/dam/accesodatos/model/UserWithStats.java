@@ -0,0 +1,13 @@
+package com.dam.accesodatos.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * Proyección de solo lectura de User con sus estadísticas de acceso, para find_users_with_stats
+ *
+ * Se construye en una única consulta JPQL con LEFT JOIN a UserStatistics: los usuarios
+ * sin estadísticas aparecen con loginCount = 0 y lastLogin = null.
+ */
+public record UserWithStats(Long id, String name, String email, String department, String role, Boolean active,
+                            Integer loginCount, LocalDateTime lastLogin) {
+}
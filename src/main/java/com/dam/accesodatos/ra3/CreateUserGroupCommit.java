@@ -0,0 +1,314 @@
+package com.dam.accesodatos.ra3;
+
+import com.dam.accesodatos.config.ReadReplicaDataSource;
+import com.dam.accesodatos.model.User;
+import com.dam.accesodatos.model.UserCreateDto;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.ConstraintViolationException;
+import jakarta.validation.Validator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Group commit de create_user (opcional: ra3.group-commit.enabled)
+ *
+ * Sin él, cada create_user es una transacción con su propio COMMIT; con la BD en fichero
+ * cada COMMIT escribe en disco, y con cientos de altas simultáneas ese es el cuello de botella.
+ *
+ * Con group commit las peticiones se encolan y un único hilo las agrupa:
+ * - Espera la primera y recoge las que lleguen durante ra3.group-commit.max-wait (o hasta
+ *   ra3.group-commit.max-batch)
+ * - Descarta antes de empezar las que fallarían solas: email repetido en el grupo o ya
+ *   existente (un SELECT para todo el grupo) y usuarios que no pasan Bean Validation
+ * - Persiste el resto en una transacción (INSERTs en batch JDBC) con un solo COMMIT
+ * - Completa el CompletableFuture de cada petición con su usuario (ID generado) o su error
+ *
+ * Si aun así la transacción falla (p. ej. otra transacción insertó el mismo email entre el
+ * SELECT y el COMMIT) se repite el grupo con una transacción por petición: cada una recibe
+ * su propio resultado, como sin group commit.
+ *
+ * NOTA PEDAGÓGICA: mientras espera su grupo la petición no ocupa conexión; el bulkhead
+ * (ra3.bulkhead.max-concurrent) se puede subir por encima del tamaño del pool para que
+ * los grupos crezcan.
+ */
+@Component
+public class CreateUserGroupCommit implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(CreateUserGroupCommit.class);
+
+    /** Se para después del servidor web: las peticiones en curso reciben su respuesta */
+    private static final int PHASE = SmartLifecycle.DEFAULT_PHASE - 4096;
+
+    /** Espera máxima sin peticiones antes de volver a comprobar si hay que parar */
+    private static final Duration IDLE_POLL = Duration.ofMillis(200);
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private Validator validator;
+
+    @Autowired
+    private ObjectProvider<ReadReplicaDataSource> readReplica;
+
+    @Value("${ra3.group-commit.enabled:false}")
+    private boolean enabled;
+
+    @Value("${ra3.group-commit.max-wait:5ms}")
+    private Duration maxWait;
+
+    @Value("${ra3.group-commit.max-batch:200}")
+    private int maxBatch;
+
+    private final BlockingQueue<PendingCreate> queue = new LinkedBlockingQueue<>();
+    private volatile Thread committer;
+    private volatile boolean stopping;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder groups = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAccumulator maxGroupSize = new LongAccumulator(Long::max, 0);
+
+    /** Petición encolada y el futuro de su resultado */
+    private record PendingCreate(UserCreateDto dto, CompletableFuture<User> result) {
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Crea el usuario en el siguiente grupo y espera a su COMMIT
+     *
+     * @return Usuario con el ID generado
+     * @throws RuntimeException la misma excepción que habría lanzado create_user para esta petición
+     */
+    public User createUser(UserCreateDto dto) {
+        try {
+            User user = submit(dto).join();
+            // El COMMIT fue en el hilo del grupo: la ventana de la réplica es de quien espera
+            readReplica.ifAvailable(ReadReplicaDataSource::recordWrite);
+            return user;
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    /**
+     * Encola la petición; el futuro se completa tras el COMMIT de su grupo
+     */
+    public CompletableFuture<User> submit(UserCreateDto dto) {
+        if (!isRunning()) {
+            throw new IllegalStateException("Group commit de create_user desactivado (ra3.group-commit.enabled)");
+        }
+        PendingCreate pending = new PendingCreate(dto, new CompletableFuture<>());
+        requests.increment();
+        queue.add(pending);
+        return pending.result();
+    }
+
+    // ===== Hilo que agrupa =====
+
+    private void run() {
+        List<PendingCreate> group = new ArrayList<>(maxBatch);
+        while (!stopping) {
+            try {
+                PendingCreate first = queue.poll(IDLE_POLL.toMillis(), TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                group.add(first);
+                long deadline = System.nanoTime() + maxWait.toNanos();
+                while (group.size() < maxBatch) {
+                    PendingCreate next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopping = true;
+            }
+            if (!group.isEmpty()) {
+                commit(group);
+                group.clear();
+            }
+        }
+        commitQueued();
+    }
+
+    /** Parada: las que quedan en cola se atienden antes de salir */
+    private void commitQueued() {
+        List<PendingCreate> group = new ArrayList<>();
+        queue.drainTo(group);
+        if (!group.isEmpty()) {
+            commit(group);
+        }
+    }
+
+    void commit(List<PendingCreate> group) {
+        groups.increment();
+        maxGroupSize.accumulate(group.size());
+        try {
+            List<PendingCreate> accepted = rejectInvalid(group);
+            if (accepted.isEmpty()) {
+                return;
+            }
+            try {
+                List<User> users = transactionTemplate.execute(status -> {
+                    List<User> persisted = new ArrayList<>(accepted.size());
+                    for (PendingCreate pending : accepted) {
+                        User user = newUser(pending.dto());
+                        entityManager.persist(user);
+                        persisted.add(user);
+                    }
+                    return persisted;
+                });
+                for (int i = 0; i < accepted.size(); i++) {
+                    accepted.get(i).result().complete(users.get(i));
+                }
+            } catch (RuntimeException e) {
+                logger.debug("Grupo de {} altas fallido, se repite una a una: {}", accepted.size(), e.getMessage());
+                fallbacks.increment();
+                accepted.forEach(this::commitAlone);
+            }
+        } catch (RuntimeException e) {
+            // Error inesperado (p. ej. BD caída en el SELECT): ninguna petición se queda esperando
+            group.forEach(pending -> fail(pending, e));
+        }
+    }
+
+    /**
+     * Falla ya las peticiones que no pasarían solas; devuelve el resto
+     */
+    private List<PendingCreate> rejectInvalid(List<PendingCreate> group) {
+        Set<String> existing = new HashSet<>(entityManager
+                .createQuery("SELECT u.email FROM User u WHERE u.email IN :emails", String.class)
+                .setParameter("emails", group.stream().map(pending -> pending.dto().getEmail()).toList())
+                .getResultList());
+        entityManager.clear();
+
+        Set<String> seen = new HashSet<>();
+        List<PendingCreate> accepted = new ArrayList<>(group.size());
+        for (PendingCreate pending : group) {
+            Set<ConstraintViolation<User>> violations = validator.validate(newUser(pending.dto()));
+            String email = pending.dto().getEmail();
+            if (!violations.isEmpty()) {
+                fail(pending, new ConstraintViolationException(violations));
+            } else if (existing.contains(email) || !seen.add(email)) {
+                fail(pending, new DataIntegrityViolationException("Ya existe un usuario con el email " + email));
+            } else {
+                accepted.add(pending);
+            }
+        }
+        return accepted;
+    }
+
+    private void commitAlone(PendingCreate pending) {
+        try {
+            pending.result().complete(transactionTemplate.execute(status -> {
+                User user = newUser(pending.dto());
+                entityManager.persist(user);
+                return user;
+            }));
+        } catch (RuntimeException e) {
+            fail(pending, e);
+        }
+    }
+
+    private void fail(PendingCreate pending, RuntimeException e) {
+        failures.increment();
+        pending.result().completeExceptionally(e);
+    }
+
+    /** Misma entidad que crea HibernateUserServiceImpl.createUser() */
+    private static User newUser(UserCreateDto dto) {
+        return new User(dto.getName(), dto.getEmail(), dto.getDepartment(), dto.getRole());
+    }
+
+    // ===== Ciclo de vida =====
+
+    @Override
+    public void start() {
+        if (enabled && committer == null) {
+            stopping = false;
+            committer = Thread.ofVirtual().name("create-user-group-commit").start(this::run);
+            logger.info("Group commit de create_user activo: grupos de hasta {} altas, espera {}", maxBatch, maxWait);
+        }
+    }
+
+    @Override
+    public void stop() {
+        Thread thread = committer;
+        if (thread != null) {
+            // Sin interrupt(): interrumpir un hilo a mitad de una escritura de H2 puede cerrar la BD
+            stopping = true;
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            committer = null;
+            commitQueued(); // Encoladas justo mientras el hilo terminaba
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return committer != null;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    // ===== Métricas =====
+
+    /**
+     * Peticiones, grupos (COMMITs), tamaño medio y máximo de grupo, repeticiones una a una y errores
+     */
+    public Map<String, Object> snapshot() {
+        long count = groups.sum();
+        long total = requests.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("queued", queue.size());
+        stats.put("requests", total);
+        stats.put("groups", count);
+        stats.put("avgGroupSize", count == 0 ? 0.0 : (total - queue.size()) / (double) count);
+        stats.put("maxGroupSize", maxGroupSize.get());
+        stats.put("fallbacks", fallbacks.sum());
+        stats.put("failures", failures.sum());
+        return stats;
+    }
+}
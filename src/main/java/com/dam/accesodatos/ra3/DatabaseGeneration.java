@@ -0,0 +1,35 @@
+package com.dam.accesodatos.ra3;
+
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generación de la BD: identifica qué BD describen los cambios que ven los consumidores
+ *
+ * schema.sql recrea la BD en cada arranque, así que los IDs de usuario vuelven a empezar en
+ * 100 mientras el log de cambios (UserChangeLog) sigue en disco con los de antes. Cada evento
+ * del log lleva la generación con la que se produjo: un userId solo identifica a un usuario
+ * dentro de su generación.
+ *
+ * Es un instante en milisegundos: cambia en cada arranque y siempre crece.
+ */
+@Component
+public class DatabaseGeneration {
+
+    private final AtomicLong current = new AtomicLong(System.currentTimeMillis());
+
+    /** Generación actual */
+    public long current() {
+        return current.get();
+    }
+
+    /**
+     * Empieza una generación nueva, mayor que la anterior aunque el reloj haya retrocedido
+     *
+     * @return La nueva generación
+     */
+    public long renew() {
+        return current.updateAndGet(previous -> Math.max(previous + 1, System.currentTimeMillis()));
+    }
+}
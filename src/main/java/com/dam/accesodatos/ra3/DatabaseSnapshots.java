@@ -0,0 +1,365 @@
+package com.dam.accesodatos.ra3;
+
+import com.dam.accesodatos.model.DatabaseRestoreResult;
+import com.dam.accesodatos.model.DatabaseSnapshotResult;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Snapshots en caliente de la BD H2 (snapshot_database) y restauración (restore_database)
+ *
+ * Hasta ahora la única copia segura de ./data/ra3db era parar el servidor y copiar el fichero.
+ * H2 tiene dos comandos que copian la BD con la aplicación en marcha:
+ * - SCRIPT TO '...' COMPRESSION GZIP: volcado lógico (DDL + INSERT) comprimido. Se lee en una
+ *   transacción REPEATABLE READ, así que es una foto consistente; por MVCC no bloquea a los
+ *   lectores ni a los escritores. Sirve también para BD en memoria y se restaura en caliente.
+ * - BACKUP TO '...zip': copia física del fichero .mv.db (solo BD en fichero). Tampoco bloquea:
+ *   MVStore deja de reutilizar espacio mientras copia. Se restaura con la aplicación parada
+ *   (org.h2.tools.Restore), por eso restore_database solo acepta snapshots SCRIPT.
+ *
+ * Los snapshots se llaman ra3db-<fecha>.sql.gz / ra3db-<fecha>.zip y se escriben en un .tmp que
+ * se renombra al terminar. Tras cada snapshot se conservan los ra3.snapshot.keep más recientes.
+ *
+ * RESTAURAR: en una sola conexión, en modo exclusivo (SET EXCLUSIVE 1: las demás conexiones
+ * esperan a que termine en lugar de ver la BD a medias):
+ *   FT_DROP_ALL → DROP ALL OBJECTS → RUNSCRIPT → FT_INIT → secuencias → outbox
+ * El snapshot ya trae users con sus índices y el índice de texto completo, así que no hay que
+ * validar filas, ni pasar por Hibernate, ni reindexar (salvo un índice FullText incoherente, ver
+ * UserFullTextIndex.afterRestore): es bastante más rápido que data.sql seguido de
+ * import_users_csv. Después se reconstruye lo que vive en memoria (caché L2,
+ * contadores por departamento e índice de autocompletado).
+ *
+ * - Las secuencias nunca retroceden: un id ya entregado (también los que Hibernate tiene
+ *   reservados en memoria) no se vuelve a usar
+ * - Los eventos pendientes de user_outbox del snapshot se descartan: el log de cambios no se
+ *   rebobina. Los consumidores de read_user_changes y find_users_changed_since deben releer
+ *   todo tras una restauración
+ *
+ * ARRANQUE: con ra3.snapshot.restore-on-startup el nodo restaura ese snapshot al arrancar,
+ * antes de que se carguen los índices en memoria, en lugar de quedarse con data.sql.
+ */
+@Component
+public class DatabaseSnapshots {
+
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseSnapshots.class);
+
+    public static final String SCRIPT = "script";
+    public static final String BACKUP = "backup";
+
+    private static final String PREFIX = "ra3db-";
+    private static final String SCRIPT_SUFFIX = ".sql.gz";
+    private static final String BACKUP_SUFFIX = ".zip";
+    private static final DateTimeFormatter STAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private UserFullTextIndex fullTextIndex;
+
+    @Autowired
+    private DepartmentCounters departmentCounters;
+
+    @Autowired
+    private UserAutocompleteIndex autocompleteIndex;
+
+    @Autowired
+    private DatabaseGeneration databaseGeneration;
+
+    @Value("${ra3.snapshot.dir:./data/snapshots}")
+    private Path dir;
+
+    @Value("${ra3.snapshot.keep:7}")
+    private int keep;
+
+    @Value("${ra3.snapshot.restore-on-startup:}")
+    private String restoreOnStartup;
+
+    private String lastStamp = "";
+
+    /**
+     * Crea un snapshot en ra3.snapshot.dir y rota los antiguos
+     *
+     * @param format script (por defecto) o backup
+     * @throws IllegalArgumentException si el formato no existe o es backup con una BD en memoria
+     */
+    public DatabaseSnapshotResult snapshot(String format) {
+        String kind = format == null || format.isBlank() ? SCRIPT : format.toLowerCase(Locale.ROOT);
+        if (!SCRIPT.equals(kind) && !BACKUP.equals(kind)) {
+            throw new IllegalArgumentException("Formato no soportado: " + format + " (script o backup)");
+        }
+        Path target = directory().resolve(PREFIX + nextStamp() + (SCRIPT.equals(kind) ? SCRIPT_SUFFIX : BACKUP_SUFFIX));
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        long start = System.nanoTime();
+
+        // Altas de cargas masivas ya confirmadas pero aún sin indexar: que entren en el volcado de FT
+        fullTextIndex.awaitIndexed();
+        try (Connection connection = dataSource.getConnection()) {
+            Files.createDirectories(target.getParent());
+            if (SCRIPT.equals(kind)) {
+                script(connection, temporary);
+            } else {
+                backup(connection, temporary);
+            }
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            long bytes = Files.size(target);
+            List<String> rotated = rotate();
+            logger.info("snapshot_database {}: {} bytes ({}) en {} ms; rotados: {}", target.getFileName(), bytes,
+                    kind, elapsedMs, rotated);
+            return new DatabaseSnapshotResult(target.toString(), kind, bytes, elapsedMs, rotated);
+        } catch (SQLException e) {
+            throw new IllegalStateException("No se pudo crear el snapshot " + target + ": " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo escribir " + target, e);
+        } finally {
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException e) {
+                logger.warn("No se pudo borrar {}", temporary, e);
+            }
+        }
+    }
+
+    /**
+     * Restaura un snapshot SCRIPT de ra3.snapshot.dir en caliente y recarga el estado en memoria
+     *
+     * @param file Nombre del snapshot (ra3db-....sql.gz) relativo a ra3.snapshot.dir
+     * @throws IllegalArgumentException si el fichero no existe, sale del directorio, es un .zip
+     *         de BACKUP o no es un GZIP válido
+     */
+    public DatabaseRestoreResult restore(String file) {
+        return restore(file, true);
+    }
+
+    /**
+     * Snapshots de ra3.snapshot.dir, del más reciente al más antiguo
+     */
+    public List<Path> list() {
+        Path directory = directory();
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(DatabaseSnapshots::isSnapshot)
+                    .sorted((a, b) -> b.getFileName().toString().compareTo(a.getFileName().toString()))
+                    .toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo listar " + directory, e);
+        }
+    }
+
+    /**
+     * ra3.snapshot.restore-on-startup: se ejecuta antes que el resto de listeners de arranque
+     * (índice de texto completo, contadores, autocompletado), que ya cargan los datos restaurados
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void restoreOnStartup() {
+        if (restoreOnStartup == null || restoreOnStartup.isBlank()) {
+            return;
+        }
+        DatabaseRestoreResult result = restore(restoreOnStartup, false);
+        logger.info("Snapshot {} restaurado al arrancar: {} usuarios en {} ms", result.file(), result.users(),
+                result.elapsedMs());
+    }
+
+    // ===== Snapshot =====
+
+    private static void script(Connection connection, Path file) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        int isolation = connection.getTransactionIsolation();
+        connection.setAutoCommit(false);
+        connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SCRIPT TO " + literal(file) + " COMPRESSION GZIP");
+            connection.commit();
+        } finally {
+            connection.setTransactionIsolation(isolation);
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static void backup(Connection connection, Path file) throws SQLException {
+        if (connection.getMetaData().getURL().startsWith("jdbc:h2:mem:")) {
+            throw new IllegalArgumentException("BACKUP solo sirve para una BD H2 en fichero; use format script");
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("BACKUP TO " + literal(file));
+        }
+    }
+
+    /** Conserva los ra3.snapshot.keep snapshots más recientes y devuelve los borrados */
+    private List<String> rotate() throws IOException {
+        List<Path> snapshots = list();
+        List<String> rotated = new ArrayList<>();
+        for (Path old : snapshots.subList(Math.min(Math.max(keep, 1), snapshots.size()), snapshots.size())) {
+            Files.deleteIfExists(old);
+            rotated.add(old.getFileName().toString());
+        }
+        return rotated;
+    }
+
+    /** Marca de tiempo del nombre; dos snapshots en el mismo milisegundo no se pisan */
+    private synchronized String nextStamp() {
+        String stamp = LocalDateTime.now().format(STAMP);
+        if (stamp.compareTo(lastStamp) <= 0) {
+            stamp = LocalDateTime.parse(lastStamp, STAMP).plusNanos(1_000_000).format(STAMP);
+        }
+        lastStamp = stamp;
+        return stamp;
+    }
+
+    // ===== Restauración =====
+
+    private DatabaseRestoreResult restore(String file, boolean reloadMemory) {
+        Path snapshot = resolve(file);
+        verify(snapshot);
+        long start = System.nanoTime();
+
+        // Que el hilo que indexa altas aplazadas no escriba en FT durante FT_DROP_ALL y RUNSCRIPT
+        fullTextIndex.awaitIndexed();
+        long users;
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            connection.setAutoCommit(true);
+            statement.execute("SET EXCLUSIVE 1");
+            try {
+                Map<String, Long> sequences = sequences(statement);
+                fullTextIndex.beforeRestore(statement);
+                statement.execute("DROP ALL OBJECTS");
+                statement.execute("RUNSCRIPT FROM " + literal(snapshot) + " COMPRESSION GZIP");
+                fullTextIndex.afterRestore(statement);
+                advanceSequences(statement, sequences);
+                statement.execute("DELETE FROM user_outbox");
+                try (ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM users")) {
+                    rs.next();
+                    users = rs.getLong(1);
+                }
+            } finally {
+                statement.execute("SET EXCLUSIVE 0");
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("No se pudo restaurar " + snapshot + ": " + e.getMessage(), e);
+        }
+
+        // Las marcas de find_users_changed_since y los eventos del log anteriores ya no valen
+        long generation = databaseGeneration.renew();
+
+        // La caché L2 y la de consultas tienen filas que ya no existen o han cambiado
+        entityManagerFactory.unwrap(SessionFactory.class).getCache().evictAllRegions();
+        if (reloadMemory) {
+            departmentCounters.reconcile();
+            autocompleteIndex.load();
+        }
+
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        logger.info("restore_database {}: {} usuarios en {} ms", snapshot.getFileName(), users, elapsedMs);
+        return new DatabaseRestoreResult(snapshot.toString(), users, generation, elapsedMs);
+    }
+
+    private Path resolve(String file) {
+        if (file == null || file.isBlank()) {
+            throw new IllegalArgumentException("Debe indicar el snapshot a restaurar");
+        }
+        Path base = directory();
+        Path snapshot = base.resolve(file).normalize();
+        if (!snapshot.startsWith(base) || snapshot.equals(base)) {
+            throw new IllegalArgumentException("El snapshot debe estar en ra3.snapshot.dir: " + file);
+        }
+        if (snapshot.getFileName().toString().endsWith(BACKUP_SUFFIX)) {
+            throw new IllegalArgumentException("Los snapshots BACKUP (.zip) se restauran con la aplicación parada"
+                    + " (org.h2.tools.Restore); restore_database necesita un snapshot script (.sql.gz)");
+        }
+        if (!Files.isRegularFile(snapshot)) {
+            throw new IllegalArgumentException("No existe el snapshot " + file);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Lee el GZIP completo antes de borrar nada: un fichero truncado o corrupto falla aquí y no
+     * a mitad de RUNSCRIPT, con la BD ya vacía
+     */
+    private static void verify(Path snapshot) {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(snapshot), 64 * 1024)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("El snapshot " + snapshot.getFileName() + " no es un GZIP válido: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    /** Valor siguiente de cada secuencia de PUBLIC */
+    private static Map<String, Long> sequences(Statement statement) throws SQLException {
+        Map<String, Long> sequences = new LinkedHashMap<>();
+        try (ResultSet rs = statement.executeQuery("SELECT SEQUENCE_NAME, BASE_VALUE FROM INFORMATION_SCHEMA.SEQUENCES"
+                + " WHERE SEQUENCE_SCHEMA = 'PUBLIC'")) {
+            while (rs.next()) {
+                sequences.put(rs.getString(1), rs.getLong(2));
+            }
+        }
+        return sequences;
+    }
+
+    /** Las secuencias del snapshot que van por detrás de las de antes de restaurar se adelantan */
+    private static void advanceSequences(Statement statement, Map<String, Long> before) throws SQLException {
+        for (Map.Entry<String, Long> restored : sequences(statement).entrySet()) {
+            Long previous = before.get(restored.getKey());
+            if (previous != null && previous > restored.getValue()) {
+                statement.execute("ALTER SEQUENCE \"" + restored.getKey() + "\" RESTART WITH " + previous);
+            }
+        }
+    }
+
+    // ===== Utilidades =====
+
+    private Path directory() {
+        return dir.toAbsolutePath().normalize();
+    }
+
+    private static boolean isSnapshot(Path file) {
+        String name = file.getFileName().toString();
+        return name.startsWith(PREFIX) && (name.endsWith(SCRIPT_SUFFIX) || name.endsWith(BACKUP_SUFFIX));
+    }
+
+    /** Ruta como literal SQL (SCRIPT, BACKUP y RUNSCRIPT no admiten parámetros) */
+    private static String literal(Path file) {
+        return "'" + file.toString().replace("'", "''") + "'";
+    }
+}
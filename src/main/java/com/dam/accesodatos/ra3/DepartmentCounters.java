@@ -0,0 +1,271 @@
+package com.dam.accesodatos.ra3;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.action.spi.BeforeTransactionCompletionProcess;
+import org.hibernate.engine.spi.ActionQueue;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Contadores en memoria de usuarios por (departamento, activo)
+ *
+ * Permiten responder execute_count_by_department en O(1) sin consultar la BD:
+ * - Se cargan al arrancar con un GROUP BY sobre users
+ * - DepartmentCountersListener los mantiene al día en cada persist, update y remove de User
+ * - Los cambios de una transacción se acumulan y solo se aplican tras el commit,
+ *   así un rollback no deja los contadores desajustados
+ * - reconcile() compara con la BD y corrige la deriva que producen las sentencias
+ *   JPQL/SQL masivas (UPDATE/DELETE), que no pasan por los callbacks de JPA
+ *
+ * Cada contador es un LongAdder: varios hilos pueden incrementarlo sin bloquearse.
+ *
+ * reconcile() y los commits se excluyen con un ReentrantReadWriteLock: una transacción con
+ * cambios toma el cerrojo de lectura justo antes del COMMIT y lo suelta después de aplicar sus deltas,
+ * y reconcile() toma el de escritura. Así ningún commit queda a medias (ya en la BD pero aún sin
+ * aplicar) mientras reconcile() lee el GROUP BY y ajusta: sin esto ese commit se contaría dos
+ * veces o se perdería, y la propia reconciliación crearía deriva.
+ */
+@Component
+public class DepartmentCounters {
+
+    private static final Logger logger = LoggerFactory.getLogger(DepartmentCounters.class);
+
+    /** Clave de un contador: departamento + estado activo */
+    record Key(String department, boolean active) {
+
+        static Key of(String department, Boolean active) {
+            return new Key(department, Boolean.TRUE.equals(active));
+        }
+
+        @Override
+        public String toString() {
+            return department + (active ? "|active" : "|inactive");
+        }
+    }
+
+    private final Map<Key, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private final ReentrantReadWriteLock reconcileLock = new ReentrantReadWriteLock();
+
+    private volatile boolean ready;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * true cuando los contadores se han cargado desde la BD al menos una vez
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Número de usuarios activos del departamento según los contadores en memoria
+     */
+    public long activeCount(String department) {
+        LongAdder adder = counters.get(new Key(department, true));
+        return adder != null ? adder.sum() : 0;
+    }
+
+    /**
+     * Registra el cambio de un usuario. oldDepartment es null en un INSERT y
+     * newDepartment es null en un DELETE.
+     *
+     * Dentro de una transacción el cambio queda pendiente hasta el commit.
+     */
+    public void recordChange(String oldDepartment, Boolean oldActive, String newDepartment, Boolean newActive) {
+        Map<Key, Long> deltas = new HashMap<>();
+        if (oldDepartment != null) {
+            deltas.merge(Key.of(oldDepartment, oldActive), -1L, Long::sum);
+        }
+        if (newDepartment != null) {
+            deltas.merge(Key.of(newDepartment, newActive), 1L, Long::sum);
+        }
+        record(deltas);
+    }
+
+    /**
+     * Registra el cambio de count usuarios de un departamento hecho por una sentencia
+     * masiva (UPDATE/DELETE JPQL), que no pasa por DepartmentCountersListener.
+     * newActive es null si los usuarios se han borrado.
+     */
+    public void recordBulkChange(String department, Boolean oldActive, Boolean newActive, long count) {
+        Map<Key, Long> deltas = new HashMap<>();
+        deltas.merge(Key.of(department, oldActive), -count, Long::sum);
+        if (newActive != null) {
+            deltas.merge(Key.of(department, newActive), count, Long::sum);
+        }
+        record(deltas);
+    }
+
+    /**
+     * Registra count usuarios de un departamento insertados sin pasar por la entidad
+     * (import_users_csv)
+     */
+    public void recordBulkInsert(String department, Boolean active, long count) {
+        Map<Key, Long> deltas = new HashMap<>();
+        deltas.put(Key.of(department, active), count);
+        record(deltas);
+    }
+
+    private void record(Map<Key, Long> deltas) {
+        deltas.values().removeIf(delta -> delta == 0);
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            reconcileLock.readLock().lock();
+            try {
+                apply(deltas);
+            } finally {
+                reconcileLock.readLock().unlock();
+            }
+            return;
+        }
+        Map<Key, Long> pending = pendingDeltas();
+        deltas.forEach((key, delta) -> pending.merge(key, delta, Long::sum));
+    }
+
+    /**
+     * Recalcula los contadores desde la BD y devuelve la deriva detectada
+     * (valor en BD - valor en memoria) para cada clave que no coincidía.
+     */
+    public Map<String, Long> reconcile() {
+        reconcileLock.writeLock().lock();
+        try {
+            return reconcileLocked();
+        } finally {
+            reconcileLock.writeLock().unlock();
+        }
+    }
+
+    private Map<String, Long> reconcileLocked() {
+        List<Object[]> rows = entityManager.createQuery(
+                "SELECT u.department, u.active, COUNT(u) FROM User u GROUP BY u.department, u.active",
+                Object[].class).getResultList();
+
+        Map<Key, Long> actual = new HashMap<>();
+        for (Object[] row : rows) {
+            actual.merge(Key.of((String) row[0], (Boolean) row[1]), (Long) row[2], Long::sum);
+        }
+
+        Map<String, Long> drift = new LinkedHashMap<>();
+        for (Key key : union(actual.keySet(), counters.keySet())) {
+            long expected = actual.getOrDefault(key, 0L);
+            LongAdder adder = counters.computeIfAbsent(key, k -> new LongAdder());
+            long current = adder.sum();
+            if (current != expected) {
+                drift.put(key.toString(), expected - current);
+                adder.add(expected - current);
+            }
+        }
+
+        if (ready && !drift.isEmpty()) {
+            logger.warn("Deriva en contadores por departamento corregida: {}", drift);
+        }
+        ready = true;
+        return drift;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void seed() {
+        reconcile();
+        logger.info("Contadores por departamento cargados: {} claves", counters.size());
+    }
+
+    @Scheduled(fixedDelayString = "${ra3.counters.reconcile-interval:PT5M}",
+               initialDelayString = "${ra3.counters.reconcile-interval:PT5M}")
+    public void scheduledReconcile() {
+        reconcile();
+    }
+
+    // ===== Cambios pendientes de la transacción actual =====
+
+    @SuppressWarnings("unchecked")
+    private Map<Key, Long> pendingDeltas() {
+        Map<Key, Long> pending = (Map<Key, Long>) TransactionSynchronizationManager.getResource(this);
+        if (pending == null) {
+            pending = new HashMap<>();
+            TransactionSynchronizationManager.bindResource(this, pending);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(DepartmentCounters.this);
+                }
+            });
+            // Los callbacks de JPA llegan en el flush del commit, cuando Spring ya ha llamado a
+            // beforeCommit: el cerrojo y los deltas van en los procesos de la sesión de Hibernate,
+            // que se ejecutan justo antes y justo después del COMMIT JDBC
+            PendingCommit commit = new PendingCommit(pending);
+            ActionQueue actions = entityManager.unwrap(SessionImplementor.class).getActionQueue();
+            actions.registerProcess((BeforeTransactionCompletionProcess) commit);
+            actions.registerProcess((AfterTransactionCompletionProcess) commit);
+        }
+        return pending;
+    }
+
+    /**
+     * Deltas de una transacción: toma el cerrojo de lectura antes del COMMIT y lo suelta
+     * después de aplicarlos, así reconcile() nunca ve el commit a medias
+     */
+    private class PendingCommit implements BeforeTransactionCompletionProcess, AfterTransactionCompletionProcess {
+
+        private final Map<Key, Long> deltas;
+        private boolean locked;
+
+        PendingCommit(Map<Key, Long> deltas) {
+            this.deltas = deltas;
+        }
+
+        @Override
+        public void doBeforeTransactionCompletion(SessionImplementor session) {
+            reconcileLock.readLock().lock();
+            locked = true;
+        }
+
+        @Override
+        public void doAfterTransactionCompletion(boolean success, SharedSessionContractImplementor session) {
+            try {
+                if (success) {
+                    apply(deltas);
+                }
+            } finally {
+                if (locked) {
+                    locked = false;
+                    reconcileLock.readLock().unlock();
+                }
+            }
+        }
+    }
+
+    private void apply(Map<Key, Long> deltas) {
+        deltas.forEach((key, delta) -> counters.computeIfAbsent(key, k -> new LongAdder()).add(delta));
+    }
+
+    private static <T> Set<T> union(Set<T> a, Set<T> b) {
+        Set<T> all = new HashSet<>(a);
+        all.addAll(b);
+        return all;
+    }
+}
@@ -0,0 +1,49 @@
+package com.dam.accesodatos.ra3;
+
+import com.dam.accesodatos.model.User;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import org.springframework.beans.factory.ObjectProvider;
+
+/**
+ * Entity listener JPA que mantiene DepartmentCounters al día
+ *
+ * RA3 - CONCEPTO: Callbacks del ciclo de vida de entidades
+ * Hibernate invoca estos métodos al ejecutar el INSERT, UPDATE o DELETE de cada User.
+ * El estado anterior (departamento y activo tal y como están en la BD) lo guarda la
+ * propia entidad en @PostLoad/@PostPersist/@PostUpdate, que se ejecutan después de
+ * los listeners.
+ *
+ * Hibernate crea el listener a través del contenedor de beans de Spring, por eso
+ * puede recibir DepartmentCounters por constructor. Se inyecta como ObjectProvider
+ * porque el listener se instancia mientras se construye el EntityManagerFactory, y
+ * DepartmentCounters a su vez necesita un EntityManager: resolverlo en el primer
+ * callback evita la dependencia circular.
+ */
+public class DepartmentCountersListener {
+
+    private final ObjectProvider<DepartmentCounters> counters;
+
+    public DepartmentCountersListener(ObjectProvider<DepartmentCounters> counters) {
+        this.counters = counters;
+    }
+
+    @PostPersist
+    public void afterInsert(User user) {
+        counters.getObject().recordChange(null, null, user.getDepartment(), user.getActive());
+    }
+
+    @PostUpdate
+    public void afterUpdate(User user) {
+        counters.getObject().recordChange(user.persistedDepartment(), user.persistedActive(),
+                user.getDepartment(), user.getActive());
+    }
+
+    @PostRemove
+    public void afterDelete(User user) {
+        String department = user.persistedDepartment() != null ? user.persistedDepartment() : user.getDepartment();
+        Boolean active = user.persistedDepartment() != null ? user.persistedActive() : user.getActive();
+        counters.getObject().recordChange(department, active, null, null);
+    }
+}
@@ -1,13 +1,29 @@
 package com.dam.accesodatos.ra3;
 
+import com.dam.accesodatos.model.DatabaseRestoreResult;
+import com.dam.accesodatos.model.DatabaseSnapshotResult;
 import com.dam.accesodatos.model.User;
+import com.dam.accesodatos.model.UserChangeRecord;
+import com.dam.accesodatos.model.UserChanges;
 import com.dam.accesodatos.model.UserCreateDto;
+import com.dam.accesodatos.model.UserDetail;
+import com.dam.accesodatos.model.UserExportResult;
+import com.dam.accesodatos.model.UserImportResult;
+import com.dam.accesodatos.model.UserPage;
+import com.dam.accesodatos.model.UserSearchHit;
+import com.dam.accesodatos.model.UserSummary;
+import com.dam.accesodatos.model.UserWithStats;
+import com.dam.accesodatos.model.UpsertResult;
 import com.dam.accesodatos.model.UserUpdateDto;
 import com.dam.accesodatos.model.UserQueryDto;
 import org.springframework.ai.mcp.server.annotation.Tool;
 
+import java.time.LocalDateTime;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 /**
  * Interface de servicio para operaciones Hibernate/JPA con usuarios
@@ -102,39 +118,43 @@ public interface HibernateUserService {
      * - RA2: PreparedStatement SELECT, rs.next(), mapeo manual con rs.getLong(), rs.getString()
      * - RA3: entityManager.find(User.class, id), mapeo automático por Hibernate
      *
+     * NOTA: La herramienta MCP find_user_by_id usa la proyección findUserDetailById().
+     * Este método devuelve la entidad gestionada y lo usan updateUser() y deleteUser().
+     *
      * @param id ID del usuario a buscar
      * @return Usuario encontrado o null si no existe
      * @throws RuntimeException si hay error de BD
      */
-    @Tool(name = "find_user_by_id",
-          description = "Busca un usuario por ID usando EntityManager.find()")
     User findUserById(Long id);
 
     /**
-     * CE3.e: Actualiza un usuario existente usando EntityManager.merge()
+     * CE3.e: Actualiza un usuario existente con dirty checking y bloqueo optimista
      *
      * Implementación requerida:
-     * - Buscar usuario existente con find()
-     * - Aplicar cambios del DTO
-     * - Usar entityManager.merge(user)
-     * - Anotar con @Transactional
-     * - Hibernate genera SQL UPDATE automáticamente
+     * - Buscar usuario existente con find() (queda gestionado: no hace falta merge())
+     * - Aplicar solo los campos del DTO que cambian
+     * - Hibernate genera el UPDATE al hacer commit; con @DynamicUpdate solo incluye
+     *   las columnas modificadas, y con @Version añade "AND version = ?"
+     * - Si la versión no coincide (otro cliente actualizó antes) se repite la
+     *   transacción hasta ra3.update.max-retries veces
      *
      * Clases JPA requeridas:
      * - jakarta.persistence.EntityManager
-     * - Método: merge(T entity)
+     * - jakarta.persistence.Version
      *
      * DIFERENCIAS vs RA2:
      * - RA2: PreparedStatement UPDATE users SET ... WHERE id = ?
-     * - RA3: entityManager.merge(user), Hibernate detecta cambios y genera UPDATE
+     * - RA3: se modifica la entidad, Hibernate detecta cambios y genera UPDATE
      *
      * @param id ID del usuario a actualizar
      * @param dto DTO con datos a actualizar (campos opcionales)
      * @return Usuario actualizado
      * @throws RuntimeException si el usuario no existe o hay error
+     * @throws org.springframework.dao.OptimisticLockingFailureException si el conflicto
+     *         de versión persiste tras los reintentos
      */
     @Tool(name = "update_user",
-          description = "Actualiza un usuario existente usando EntityManager.merge() y @Transactional")
+          description = "Actualiza solo los campos modificados de un usuario con bloqueo optimista (@Version)")
     User updateUser(Long id, UserUpdateDto dto);
 
     /**
@@ -177,13 +197,40 @@ public interface HibernateUserService {
      * - RA2: SELECT * FROM users, while(rs.next()), mapeo manual
      * - RA3: userRepository.findAll(), todo automático
      *
+     * NOTA: La herramienta MCP find_all_users usa la proyección findAllSummaries().
+     *
      * @return Lista de todos los usuarios
      * @throws RuntimeException si hay error
      */
-    @Tool(name = "find_all_users",
-          description = "Obtiene todos los usuarios usando JPA Repository.findAll()")
     List<User> findAll();
 
+    /**
+     * CE3.e: Recorre todos los usuarios con un cursor JDBC de solo avance (streaming)
+     *
+     * Variante de findAll() para tablas grandes:
+     * - Usa Session.createQuery(...).scroll(ScrollMode.FORWARD_ONLY) de Hibernate
+     * - setFetchSize(fetchSize): filas que el driver trae en cada viaje a la BD
+     * - setReadOnly(true): Hibernate no guarda snapshots para dirty checking
+     * - CacheMode.IGNORE (consulta y sesión mientras dura el cursor): el recorrido no llena
+     *   la caché L2 con toda la tabla
+     * - SET LAZY_QUERY_EXECUTION TRUE mientras dura el cursor (como export_users): sin ella H2
+     *   prepara el resultado completo antes de devolver la primera fila
+     * - Cada usuario se entrega al consumer y después se hace detach() para que
+     *   el contexto de persistencia no crezca
+     *
+     * DIFERENCIAS vs findAll():
+     * - findAll(): carga todas las filas en una List<User> antes de devolver nada
+     * - streamAllUsers(): memoria constante, el primer usuario llega en cuanto se lee
+     *
+     * @param fetchSize Filas por viaje a la BD; si es menor o igual que 0 se usa ra3.stream.fetch-size
+     * @param consumer Recibe cada usuario (ya desacoplado del contexto de persistencia)
+     * @return Número de usuarios recorridos
+     * @throws RuntimeException si hay error
+     */
+    @Tool(name = "find_all_users_stream",
+          description = "Recorre todos los usuarios con un cursor de solo avance (NDJSON por HTTP)")
+    long streamAllUsers(int fetchSize, Consumer<User> consumer);
+
     // ========== CE3.f: Consultas JPQL/HQL ==========
 
     /**
@@ -203,12 +250,13 @@ public interface HibernateUserService {
      * - RA2: SQL "SELECT * FROM users WHERE department = ?"
      * - RA3: JPQL "SELECT u FROM User u WHERE u.department = :dept"
      *
+     * NOTA: La herramienta MCP find_users_by_department usa la proyección
+     * findUserSummariesByDepartment().
+     *
      * @param department Nombre del departamento
      * @return Lista de usuarios del departamento
      * @throws RuntimeException si hay error
      */
-    @Tool(name = "find_users_by_department",
-          description = "Busca usuarios por departamento usando JPQL")
     List<User> findUsersByDepartment(String department);
 
     /**
@@ -224,21 +272,236 @@ public interface HibernateUserService {
      * - Si queryDto.getActive() != null: añadir "AND u.active = :active"
      * - Crear TypedQuery y setear parámetros solo para los filtros presentes
      *
+     * Paginación por keyset (seek):
+     * - Resultados ordenados por "ORDER BY u.name, u.id"
+     * - Se leen queryDto.getLimit() + 1 filas para saber si hay página siguiente
+     * - Si queryDto.getCursor() != null: añadir
+     *   "AND (u.name > :cName OR (u.name = :cName AND u.id > :cId))"
+     * - El cursor de la última fila se devuelve como nextCursor (token opaco)
+     *
      * Clases JPA requeridas:
      * - jakarta.persistence.TypedQuery
      * - entityManager.createQuery(jpql, User.class)
+     * - query.setMaxResults(limit)
      *
      * DIFERENCIAS vs RA2:
      * - RA2: StringBuilder para construir SQL dinámico
      * - RA3: JPQL con parámetros nombrados
      *
-     * @param query DTO con filtros opcionales
-     * @return Lista de usuarios que cumplen los criterios
+     * NOTA PEDAGÓGICA:
+     * Con OFFSET la BD tiene que leer y descartar todas las filas anteriores, así que
+     * las páginas profundas son cada vez más caras. Con keyset la BD salta directamente
+     * a la posición del cursor usando el índice idx_users_name_id.
+     *
+     * NOTA: La herramienta MCP search_users usa la proyección searchUserSummaries().
+     *
+     * @param query DTO con filtros opcionales, tamaño de página y cursor
+     * @return Página de usuarios que cumplen los criterios y cursor de la siguiente
+     * @throws RuntimeException si hay error o el cursor no es válido
+     */
+    UserPage<User> searchUsers(UserQueryDto query);
+
+    // ========== CE3.f: Proyecciones de solo lectura (herramientas de consulta) ==========
+
+    /**
+     * CE3.f: Busca un usuario por ID como proyección UserDetail
+     *
+     * Implementación:
+     * - entityManager.find(User.class, id): se resuelve desde la caché de segundo nivel
+     *   (región 'users') sin ir a la BD si la entidad ya está cacheada
+     * - Se copia a un UserDetail inmutable para la respuesta
+     *
+     * DIFERENCIAS vs findUserById():
+     * - findUserById(): devuelve la entidad gestionada que se puede modificar
+     * - findUserDetailById(): DTO inmutable, pensado solo para serializar la respuesta
+     *
+     * @param id ID del usuario a buscar
+     * @return Proyección del usuario o null si no existe
+     * @throws RuntimeException si hay error de BD
+     */
+    @Tool(name = "find_user_by_id",
+          description = "Busca un usuario por ID usando EntityManager.find() y la caché de segundo nivel")
+    UserDetail findUserDetailById(Long id);
+
+    /**
+     * CE3.f: Obtiene todos los usuarios como proyecciones UserSummary
+     *
+     * Solo lee las columnas id, name, email, department, role y active.
+     *
+     * @return Lista de proyecciones de todos los usuarios
+     * @throws RuntimeException si hay error
+     */
+    @Tool(name = "find_all_users",
+          description = "Obtiene todos los usuarios con una proyección JPQL de solo lectura")
+    List<UserSummary> findAllSummaries();
+
+    /**
+     * CE3.f: Busca usuarios activos por departamento como proyecciones UserSummary
+     *
+     * Misma consulta que findUsersByDepartment() pero con "SELECT new ...UserSummary(...)".
+     * Si ra3.query-cache.find-users-by-department está activo, el resultado se guarda en la
+     * caché de consultas (región query.users-by-department).
+     *
+     * @param department Nombre del departamento
+     * @return Lista de proyecciones de usuarios activos del departamento, ordenada por nombre
      * @throws RuntimeException si hay error
      */
+    @Tool(name = "find_users_by_department",
+          description = "Busca usuarios por departamento usando JPQL con una proyección de solo lectura")
+    List<UserSummary> findUserSummariesByDepartment(String department);
+
+    /**
+     * CE3.f: Búsqueda dinámica paginada por keyset como proyecciones UserSummary
+     *
+     * Mismos filtros, orden y cursor que searchUsers() (los cursores son intercambiables).
+     *
+     * @param query DTO con filtros opcionales, tamaño de página y cursor
+     * @return Página de proyecciones y cursor de la siguiente
+     * @throws RuntimeException si hay error o el cursor no es válido
+     */
     @Tool(name = "search_users",
-          description = "Busca usuarios con filtros dinámicos usando JPQL")
-    List<User> searchUsers(UserQueryDto query);
+          description = "Busca usuarios con filtros dinámicos usando JPQL, paginados por keyset con nextCursor")
+    UserPage<UserSummary> searchUserSummaries(UserQueryDto query);
+
+    /**
+     * CE3.f: Usuarios con sus estadísticas de acceso (login_count, last_login)
+     *
+     * Una sola consulta JPQL con LEFT JOIN a UserStatistics por user_id (índice único
+     * idx_user_statistics_user_id), proyectada a UserWithStats. El número de sentencias SQL
+     * no depende del número de usuarios devueltos: siempre es 1.
+     *
+     * DIFERENCIAS vs recorrer los usuarios y buscar sus estadísticas uno a uno:
+     * - Uno a uno: 1 consulta de usuarios + N consultas de estadísticas (problema N+1)
+     * - JOIN: 1 consulta; H2 busca la fila de estadísticas de cada usuario por el índice
+     *
+     * @param department Departamento (null o vacío = todos los usuarios)
+     * @return Usuarios ordenados por nombre e id; loginCount = 0 si no tienen estadísticas
+     * @throws RuntimeException si hay error
+     */
+    @Tool(name = "find_users_with_stats",
+          description = "Obtiene usuarios con su número de accesos y último acceso en una sola consulta JPQL con LEFT JOIN")
+    List<UserWithStats> findUsersWithStats(String department);
+
+    /**
+     * Registra un acceso del usuario: suma 1 a login_count y actualiza last_login
+     *
+     * Write-behind: el acceso se acumula en memoria (LoginEventBuffer) y se escribe en
+     * user_statistics junto con los demás accesos del mismo usuario en el siguiente volcado
+     * (cada ra3.login-buffer.flush-interval). No abre transacción ni consulta la BD; si el
+     * usuario no existe, el acceso se descarta al volcar.
+     *
+     * @param userId ID del usuario
+     * @return true cuando el acceso queda registrado en el buffer
+     * @throws IllegalArgumentException si el ID es nulo o no positivo
+     */
+    @Tool(name = "record_login",
+          description = "Registra un acceso de usuario; los accesos se agrupan en memoria y se vuelcan por lotes a user_statistics")
+    boolean recordLogin(Long userId);
+
+    /**
+     * Cambios de usuarios posteriores a una marca (updated_at, id): altas, modificaciones y borrados
+     *
+     * Sincronización incremental: en lugar de releer find_all_users, el cliente guarda la marca
+     * devuelta y la envía en la siguiente llamada. Se lee por keyset sobre los índices
+     * idx_users_updated_id (updated_at, id) y idx_user_tombstones_deleted_id (borrados), así
+     * que el coste depende del número de cambios, no del tamaño de la tabla.
+     *
+     * updated_at se asigna al escribir el cambio (@PrePersist/@PreUpdate de User), antes del
+     * COMMIT: una transacción aún abierta podría confirmar después un cambio con una marca ya
+     * superada por el cliente. Por eso solo se devuelven cambios anteriores al inicio de la
+     * transacción de escritura abierta más antigua (WriteTransactionTracker) y con más de
+     * ra3.change-feed.settle-time de antigüedad. Se lee siempre del primario: con la réplica
+     * retrasada la marca avanzaría sobre cambios que esta aún no ve.
+     *
+     * La marca lleva también la generación de la BD (DatabaseGeneration). Si no es la actual
+     * (restore_database o BD recreada al arrancar), updated_at e id no significan nada en esta
+     * BD: se devuelve resyncRequired y los cambios desde el principio.
+     *
+     * @param generation Generación de la marca (null = no se comprueba)
+     * @param updatedAt updated_at de la marca (null = desde el principio)
+     * @param id ID de la marca: desempata cambios con el mismo updated_at (null = 0)
+     * @param limit Máximo de cambios (usuarios + borrados); 0 o negativo = ra3.change-feed.default-limit
+     * @return Cambios, nueva marca y si quedan más
+     * @throws RuntimeException si hay error
+     */
+    @Tool(name = "find_users_changed_since",
+          description = "Devuelve los usuarios creados, modificados o borrados después de una marca (generation, updated_at, id) y la nueva marca")
+    UserChanges findUsersChangedSince(Long generation, LocalDateTime updatedAt, Long id, int limit);
+
+    /**
+     * Lee el log de cambios de usuarios (altas, modificaciones y borrados) a partir de un offset
+     *
+     * Cada cambio de User se guarda en user_outbox en la misma transacción (UserOutbox) y un
+     * publicador en segundo plano lo copia a un log de solo añadir mapeado en memoria
+     * (UserChangeLog). El consumidor empieza en el offset 0 (o el más antiguo conservado) y
+     * continúa con el nextOffset del último registro leído. No consulta la BD.
+     *
+     * @param offset Offset del primer registro a leer
+     * @param limit Máximo de registros; 0 o negativo = ra3.outbox.default-read-limit
+     * @return Registros por orden de publicación (vacío si no hay nada nuevo)
+     * @throws IllegalArgumentException si el offset no es el de un registro o ya no se conserva
+     */
+    @Tool(name = "read_user_changes",
+          description = "Lee desde un offset el log de cambios de usuarios publicado desde el outbox transaccional")
+    List<UserChangeRecord> readUserChanges(long offset, int limit);
+
+    /**
+     * Búsqueda de texto completo por nombre, email, departamento y rol, ordenada por relevancia
+     *
+     * A diferencia de LIKE '%texto%' (UserRepository.findByNameContainingIgnoreCase), que recorre
+     * la tabla entera, usa el índice invertido FullText de H2 (ver UserFullTextIndex): las filas
+     * candidatas se obtienen por palabra y solo esas se leen y puntúan.
+     *
+     * Se buscan palabras completas sin distinguir mayúsculas ("perez" encuentra "juan.perez@...",
+     * "per" no); un usuario aparece si contiene TODAS las palabras del texto.
+     *
+     * Las altas de transfer_data, transfer_data_chunked, upsert_users e import_users_csv se
+     * indexan en segundo plano tras su COMMIT: aparecen poco después de terminar la carga.
+     *
+     * @param text Palabras a buscar
+     * @param limit Máximo de resultados; si es menor o igual que 0 se usa ra3.search-text.default-limit
+     * @return Usuarios con su puntuación, de más a menos relevantes
+     * @throws IllegalArgumentException si el texto no contiene ninguna palabra
+     */
+    @Tool(name = "search_users_text",
+          description = "Busca usuarios por palabras en nombre, email, departamento y rol con un índice de texto completo, ordenados por relevancia")
+    List<UserSearchHit> searchUsersText(String text, int limit);
+
+    /**
+     * Autocompletado de usuarios por nombre o email desde un índice de trigramas en memoria
+     *
+     * No consulta la BD: UserAutocompleteIndex se carga al arrancar y se actualiza tras cada
+     * commit (entity listener, upsert_users y borrados masivos). Ignora mayúsculas y tildes.
+     * Con 1-2 caracteres busca inicios de palabra ("ju" → "Juan Pérez"); con 3 o más, el
+     * texto en cualquier posición ("rez" → "Juan Pérez").
+     *
+     * Orden: nombre que empieza por el texto, palabra del nombre o del email que empieza por
+     * él y por último el texto en medio del nombre o del email; empates por orden de alta.
+     *
+     * @param prefix Texto tecleado
+     * @param limit Máximo de IDs; si es menor o igual que 0 se usa ra3.autocomplete.default-limit
+     * @return IDs de usuario, mejores coincidencias primero
+     */
+    @Tool(name = "autocomplete_users",
+          description = "Devuelve los IDs de los usuarios cuyo nombre o email coincide con el texto tecleado, desde un índice de trigramas en memoria")
+    List<Long> autocompleteUsers(String prefix, int limit);
+
+    // ========== Caché de segundo nivel ==========
+
+    /**
+     * Estadísticas de la caché de segundo nivel de la entidad User y de la caché de consultas
+     *
+     * Implementación:
+     * - Hibernate Statistics (generate_statistics: true): aciertos, fallos y escrituras
+     *   de la región 'users' y de las regiones de consultas por departamento
+     * - Estadísticas nativas de Caffeine: expulsiones por tamaño máximo o TTL
+     *
+     * @return Mapa con region, hitCount, missCount, putCount, hitRatio, evictionCount, size
+     *         y queryCache (estadísticas por región de consultas)
+     */
+    @Tool(name = "get_cache_statistics",
+          description = "Devuelve aciertos, fallos y expulsiones de la caché L2 de User y de la caché de consultas")
+    Map<String, Object> getCacheStatistics();
 
     // ========== CE3.g: Gestión de Transacciones ==========
 
@@ -267,6 +530,109 @@ public interface HibernateUserService {
           description = "Inserta múltiples usuarios en una transacción usando @Transactional")
     boolean transferData(List<User> users);
 
+    /**
+     * CE3.g: Inserta usuarios por bloques (chunks) con flush() y clear() cada N entidades
+     *
+     * Variante de transferData() para cargas masivas:
+     * - Lee los usuarios de un Iterator (no necesita una List materializada en memoria)
+     * - Cada chunkSize entidades: entityManager.flush() envía los INSERT en batch
+     *   y entityManager.clear() vacía el contexto de persistencia
+     * - Todo se ejecuta en una única transacción: si falla un bloque se hace rollback de todo
+     *
+     * NOTA PEDAGÓGICA:
+     * Sin clear(), Hibernate mantiene cada entidad gestionada (y su snapshot para dirty checking)
+     * hasta el commit, así que la memoria crece con el tamaño de la importación.
+     * Conviene que chunkSize sea múltiplo de hibernate.jdbc.batch_size.
+     *
+     * @param users Origen de los usuarios (por ejemplo, stream.iterator())
+     * @param chunkSize Entidades por bloque; si es menor o igual que 0 se usa ra3.transfer.chunk-size
+     * @param progressListener Recibe el total acumulado tras cada bloque (puede ser null)
+     * @return Número total de usuarios insertados
+     * @throws RuntimeException si hay error y se hace rollback
+     */
+    @Tool(name = "transfer_data_chunked",
+          description = "Inserta usuarios por bloques con flush()/clear() cada N entidades en una transacción")
+    long transferDataChunked(Iterator<User> users, int chunkSize, LongConsumer progressListener);
+
+    /**
+     * Importa usuarios desde un fichero CSV local sin pasar por la entidad
+     *
+     * Para cargas grandes (alta de un cliente con cientos de miles de usuarios): el fichero se
+     * lee en streaming, cada fila se valida al leerla y las válidas se insertan con batches JDBC
+     * de ra3.csv-import.chunk-size filas, con un COMMIT por bloque (UserCsvImporter).
+     *
+     * - Cabecera obligatoria con name, email, department y role; active es opcional
+     * - Se rechazan las filas mal formadas, las que no pasan las validaciones de User y los
+     *   emails repetidos en el fichero o ya existentes. Van a <fichero>.rejects.csv con su
+     *   número de línea y el motivo; no detienen la importación
+     * - Si falla la BD, lo confirmado en bloques anteriores se queda
+     *
+     * @param file Ruta del CSV relativa a ra3.csv-import.base-dir
+     * @param progressListener Recibe las filas leídas tras cada bloque confirmado (puede ser null)
+     * @return Filas leídas, importadas y rechazadas, fichero de rechazos y duración
+     * @throws IllegalArgumentException si el fichero no existe, está fuera de base-dir o la cabecera no es válida
+     */
+    @Tool(name = "import_users_csv",
+          description = "Importa usuarios desde un CSV local con batches JDBC y deja las filas rechazadas en un fichero aparte")
+    UserImportResult importUsersCsv(String file, LongConsumer progressListener);
+
+    /**
+     * Exporta todos los usuarios con sus estadísticas de acceso a un fichero
+     *
+     * Para los volcados nocturnos de analítica: las filas van de un cursor JDBC (LEFT JOIN a
+     * user_statistics, ORDER BY id) directamente al fichero, sin entidades ni listas en memoria,
+     * así que la memoria usada no crece con el número de usuarios (UserExporter).
+     *
+     * - csv: UTF-8 con cabecera (comprimido con GZIP si el fichero termina en .gz)
+     * - columnar: fichero por columnas comprimido, con diccionario para department y role
+     *   (UserColumnarFile, mucho más pequeño que el CSV)
+     * - Se escribe en un temporal y se renombra al terminar: nunca queda un fichero a medias
+     *
+     * @param file Ruta del fichero relativa a ra3.export.base-dir (se sobrescribe si existe)
+     * @param format csv (por defecto si es null) o columnar
+     * @param progressListener Recibe las filas escritas cada ra3.export.progress-every (puede ser null)
+     * @return Fichero, formato, filas, tamaño y duración
+     * @throws IllegalArgumentException si la ruta sale de base-dir o el formato no existe
+     */
+    @Tool(name = "export_users",
+          description = "Exporta usuarios y sus estadísticas a CSV o a un fichero columnar comprimido desde un cursor JDBC")
+    UserExportResult exportUsers(String file, String format, LongConsumer progressListener);
+
+    /**
+     * Copia en caliente de la BD H2 en ra3.snapshot.dir, sin parar el servidor
+     *
+     * - script (por defecto): SCRIPT TO ... COMPRESSION GZIP, volcado SQL comprimido de una foto
+     *   consistente (transacción REPEATABLE READ). Se restaura con restore_database
+     * - backup: BACKUP TO ... (.zip con el fichero .mv.db); solo BD en fichero y se restaura con
+     *   la aplicación parada (org.h2.tools.Restore)
+     * Ninguno de los dos bloquea a los lectores (MVCC de H2). Tras el snapshot se borran los más
+     * antiguos y se conservan ra3.snapshot.keep (DatabaseSnapshots).
+     *
+     * @param format script (por defecto si es null) o backup
+     * @return Fichero, formato, tamaño, duración y snapshots borrados por la rotación
+     * @throws IllegalArgumentException si el formato no existe o es backup con una BD en memoria
+     */
+    @Tool(name = "snapshot_database",
+          description = "Crea un snapshot comprimido de la BD H2 en caliente (SCRIPT o BACKUP) y rota los antiguos")
+    DatabaseSnapshotResult snapshotDatabase(String format);
+
+    /**
+     * Restaura un snapshot script de ra3.snapshot.dir con la aplicación en marcha
+     *
+     * DROP ALL OBJECTS + RUNSCRIPT en modo exclusivo (las demás conexiones esperan) y después se
+     * recargan la caché L2, los contadores por departamento y el índice de autocompletado. El
+     * snapshot trae los índices ya construidos (también el de texto completo): no se reindexa.
+     * Las secuencias no retroceden y los eventos pendientes del outbox del snapshot se descartan.
+     *
+     * @param file Nombre del snapshot (.sql.gz) relativo a ra3.snapshot.dir
+     * @return Snapshot restaurado, usuarios en la BD y duración
+     * @throws IllegalArgumentException si el fichero no existe, sale de ra3.snapshot.dir, es un
+     *         .zip de BACKUP o no es un GZIP válido
+     */
+    @Tool(name = "restore_database",
+          description = "Restaura en caliente un snapshot SCRIPT de la BD y recarga cachés e índices en memoria")
+    DatabaseRestoreResult restoreDatabase(String file);
+
     /**
      * CE3.f: Ejecuta consulta COUNT por departamento usando JPQL
      *
@@ -275,6 +641,10 @@ public interface HibernateUserService {
      * - Setear parámetro
      * - Ejecutar con getSingleResult()
      * - Retornar Long con el count
+     * - Si ra3.query-cache.execute-count-by-department está activo, marcar la consulta como
+     *   cacheable (HibernateHints.HINT_CACHEABLE); se invalida sola al cambiar 'users'
+     * - Si ra3.counters.enabled está activo, responder desde DepartmentCounters (memoria, O(1))
+     *   salvo dentro de una transacción de escritura, donde se usa la consulta
      *
      * Clases JPA requeridas:
      * - jakarta.persistence.TypedQuery<Long>
@@ -290,4 +660,120 @@ public interface HibernateUserService {
     @Tool(name = "execute_count_by_department",
           description = "Ejecuta consulta COUNT usando JPQL")
     long executeCountByDepartment(String department);
+
+    /**
+     * Recalcula los contadores en memoria por departamento desde la BD
+     *
+     * Los UPDATE/DELETE masivos con JPQL o SQL no disparan los callbacks de JPA, así que
+     * pueden dejar los contadores desajustados. Esta herramienta (y una tarea programada
+     * cada ra3.counters.reconcile-interval) compara con un GROUP BY y corrige la deriva.
+     * El GROUP BY va al primario, fuera de transacción: en la réplica vería datos retrasados y
+     * "corregiría" contadores que estaban bien.
+     *
+     * @return Deriva corregida por clave "departamento|active" o "departamento|inactive"
+     *         (vacío si los contadores ya coincidían)
+     */
+    @Tool(name = "reconcile_department_counters",
+          description = "Compara los contadores en memoria por departamento con la BD y corrige la deriva")
+    Map<String, Long> reconcileDepartmentCounters();
+
+    /**
+     * Inserta o actualiza usuarios por email con sentencias MERGE de H2
+     *
+     * Implementación:
+     * - Los usuarios se procesan en lotes de ra3.upsert.batch-size
+     * - Por lote: un SELECT de los emails que ya existen y un único
+     *   "MERGE INTO users t USING (VALUES ...) s ON t.email = s.email ..."
+     * - Los existentes solo se actualizan (name, department, role) si algo cambia;
+     *   los nuevos se insertan activos con IDs del mismo generador que persist()
+     * - Si un email se repite en la entrada, gana la última aparición
+     * - Las filas existentes se bloquean (SELECT ... FOR UPDATE) hasta el MERGE; si otra
+     *   transacción inserta a la vez uno de los emails nuevos, la transacción se deshace y se
+     *   repite una vez
+     *
+     * DIFERENCIAS vs findByEmail() + create_user/update_user por registro:
+     * - Antes: 2-3 viajes a la BD por usuario
+     * - Ahora: 2 sentencias por lote, sin cargar entidades en el contexto de persistencia
+     *
+     * @param users Usuarios a sincronizar (email obligatorio)
+     * @return Número de insertados, actualizados y sin cambios
+     * @throws IllegalArgumentException si algún usuario no tiene email
+     */
+    @Tool(name = "upsert_users",
+          description = "Inserta o actualiza usuarios por email con un MERGE de H2 por lote")
+    UpsertResult upsertUsers(List<UserCreateDto> users);
+
+    // ========== Operaciones masivas con JPQL (UPDATE/DELETE) ==========
+
+    /**
+     * Desactiva de una vez todos los usuarios que cumplen el filtro
+     *
+     * Implementación:
+     * - Una única sentencia "UPDATE VERSIONED User u SET u.active = false, u.updatedAt = :now WHERE ..."
+     *   ejecutada con Query.executeUpdate(), que devuelve las filas afectadas
+     * - Solo toca usuarios que siguen activos, así el resultado cuenta los realmente desactivados
+     * - filter e ids se combinan con AND; hace falta al menos uno de los dos
+     *
+     * NOTA PEDAGÓGICA:
+     * Las sentencias masivas no cargan entidades: no hay dirty checking ni callbacks
+     * (@PreUpdate, entity listeners). "UPDATE VERSIONED" incrementa la columna @Version,
+     * así que un update_user concurrente detecta el cambio. Hibernate sí invalida por su cuenta la
+     * región L2 "users" y las consultas cacheadas sobre users. Los contadores por
+     * departamento se ajustan con un GROUP BY previo de las filas afectadas.
+     *
+     * DIFERENCIAS vs updateUser():
+     * - updateUser(): SELECT + UPDATE por usuario (N usuarios = 2N sentencias)
+     * - bulkDeactivateUsers(): 1 UPDATE para todos
+     *
+     * @param filter Filtros department/role/active (puede ser null si se indican ids)
+     * @param ids IDs concretos (puede ser null si se indica algún filtro)
+     * @return Número de usuarios desactivados
+     * @throws IllegalArgumentException si no hay ni ids ni filtros
+     */
+    @Tool(name = "bulk_deactivate_users",
+          description = "Desactiva usuarios por filtro o lista de ids con un único UPDATE JPQL")
+    int bulkDeactivateUsers(UserQueryDto filter, List<Long> ids);
+
+    /**
+     * Elimina de una vez todos los usuarios que cumplen el filtro
+     *
+     * Una única sentencia "DELETE FROM User u WHERE ..." con executeUpdate(), frente a
+     * deleteUser(), que carga la entidad con find() y después llama a remove().
+     *
+     * @param filter Filtros department/role/active (puede ser null si se indican ids)
+     * @param ids IDs concretos (puede ser null si se indica algún filtro)
+     * @return Número de usuarios eliminados
+     * @throws IllegalArgumentException si no hay ni ids ni filtros
+     */
+    @Tool(name = "bulk_delete_users",
+          description = "Elimina usuarios por filtro o lista de ids con un único DELETE JPQL")
+    int bulkDeleteUsers(UserQueryDto filter, List<Long> ids);
+
+    /**
+     * Cambia el rol de todos los usuarios que cumplen el filtro con un único UPDATE JPQL
+     *
+     * Los usuarios que ya tienen ese rol no se cuentan como afectados.
+     *
+     * @param filter Filtros department/role/active (puede ser null si se indican ids)
+     * @param ids IDs concretos (puede ser null si se indica algún filtro)
+     * @param newRole Rol a asignar
+     * @return Número de usuarios actualizados
+     * @throws IllegalArgumentException si no hay ni ids ni filtros, o newRole está vacío
+     */
+    @Tool(name = "bulk_update_role",
+          description = "Cambia el rol de usuarios por filtro o lista de ids con un único UPDATE JPQL")
+    int bulkUpdateRole(UserQueryDto filter, List<Long> ids, String newRole);
+
+    /**
+     * Ejecuta EXPLAIN ANALYZE de H2 sobre cada forma de consulta registrada
+     *
+     * Sirve para detectar regresiones de índices antes de producción: una consulta que
+     * debería usar un índice y pasa a recorrer la tabla entera aparece con flagged = true.
+     *
+     * @return Por cada consulta: índice usado, tableScan, sortedByIndex, scanCount,
+     *         flagged, SQL y plan completo
+     */
+    @Tool(name = "explain_queries",
+          description = "Ejecuta EXPLAIN ANALYZE sobre las consultas frecuentes y marca las que recorren la tabla entera")
+    List<Map<String, Object>> explainQueries();
 }
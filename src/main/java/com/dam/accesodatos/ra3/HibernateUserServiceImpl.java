@@ -1,7 +1,21 @@
 package com.dam.accesodatos.ra3;
 
+import com.dam.accesodatos.config.HibernateCacheConfig;
+import com.dam.accesodatos.model.DatabaseRestoreResult;
+import com.dam.accesodatos.model.DatabaseSnapshotResult;
 import com.dam.accesodatos.model.User;
+import com.dam.accesodatos.model.UserChangeRecord;
+import com.dam.accesodatos.model.UserChanges;
 import com.dam.accesodatos.model.UserCreateDto;
+import com.dam.accesodatos.model.UserDetail;
+import com.dam.accesodatos.model.UserExportResult;
+import com.dam.accesodatos.model.UserImportResult;
+import com.dam.accesodatos.model.UserPage;
+import com.dam.accesodatos.model.UserSearchHit;
+import com.dam.accesodatos.model.UserSummary;
+import com.dam.accesodatos.model.UserTombstone;
+import com.dam.accesodatos.model.UserWithStats;
+import com.dam.accesodatos.model.UpsertResult;
 import com.dam.accesodatos.model.UserUpdateDto;
 import com.dam.accesodatos.model.UserQueryDto;
 import com.dam.accesodatos.repository.UserRepository;
@@ -10,15 +24,45 @@ import jakarta.persistence.criteria.*;
 import jakarta.persistence.metamodel.Attribute;
 import jakarta.persistence.metamodel.EntityType;
 import jakarta.persistence.metamodel.Metamodel;
+import org.hibernate.CacheMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.generator.BeforeExecutionGenerator;
+import org.hibernate.generator.EventType;
+import org.hibernate.jpa.HibernateHints;
+import org.hibernate.query.NativeQuery;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.cache.CacheManager;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
 
 /**
  * Implementación del servicio Hibernate/JPA para gestión de usuarios
@@ -47,12 +91,95 @@ import java.util.*;
 @Transactional(readOnly = true) // Transacciones de solo lectura por defecto
 public class HibernateUserServiceImpl implements HibernateUserService {
 
+    private static final Logger logger = LoggerFactory.getLogger(HibernateUserServiceImpl.class);
+
     @PersistenceContext
     private EntityManager entityManager;
 
     @Autowired
     private UserRepository userRepository;
 
+    @Autowired
+    private CacheManager hibernateCacheManager;
+
+    @Autowired
+    private DepartmentCounters departmentCounters;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private QueryPlanAdvisor queryPlanAdvisor;
+
+    @Autowired
+    private UserFullTextIndex fullTextIndex;
+
+    @Autowired
+    private UserAutocompleteIndex autocompleteIndex;
+
+    @Autowired
+    private LoginEventBuffer loginEventBuffer;
+
+    @Autowired
+    private UserChangeLog changeLog;
+
+    @Autowired
+    private UserOutbox userOutbox;
+
+    @Autowired
+    private DatabaseGeneration databaseGeneration;
+
+    @Autowired
+    private WriteTransactionTracker writeTransactions;
+
+    @Autowired
+    private UserCsvImporter csvImporter;
+
+    @Autowired
+    private UserExporter exporter;
+
+    @Autowired
+    private DatabaseSnapshots databaseSnapshots;
+
+    @Value("${ra3.transfer.chunk-size:500}")
+    private int defaultChunkSize;
+
+    @Value("${ra3.stream.fetch-size:500}")
+    private int defaultFetchSize;
+
+    @Value("${ra3.query-cache.find-users-by-department:false}")
+    private boolean cacheDepartmentListing;
+
+    @Value("${ra3.query-cache.execute-count-by-department:false}")
+    private boolean cacheDepartmentCount;
+
+    @Value("${ra3.update.max-retries:0}")
+    private int maxUpdateRetries;
+
+    @Value("${ra3.upsert.batch-size:500}")
+    private int upsertBatchSize;
+
+    @Value("${ra3.counters.enabled:false}")
+    private boolean useDepartmentCounters;
+
+    @Value("${ra3.search-text.default-limit:20}")
+    private int defaultTextSearchLimit;
+
+    @Value("${ra3.autocomplete.default-limit:10}")
+    private int defaultAutocompleteLimit;
+
+    @Value("${ra3.change-feed.default-limit:500}")
+    private int defaultChangeFeedLimit;
+
+    @Value("${ra3.change-feed.settle-time:2s}")
+    private Duration changeFeedSettleTime;
+
+    @Value("${ra3.change-feed.tombstone-retention:7d}")
+    private Duration tombstoneRetention;
+
+    @Value("${ra3.outbox.default-read-limit:100}")
+    private int defaultChangeLogReadLimit;
+
     // ========== CE3.a: Configuración y Conexión ORM ==========
 
     /**
@@ -144,50 +271,72 @@ public class HibernateUserServiceImpl implements HibernateUserService {
     }
 
     /**
-     * ✅ EJEMPLO IMPLEMENTADO 4/6: UPDATE con merge()
+     * ✅ EJEMPLO IMPLEMENTADO 4/6: UPDATE parcial con dirty checking y @Version
      *
      * Muestra cómo actualizar una entidad existente.
      *
      * DIFERENCIAS vs RA2 (JDBC):
      * - RA2: PreparedStatement con "UPDATE users SET ... WHERE id = ?"
-     * - RA3: entityManager.merge(user), Hibernate detecta cambios automáticamente
+     * - RA3: se modifica la entidad gestionada y Hibernate genera el UPDATE al hacer flush
      *
      * PATRÓN IMPORTANTE:
-     * 1. Buscar entidad existente
-     * 2. Modificar atributos
-     * 3. merge() sincroniza cambios con BD
+     * 1. Buscar entidad existente (gestionada: no hace falta merge())
+     * 2. Modificar solo los atributos que cambian
+     * 3. Al hacer commit, dirty checking + @DynamicUpdate generan un único
+     *    "UPDATE users SET <cambiadas>, version = ? WHERE id = ? AND version = ?"
+     *
+     * Si otro cliente modificó el usuario entre el SELECT y el UPDATE, la versión no
+     * coincide y el commit falla. Como el DTO solo lleva los campos a cambiar, se
+     * repite la transacción completa (hasta ra3.update.max-retries veces) sobre el
+     * estado recién leído. Si ya hay una transacción del llamante no se puede repetir
+     * aquí y el conflicto se propaga.
      */
     @Override
-    @Transactional // ← Modifica BD
+    @Transactional(propagation = Propagation.SUPPORTS) // Cada intento abre su propia transacción
     public User updateUser(Long id, UserUpdateDto dto) {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            return applyUpdate(id, dto);
+        }
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return transactionTemplate.execute(status -> applyUpdate(id, dto));
+            } catch (OptimisticLockingFailureException | OptimisticLockException e) {
+                if (attempt >= maxUpdateRetries) {
+                    throw e;
+                }
+                logger.debug("Conflicto de versión actualizando usuario {}, reintento {}", id, attempt + 1);
+            }
+        }
+    }
+
+    private User applyUpdate(Long id, UserUpdateDto dto) {
         // 1. Buscar entidad existente
         User existing = findUserById(id);
         if (existing == null) {
             throw new RuntimeException("No se encontró usuario con ID " + id);
         }
 
-        // 2. Aplicar cambios del DTO
-        if (dto.getName() != null) {
+        // 2. Aplicar solo los cambios reales del DTO. updated_at lo pone User.stampUpdatedAt()
+        //    (@PreUpdate) solo si hay UPDATE: sin cambios no se toca ni se incrementa la versión
+        if (dto.getName() != null && !dto.getName().equals(existing.getName())) {
             existing.setName(dto.getName());
         }
-        if (dto.getEmail() != null) {
+        if (dto.getEmail() != null && !dto.getEmail().equals(existing.getEmail())) {
             existing.setEmail(dto.getEmail());
         }
-        if (dto.getDepartment() != null) {
+        if (dto.getDepartment() != null && !dto.getDepartment().equals(existing.getDepartment())) {
             existing.setDepartment(dto.getDepartment());
         }
-        if (dto.getRole() != null) {
+        if (dto.getRole() != null && !dto.getRole().equals(existing.getRole())) {
             existing.setRole(dto.getRole());
         }
-        if (dto.getActive() != null) {
+        if (dto.getActive() != null && !dto.getActive().equals(existing.getActive())) {
             existing.setActive(dto.getActive());
         }
-        existing.setUpdatedAt(LocalDateTime.now());
 
-        // 3. merge() actualiza la entidad
-        // Hibernate detecta qué campos cambiaron y genera UPDATE solo de esos campos
-        return entityManager.merge(existing);
-        // Al finalizar, Spring hace commit y Hibernate ejecuta el UPDATE
+        // 3. La entidad ya está gestionada: Hibernate ejecuta el UPDATE al hacer commit
+        return existing;
     }
 
     @Override
@@ -198,6 +347,8 @@ public class HibernateUserServiceImpl implements HibernateUserService {
             return false;
         }
         entityManager.remove(user);
+        // Para find_users_changed_since: el borrado se confirma junto con su marca
+        entityManager.persist(new UserTombstone(id, LocalDateTime.now()));
         return true;
     }
 
@@ -219,6 +370,45 @@ public class HibernateUserServiceImpl implements HibernateUserService {
         return userRepository.findAll();
     }
 
+    @Override
+    public long streamAllUsers(int fetchSize, Consumer<User> consumer) {
+        int size = fetchSize > 0 ? fetchSize : defaultFetchSize;
+        Session session = entityManager.unwrap(Session.class);
+
+        // Como UserExporter: sin ejecución perezosa H2 prepara el resultado completo antes de
+        // devolver la primera fila y el fetch size no limita nada
+        session.doWork(connection -> lazyQueryExecution(connection, true));
+        // scroll() restaura el modo de caché al volver, antes de leer ninguna fila: sin
+        // CacheMode.IGNORE en la sesión cada usuario recorrido acabaría en la caché L2
+        CacheMode cacheMode = session.getCacheMode();
+        session.setCacheMode(CacheMode.IGNORE);
+        long count = 0;
+        try (ScrollableResults<User> rows = session.createQuery("SELECT u FROM User u ORDER BY u.id", User.class)
+                .setFetchSize(size)
+                .setReadOnly(true)
+                .setCacheMode(CacheMode.IGNORE)
+                .scroll(ScrollMode.FORWARD_ONLY)) {
+            while (rows.next()) {
+                User user = rows.get();
+                // Se desacopla antes de entregarlo: el contexto de persistencia no crece
+                session.detach(user);
+                consumer.accept(user);
+                count++;
+            }
+        } finally {
+            session.setCacheMode(cacheMode);
+            // La conexión vuelve al pool: se deja como estaba
+            session.doWork(connection -> lazyQueryExecution(connection, false));
+        }
+        return count;
+    }
+
+    private static void lazyQueryExecution(Connection connection, boolean lazy) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SET LAZY_QUERY_EXECUTION " + (lazy ? "TRUE" : "FALSE"));
+        }
+    }
+
     // ========== CE3.f: Consultas JPQL ==========
 
     /**
@@ -244,38 +434,402 @@ public class HibernateUserServiceImpl implements HibernateUserService {
         // TypedQuery garantiza type-safety
         TypedQuery<User> query = entityManager.createQuery(jpql, User.class);
         query.setParameter("dept", department);
+        cacheable(query, cacheDepartmentListing, HibernateCacheConfig.DEPARTMENT_LIST_REGION);
 
         // getResultList() retorna List<User>
         return query.getResultList();
     }
 
     @Override
-    public List<User> searchUsers(UserQueryDto queryDto) {
-        StringBuilder jpql = new StringBuilder("SELECT u FROM User u WHERE 1=1");
+    public UserPage<User> searchUsers(UserQueryDto queryDto) {
+        return searchPage(queryDto, entitySearch, User.class, u -> new UserCursor(u.getName(), u.getId()));
+    }
 
-        if (queryDto.getDepartment() != null && !queryDto.getDepartment().isEmpty()) {
-            jpql.append(" AND u.department = :dept");
+    // ========== CE3.f: Proyecciones de solo lectura ==========
+
+    /**
+     * Expresión constructor JPQL: Hibernate crea directamente el record con las
+     * columnas seleccionadas, sin instanciar ni gestionar entidades User.
+     */
+    private static final String SELECT_SUMMARY =
+            "SELECT new com.dam.accesodatos.model.UserSummary(u.id, u.name, u.email, u.department, u.role, u.active)";
+
+    private final UserSearchQueries entitySearch = new UserSearchQueries("SELECT u");
+
+    private final UserSearchQueries summarySearch = new UserSearchQueries(SELECT_SUMMARY);
+
+    @Override
+    public UserDetail findUserDetailById(Long id) {
+        // find() consulta primero la caché de segundo nivel; solo va a la BD si hay fallo
+        User user = entityManager.find(User.class, id);
+        return user != null ? UserDetail.from(user) : null;
+    }
+
+    @Override
+    public List<UserSummary> findAllSummaries() {
+        return entityManager.createQuery(SELECT_SUMMARY + " FROM User u", UserSummary.class)
+                .getResultList();
+    }
+
+    @Override
+    public List<UserSummary> findUserSummariesByDepartment(String department) {
+        String jpql = SELECT_SUMMARY + " FROM User u WHERE u.department = :dept AND u.active = true ORDER BY u.name";
+        TypedQuery<UserSummary> query = entityManager.createQuery(jpql, UserSummary.class);
+        query.setParameter("dept", department);
+        cacheable(query, cacheDepartmentListing, HibernateCacheConfig.DEPARTMENT_LIST_REGION);
+        return query.getResultList();
+    }
+
+    @Override
+    public List<UserWithStats> findUsersWithStats(String department) {
+        boolean byDepartment = department != null && !department.isBlank();
+        // ON por la FK (s.user.id): Hibernate la compara con u.id sin un JOIN extra a users
+        String jpql = "SELECT new com.dam.accesodatos.model.UserWithStats(u.id, u.name, u.email, u.department,"
+                + " u.role, u.active, COALESCE(s.loginCount, 0), s.lastLogin)"
+                + " FROM User u LEFT JOIN UserStatistics s ON s.user.id = u.id"
+                + (byDepartment ? " WHERE u.department = :dept" : "")
+                + " ORDER BY u.name, u.id";
+        TypedQuery<UserWithStats> query = entityManager.createQuery(jpql, UserWithStats.class);
+        if (byDepartment) {
+            query.setParameter("dept", department);
         }
-        if (queryDto.getRole() != null && !queryDto.getRole().isEmpty()) {
-            jpql.append(" AND u.role = :role");
+        return query.getResultList();
+    }
+
+    @Override
+    public UserPage<UserSummary> searchUserSummaries(UserQueryDto queryDto) {
+        return searchPage(queryDto, summarySearch, UserSummary.class, u -> new UserCursor(u.name(), u.id()));
+    }
+
+    /**
+     * Búsqueda dinámica paginada por keyset compartida por searchUsers() y searchUserSummaries().
+     * Solo cambia la cláusula SELECT; filtros, orden y cursor son los mismos. El JPQL de
+     * cada combinación de filtros se compila una vez (UserSearchQueries).
+     */
+    private <T> UserPage<T> searchPage(UserQueryDto queryDto, UserSearchQueries queries, Class<T> resultType,
+                                       Function<T, UserCursor> cursorOf) {
+        int limit = queryDto.getLimit() != null && queryDto.getLimit() > 0 ? queryDto.getLimit() : 10;
+        UserCursor cursor = queryDto.getCursor() != null && !queryDto.getCursor().isEmpty()
+                ? UserCursor.decode(queryDto.getCursor())
+                : null;
+
+        UserSearchQueries.Shape shape = UserSearchQueries.Shape.of(queryDto, cursor);
+        TypedQuery<T> query = entityManager.createQuery(queries.jpql(shape), resultType);
+        UserSearchQueries.bind(query, shape, queryDto, cursor);
+        if (cursor == null && queryDto.getOffset() != null && queryDto.getOffset() > 0) {
+            // OFFSET solo para compatibilidad en la primera página; las siguientes usan el cursor
+            query.setFirstResult(queryDto.getOffset());
         }
-        if (queryDto.getActive() != null) {
-            jpql.append(" AND u.active = :active");
+        // Una fila extra para saber si existe página siguiente sin hacer COUNT
+        query.setMaxResults(limit + 1);
+
+        List<T> rows = query.getResultList();
+        if (rows.size() <= limit) {
+            return new UserPage<>(rows, null);
         }
+        List<T> page = new ArrayList<>(rows.subList(0, limit));
+        return new UserPage<>(page, cursorOf.apply(page.get(limit - 1)).encode());
+    }
 
-        TypedQuery<User> query = entityManager.createQuery(jpql.toString(), User.class);
+    /**
+     * Cláusula WHERE de las operaciones masivas.
+     * Los filtros vacíos se ignoran; ids (si no es null) se combina con AND.
+     */
+    private static String filterClause(UserQueryDto filter, List<Long> ids) {
+        StringBuilder where = new StringBuilder(" WHERE 1=1");
+        if (filter != null && filter.getDepartment() != null && !filter.getDepartment().isEmpty()) {
+            where.append(" AND u.department = :dept");
+        }
+        if (filter != null && filter.getRole() != null && !filter.getRole().isEmpty()) {
+            where.append(" AND u.role = :role");
+        }
+        if (filter != null && filter.getActive() != null) {
+            where.append(" AND u.active = :active");
+        }
+        if (ids != null) {
+            where.append(" AND u.id IN :ids");
+        }
+        return where.toString();
+    }
 
-        if (queryDto.getDepartment() != null && !queryDto.getDepartment().isEmpty()) {
-            query.setParameter("dept", queryDto.getDepartment());
+    private static void bindFilter(Query query, UserQueryDto filter, List<Long> ids) {
+        if (filter != null && filter.getDepartment() != null && !filter.getDepartment().isEmpty()) {
+            query.setParameter("dept", filter.getDepartment());
+        }
+        if (filter != null && filter.getRole() != null && !filter.getRole().isEmpty()) {
+            query.setParameter("role", filter.getRole());
         }
-        if (queryDto.getRole() != null && !queryDto.getRole().isEmpty()) {
-            query.setParameter("role", queryDto.getRole());
+        if (filter != null && filter.getActive() != null) {
+            query.setParameter("active", filter.getActive());
         }
-        if (queryDto.getActive() != null) {
-            query.setParameter("active", queryDto.getActive());
+        if (ids != null) {
+            query.setParameter("ids", ids);
         }
+    }
 
-        return query.getResultList();
+    // ========== Operaciones masivas (UPDATE/DELETE JPQL) ==========
+
+    @Override
+    @Transactional
+    public int bulkDeactivateUsers(UserQueryDto filter, List<Long> ids) {
+        String where = bulkWhere(filter, ids) + " AND u.active = true";
+        recordBulkCounterChange(where, filter, ids, false);
+
+        Query update = entityManager.createQuery(
+                "UPDATE VERSIONED User u SET u.active = false, u.updatedAt = :now" + where);
+        bindFilter(update, filter, ids);
+        update.setParameter("now", LocalDateTime.now());
+        return update.executeUpdate();
+    }
+
+    @Override
+    @Transactional
+    public int bulkDeleteUsers(UserQueryDto filter, List<Long> ids) {
+        String where = bulkWhere(filter, ids);
+        recordBulkCounterChange(where, filter, ids, null);
+
+        // El DELETE masivo no pasa por UserAutocompleteListener: se quitan los IDs afectados tras el commit
+        TypedQuery<Long> deletedIds = entityManager.createQuery("SELECT u.id FROM User u" + where, Long.class);
+        bindFilter(deletedIds, filter, ids);
+        autocompleteIndex.changedAll(deletedIds.getResultList());
+
+        // Una marca por usuario borrado (find_users_changed_since), con un solo INSERT ... SELECT
+        Query tombstones = entityManager.createQuery(
+                "INSERT INTO UserTombstone (userId, deletedAt) SELECT u.id, :now FROM User u" + where);
+        bindFilter(tombstones, filter, ids);
+        tombstones.setParameter("now", LocalDateTime.now());
+        tombstones.executeUpdate();
+
+        Query delete = entityManager.createQuery("DELETE FROM User u" + where);
+        bindFilter(delete, filter, ids);
+        return delete.executeUpdate();
+    }
+
+    @Override
+    @Transactional
+    public int bulkUpdateRole(UserQueryDto filter, List<Long> ids, String newRole) {
+        if (newRole == null || newRole.isBlank()) {
+            throw new IllegalArgumentException("El nuevo rol es obligatorio");
+        }
+        // El rol no forma parte de los contadores por departamento: no hay nada que registrar
+        String where = bulkWhere(filter, ids) + " AND u.role <> :newRole";
+
+        Query update = entityManager.createQuery(
+                "UPDATE VERSIONED User u SET u.role = :newRole, u.updatedAt = :now" + where);
+        bindFilter(update, filter, ids);
+        update.setParameter("newRole", newRole);
+        update.setParameter("now", LocalDateTime.now());
+        return update.executeUpdate();
+    }
+
+    // ========== Upsert por email (MERGE de H2) ==========
+
+    /**
+     * MERGE de H2 para un lote: las filas del lote van en USING (VALUES ...).
+     * Las que ya existen (mismo email) solo se actualizan si algún campo cambia;
+     * las nuevas se insertan con el ID que ya ha reservado Hibernate. "t.id = s.id" limita
+     * el UPDATE a las filas bloqueadas por el SELECT: un email que otra transacción haya
+     * insertado después no se toca y el recuento de filas afectadas delata la carrera.
+     */
+    private static final String MERGE_INTO_USERS = """
+            MERGE INTO users t
+            USING (VALUES %s) AS s(id, email, name, department, role)
+            ON t.email = s.email
+            WHEN MATCHED AND t.id = s.id AND (t.name <> s.name OR t.department <> s.department OR t.role <> s.role) THEN
+                UPDATE SET name = s.name, department = s.department, role = s.role,
+                           updated_at = CURRENT_TIMESTAMP, version = t.version + 1
+            WHEN NOT MATCHED THEN
+                INSERT (id, name, email, department, role, active, created_at, updated_at, version)
+                VALUES (s.id, s.name, s.email, s.department, s.role, TRUE, CURRENT_TIMESTAMP, CURRENT_TIMESTAMP, 0)
+            """;
+
+    private static final String MERGE_ROW =
+            "(CAST(? AS BIGINT), CAST(? AS VARCHAR(100)), CAST(? AS VARCHAR(50)), "
+                    + "CAST(? AS VARCHAR(50)), CAST(? AS VARCHAR(50)))";
+
+    /**
+     * Si otra transacción inserta uno de los emails nuevos entre el SELECT y el MERGE, el lote
+     * falla y se repite una vez la transacción completa (como los bloques de import_users_csv):
+     * el SELECT ya verá esa fila. Si ya hay una transacción del llamante no se puede repetir
+     * aquí y el error se propaga.
+     */
+    @Override
+    @Transactional(propagation = Propagation.SUPPORTS) // El reintento abre su propia transacción
+    public UpsertResult upsertUsers(List<UserCreateDto> users) {
+        if (upsertBatchSize <= 0) {
+            throw new IllegalArgumentException("ra3.upsert.batch-size debe ser mayor que 0");
+        }
+        // Un mismo email solo puede aparecer una vez por MERGE: gana el último
+        Map<String, UserCreateDto> byEmail = new LinkedHashMap<>();
+        for (UserCreateDto dto : users) {
+            if (dto.getEmail() == null || dto.getEmail().isBlank()) {
+                throw new IllegalArgumentException("Todos los usuarios deben tener email");
+            }
+            byEmail.put(dto.getEmail(), dto);
+        }
+
+        List<UserCreateDto> distinct = new ArrayList<>(byEmail.values());
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            return upsertAll(distinct);
+        }
+        try {
+            return transactionTemplate.execute(status -> upsertAll(distinct));
+        } catch (RuntimeException e) {
+            logger.debug("upsert_users: lote fallido por una escritura concurrente, se repite: {}", e.getMessage());
+            return transactionTemplate.execute(status -> upsertAll(distinct));
+        }
+    }
+
+    private UpsertResult upsertAll(List<UserCreateDto> distinct) {
+        fullTextIndex.deferInserts();
+        UpsertResult total = new UpsertResult(0, 0, 0);
+        for (int from = 0; from < distinct.size(); from += upsertBatchSize) {
+            total = total.plus(upsertBatch(distinct.subList(from, Math.min(from + upsertBatchSize, distinct.size()))));
+        }
+        return total;
+    }
+
+    /**
+     * Dos sentencias por lote: un SELECT ... FOR UPDATE por email de las filas existentes (para
+     * separar insertados de actualizados y ajustar los contadores por departamento) y el MERGE.
+     * El bloqueo impide que cambien o se borren antes del MERGE; los emails que no existían no
+     * se pueden bloquear, así que si el MERGE no afecta exactamente a las filas previstas se
+     * lanza una excepción y la transacción (con sus cambios de contadores) se deshace.
+     */
+    private UpsertResult upsertBatch(List<UserCreateDto> batch) {
+        Map<String, UserSummary> existing = new HashMap<>();
+        entityManager.createQuery(SELECT_SUMMARY + " FROM User u WHERE u.email IN :emails", UserSummary.class)
+                .setParameter("emails", batch.stream().map(UserCreateDto::getEmail).toList())
+                .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                .getResultList()
+                .forEach(summary -> existing.put(summary.email(), summary));
+
+        SharedSessionContractImplementor session = entityManager.unwrap(SharedSessionContractImplementor.class);
+        BeforeExecutionGenerator idGenerator = (BeforeExecutionGenerator) session.getFactory()
+                .getMappingMetamodel().getEntityDescriptor(User.class).getGenerator();
+
+        StringJoiner rows = new StringJoiner(", ");
+        List<Object> parameters = new ArrayList<>(batch.size() * 5);
+        int inserted = 0;
+        int updated = 0;
+        for (UserCreateDto dto : batch) {
+            UserSummary current = existing.get(dto.getEmail());
+            Long id;
+            if (current == null) {
+                // Mismo generador pooled-lo que persist(): una llamada a la secuencia cada 50 IDs
+                id = (Long) idGenerator.generate(session, null, null, EventType.INSERT);
+                departmentCounters.recordChange(null, null, dto.getDepartment(), true);
+                autocompleteIndex.changed(id);
+                inserted++;
+            } else {
+                id = current.id();
+                if (!current.name().equals(dto.getName()) || !current.department().equals(dto.getDepartment())
+                        || !current.role().equals(dto.getRole())) {
+                    departmentCounters.recordChange(current.department(), current.active(),
+                            dto.getDepartment(), current.active());
+                    autocompleteIndex.changed(id);
+                    updated++;
+                }
+            }
+            rows.add(MERGE_ROW);
+            parameters.add(id);
+            parameters.add(dto.getEmail());
+            parameters.add(dto.getName());
+            parameters.add(dto.getDepartment());
+            parameters.add(dto.getRole());
+        }
+
+        // addSynchronizedEntityClass: Hibernate invalida la región L2 "users" y las consultas
+        // cacheadas sobre users, igual que con un UPDATE/DELETE masivo en JPQL.
+        // createNativeMutationQuery devuelve un NativeQuery aunque se declare como MutationQuery
+        NativeQuery<?> merge = ((NativeQuery<?>) session.createNativeMutationQuery(MERGE_INTO_USERS.formatted(rows)))
+                .addSynchronizedEntityClass(User.class);
+        for (int i = 0; i < parameters.size(); i++) {
+            merge.setParameter(i + 1, parameters.get(i));
+        }
+        int affected = merge.executeUpdate();
+        if (affected != inserted + updated) {
+            // Otra transacción ha insertado alguno de los emails nuevos entre el SELECT y el MERGE
+            throw new IllegalStateException("upsert_users: el MERGE afectó a " + affected
+                    + " filas, se esperaban " + (inserted + updated));
+        }
+        return new UpsertResult(inserted, updated, batch.size() - inserted - updated);
+    }
+
+    /**
+     * WHERE de una operación masiva. Exige ids o al menos un filtro para que un
+     * cuerpo vacío no afecte a toda la tabla.
+     */
+    private static String bulkWhere(UserQueryDto filter, List<Long> ids) {
+        if (ids != null && ids.isEmpty()) {
+            throw new IllegalArgumentException("La lista de ids está vacía");
+        }
+        String where = filterClause(filter, ids);
+        if (" WHERE 1=1".equals(where)) {
+            throw new IllegalArgumentException("Debe indicar ids o al menos un filtro (department, role, active)");
+        }
+        return where;
+    }
+
+    /**
+     * Los UPDATE/DELETE masivos no disparan los callbacks de JPA, así que los cambios
+     * para DepartmentCounters se calculan con un GROUP BY de las filas afectadas antes
+     * de ejecutarlos. Como los del listener, solo se aplican tras el commit.
+     *
+     * @param newActive estado final de las filas, o null si se borran
+     */
+    private void recordBulkCounterChange(String where, UserQueryDto filter, List<Long> ids, Boolean newActive) {
+        if (!useDepartmentCounters) {
+            return;
+        }
+        TypedQuery<Object[]> affected = entityManager.createQuery(
+                "SELECT u.department, u.active, COUNT(u) FROM User u" + where + " GROUP BY u.department, u.active",
+                Object[].class);
+        bindFilter(affected, filter, ids);
+        for (Object[] row : affected.getResultList()) {
+            departmentCounters.recordBulkChange((String) row[0], (Boolean) row[1], newActive, (Long) row[2]);
+        }
+    }
+
+    // ========== Caché de segundo nivel ==========
+
+    @Override
+    public Map<String, Object> getCacheStatistics() {
+        Statistics statistics = entityManager.getEntityManagerFactory()
+                .unwrap(SessionFactory.class)
+                .getStatistics();
+        CacheRegionStatistics region = statistics.getDomainDataRegionStatistics(HibernateCacheConfig.USER_REGION);
+        long evictions = hibernateCacheManager.getCache(HibernateCacheConfig.USER_REGION)
+                .unwrap(com.github.benmanes.caffeine.cache.Cache.class)
+                .stats()
+                .evictionCount();
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("region", HibernateCacheConfig.USER_REGION);
+        stats.putAll(regionStatistics(region));
+        stats.put("evictionCount", evictions);
+        stats.put("size", region.getElementCountInMemory());
+
+        // Caché de consultas: una región por herramienta (null si aún no se ha usado)
+        Map<String, Object> queryRegions = new LinkedHashMap<>();
+        for (String name : new String[] {HibernateCacheConfig.DEPARTMENT_LIST_REGION,
+                HibernateCacheConfig.DEPARTMENT_COUNT_REGION}) {
+            CacheRegionStatistics queryRegion = statistics.getQueryRegionStatistics(name);
+            queryRegions.put(name, queryRegion != null ? regionStatistics(queryRegion) : Map.of());
+        }
+        stats.put("queryCache", queryRegions);
+        return stats;
+    }
+
+    private static Map<String, Object> regionStatistics(CacheRegionStatistics region) {
+        long hits = region.getHitCount();
+        long misses = region.getMissCount();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hitCount", hits);
+        stats.put("missCount", misses);
+        stats.put("putCount", region.getPutCount());
+        stats.put("hitRatio", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        return stats;
     }
 
     // ========== CE3.g: Transacciones ==========
@@ -283,17 +837,250 @@ public class HibernateUserServiceImpl implements HibernateUserService {
     @Override
     @Transactional
     public boolean transferData(List<User> users) {
+        fullTextIndex.deferInserts();
         for (User user : users) {
             entityManager.persist(user);
         }
         return true;
     }
 
+    @Override
+    @Transactional
+    public long transferDataChunked(Iterator<User> users, int chunkSize, LongConsumer progressListener) {
+        int size = chunkSize > 0 ? chunkSize : defaultChunkSize;
+        if (size <= 0) {
+            throw new IllegalArgumentException("El tamaño de bloque debe ser mayor que 0");
+        }
+
+        fullTextIndex.deferInserts();
+        long total = 0;
+        int pending = 0;
+        while (users.hasNext()) {
+            entityManager.persist(users.next());
+            total++;
+            pending++;
+
+            if (pending == size) {
+                flushChunk(total, progressListener);
+                pending = 0;
+            }
+        }
+        if (pending > 0) {
+            flushChunk(total, progressListener);
+        }
+        return total;
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // Una transacción por bloque, en UserCsvImporter
+    public UserImportResult importUsersCsv(String file, LongConsumer progressListener) {
+        return csvImporter.importFile(file, progressListener);
+    }
+
+    @Override
+    public UserExportResult exportUsers(String file, String format, LongConsumer progressListener) {
+        // readOnly (por defecto en la clase): una sola consulta, en la réplica si está activa
+        return exporter.export(file, format, progressListener);
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // SCRIPT/BACKUP en su propia conexión del primario
+    public DatabaseSnapshotResult snapshotDatabase(String format) {
+        return databaseSnapshots.snapshot(format);
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // RUNSCRIPT en modo exclusivo, fuera de transacción
+    public DatabaseRestoreResult restoreDatabase(String file) {
+        return databaseSnapshots.restore(file);
+    }
+
+    /**
+     * Envía los INSERT pendientes y vacía el contexto de persistencia para que
+     * las entidades ya escritas puedan ser recolectadas por el GC. Los eventos del
+     * outbox del bloque se escriben también ahora, no al COMMIT.
+     */
+    private void flushChunk(long total, LongConsumer progressListener) {
+        entityManager.flush();
+        userOutbox.writePending();
+        entityManager.clear();
+        logger.debug("transfer_data_chunked: {} usuarios persistidos", total);
+        if (progressListener != null) {
+            progressListener.accept(total);
+        }
+    }
+
     @Override
     public long executeCountByDepartment(String department) {
+        // Contadores en memoria: O(1) sin ir a la BD. Solo reflejan cambios ya confirmados,
+        // así que dentro de una transacción de escritura se usa la consulta (ve lo no confirmado)
+        if (useDepartmentCounters && departmentCounters.isReady()
+                && TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return departmentCounters.activeCount(department);
+        }
+
         String jpql = "SELECT COUNT(u) FROM User u WHERE u.department = :dept AND u.active = true";
         TypedQuery<Long> query = entityManager.createQuery(jpql, Long.class);
         query.setParameter("dept", department);
+        cacheable(query, cacheDepartmentCount, HibernateCacheConfig.DEPARTMENT_COUNT_REGION);
         return query.getSingleResult();
     }
+
+    @Override
+    public List<UserSearchHit> searchUsersText(String text, int limit) {
+        return fullTextIndex.search(text, limit > 0 ? limit : defaultTextSearchLimit);
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // Solo memoria: sin transacción ni conexión
+    public boolean recordLogin(Long userId) {
+        if (userId == null || userId <= 0) {
+            throw new IllegalArgumentException("ID de usuario no válido: " + userId);
+        }
+        loginEventBuffer.record(userId);
+        return true;
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // Primario: en la réplica retrasada la marca saltaría filas
+    public UserChanges findUsersChangedSince(Long generation, LocalDateTime updatedAt, Long id, int limit) {
+        int max = limit > 0 ? limit : defaultChangeFeedLimit;
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime upTo = now.minus(changeFeedSettleTime);
+        // Después de 'now': una escritura que empiece tras leer la lista pondrá updated_at > now
+        LocalDateTime oldestWrite = writeTransactions.oldestStart();
+        if (oldestWrite != null) {
+            // Sus filas tendrán updated_at >= su inicio (guardado en microsegundos): hasta justo antes
+            LocalDateTime beforeWrite = oldestWrite.truncatedTo(ChronoUnit.MICROS).minusNanos(1_000);
+            if (beforeWrite.isBefore(upTo)) {
+                upTo = beforeWrite;
+            }
+        }
+        long currentGeneration = databaseGeneration.current();
+
+        // Marca de otra generación: la BD se ha restaurado o recreado, se empieza desde el principio
+        boolean otherGeneration = generation != null && generation != currentGeneration;
+        if (otherGeneration) {
+            updatedAt = null;
+            id = null;
+        }
+        long afterId = id != null ? id : 0L;
+
+        // u.updatedAt como columna aparte: la marca es el valor guardado en la BD (microsegundos),
+        // no el de una entidad que venga de la caché L2 con los nanosegundos de LocalDateTime.now()
+        List<Object[]> users = changesAfter(
+                "SELECT u, u.updatedAt FROM User u WHERE u.updatedAt <= :upTo",
+                "u.updatedAt", "u.id", updatedAt, afterId, upTo, max);
+        List<Object[]> deleted = changesAfter(
+                "SELECT t.userId, t.deletedAt FROM UserTombstone t WHERE t.deletedAt <= :upTo",
+                "t.deletedAt", "t.userId", updatedAt, afterId, upTo, max);
+
+        // Mezcla de las dos listas ordenadas por (fecha, id) hasta completar 'max' cambios
+        List<User> changed = new ArrayList<>();
+        List<Long> deletedIds = new ArrayList<>();
+        LocalDateTime watermarkAt = updatedAt;
+        Long watermarkId = id;
+        int u = 0;
+        int d = 0;
+        while (changed.size() + deletedIds.size() < max && (u < users.size() || d < deleted.size())) {
+            boolean takeUser = d == deleted.size()
+                    || (u < users.size() && compareChange(users.get(u), deleted.get(d)) < 0);
+            if (takeUser) {
+                Object[] row = users.get(u++);
+                User user = (User) row[0];
+                changed.add(user);
+                watermarkAt = (LocalDateTime) row[1];
+                watermarkId = user.getId();
+            } else {
+                Object[] tombstone = deleted.get(d++);
+                deletedIds.add((Long) tombstone[0]);
+                watermarkAt = (LocalDateTime) tombstone[1];
+                watermarkId = (Long) tombstone[0];
+            }
+        }
+        boolean hasMore = u < users.size() || d < deleted.size();
+        boolean resyncRequired = otherGeneration
+                || (updatedAt != null && updatedAt.isBefore(now.minus(tombstoneRetention)));
+        return new UserChanges(changed, deletedIds, currentGeneration, watermarkAt, watermarkId, hasMore,
+                resyncRequired);
+    }
+
+    /**
+     * Keyset (fecha, id) > marca, hasta 'max' + 1 filas para saber si quedan más
+     */
+    private List<Object[]> changesAfter(String select, String timeColumn, String idColumn,
+                                        LocalDateTime after, long afterId, LocalDateTime upTo, int max) {
+        // ">= :after" es redundante con el OR, pero es lo que permite a H2 empezar el recorrido
+        // del índice en la marca en lugar de al principio
+        String jpql = select
+                + (after != null ? " AND " + timeColumn + " >= :after AND (" + timeColumn + " > :after OR ("
+                        + timeColumn + " = :after AND " + idColumn + " > :afterId))" : "")
+                + " ORDER BY " + timeColumn + ", " + idColumn;
+        TypedQuery<Object[]> query = entityManager.createQuery(jpql, Object[].class)
+                .setParameter("upTo", upTo)
+                .setMaxResults(max + 1);
+        if (after != null) {
+            query.setParameter("after", after);
+            query.setParameter("afterId", afterId);
+        }
+        return query.getResultList();
+    }
+
+    /** Orden de un usuario cambiado frente a un borrado: por fecha y, a igual fecha, por id */
+    private static int compareChange(Object[] user, Object[] tombstone) {
+        int byTime = ((LocalDateTime) user[1]).compareTo((LocalDateTime) tombstone[1]);
+        return byTime != 0 ? byTime : Long.compare(((User) user[0]).getId(), (Long) tombstone[0]);
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // Lee el fichero del log: sin transacción ni conexión
+    public List<UserChangeRecord> readUserChanges(long offset, int limit) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset no válido: " + offset);
+        }
+        return changeLog.read(offset, limit > 0 ? limit : defaultChangeLogReadLimit);
+    }
+
+    /**
+     * Borra las marcas de usuarios borrados más antiguas que ra3.change-feed.tombstone-retention
+     */
+    @Scheduled(fixedDelayString = "${ra3.change-feed.purge-interval:PT1H}",
+               initialDelayString = "${ra3.change-feed.purge-interval:PT1H}")
+    @Transactional
+    public int purgeUserTombstones() {
+        int purged = entityManager.createQuery("DELETE FROM UserTombstone t WHERE t.deletedAt < :horizon")
+                .setParameter("horizon", LocalDateTime.now().minus(tombstoneRetention))
+                .executeUpdate();
+        if (purged > 0) {
+            logger.info("Marcas de usuarios borrados eliminadas: {}", purged);
+        }
+        return purged;
+    }
+
+    @Override
+    public List<Long> autocompleteUsers(String prefix, int limit) {
+        return autocompleteIndex.search(prefix, limit > 0 ? limit : defaultAutocompleteLimit);
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // Como la reconciliación programada: recuento en el primario
+    public Map<String, Long> reconcileDepartmentCounters() {
+        return departmentCounters.reconcile();
+    }
+
+    @Override
+    public List<Map<String, Object>> explainQueries() {
+        return queryPlanAdvisor.explainAll();
+    }
+
+    /**
+     * Marca la consulta como cacheable en la región indicada si la herramienta
+     * tiene activada la caché de consultas (ra3.query-cache.*).
+     */
+    private static void cacheable(TypedQuery<?> query, boolean enabled, String region) {
+        if (enabled) {
+            query.setHint(HibernateHints.HINT_CACHEABLE, true);
+            query.setHint(HibernateHints.HINT_CACHE_REGION, region);
+        }
+    }
 }
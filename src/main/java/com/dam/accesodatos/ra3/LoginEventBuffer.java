@@ -0,0 +1,298 @@
+package com.dam.accesodatos.ra3;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Buffer write-behind de accesos (record_login) sobre user_statistics
+ *
+ * Un UPDATE por cada acceso bloquearía la fila del usuario y haría un commit por evento.
+ * En su lugar record() solo suma el acceso en memoria y flush() vuelca lo acumulado:
+ * - Un ConcurrentHashMap userId → Delta agrupa los accesos de cada usuario; el Delta suma
+ *   con compareAndSet (AtomicLong), sin cerrojos en el camino de record()
+ * - flush() saca cada Delta del mapa y lo "sella" (logins = -1): un record() que llegue
+ *   tarde a un Delta sellado reintenta con uno nuevo, así no se pierde ningún acceso
+ * - Los deltas se escriben con un MERGE por usuario, agrupados en batches JDBC de
+ *   ra3.login-buffer.batch-size, en una sola transacción: 10.000 accesos de 50 usuarios
+ *   son 50 filas, no 10.000 UPDATEs
+ *
+ * Se vuelca cada ra3.login-buffer.flush-interval, en cuanto hay ra3.login-buffer.max-pending-users
+ * usuarios pendientes y al parar la aplicación (stop() de SmartLifecycle: después de parar el
+ * servidor web, así no quedan peticiones registrando accesos, y antes de cerrar el pool).
+ * Si el volcado falla, los deltas vuelven al buffer.
+ *
+ * NOTA PEDAGÓGICA: user_statistics va por detrás de los accesos como mucho un intervalo de
+ * volcado; find_users_with_stats no ve los accesos que siguen en el buffer.
+ */
+@Component
+public class LoginEventBuffer implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoginEventBuffer.class);
+
+    /**
+     * Suma el delta si la fila existe y la crea si no; el usuario tiene que existir
+     * (WHEN NOT MATCHED AND EXISTS): los accesos de usuarios borrados se descartan
+     */
+    static final String MERGE_STATISTICS = """
+            MERGE INTO user_statistics s
+            USING (VALUES (CAST(? AS BIGINT), CAST(? AS INTEGER), CAST(? AS TIMESTAMP))) AS v(user_id, logins, last_login)
+            ON s.user_id = v.user_id
+            WHEN MATCHED THEN UPDATE SET login_count = COALESCE(s.login_count, 0) + v.logins,
+                last_login = GREATEST(COALESCE(s.last_login, v.last_login), v.last_login)
+            WHEN NOT MATCHED AND EXISTS (SELECT 1 FROM users u WHERE u.id = v.user_id) THEN
+                INSERT (user_id, login_count, last_login) VALUES (v.user_id, v.logins, v.last_login)""";
+
+    /** Se para después del servidor web (WebServerStartStopLifecycle: DEFAULT_PHASE - 2048) */
+    private static final int PHASE = SmartLifecycle.DEFAULT_PHASE - 4096;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Value("${ra3.login-buffer.batch-size:500}")
+    private int batchSize;
+
+    @Value("${ra3.login-buffer.max-pending-users:10000}")
+    private int maxPendingUsers;
+
+    private final ConcurrentHashMap<Long, Delta> pending = new ConcurrentHashMap<>();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private volatile boolean running;
+
+    private final LongAdder pendingEvents = new LongAdder();
+    private final LongAdder recordedEvents = new LongAdder();
+    private final LongAdder flushedEvents = new LongAdder();
+    private final LongAdder flushedRows = new LongAdder();
+    private final LongAdder discardedEvents = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder failedFlushes = new LongAdder();
+    private final LongAdder flushNanos = new LongAdder();
+    private final LongAccumulator maxFlushNanos = new LongAccumulator(Long::max, 0);
+
+    /**
+     * Accesos acumulados de un usuario. logins = SEALED cuando flush() ya lo ha sacado del mapa.
+     */
+    private static final class Delta {
+
+        private static final long SEALED = -1;
+
+        private final AtomicLong logins = new AtomicLong();
+        private final AtomicLong lastLoginMillis = new AtomicLong(Long.MIN_VALUE);
+
+        /** false si el Delta está sellado: hay que usar uno nuevo */
+        boolean add(long count, long atMillis) {
+            // Antes que logins: si el compareAndSet tiene éxito, flush() verá también esta fecha
+            lastLoginMillis.accumulateAndGet(atMillis, Math::max);
+            long current;
+            do {
+                current = logins.get();
+                if (current == SEALED) {
+                    return false;
+                }
+            } while (!logins.compareAndSet(current, current + count));
+            return true;
+        }
+
+        long seal() {
+            return logins.getAndSet(SEALED);
+        }
+    }
+
+    /** Delta ya sellado, listo para escribir */
+    private record Drained(long userId, long logins, long lastLoginMillis) {
+    }
+
+    // ===== Registro =====
+
+    /**
+     * Suma un acceso del usuario con la hora actual. No toca la BD.
+     */
+    public void record(long userId) {
+        add(userId, 1, System.currentTimeMillis());
+        recordedEvents.increment();
+        if (pending.size() >= maxPendingUsers && flushRequested.compareAndSet(false, true)) {
+            // Volcado por tamaño en segundo plano: el hilo que registra el acceso no espera a la BD
+            Thread.startVirtualThread(() -> {
+                try {
+                    flush();
+                } finally {
+                    flushRequested.set(false);
+                }
+            });
+        }
+    }
+
+    private void add(long userId, long count, long atMillis) {
+        while (true) {
+            Delta delta = pending.get(userId);
+            if (delta == null) {
+                delta = pending.computeIfAbsent(userId, id -> new Delta());
+            }
+            if (delta.add(count, atMillis)) {
+                pendingEvents.add(count);
+                return;
+            }
+            // flush() acaba de sacar este Delta: el siguiente get() no lo encontrará
+        }
+    }
+
+    // ===== Volcado =====
+
+    @Scheduled(fixedDelayString = "${ra3.login-buffer.flush-interval:PT1S}",
+               initialDelayString = "${ra3.login-buffer.flush-interval:PT1S}")
+    public void scheduledFlush() {
+        flush();
+    }
+
+    /**
+     * Escribe en user_statistics los accesos acumulados hasta ahora
+     *
+     * @return Filas de user_statistics actualizadas o creadas
+     */
+    public int flush() {
+        flushLock.lock();
+        try {
+            List<Drained> drained = drain();
+            if (drained.isEmpty()) {
+                return 0;
+            }
+            long start = System.nanoTime();
+            try {
+                int rows = write(drained);
+                long elapsed = System.nanoTime() - start;
+                flushes.increment();
+                flushNanos.add(elapsed);
+                maxFlushNanos.accumulate(elapsed);
+                logger.debug("Accesos volcados: {} usuarios, {} filas en {} ms", drained.size(), rows,
+                        TimeUnit.NANOSECONDS.toMillis(elapsed));
+                return rows;
+            } catch (RuntimeException e) {
+                failedFlushes.increment();
+                drained.forEach(d -> add(d.userId(), d.logins(), d.lastLoginMillis()));
+                logger.warn("No se pudieron volcar los accesos de {} usuarios; siguen en el buffer",
+                        drained.size(), e);
+                throw e;
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private List<Drained> drain() {
+        List<Drained> drained = new ArrayList<>(pending.size());
+        for (Long userId : pending.keySet()) {
+            Delta delta = pending.remove(userId);
+            if (delta == null) {
+                continue;
+            }
+            long logins = delta.seal();
+            if (logins > 0) {
+                pendingEvents.add(-logins);
+                drained.add(new Drained(userId, logins, delta.lastLoginMillis.get()));
+            }
+        }
+        return drained;
+    }
+
+    private int write(List<Drained> drained) {
+        int[] rows = {0};
+        transactionTemplate.executeWithoutResult(status -> entityManager.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement merge = connection.prepareStatement(MERGE_STATISTICS)) {
+                for (int from = 0; from < drained.size(); from += batchSize) {
+                    List<Drained> batch = drained.subList(from, Math.min(from + batchSize, drained.size()));
+                    for (Drained delta : batch) {
+                        merge.setLong(1, delta.userId());
+                        merge.setLong(2, delta.logins());
+                        merge.setTimestamp(3, new Timestamp(delta.lastLoginMillis()));
+                        merge.addBatch();
+                    }
+                    int[] counts = merge.executeBatch();
+                    for (int i = 0; i < counts.length; i++) {
+                        if (counts[i] > 0) {
+                            rows[0]++;
+                            flushedEvents.add(batch.get(i).logins());
+                        } else {
+                            discardedEvents.add(batch.get(i).logins()); // El usuario ya no existe
+                        }
+                    }
+                }
+            }
+        }));
+        flushedRows.add(rows[0]);
+        return rows[0];
+    }
+
+    // ===== Ciclo de vida =====
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        try {
+            int rows = flush();
+            logger.info("Buffer de accesos vaciado al parar: {} filas", rows);
+        } finally {
+            running = false;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    // ===== Métricas =====
+
+    /**
+     * Profundidad del buffer (usuarios y accesos pendientes) y resultado de los volcados
+     */
+    public Map<String, Object> snapshot() {
+        long count = flushes.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("pendingUsers", pending.size());
+        stats.put("pendingEvents", pendingEvents.sum());
+        stats.put("recordedEvents", recordedEvents.sum());
+        stats.put("flushes", count);
+        stats.put("failedFlushes", failedFlushes.sum());
+        stats.put("flushedEvents", flushedEvents.sum());
+        stats.put("flushedRows", flushedRows.sum());
+        stats.put("discardedEvents", discardedEvents.sum());
+        stats.put("avgFlushMs", count == 0 ? 0.0 : flushNanos.sum() / (double) count / 1_000_000);
+        stats.put("maxFlushMs", TimeUnit.NANOSECONDS.toMillis(maxFlushNanos.get()));
+        return stats;
+    }
+}
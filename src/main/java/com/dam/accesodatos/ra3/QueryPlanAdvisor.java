@@ -0,0 +1,199 @@
+package com.dam.accesodatos.ra3;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.Query;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Ejecuta EXPLAIN ANALYZE de H2 sobre las consultas frecuentes de la aplicación
+ * y marca las que recorren la tabla entera sin usar un índice.
+ *
+ * Cada forma registrada es el SQL exacto que genera Hibernate para la herramienta indicada
+ * (sin el comentario con el JPQL). Las de search_users salen de UserSearchQueries.Shape:
+ * una por combinación de filtros. El test de integración ejecuta cada herramienta, captura
+ * sus sentencias con un StatementInspector y comprueba que coinciden con SHAPES: si cambia
+ * una consulta, falla hasta que se actualiza aquí.
+ *
+ * NOTA PEDAGÓGICA (cómo leer el plan de H2):
+ * - "PUBLIC.IDX_...: DEPARTMENT = ?1" → se busca por índice
+ * - "PUBLIC.USERS.tableScan"          → se leen todas las filas
+ * - "scanCount: N"                    → filas examinadas al ejecutar (ANALYZE)
+ * - "index sorted" / "group sorted"   → el índice ya da el orden, no hace falta ordenar
+ */
+@Component
+public class QueryPlanAdvisor {
+
+    /**
+     * Forma de consulta registrada
+     *
+     * @param name Herramienta o método que la ejecuta
+     * @param sql SQL que genera Hibernate, con parámetros "?"
+     * @param parameters Valores de ejemplo para los parámetros
+     * @param fullScanExpected true si la consulta lee toda la tabla por diseño (listados completos)
+     */
+    record QueryShape(String name, String sql, List<Object> parameters, boolean fullScanExpected) {
+    }
+
+    private static final String USER_COLUMNS = "select u1_0.id,u1_0.active,u1_0.created_at,u1_0.department,"
+            + "u1_0.email,u1_0.name,u1_0.role,u1_0.updated_at,u1_0.version from users u1_0";
+    private static final String SUMMARY_COLUMNS =
+            "select u1_0.id,u1_0.name,u1_0.email,u1_0.department,u1_0.role,u1_0.active from users u1_0";
+
+    private static final LocalDateTime WATERMARK = LocalDateTime.of(2000, 1, 1, 0, 0);
+    private static final LocalDateTime UP_TO = LocalDateTime.of(2100, 1, 1, 0, 0);
+
+    static final List<QueryShape> SHAPES = shapes();
+
+    private static List<QueryShape> shapes() {
+        List<QueryShape> shapes = new ArrayList<>();
+        shapes.add(new QueryShape("find_users_by_department",
+                USER_COLUMNS + " where u1_0.department=? and u1_0.active=true order by u1_0.name",
+                List.of("IT"), false));
+        shapes.add(new QueryShape("execute_count_by_department",
+                "select count(u1_0.id) from users u1_0 where u1_0.department=? and u1_0.active=true",
+                List.of("IT"), false));
+        for (int mask = 0; mask < 16; mask++) {
+            shapes.add(searchShape(new UserSearchQueries.Shape(
+                    (mask & 1) != 0, (mask & 2) != 0, (mask & 4) != 0, (mask & 8) != 0)));
+        }
+        shapes.add(new QueryShape("upsert_users",
+                SUMMARY_COLUMNS + " where u1_0.email in (?) for update",
+                List.of("juan.perez@empresa.com"), false));
+        shapes.add(new QueryShape("find_users_with_stats",
+                "select u1_0.id,u1_0.name,u1_0.email,u1_0.department,u1_0.role,u1_0.active,"
+                        + "coalesce(us1_0.login_count,0),us1_0.last_login from users u1_0"
+                        + " left join user_statistics us1_0 on us1_0.user_id=u1_0.id"
+                        + " where u1_0.department=? order by u1_0.name,u1_0.id",
+                List.of("IT"), false));
+        shapes.add(new QueryShape("find_users_changed_since",
+                USER_COLUMNS + " where u1_0.updated_at<=? and u1_0.updated_at>=?"
+                        + " and (u1_0.updated_at>? or (u1_0.updated_at=? and u1_0.id>?))"
+                        + " order by u1_0.updated_at,u1_0.id fetch first ? rows only",
+                List.of(UP_TO, WATERMARK, WATERMARK, WATERMARK, 0L, 501), false));
+        shapes.add(new QueryShape("find_users_changed_since (user_tombstones)",
+                "select ut1_0.user_id,ut1_0.deleted_at from user_tombstones ut1_0"
+                        + " where ut1_0.deleted_at<=? and ut1_0.deleted_at>=?"
+                        + " and (ut1_0.deleted_at>? or (ut1_0.deleted_at=? and ut1_0.user_id>?))"
+                        + " order by ut1_0.deleted_at,ut1_0.user_id fetch first ? rows only",
+                List.of(UP_TO, WATERMARK, WATERMARK, WATERMARK, 0L, 501), false));
+        shapes.add(new QueryShape("reconcile_department_counters",
+                "select u1_0.department,u1_0.active,count(u1_0.id) from users u1_0"
+                        + " group by u1_0.department,u1_0.active",
+                List.of(), false));
+        shapes.add(new QueryShape("find_all_users_stream",
+                USER_COLUMNS + " order by u1_0.id",
+                List.of(), true));
+        shapes.add(new QueryShape("find_all_users",
+                USER_COLUMNS,
+                List.of(), true));
+        return List.copyOf(shapes);
+    }
+
+    /**
+     * Nombre de la forma de search_users: los filtros que lleva, p. ej. "search_users(role, active)"
+     */
+    static String searchName(UserSearchQueries.Shape shape) {
+        StringJoiner parts = new StringJoiner(", ", "search_users(", ")");
+        if (shape.department()) {
+            parts.add("department");
+        }
+        if (shape.role()) {
+            parts.add("role");
+        }
+        if (shape.active()) {
+            parts.add("active");
+        }
+        if (shape.cursor()) {
+            parts.add("cursor");
+        }
+        return parts.toString();
+    }
+
+    /**
+     * SQL de search_users para la forma indicada, en el mismo orden que UserSearchQueries
+     */
+    private static QueryShape searchShape(UserSearchQueries.Shape shape) {
+        StringJoiner where = new StringJoiner(" and ", " where ", "").setEmptyValue("");
+        List<Object> parameters = new ArrayList<>();
+        if (shape.department()) {
+            where.add("u1_0.department=?");
+            parameters.add("IT");
+        }
+        if (shape.role()) {
+            where.add("u1_0.role=?");
+            parameters.add("Developer");
+        }
+        if (shape.active()) {
+            where.add("u1_0.active=?");
+            parameters.add(true);
+        }
+        if (shape.cursor()) {
+            where.add("(u1_0.name>? or (u1_0.name=? and u1_0.id>?))");
+            parameters.addAll(List.of("", "", 0L));
+        }
+        parameters.add(11);
+        return new QueryShape(searchName(shape),
+                USER_COLUMNS + where + " order by u1_0.name,u1_0.id fetch first ? rows only",
+                List.copyOf(parameters), false);
+    }
+
+    // Comentario del plan tras cada tabla: índice elegido (o USERS.tableScan)
+    private static final Pattern ACCESS = Pattern.compile("/\\*\\s*PUBLIC\\.([A-Za-z0-9_.]+)");
+    private static final Pattern SCAN_COUNT = Pattern.compile("scanCount:\\s*(\\d+)");
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * Ejecuta EXPLAIN ANALYZE de cada forma registrada.
+     *
+     * @return Una entrada por forma con el índice usado, filas examinadas y si se marca
+     */
+    public List<Map<String, Object>> explainAll() {
+        List<Map<String, Object>> report = new ArrayList<>();
+        for (QueryShape shape : SHAPES) {
+            // ANALYZE ejecuta la consulta: sin FOR UPDATE, que en la réplica no se puede bloquear
+            // y no cambia el índice elegido
+            Query explain = entityManager.createNativeQuery(
+                    "EXPLAIN ANALYZE " + shape.sql().replace(" for update", ""));
+            for (int i = 0; i < shape.parameters().size(); i++) {
+                explain.setParameter(i + 1, shape.parameters().get(i));
+            }
+            report.add(analyze(shape, (String) explain.getSingleResult()));
+        }
+        return report;
+    }
+
+    static Map<String, Object> analyze(QueryShape shape, String plan) {
+        // Una entrada por tabla de la consulta: la primera es la tabla principal, el resto los JOIN
+        List<String> accesses = new ArrayList<>();
+        Matcher access = ACCESS.matcher(plan);
+        while (access.find()) {
+            accesses.add(access.group(1));
+        }
+        String index = accesses.isEmpty() ? null : accesses.get(0);
+        boolean tableScan = index == null || accesses.stream().anyMatch(a -> a.endsWith(".tableScan"));
+        Matcher scanCount = SCAN_COUNT.matcher(plan);
+
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("query", shape.name());
+        entry.put("index", index == null || index.endsWith(".tableScan") ? null : index);
+        entry.put("tableScan", tableScan);
+        entry.put("sortedByIndex", plan.contains("index sorted") || plan.contains("group sorted"));
+        entry.put("scanCount", scanCount.find() ? Long.parseLong(scanCount.group(1)) : null);
+        entry.put("flagged", tableScan && !shape.fullScanExpected());
+        entry.put("sql", shape.sql());
+        entry.put("plan", plan.replaceAll("\\s+", " ").trim());
+        return entry;
+    }
+}
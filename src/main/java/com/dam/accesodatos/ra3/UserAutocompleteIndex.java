@@ -0,0 +1,772 @@
+package com.dam.accesodatos.ra3;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.hibernate.Session;
+import org.hibernate.jpa.HibernateHints;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Índice de autocompletado en memoria sobre nombre y email de los usuarios
+ *
+ * Responde autocomplete_users sin ir a la BD. Cada versión de un usuario es un "documento"
+ * con un ordinal (0, 1, 2...) y su texto normalizado (minúsculas, sin tildes) guardado en un
+ * único byte[] compartido. Para cada clave el índice guarda la lista de ordinales que la tienen:
+ * - Trigramas (3 bytes seguidos) de todo el nombre y todo el email → búsquedas de 3 o más
+ *   caracteres en cualquier posición ("pere" encuentra "Juan Pérez")
+ * - Los 1, 2 y 3 primeros bytes de cada palabra ("j", "ju", "jua", "p", "pe", "per"...)
+ * - Los 1, 2 y 3 primeros bytes del nombre
+ *
+ * La búsqueda se hace en tres pasadas, de mejor a peor coincidencia: el nombre empieza por el
+ * texto, alguna palabra del nombre o del email empieza por él y, con 3 o más caracteres, el
+ * texto en cualquier posición. Cada pasada interseca sus listas (empezando por la más corta),
+ * comprueba el texto de cada candidato y termina en cuanto hay "limit" resultados: las listas
+ * de inicio son pequeñas y las búsquedas habituales no recorren el índice entero.
+ *
+ * MEMORIA: las listas de ordinales están ordenadas y se guardan como diferencias en varint
+ * dentro de un byte[] (1 byte por entrada en las listas largas), y el mapa id → ordinal es de
+ * long/int primitivos. Sin objetos por usuario, un millón de usuarios ocupa unas decenas de MB
+ * (ver stats()). Una actualización crea un documento nuevo y marca el anterior como borrado;
+ * cuando los borrados superan a los vivos el índice se compacta.
+ *
+ * Se carga entero al arrancar y UserAutocompleteListener lo mantiene al día; como en
+ * DepartmentCounters, los cambios de una transacción se aplican solo tras el commit. Durante la
+ * transacción solo se anotan los IDs tocados (LongSet, 8 bytes por ID); tras el commit se
+ * releen de la BD nombre y email de esos IDs por páginas de REFRESH_PAGE. Así una importación
+ * grande (transfer_data_chunked) no retiene en memoria el texto de cada usuario hasta el COMMIT.
+ */
+@Component
+public class UserAutocompleteIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserAutocompleteIndex.class);
+
+    private static final byte FIELD_SEPARATOR = '\n';
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+    private static final Pattern SPACES = Pattern.compile("\\s+");
+
+    /** Prioridad de una coincidencia (menor = mejor); es también el orden de las pasadas */
+    private static final int NAME_PREFIX = 0;
+    private static final int WORD_PREFIX = 1;
+    private static final int CONTAINS = 2;
+    private static final int NO_MATCH = 3;
+
+    /** Tipo de clave en el byte alto (los 3 bajos son los bytes del texto) */
+    private static final int TRIGRAM = 0;
+    private static final int NAME_START = 1; // + nº de bytes - 1
+    private static final int WORD_START = 4; // + nº de bytes - 1
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    /** IDs por consulta al releer nombre y email tras el commit */
+    static final int REFRESH_PAGE = 1000;
+
+    private static final String SELECT_TEXTS = "SELECT id, name, email FROM users WHERE id = ANY(?)";
+
+    @Value("${ra3.autocomplete.load-fetch-size:1000}")
+    private int loadFetchSize;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Una relectura (o la carga) lee de la BD y aplica sin que otra se cuele en medio: si no,
+     * una lectura anterior a un commit podría aplicarse después de la de ese commit
+     */
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    private Documents documents = new Documents();
+
+    // ===== Consultas =====
+
+    /**
+     * IDs de los usuarios cuyo nombre o email contiene el texto, mejores coincidencias primero
+     *
+     * @param text 1-2 caracteres: inicio del nombre o de una palabra; 3 o más: también en cualquier posición
+     */
+    public List<Long> search(String text, int limit) {
+        byte[] query = utf8(normalize(text));
+        if (query.length == 0 || limit <= 0) {
+            return List.of();
+        }
+        lock.readLock().lock();
+        try {
+            return documents.search(query, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Tamaño del índice: usuarios, documentos borrados pendientes de compactar,
+     * claves (trigramas e inicios) y bytes aproximados de cada estructura
+     */
+    public Map<String, Object> stats() {
+        lock.readLock().lock();
+        try {
+            return documents.stats();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ===== Cambios =====
+
+    /**
+     * Anota que el nombre o el email de un usuario pueden haber cambiado (alta, modificación o
+     * borrado). Tras el commit se releen de la BD; si ya no existe, se quita del índice.
+     */
+    public void changed(long id) {
+        record(ids -> ids.add(id));
+    }
+
+    /**
+     * Igual que changed() para los usuarios de una sentencia masiva
+     */
+    public void changedAll(Collection<Long> userIds) {
+        record(ids -> userIds.forEach(ids::add));
+    }
+
+    private void record(Consumer<LongSet> change) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            LongSet ids = new LongSet();
+            change.accept(ids);
+            transactionTemplate.executeWithoutResult(status -> refresh(ids));
+            return;
+        }
+        change.accept(pendingIds());
+    }
+
+    private LongSet pendingIds() {
+        LongSet pending = (LongSet) TransactionSynchronizationManager.getResource(this);
+        if (pending == null) {
+            LongSet created = new LongSet();
+            TransactionSynchronizationManager.bindResource(this, created);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    // El commit ya está hecho: un fallo aquí no debe llegar al cliente como error
+                    try {
+                        refresh(created);
+                    } catch (RuntimeException e) {
+                        logger.error("No se pudo actualizar el índice de autocompletado ({} usuarios): {}",
+                                created.size(), e.getMessage(), e);
+                    }
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(UserAutocompleteIndex.this);
+                }
+            });
+            pending = created;
+        }
+        return pending;
+    }
+
+    /**
+     * Relee nombre y email de los IDs por páginas y los aplica; los que ya no están en la BD se
+     * quitan. En afterCommit() la sesión de la transacción sigue abierta y la lectura va por su
+     * misma conexión (la del primario: siempre ve el commit), sin pedir otra al pool.
+     */
+    private void refresh(LongSet ids) {
+        long[] sorted = ids.toSortedArray();
+        Session session = entityManager.unwrap(Session.class);
+        for (int from = 0; from < sorted.length; from += REFRESH_PAGE) {
+            long[] page = Arrays.copyOfRange(sorted, from, Math.min(from + REFRESH_PAGE, sorted.length));
+            refreshLock.lock();
+            try {
+                List<Object[]> rows = session.doReturningWork(connection -> {
+                    List<Object[]> found = new ArrayList<>(page.length);
+                    try (PreparedStatement select = connection.prepareStatement(SELECT_TEXTS)) {
+                        select.setArray(1, connection.createArrayOf("BIGINT",
+                                Arrays.stream(page).boxed().toArray()));
+                        try (ResultSet rs = select.executeQuery()) {
+                            while (rs.next()) {
+                                found.add(new Object[] {rs.getLong(1), rs.getString(2), rs.getString(3)});
+                            }
+                        }
+                    }
+                    return found;
+                });
+                apply(page, rows);
+            } finally {
+                refreshLock.unlock();
+            }
+        }
+    }
+
+    private void apply(long[] page, List<Object[]> rows) {
+        lock.writeLock().lock();
+        try {
+            BitSet present = new BitSet(page.length);
+            for (Object[] row : rows) {
+                long id = (Long) row[0];
+                present.set(Arrays.binarySearch(page, id));
+                documents.put(id, (String) row[1], (String) row[2]);
+            }
+            for (int i = present.nextClearBit(0); i < page.length; i = present.nextClearBit(i + 1)) {
+                documents.remove(page[i]);
+            }
+            if (documents.shouldCompact()) {
+                documents = documents.compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Carga el índice desde la BD. Los cerrojos se toman antes de leer: las relecturas de los
+     * commits posteriores esperan y se aplican encima (put/remove son idempotentes).
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        refreshLock.lock();
+        lock.writeLock().lock();
+        try {
+            Documents loaded = new Documents();
+            // Transacción de escritura (sin readOnly): se lee del primario, no de la réplica
+            transactionTemplate.executeWithoutResult(status -> entityManager
+                    .createQuery("SELECT u.id, u.name, u.email FROM User u ORDER BY u.id", Object[].class)
+                    .setHint(HibernateHints.HINT_FETCH_SIZE, loadFetchSize)
+                    .getResultStream()
+                    .forEach(row -> loaded.put((Long) row[0], (String) row[1], (String) row[2])));
+            documents = loaded;
+            logger.info("Índice de autocompletado cargado: {}", loaded.stats());
+        } finally {
+            lock.writeLock().unlock();
+            refreshLock.unlock();
+        }
+    }
+
+    // ===== Normalización =====
+
+    /** Minúsculas, sin tildes y con los espacios repetidos colapsados ("  Juan  PÉREZ" → "juan perez") */
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        String plain = DIACRITICS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+        return SPACES.matcher(plain.toLowerCase(Locale.ROOT)).replaceAll(" ").strip();
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Clave de hasta 3 bytes del texto a partir de from */
+    private static int key(int kind, byte[] text, int from, int length) {
+        int key = kind << 24;
+        for (int i = 0; i < length; i++) {
+            key |= (text[from + i] & 0xFF) << (16 - 8 * i);
+        }
+        return key;
+    }
+
+    private static int prefixKey(int kind, byte[] text, int from, int end) {
+        int length = Math.min(3, end - from);
+        return key(kind + length - 1, text, from, length);
+    }
+
+    /** Una palabra empieza en i si es el primer byte o el anterior no es letra/dígito (ASCII) */
+    private static boolean wordStart(byte[] text, int start, int i) {
+        return i == start || !isWordByte(text[i - 1]);
+    }
+
+    private static boolean isWordByte(byte b) {
+        return b < 0 || Character.isLetterOrDigit(b); // b < 0: byte de un carácter UTF-8 no ASCII
+    }
+
+    // ===== Estructuras =====
+
+    /**
+     * Documentos, textos y listas de ordinales. No es thread-safe: lo protege el cerrojo.
+     */
+    private static final class Documents {
+
+        private long[] userIds = new long[1024];
+        private int[] textOffsets = new int[1025];
+        private byte[] texts = new byte[64 * 1024];
+        private int size;
+        private int live;
+        private final BitSet deleted = new BitSet();
+        private final LongIntMap ordinals = new LongIntMap();
+        private final Map<Integer, Postings> postings = new HashMap<>();
+
+        void put(long id, String name, String email) {
+            byte[] text = utf8(normalize(name) + (char) FIELD_SEPARATOR + normalize(email));
+            int current = ordinals.get(id);
+            if (current >= 0) {
+                if (Arrays.equals(texts, textOffsets[current], textOffsets[current + 1], text, 0, text.length)) {
+                    return; // Sin cambios en nombre ni email
+                }
+                deleted.set(current);
+                live--;
+            }
+            int ordinal = append(id, text);
+            ordinals.put(id, ordinal);
+            live++;
+            for (int key : keys(ordinal)) {
+                postings.computeIfAbsent(key, k -> new Postings()).add(ordinal);
+            }
+        }
+
+        void remove(long id) {
+            int ordinal = ordinals.remove(id);
+            if (ordinal >= 0) {
+                deleted.set(ordinal);
+                live--;
+            }
+        }
+
+        private int append(long id, byte[] text) {
+            if (size == userIds.length) {
+                userIds = Arrays.copyOf(userIds, size * 2);
+                textOffsets = Arrays.copyOf(textOffsets, size * 2 + 1);
+            }
+            int start = textOffsets[size];
+            if (start + text.length > texts.length) {
+                texts = Arrays.copyOf(texts, Math.max(texts.length * 2, start + text.length));
+            }
+            System.arraycopy(text, 0, texts, start, text.length);
+            userIds[size] = id;
+            textOffsets[size + 1] = start + text.length;
+            return size++;
+        }
+
+        /** Claves distintas del documento: trigramas de cada campo e inicios de palabra y de nombre */
+        private int[] keys(int ordinal) {
+            int start = textOffsets[ordinal];
+            int end = textOffsets[ordinal + 1];
+            int separator = separator(ordinal);
+            int[] keys = new int[4 * (end - start) + 3];
+            int count = 0;
+            for (int length = 1; length <= 3 && start + length <= separator; length++) {
+                keys[count++] = key(NAME_START + length - 1, texts, start, length);
+            }
+            int fieldStart = start;
+            int fieldEnd = separator;
+            for (int i = start; i < end; i++) {
+                if (i == separator) {
+                    fieldStart = i + 1;
+                    fieldEnd = end;
+                    continue;
+                }
+                if (i + 3 <= fieldEnd) {
+                    keys[count++] = key(TRIGRAM, texts, i, 3);
+                }
+                if (isWordByte(texts[i]) && wordStart(texts, fieldStart, i)) {
+                    for (int length = 1; length <= 3 && i + length <= fieldEnd; length++) {
+                        keys[count++] = key(WORD_START + length - 1, texts, i, length);
+                    }
+                }
+            }
+            int[] sorted = Arrays.copyOf(keys, count);
+            Arrays.sort(sorted);
+            int unique = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) {
+                    sorted[unique++] = sorted[i];
+                }
+            }
+            return Arrays.copyOf(sorted, unique);
+        }
+
+        private int separator(int ordinal) {
+            int separator = textOffsets[ordinal];
+            while (texts[separator] != FIELD_SEPARATOR) {
+                separator++;
+            }
+            return separator;
+        }
+
+        List<Long> search(byte[] query, int limit) {
+            // Con más de 3 bytes, los trigramas descartan candidatos antes de comprobar el texto
+            int[] trigrams = new int[Math.max(0, query.length - 2)];
+            for (int i = 0; i < trigrams.length; i++) {
+                trigrams[i] = key(TRIGRAM, query, i, 3);
+            }
+            int[] extra = query.length > 3 ? trigrams : new int[0];
+
+            List<Long> ids = new ArrayList<>(limit);
+            search(NAME_PREFIX, prefixKey(NAME_START, query, 0, query.length), extra, query, limit, ids);
+            search(WORD_PREFIX, prefixKey(WORD_START, query, 0, query.length), extra, query, limit, ids);
+            if (trigrams.length > 0) {
+                search(CONTAINS, trigrams[0], Arrays.copyOfRange(trigrams, 1, trigrams.length), query, limit, ids);
+            }
+            return ids;
+        }
+
+        /**
+         * Una pasada: añade, por orden de alta, los documentos de las listas de las claves cuya
+         * mejor coincidencia es "tier", hasta tener limit IDs en total
+         */
+        private void search(int tier, int firstKey, int[] otherKeys, byte[] query, int limit, List<Long> ids) {
+            if (ids.size() >= limit) {
+                return;
+            }
+            Postings.Cursor[] cursors = new Postings.Cursor[otherKeys.length + 1];
+            for (int i = 0; i < cursors.length; i++) {
+                Postings list = postings.get(i == 0 ? firstKey : otherKeys[i - 1]);
+                if (list == null) {
+                    return;
+                }
+                cursors[i] = list.cursor();
+            }
+            Arrays.sort(cursors, (a, b) -> Integer.compare(a.count(), b.count()));
+
+            int candidate = cursors[0].next();
+            candidates:
+            while (candidate >= 0) {
+                for (int i = 1; i < cursors.length; i++) {
+                    int other = cursors[i].advanceTo(candidate);
+                    if (other < 0) {
+                        return;
+                    }
+                    if (other != candidate) {
+                        // Ningún ordinal anterior a "other" está en todas las listas
+                        candidate = cursors[0].advanceTo(other);
+                        continue candidates;
+                    }
+                }
+                // Los mejores los ha añadido ya una pasada anterior
+                if (!deleted.get(candidate) && tier(candidate, query) == tier) {
+                    ids.add(userIds[candidate]);
+                    if (ids.size() == limit) {
+                        return;
+                    }
+                }
+                candidate = cursors[0].next();
+            }
+        }
+
+        /** Mejor prioridad con la que el documento contiene el texto buscado */
+        private int tier(int ordinal, byte[] query) {
+            int start = textOffsets[ordinal];
+            int end = textOffsets[ordinal + 1];
+            int separator = separator(ordinal);
+            if (separator - start >= query.length
+                    && Arrays.equals(texts, start, start + query.length, query, 0, query.length)) {
+                return NAME_PREFIX;
+            }
+            return Math.min(tier(start, separator, query), tier(separator + 1, end, query));
+        }
+
+        /** WORD_PREFIX si una palabra del campo empieza por el texto, CONTAINS si está en medio */
+        private int tier(int start, int end, byte[] query) {
+            int best = NO_MATCH;
+            for (int i = start; i + query.length <= end; i++) {
+                if (Arrays.equals(texts, i, i + query.length, query, 0, query.length)) {
+                    if (wordStart(texts, start, i)) {
+                        return WORD_PREFIX;
+                    }
+                    best = CONTAINS;
+                }
+            }
+            return best;
+        }
+
+        boolean shouldCompact() {
+            return size - live > Math.max(live, 1024);
+        }
+
+        /** Copia solo los documentos vivos (nuevos ordinales, listas sin borrados) */
+        Documents compact() {
+            Documents compacted = new Documents();
+            for (int ordinal = 0; ordinal < size; ordinal++) {
+                if (!deleted.get(ordinal)) {
+                    byte[] text = Arrays.copyOfRange(texts, textOffsets[ordinal], textOffsets[ordinal + 1]);
+                    int copy = compacted.append(userIds[ordinal], text);
+                    compacted.ordinals.put(userIds[ordinal], copy);
+                    compacted.live++;
+                    for (int key : compacted.keys(copy)) {
+                        compacted.postings.computeIfAbsent(key, k -> new Postings()).add(copy);
+                    }
+                }
+            }
+            logger.debug("Índice de autocompletado compactado: {} documentos → {}", size, compacted.size);
+            return compacted;
+        }
+
+        Map<String, Object> stats() {
+            long postingBytes = 0;
+            long postingEntries = 0;
+            for (Postings list : postings.values()) {
+                postingBytes += list.data.length + 4L * list.skips.length;
+                postingEntries += list.count;
+            }
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("users", live);
+            stats.put("deletedDocuments", size - live);
+            stats.put("keys", postings.size());
+            stats.put("postingEntries", postingEntries);
+            stats.put("postingBytes", postingBytes);
+            stats.put("textBytes", (long) texts.length);
+            stats.put("idBytes", 8L * userIds.length + 4L * textOffsets.length + ordinals.bytes());
+            return stats;
+        }
+    }
+
+    /**
+     * Lista ordenada de ordinales codificada como diferencias varint
+     * (7 bits por byte; el bit alto indica que el número sigue en el byte siguiente)
+     *
+     * Cada SKIP_INTERVAL entradas se anota el ordinal y su posición en data: al intersecar,
+     * advanceTo salta bloques enteros sin decodificarlos.
+     */
+    private static final class Postings {
+
+        private static final int SKIP_INTERVAL = 64;
+
+        private byte[] data = new byte[4];
+        private int length;
+        private int count;
+        private int last = -1;
+        private int[] skips = new int[0]; // pares (ordinal, posición tras él)
+        private int skipCount;
+
+        void add(int ordinal) {
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length + (data.length >> 1) + 5);
+            }
+            int delta = ordinal - last;
+            while ((delta & ~0x7F) != 0) {
+                data[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+            last = ordinal;
+            count++;
+            if (count % SKIP_INTERVAL == 0) {
+                if (2 * skipCount == skips.length) {
+                    skips = Arrays.copyOf(skips, Math.max(8, skips.length * 2));
+                }
+                skips[2 * skipCount] = ordinal;
+                skips[2 * skipCount + 1] = length;
+                skipCount++;
+            }
+        }
+
+        Cursor cursor() {
+            return new Cursor();
+        }
+
+        /** Recorre la lista hacia delante; -1 al terminar */
+        final class Cursor {
+
+            private int position;
+            private int current = -1;
+            private int skip;
+
+            int count() {
+                return count;
+            }
+
+            int next() {
+                if (position >= length) {
+                    return -1;
+                }
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                current += delta;
+                return current;
+            }
+
+            /** Primer ordinal >= target (o -1) */
+            int advanceTo(int target) {
+                while (skip < skipCount && skips[2 * skip] < target) {
+                    if (skips[2 * skip + 1] > position) {
+                        current = skips[2 * skip];
+                        position = skips[2 * skip + 1];
+                    }
+                    skip++;
+                }
+                int value = current;
+                while (value < target) {
+                    value = next();
+                    if (value < 0) {
+                        return -1;
+                    }
+                }
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Mapa id de usuario → ordinal con direccionamiento abierto sobre long[]/int[]
+     * (sin Long/Integer por entrada). Los IDs de users son positivos: 0 marca hueco libre.
+     */
+    static final class LongIntMap {
+
+        private long[] keys = new long[1024];
+        private int[] values = new int[1024];
+        private int size;
+
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return -1;
+        }
+
+        void put(long key, int value) {
+            if (key <= 0) {
+                throw new IllegalArgumentException("ID de usuario no válido: " + key);
+            }
+            if (2 * (size + 1) > keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] != 0 && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == 0) {
+                size++;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        /** Borra la clave y devuelve su valor (o -1); recoloca las siguientes de la misma racha */
+        int remove(long key) {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] != key) {
+                if (keys[i] == 0) {
+                    return -1;
+                }
+                i = (i + 1) & mask;
+            }
+            int removed = values[i];
+            keys[i] = 0;
+            size--;
+            for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                long moved = keys[j];
+                int value = values[j];
+                keys[j] = 0;
+                size--;
+                put(moved, value);
+            }
+            return removed;
+        }
+
+        long bytes() {
+            return 12L * keys.length;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldValues.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+
+    /**
+     * Conjunto de IDs de usuario con direccionamiento abierto sobre long[] (sin Long por
+     * entrada). Como en LongIntMap, 0 marca hueco libre.
+     */
+    static final class LongSet {
+
+        private long[] keys = new long[16];
+        private int size;
+
+        void add(long key) {
+            if (key <= 0) {
+                throw new IllegalArgumentException("ID de usuario no válido: " + key);
+            }
+            if (2 * (size + 1) > keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int i = LongIntMap.slot(key, mask);
+            while (keys[i] != 0) {
+                if (keys[i] == key) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long[] toSortedArray() {
+            long[] sorted = new long[size];
+            int count = 0;
+            for (long key : keys) {
+                if (key != 0) {
+                    sorted[count++] = key;
+                }
+            }
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            keys = new long[oldKeys.length * 2];
+            size = 0;
+            for (long key : oldKeys) {
+                if (key != 0) {
+                    add(key);
+                }
+            }
+        }
+    }
+}
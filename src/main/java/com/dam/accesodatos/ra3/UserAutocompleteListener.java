@@ -0,0 +1,30 @@
+package com.dam.accesodatos.ra3;
+
+import com.dam.accesodatos.model.User;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import org.springframework.beans.factory.ObjectProvider;
+
+/**
+ * Entity listener JPA que mantiene UserAutocompleteIndex al día
+ *
+ * Igual que DepartmentCountersListener: Hibernate lo crea con el contenedor de Spring y el
+ * índice se resuelve en el primer callback. Solo se anota el ID: tras el commit el índice
+ * relee nombre y email y, en un UPDATE que no los toca, detecta que el texto no ha cambiado.
+ */
+public class UserAutocompleteListener {
+
+    private final ObjectProvider<UserAutocompleteIndex> index;
+
+    public UserAutocompleteListener(ObjectProvider<UserAutocompleteIndex> index) {
+        this.index = index;
+    }
+
+    @PostPersist
+    @PostUpdate
+    @PostRemove
+    public void afterChange(User user) {
+        index.getObject().changed(user.getId());
+    }
+}
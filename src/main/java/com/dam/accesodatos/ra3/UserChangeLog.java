@@ -0,0 +1,365 @@
+package com.dam.accesodatos.ra3;
+
+import com.dam.accesodatos.model.UserChangeRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Log de cambios de usuarios: fichero de solo añadir, mapeado en memoria y dividido en segmentos
+ *
+ * UserOutboxRelay añade aquí los eventos del outbox y los consumidores lo leen por offset
+ * (read_user_changes) sin consultar la BD.
+ *
+ * FORMATO (ra3.outbox.log-dir):
+ * - Segmentos de ra3.outbox.segment-size bytes llamados <offset inicial, 20 dígitos>.log
+ * - Cada registro: longitud del JSON (int), CRC32 de eventId + JSON (int), eventId (long), JSON UTF-8
+ * - Una longitud 0 marca el final de lo escrito; -1, que el resto del segmento no se usa y el
+ *   log sigue en el segmento siguiente
+ * - El offset de un registro es el offset inicial de su segmento más su posición: los offsets
+ *   crecen siempre y el siguiente segmento empieza donde acabó el anterior
+ *
+ * Cada segmento se mapea con FileChannel.map(): añadir un registro es copiar bytes a memoria,
+ * sin llamadas al sistema por registro. flush() hace force() (fsync de las páginas
+ * modificadas) y solo entonces los registros son visibles para read(): un consumidor nunca
+ * lee algo que se podría perder si el proceso cae.
+ *
+ * Al arrancar se mapean los segmentos existentes y se recorre el último hasta el primer
+ * registro incompleto o con CRC incorrecto: ahí sigue el log.
+ *
+ * Los eventId tampoco se repiten entre arranques: schema.sql recrea user_outbox_seq en cada
+ * arranque (empieza en 1), así que start() la adelanta hasta el último eventId del log.
+ */
+@Component
+public class UserChangeLog implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserChangeLog.class);
+
+    private static final int HEADER_BYTES = 16;
+    private static final int END_OF_SEGMENT = -1;
+
+    /** Un evento (payload de user_outbox: hasta 4.000 caracteres) siempre cabe en un segmento */
+    private static final long MIN_SEGMENT_BYTES = 64 * 1024;
+
+    @Value("${ra3.outbox.log-dir:./data/user-changes}")
+    private Path directory;
+
+    @Value("${ra3.outbox.segment-size:64MB}")
+    private DataSize segmentSize;
+
+    @Value("${ra3.outbox.max-segments:0}")
+    private int maxSegments;
+
+    @Autowired
+    private DataSource dataSource;
+
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private Segment active;
+    private int writePosition;
+    private volatile long committedEnd;
+    private volatile boolean running;
+
+    private final LongAdder appendedRecords = new LongAdder();
+    private final LongAdder rolledSegments = new LongAdder();
+
+    /** Segmento mapeado: 'base' es el offset de su primer byte */
+    private record Segment(long base, Path file, FileChannel channel, MappedByteBuffer buffer) {
+    }
+
+    /** Resultado de recorrer un segmento: fin del último registro completo y su eventId (0 si no hay) */
+    private record Scan(int end, long lastEventId) {
+    }
+
+    // ===== Escritura (solo UserOutboxRelay) =====
+
+    /**
+     * Añade un evento al final del log; no es visible para read() hasta flush()
+     *
+     * @return Offset del registro
+     */
+    public synchronized long append(long eventId, String event) {
+        byte[] payload = event.getBytes(StandardCharsets.UTF_8);
+        int size = HEADER_BYTES + payload.length;
+        int capacity = capacity();
+        if (size > capacity - Integer.BYTES) {
+            throw new IllegalArgumentException("Evento de " + size + " bytes: no cabe en un segmento de " + capacity);
+        }
+        if (writePosition + size > capacity - Integer.BYTES) {
+            roll();
+        }
+        MappedByteBuffer buffer = active.buffer();
+        int position = writePosition;
+        buffer.putLong(position + 8, eventId);
+        buffer.put(position + HEADER_BYTES, payload);
+        buffer.putInt(position + 4, crc(eventId, payload));
+        buffer.putInt(position, payload.length); // La longitud al final: antes de esto el registro no existe
+        writePosition += size;
+        appendedRecords.increment();
+        return active.base() + position;
+    }
+
+    /**
+     * Fuerza a disco lo añadido y lo hace visible para read()
+     *
+     * @return Offset final del log (el del siguiente registro)
+     */
+    public synchronized long flush() {
+        long end = active.base() + writePosition;
+        if (end != committedEnd) {
+            // Los segmentos cerrados desde el último flush ya se forzaron en roll()
+            active.buffer().force();
+            committedEnd = end;
+        }
+        return end;
+    }
+
+    private void roll() {
+        active.buffer().putInt(writePosition, END_OF_SEGMENT);
+        active.buffer().force();
+        Segment previous = active;
+        active = open(previous.base() + writePosition);
+        writePosition = 0;
+        rolledSegments.increment();
+        logger.debug("Log de cambios: segmento {} cerrado, nuevo segmento {}", previous.file().getFileName(),
+                active.file().getFileName());
+        if (maxSegments > 0) {
+            while (segments.size() > maxSegments) {
+                delete(segments.pollFirstEntry().getValue());
+            }
+        }
+    }
+
+    // ===== Lectura (consumidores) =====
+
+    /**
+     * Lee hasta 'limit' registros desde 'offset' (0 o el nextOffset del último registro leído)
+     *
+     * @throws IllegalArgumentException si el offset no es el de un registro o ya no se conserva
+     */
+    public List<UserChangeRecord> read(long offset, int limit) {
+        long end = committedEnd;
+        List<UserChangeRecord> records = new ArrayList<>();
+        while (records.size() < limit && offset < end) {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+            if (entry == null) {
+                throw new IllegalArgumentException("Offset " + offset + " anterior al primer segmento conservado ("
+                        + startOffset() + ")");
+            }
+            Segment segment = entry.getValue();
+            int position = (int) (offset - segment.base());
+            int length = position <= capacity() - Integer.BYTES ? segment.buffer().getInt(position) : 0;
+            if (length <= 0 || position + HEADER_BYTES + length > capacity()) {
+                throw new IllegalArgumentException("Offset " + offset + " no es el inicio de un registro");
+            }
+            long eventId = segment.buffer().getLong(position + 8);
+            byte[] payload = new byte[length];
+            segment.buffer().get(position + HEADER_BYTES, payload);
+            if (segment.buffer().getInt(position + 4) != crc(eventId, payload)) {
+                throw new IllegalArgumentException("Offset " + offset + " no es el inicio de un registro");
+            }
+            long next = offset + HEADER_BYTES + length;
+            records.add(new UserChangeRecord(offset, next, eventId, new String(payload, StandardCharsets.UTF_8)));
+            offset = next;
+        }
+        return records;
+    }
+
+    /** Offset del primer registro conservado */
+    public long startOffset() {
+        return segments.isEmpty() ? 0 : segments.firstKey();
+    }
+
+    /** Offset del siguiente registro: hasta aquí se puede leer */
+    public long endOffset() {
+        return committedEnd;
+    }
+
+    // ===== Ciclo de vida =====
+
+    @Override
+    public synchronized void start() {
+        if (segmentSize.toBytes() < MIN_SEGMENT_BYTES || segmentSize.toBytes() > Integer.MAX_VALUE) {
+            throw new IllegalStateException("ra3.outbox.segment-size debe estar entre 64KB y 2GB: " + segmentSize);
+        }
+        try {
+            Files.createDirectories(directory);
+            try (Stream<Path> files = Files.list(directory)) {
+                files.filter(file -> file.getFileName().toString().matches("\\d{20}\\.log"))
+                        .sorted()
+                        .forEach(file -> open(Long.parseLong(file.getFileName().toString().substring(0, 20))));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo abrir el log de cambios en " + directory, e);
+        }
+        active = segments.isEmpty() ? open(0) : segments.lastEntry().getValue();
+        Scan tail = recover(active);
+        writePosition = tail.end();
+        committedEnd = active.base() + writePosition;
+        long lastEventId = tail.lastEventId();
+        for (Segment segment : segments.headMap(active.base()).descendingMap().values()) {
+            if (lastEventId > 0) {
+                break;
+            }
+            lastEventId = scan(segment).lastEventId();
+        }
+        seedEventIds(lastEventId);
+        running = true;
+        logger.info("Log de cambios en {}: {} segmentos, offsets {}..{}", directory, segments.size(),
+                startOffset(), committedEnd);
+    }
+
+    /** Recorre el último segmento: el log sigue tras su último registro completo */
+    private Scan recover(Segment segment) {
+        Scan scan = scan(segment);
+        // Restos de un registro a medias: se sobrescriben con el siguiente
+        segment.buffer().putInt(scan.end(), 0);
+        return scan;
+    }
+
+    private Scan scan(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer();
+        int position = 0;
+        long eventId = 0;
+        while (position <= capacity() - HEADER_BYTES) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_BYTES + length > capacity()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(position + HEADER_BYTES, payload);
+            if (buffer.getInt(position + 4) != crc(buffer.getLong(position + 8), payload)) {
+                break;
+            }
+            eventId = buffer.getLong(position + 8);
+            position += HEADER_BYTES + length;
+        }
+        return new Scan(position, eventId);
+    }
+
+    /** Adelanta user_outbox_seq por encima del último eventId del log */
+    private void seedEventIds(long lastEventId) {
+        if (lastEventId == 0) {
+            return;
+        }
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            try (ResultSet rs = statement.executeQuery("SELECT BASE_VALUE FROM INFORMATION_SCHEMA.SEQUENCES"
+                    + " WHERE SEQUENCE_SCHEMA = 'PUBLIC' AND SEQUENCE_NAME = 'USER_OUTBOX_SEQ'")) {
+                if (!rs.next() || rs.getLong(1) > lastEventId) {
+                    return;
+                }
+            }
+            statement.execute("ALTER SEQUENCE user_outbox_seq RESTART WITH " + (lastEventId + 1));
+            logger.info("user_outbox_seq adelantada a {} (último eventId del log)", lastEventId + 1);
+        } catch (SQLException e) {
+            throw new IllegalStateException("No se pudo adelantar user_outbox_seq: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        flush();
+        segments.values().forEach(this::close);
+        segments.clear();
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        // Arranca antes y se para después que UserOutboxRelay, que escribe aquí
+        return UserOutboxRelay.PHASE - 1;
+    }
+
+    private Segment open(long base) {
+        Path file = directory.resolve(String.format("%020d.log", base));
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            Segment segment = new Segment(base, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity()));
+            segments.put(base, segment);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo abrir el segmento " + file, e);
+        }
+    }
+
+    private void close(Segment segment) {
+        try {
+            segment.channel().close();
+        } catch (IOException e) {
+            logger.warn("Error cerrando el segmento {}", segment.file(), e);
+        }
+    }
+
+    private void delete(Segment segment) {
+        close(segment);
+        try {
+            Files.deleteIfExists(segment.file());
+            logger.info("Log de cambios: segmento {} eliminado (ra3.outbox.max-segments)", segment.file().getFileName());
+        } catch (IOException e) {
+            logger.warn("No se pudo eliminar el segmento {}", segment.file(), e);
+        }
+    }
+
+    private int capacity() {
+        return (int) segmentSize.toBytes();
+    }
+
+    private static int crc(long eventId, byte[] payload) {
+        CRC32 crc = new CRC32();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (eventId >>> shift));
+        }
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    // ===== Métricas =====
+
+    /**
+     * Segmentos, offsets conservados y registros añadidos desde el arranque
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("directory", directory.toAbsolutePath().toString());
+        stats.put("segments", segments.size());
+        stats.put("startOffset", startOffset());
+        stats.put("endOffset", committedEnd);
+        stats.put("appendedRecords", appendedRecords.sum());
+        stats.put("rolledSegments", rolledSegments.sum());
+        return stats;
+    }
+}
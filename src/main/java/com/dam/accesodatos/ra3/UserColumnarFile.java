@@ -0,0 +1,430 @@
+package com.dam.accesodatos.ra3;
+
+import com.dam.accesodatos.model.UserExportRow;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Fichero columnar comprimido de usuarios (formato "columnar" de export_users, extensión .ucol)
+ *
+ * Un CSV guarda fila a fila: "IT", "Developer"... se repiten en cada línea. Aquí las filas se
+ * agrupan en bloques (row groups) y dentro de cada bloque se guardan columna a columna, así
+ * que los valores parecidos quedan juntos y se comprimen mucho mejor:
+ * - department y role con diccionario: los valores distintos del bloque una vez y, por fila,
+ *   solo su posición en el diccionario (un byte para menos de 128 valores)
+ * - id y las fechas como diferencia con la fila anterior (ids consecutivos: 1 byte por fila)
+ * - active como mapa de bits; las columnas que admiten null llevan un mapa de bits de presencia
+ * - Cada columna se comprime por separado con Deflate
+ *
+ * FORMATO (enteros como varint, LEB128 sin signo; diferencias con zigzag):
+ * <pre>
+ * "UCOL" versión(1 byte) nº columnas [nombre UTF-8]...
+ * bloque: nº filas, por columna: tamaño sin comprimir, tamaño comprimido, bytes Deflate
+ * ...
+ * 0 (fin de bloques) total de filas
+ * </pre>
+ * Columnas: id, name, email, department, role, active, created_at, updated_at, login_count,
+ * last_login. Las fechas son microsegundos desde 1970-01-01T00:00 (sin zona, como en la BD).
+ *
+ * El escritor solo guarda en memoria el bloque actual: la memoria no depende del total de filas.
+ */
+public final class UserColumnarFile {
+
+    static final byte[] MAGIC = "UCOL".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final List<String> COLUMNS = List.of("id", "name", "email", "department", "role", "active",
+            "created_at", "updated_at", "login_count", "last_login");
+
+    private UserColumnarFile() {
+    }
+
+    // ===== Escritura =====
+
+    /**
+     * Escribe filas por bloques de rowGroupSize. close() escribe el último bloque y el pie.
+     */
+    public static final class Writer implements AutoCloseable {
+
+        private final OutputStream out;
+        private final int rowGroupSize;
+        private final List<UserExportRow> group;
+        private final Deflater deflater;
+        private final Buffer column = new Buffer(1024 * 1024);
+        private final Buffer compressed = new Buffer(1024 * 1024);
+        private final byte[] chunk = new byte[64 * 1024];
+        private long rows;
+
+        public Writer(OutputStream out, int rowGroupSize, int compressionLevel) throws IOException {
+            this.out = new BufferedOutputStream(out, 256 * 1024);
+            this.rowGroupSize = rowGroupSize;
+            this.group = new ArrayList<>(rowGroupSize);
+            this.deflater = new Deflater(compressionLevel, true);
+            this.out.write(MAGIC);
+            this.out.write(VERSION);
+            Buffer header = new Buffer(128);
+            header.writeVarLong(COLUMNS.size());
+            COLUMNS.forEach(header::writeString);
+            header.writeTo(this.out);
+        }
+
+        public void write(UserExportRow row) throws IOException {
+            group.add(row);
+            if (group.size() == rowGroupSize) {
+                flushGroup();
+            }
+        }
+
+        private void flushGroup() throws IOException {
+            if (group.isEmpty()) {
+                return;
+            }
+            Buffer count = new Buffer(10);
+            count.writeVarLong(group.size());
+            count.writeTo(out);
+
+            long previous = 0;
+            for (UserExportRow row : group) {
+                column.writeVarLong(zigzag(row.id() - previous));
+                previous = row.id();
+            }
+            writeColumn();
+            group.forEach(row -> column.writeString(row.name()));
+            writeColumn();
+            group.forEach(row -> column.writeString(row.email()));
+            writeColumn();
+            writeDictionary(UserExportRow::department);
+            writeDictionary(UserExportRow::role);
+            writeBitmap(UserExportRow::active);
+            writeColumn();
+            writeTimestamps(UserExportRow::createdAt);
+            writeTimestamps(UserExportRow::updatedAt);
+            writeBitmap(row -> row.loginCount() != null);
+            for (UserExportRow row : group) {
+                if (row.loginCount() != null) {
+                    column.writeVarLong(zigzag(row.loginCount()));
+                }
+            }
+            writeColumn();
+            writeTimestamps(UserExportRow::lastLogin);
+
+            rows += group.size();
+            group.clear();
+        }
+
+        private void writeDictionary(Function<UserExportRow, String> value) throws IOException {
+            Map<String, Integer> dictionary = new HashMap<>();
+            List<String> entries = new ArrayList<>();
+            Buffer indexes = new Buffer(group.size());
+            for (UserExportRow row : group) {
+                String entry = value.apply(row);
+                Integer index = dictionary.get(entry);
+                if (index == null) {
+                    index = entries.size();
+                    dictionary.put(entry, index);
+                    entries.add(entry);
+                }
+                indexes.writeVarLong(index);
+            }
+            column.writeVarLong(entries.size());
+            entries.forEach(column::writeString);
+            column.write(indexes.bytes(), 0, indexes.size());
+            writeColumn();
+        }
+
+        /** Un bit por fila del bloque, en bytes completos */
+        private void writeBitmap(Predicate<UserExportRow> bit) {
+            int current = 0;
+            for (int i = 0; i < group.size(); i++) {
+                if (bit.test(group.get(i))) {
+                    current |= 1 << (i & 7);
+                }
+                if ((i & 7) == 7 || i == group.size() - 1) {
+                    column.write(current);
+                    current = 0;
+                }
+            }
+        }
+
+        private void writeTimestamps(Function<UserExportRow, LocalDateTime> value) throws IOException {
+            writeBitmap(row -> value.apply(row) != null);
+            long previous = 0;
+            for (UserExportRow row : group) {
+                LocalDateTime time = value.apply(row);
+                if (time != null) {
+                    long micros = toMicros(time);
+                    column.writeVarLong(zigzag(micros - previous));
+                    previous = micros;
+                }
+            }
+            writeColumn();
+        }
+
+        private void writeColumn() throws IOException {
+            deflater.reset();
+            deflater.setInput(column.bytes(), 0, column.size());
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                compressed.write(chunk, 0, n);
+            }
+            Buffer sizes = new Buffer(20);
+            sizes.writeVarLong(column.size());
+            sizes.writeVarLong(compressed.size());
+            sizes.writeTo(out);
+            compressed.writeTo(out);
+            column.reset();
+            compressed.reset();
+        }
+
+        public long rows() {
+            return rows + group.size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flushGroup();
+                Buffer footer = new Buffer(20);
+                footer.writeVarLong(0);
+                footer.writeVarLong(rows);
+                footer.writeTo(out);
+                out.close();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    // ===== Lectura =====
+
+    /**
+     * Lee el fichero bloque a bloque y entrega cada fila
+     *
+     * @return Número de filas leídas
+     * @throws IOException si el fichero no es de este formato o está truncado
+     */
+    public static long read(Path file, Consumer<UserExportRow> consumer) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 256 * 1024)) {
+            byte[] magic = in.readNBytes(MAGIC.length);
+            if (!Arrays.equals(magic, MAGIC) || in.read() != VERSION) {
+                throw new IOException("No es un fichero columnar de usuarios (versión " + VERSION + "): " + file);
+            }
+            int columns = (int) readVarLong(in);
+            for (int i = 0; i < columns; i++) {
+                in.skipNBytes(readVarLong(in));
+            }
+            Inflater inflater = new Inflater(true);
+            try {
+                long total = 0;
+                int count;
+                while ((count = (int) readVarLong(in)) > 0) {
+                    long[] ids = new long[count];
+                    Reader id = column(in, inflater);
+                    long previous = 0;
+                    for (int i = 0; i < count; i++) {
+                        previous += unzigzag(id.readVarLong());
+                        ids[i] = previous;
+                    }
+                    String[] names = strings(column(in, inflater), count);
+                    String[] emails = strings(column(in, inflater), count);
+                    String[] departments = dictionary(column(in, inflater), count);
+                    String[] roles = dictionary(column(in, inflater), count);
+                    Reader active = column(in, inflater);
+                    LocalDateTime[] created = timestamps(column(in, inflater), count);
+                    LocalDateTime[] updated = timestamps(column(in, inflater), count);
+                    Reader logins = column(in, inflater);
+                    boolean[] hasLogins = logins.bitmap(count);
+                    LocalDateTime[] lastLogin = timestamps(column(in, inflater), count);
+                    boolean[] activeBits = active.bitmap(count);
+                    for (int i = 0; i < count; i++) {
+                        Integer loginCount = hasLogins[i] ? (int) unzigzag(logins.readVarLong()) : null;
+                        consumer.accept(new UserExportRow(ids[i], names[i], emails[i], departments[i], roles[i],
+                                activeBits[i], created[i], updated[i], loginCount, lastLogin[i]));
+                    }
+                    total += count;
+                }
+                long expected = readVarLong(in);
+                if (expected != total) {
+                    throw new IOException("Fichero incompleto: " + total + " filas de " + expected);
+                }
+                return total;
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    private static Reader column(InputStream in, Inflater inflater) throws IOException {
+        int rawSize = (int) readVarLong(in);
+        byte[] compressed = in.readNBytes((int) readVarLong(in));
+        byte[] raw = new byte[rawSize];
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            int n = 0;
+            while (n < rawSize) {
+                int read = inflater.inflate(raw, n, rawSize - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new EOFException("Columna truncada");
+                }
+                n += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Columna corrupta", e);
+        }
+        return new Reader(raw);
+    }
+
+    private static String[] strings(Reader column, int count) {
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = column.readString();
+        }
+        return values;
+    }
+
+    private static String[] dictionary(Reader column, int count) {
+        String[] entries = new String[(int) column.readVarLong()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = column.readString();
+        }
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = entries[(int) column.readVarLong()];
+        }
+        return values;
+    }
+
+    private static LocalDateTime[] timestamps(Reader column, int count) {
+        boolean[] present = column.bitmap(count);
+        LocalDateTime[] values = new LocalDateTime[count];
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            if (present[i]) {
+                previous += unzigzag(column.readVarLong());
+                values[i] = fromMicros(previous);
+            }
+        }
+        return values;
+    }
+
+    // ===== Codificación =====
+
+    static long toMicros(LocalDateTime time) {
+        return time.toEpochSecond(ZoneOffset.UTC) * 1_000_000 + time.getNano() / 1_000;
+    }
+
+    static LocalDateTime fromMicros(long micros) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000),
+                Math.floorMod(micros, 1_000_000) * 1_000, ZoneOffset.UTC);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Fichero truncado");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint demasiado largo");
+    }
+
+    /** ByteArrayOutputStream con varints y strings, sin copiar al escribir */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        Buffer(int size) {
+            super(size);
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    /** Lectura de una columna ya descomprimida */
+    private static final class Reader {
+
+        private final byte[] data;
+        private int position;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        boolean[] bitmap(int count) {
+            boolean[] bits = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                bits[i] = (data[position + (i >> 3)] & (1 << (i & 7))) != 0;
+            }
+            position += (count + 7) / 8;
+            return bits;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package com.dam.accesodatos.ra3;
+
+import com.dam.accesodatos.model.User;
+import com.dam.accesodatos.model.UserImportResult;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
+import org.hibernate.action.internal.BulkOperationCleanupAction;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.generator.BeforeExecutionGenerator;
+import org.hibernate.generator.EventType;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongConsumer;
+
+/**
+ * Importación de usuarios desde un CSV local (import_users_csv) sin pasar por la entidad
+ *
+ * transfer_data recibe los usuarios como JSON y convierte cada uno en una entidad gestionada
+ * (snapshot para dirty checking, callbacks, caché L2...). Para cargar cientos de miles de
+ * usuarios eso sobra: aquí el fichero se lee línea a línea y cada fila válida va directa a un
+ * batch JDBC.
+ *
+ * FORMATO: UTF-8, separado por comas, con cabecera. Columnas obligatorias name, email,
+ * department y role (en cualquier orden) y opcional active (true/false/1/0; vacío = true).
+ * Los valores pueden ir entre comillas dobles ("" dentro de comillas es una comilla), pero
+ * una fila no puede ocupar varias líneas.
+ *
+ * Una sola pasada sobre el fichero, por bloques de ra3.csv-import.chunk-size filas:
+ * 1. Cada fila se valida al leerla: número de columnas, Bean Validation de User, longitud de
+ *    las columnas y email repetido en el propio fichero
+ * 2. Un SELECT ... WHERE email = ANY(?) por bloque descarta los emails que ya existen en users
+ * 3. Las filas aceptadas se insertan con un batch JDBC y el bloque se confirma (un COMMIT
+ *    por bloque: lo importado antes de un error se queda en la BD)
+ * Las filas rechazadas se escriben en <fichero>.rejects.csv con su número de línea y el motivo.
+ *
+ * Los IDs salen del mismo generador pooled-lo que usa persist() (una llamada a users_seq cada
+ * 50 filas). Tras cada bloque se actualizan los contadores por departamento y el índice de
+ * autocompletado y se invalidan la región L2 "users" y las consultas cacheadas, como en
+ * upsert_users. El índice de texto completo indexa las filas de cada bloque en segundo plano
+ * tras su COMMIT (UserFullTextIndex.deferInserts()).
+ *
+ * NOTA PEDAGÓGICA: al no pasar por la entidad, la importación no genera eventos en el
+ * outbox (read_user_changes); los usuarios importados sí aparecen en find_users_changed_since.
+ */
+@Component
+public class UserCsvImporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserCsvImporter.class);
+
+    static final String INSERT_USER = """
+            INSERT INTO users (id, name, email, department, role, active, created_at, updated_at, version)
+            VALUES (?, ?, ?, ?, ?, ?, CURRENT_TIMESTAMP, CURRENT_TIMESTAMP, 0)""";
+
+    static final String SELECT_EXISTING_EMAILS = "SELECT email FROM users WHERE email = ANY(?)";
+
+    /** Longitudes de las columnas de users (schema.sql) */
+    private static final int MAX_EMAIL = 100;
+    private static final int MAX_DEPARTMENT = 50;
+    private static final int MAX_ROLE = 50;
+
+    private static final List<String> REQUIRED_COLUMNS = List.of("name", "email", "department", "role");
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private Validator validator;
+
+    @Autowired
+    private DepartmentCounters departmentCounters;
+
+    @Autowired
+    private UserAutocompleteIndex autocompleteIndex;
+
+    @Autowired
+    private UserFullTextIndex fullTextIndex;
+
+    @Value("${ra3.csv-import.base-dir:./data/import}")
+    private Path baseDir;
+
+    @Value("${ra3.csv-import.chunk-size:5000}")
+    private int chunkSize;
+
+    /** Fila aceptada, pendiente de su bloque */
+    private record Row(long line, String raw, String name, String email, String department, String role,
+                       boolean active) {
+    }
+
+    /**
+     * Importa el fichero (ruta relativa a ra3.csv-import.base-dir)
+     *
+     * @param progressListener Recibe las filas leídas tras cada bloque confirmado (puede ser null)
+     * @throws IllegalArgumentException si la ruta sale de base-dir, el fichero no existe o la
+     *                                  cabecera no tiene las columnas obligatorias
+     */
+    public UserImportResult importFile(String file, LongConsumer progressListener) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("ra3.csv-import.chunk-size debe ser mayor que 0");
+        }
+        Path source = resolve(file);
+        Path rejectsFile = source.resolveSibling(source.getFileName() + ".rejects.csv");
+        long start = System.nanoTime();
+
+        try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8);
+             RejectsWriter rejects = new RejectsWriter(rejectsFile)) {
+            String header = reader.readLine();
+            if (header == null) {
+                throw new IllegalArgumentException("El fichero " + file + " está vacío");
+            }
+            int[] columns = columns(header.startsWith("\uFEFF") ? header.substring(1) : header);
+            int width = columns[5];
+
+            // Emails ya vistos en el fichero: la segunda aparición se rechaza
+            Set<String> seen = new HashSet<>();
+            List<Row> chunk = new ArrayList<>(chunkSize);
+            long rows = 0;
+            long imported = 0;
+            long line = 1;
+            String raw;
+            while ((raw = reader.readLine()) != null) {
+                line++;
+                if (raw.isBlank()) {
+                    continue;
+                }
+                rows++;
+                String[] fields = parse(raw);
+                String reason = fields == null ? "Comillas sin cerrar"
+                        : fields.length != width ? "Se esperaban " + width + " columnas y hay " + fields.length
+                        : null;
+                Row row = null;
+                if (reason == null) {
+                    row = new Row(line, raw, fields[columns[0]].trim(), fields[columns[1]].trim(),
+                            fields[columns[2]].trim(), fields[columns[3]].trim(),
+                            columns[4] < 0 || parseActive(fields[columns[4]]));
+                    reason = columns[4] >= 0 && !isBoolean(fields[columns[4]])
+                            ? "active debe ser true, false, 1 o 0" : validate(row);
+                }
+                if (reason == null && !seen.add(row.email())) {
+                    reason = "Email repetido en el fichero: " + row.email();
+                }
+                if (reason != null) {
+                    rejects.write(line, reason, raw);
+                    continue;
+                }
+                chunk.add(row);
+                if (chunk.size() == chunkSize) {
+                    imported += importChunk(chunk, rejects);
+                    chunk.clear();
+                    progress(progressListener, rows);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                imported += importChunk(chunk, rejects);
+                progress(progressListener, rows);
+            }
+
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            logger.info("import_users_csv {}: {} filas, {} importadas, {} rechazadas en {} ms",
+                    source.getFileName(), rows, imported, rejects.count(), elapsedMs);
+            return new UserImportResult(rows, imported, rejects.count(),
+                    rejects.count() > 0 ? rejectsFile.toString() : null, elapsedMs);
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo leer " + source, e);
+        }
+    }
+
+    private Path resolve(String file) {
+        if (file == null || file.isBlank()) {
+            throw new IllegalArgumentException("Debe indicar el fichero a importar");
+        }
+        Path base = baseDir.toAbsolutePath().normalize();
+        Path source = base.resolve(file).normalize();
+        if (!source.startsWith(base)) {
+            throw new IllegalArgumentException("El fichero debe estar en ra3.csv-import.base-dir: " + file);
+        }
+        if (!Files.isRegularFile(source)) {
+            throw new IllegalArgumentException("No existe el fichero " + file);
+        }
+        return source;
+    }
+
+    /**
+     * Posición de name, email, department, role y active (-1 si no está) y número de columnas
+     */
+    private static int[] columns(String header) {
+        String[] names = parse(header);
+        if (names == null) {
+            throw new IllegalArgumentException("Cabecera no válida: " + header);
+        }
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            positions.put(names[i].trim().toLowerCase(Locale.ROOT), i);
+        }
+        int[] columns = new int[6];
+        for (int i = 0; i < REQUIRED_COLUMNS.size(); i++) {
+            Integer position = positions.get(REQUIRED_COLUMNS.get(i));
+            if (position == null) {
+                throw new IllegalArgumentException("Falta la columna " + REQUIRED_COLUMNS.get(i) + " en la cabecera");
+            }
+            columns[i] = position;
+        }
+        columns[4] = positions.getOrDefault("active", -1);
+        columns[5] = names.length;
+        return columns;
+    }
+
+    /** Mismas reglas que persist(): Bean Validation de User y longitud de las columnas */
+    private String validate(Row row) {
+        Set<ConstraintViolation<User>> violations =
+                validator.validate(new User(row.name(), row.email(), row.department(), row.role()));
+        if (!violations.isEmpty()) {
+            return violations.iterator().next().getMessage();
+        }
+        if (row.email().length() > MAX_EMAIL) {
+            return "El email no puede superar " + MAX_EMAIL + " caracteres";
+        }
+        if (row.department().length() > MAX_DEPARTMENT) {
+            return "El departamento no puede superar " + MAX_DEPARTMENT + " caracteres";
+        }
+        if (row.role().length() > MAX_ROLE) {
+            return "El rol no puede superar " + MAX_ROLE + " caracteres";
+        }
+        return null;
+    }
+
+    private static boolean isBoolean(String value) {
+        String v = value.trim();
+        return v.isEmpty() || v.equalsIgnoreCase("true") || v.equalsIgnoreCase("false") || v.equals("1") || v.equals("0");
+    }
+
+    private static boolean parseActive(String value) {
+        String v = value.trim();
+        return !(v.equalsIgnoreCase("false") || v.equals("0"));
+    }
+
+    /**
+     * Inserta un bloque. Si la transacción falla (otra transacción ha insertado uno de los
+     * emails entre el SELECT y el COMMIT) se repite una vez: el SELECT ya lo verá y lo rechazará.
+     */
+    private int importChunk(List<Row> chunk, RejectsWriter rejects) {
+        try {
+            return insertChunk(chunk, rejects);
+        } catch (RuntimeException e) {
+            logger.debug("import_users_csv: bloque fallido, se repite: {}", e.getMessage());
+            return insertChunk(chunk, rejects);
+        }
+    }
+
+    private int insertChunk(List<Row> chunk, RejectsWriter rejects) {
+        List<Row> duplicates = new ArrayList<>();
+        int inserted = transactionTemplate.execute(status -> {
+            duplicates.clear();
+            fullTextIndex.deferInserts();
+            SessionImplementor session = entityManager.unwrap(SessionImplementor.class);
+            EntityPersister persister = session.getFactory().getMappingMetamodel().getEntityDescriptor(User.class);
+            BeforeExecutionGenerator idGenerator = (BeforeExecutionGenerator) persister.getGenerator();
+            Map<String, Map<Boolean, Long>> byDepartment = new HashMap<>();
+
+            int count = session.doReturningWork(connection -> {
+                Set<String> existing = new HashSet<>();
+                try (PreparedStatement select = connection.prepareStatement(SELECT_EXISTING_EMAILS)) {
+                    Array emails = connection.createArrayOf("VARCHAR", chunk.stream().map(Row::email).toArray());
+                    select.setArray(1, emails);
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            existing.add(rs.getString(1));
+                        }
+                    }
+                }
+
+                int batched = 0;
+                try (PreparedStatement insert = connection.prepareStatement(INSERT_USER)) {
+                    for (Row row : chunk) {
+                        if (existing.contains(row.email())) {
+                            duplicates.add(row);
+                            continue;
+                        }
+                        long id = (Long) idGenerator.generate(session, null, null, EventType.INSERT);
+                        insert.setLong(1, id);
+                        insert.setString(2, row.name());
+                        insert.setString(3, row.email());
+                        insert.setString(4, row.department());
+                        insert.setString(5, row.role());
+                        insert.setBoolean(6, row.active());
+                        insert.addBatch();
+                        autocompleteIndex.changed(id);
+                        byDepartment.computeIfAbsent(row.department(), d -> new HashMap<>())
+                                .merge(row.active(), 1L, Long::sum);
+                        batched++;
+                    }
+                    if (batched > 0) {
+                        insert.executeBatch();
+                    }
+                }
+                return batched;
+            });
+
+            byDepartment.forEach((department, counts) -> counts.forEach((active, n) ->
+                    departmentCounters.recordBulkInsert(department, active, n)));
+            // Igual que un MERGE nativo sincronizado con User: invalida la región L2 y las consultas cacheadas
+            session.getActionQueue().addAction(new BulkOperationCleanupAction(session, persister));
+            return count;
+        });
+        for (Row row : duplicates) {
+            rejects.write(row.line(), "Ya existe un usuario con el email " + row.email(), row.raw());
+        }
+        return inserted;
+    }
+
+    private static void progress(LongConsumer progressListener, long rows) {
+        logger.debug("import_users_csv: {} filas procesadas", rows);
+        if (progressListener != null) {
+            progressListener.accept(rows);
+        }
+    }
+
+    /**
+     * Separa una línea CSV en campos; null si tiene comillas sin cerrar
+     */
+    static String[] parse(String line) {
+        List<String> fields = new ArrayList<>(8);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        int length = line.length();
+        for (int i = 0; i < length; i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < length && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        fields.add(field.toString());
+        return fields.toArray(String[]::new);
+    }
+
+    /**
+     * Fichero de rechazos (line,reason,row). Solo se crea con el primer rechazo.
+     */
+    private static final class RejectsWriter implements AutoCloseable {
+
+        private final Path file;
+        private BufferedWriter writer;
+        private long count;
+
+        RejectsWriter(Path file) throws IOException {
+            this.file = file;
+            Files.deleteIfExists(file); // Los rechazos de una importación anterior no se mezclan
+        }
+
+        void write(long line, String reason, String raw) {
+            try {
+                if (writer == null) {
+                    writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+                    writer.write("line,reason,row");
+                    writer.newLine();
+                }
+                writer.write(Long.toString(line));
+                writer.write(',');
+                writer.write(quote(reason));
+                writer.write(',');
+                writer.write(quote(raw));
+                writer.newLine();
+                count++;
+            } catch (IOException e) {
+                throw new UncheckedIOException("No se pudo escribir " + file, e);
+            }
+        }
+
+        long count() {
+            return count;
+        }
+
+        private static String quote(String value) {
+            return '"' + value.replace("\"", "\"\"") + '"';
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.dam.accesodatos.ra3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Posición de la última fila de una página ordenada por (name, id).
+ *
+ * Se serializa como Base64 URL-safe para que el cliente la trate como un token opaco.
+ * La página siguiente se pide con un predicado de keyset en lugar de OFFSET:
+ *   WHERE (u.name > :cName OR (u.name = :cName AND u.id > :cId)) ORDER BY u.name, u.id
+ * así el coste de cada página no depende de lo lejos que esté del principio.
+ */
+record UserCursor(String name, long id) {
+
+    String encode() {
+        String raw = id + ":" + name;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static UserCursor decode(String token) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            int sep = raw.indexOf(':');
+            if (sep <= 0) {
+                throw new IllegalArgumentException("Cursor inválido: " + token);
+            }
+            return new UserCursor(raw.substring(sep + 1), Long.parseLong(raw.substring(0, sep)));
+        } catch (IllegalArgumentException e) {
+            // Base64 o número mal formado (NumberFormatException es IllegalArgumentException)
+            throw new IllegalArgumentException("Cursor inválido: " + token, e);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.dam.accesodatos.ra3;
+
+import com.dam.accesodatos.model.UserExportResult;
+import com.dam.accesodatos.model.UserExportRow;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.Locale;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exportación de users + user_statistics a fichero (export_users) desde un cursor JDBC
+ *
+ * find_all_users construye la lista completa (y su JSON) en memoria. Aquí cada fila va del
+ * ResultSet al fichero y se olvida, así que la memoria usada no depende del número de usuarios:
+ * - Una consulta nativa con LEFT JOIN a user_statistics, ORDER BY id (recorre la clave primaria)
+ * - Ejecución perezosa de H2 (SET LAZY_QUERY_EXECUTION TRUE): sin ella H2 prepara el resultado
+ *   completo antes de devolver la primera fila (en memoria y, si es grande, en un fichero temporal)
+ * - Sin entidades: ni contexto de persistencia, ni snapshots, ni caché L2
+ *
+ * Formatos:
+ * - csv: UTF-8 con cabecera; si el fichero termina en .gz se comprime con GZIP
+ * - columnar: UserColumnarFile (por columnas, diccionario para department y role, Deflate)
+ *
+ * Se escribe en <fichero>.tmp y se renombra al terminar: un proceso que lea el fichero nunca ve
+ * una exportación a medias. Como el resto de lecturas, va a la réplica si está activa.
+ */
+@Component
+public class UserExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserExporter.class);
+
+    public static final String CSV = "csv";
+    public static final String COLUMNAR = "columnar";
+
+    static final String SELECT_EXPORT = """
+            SELECT u.id, u.name, u.email, u.department, u.role, u.active, u.created_at, u.updated_at,
+                   s.login_count, s.last_login
+            FROM users u LEFT JOIN user_statistics s ON s.user_id = u.id
+            ORDER BY u.id""";
+
+    static final String CSV_HEADER = "id,name,email,department,role,active,created_at,updated_at,login_count,last_login";
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Value("${ra3.export.base-dir:./data/export}")
+    private Path baseDir;
+
+    @Value("${ra3.export.fetch-size:1000}")
+    private int fetchSize;
+
+    @Value("${ra3.export.row-group-size:65536}")
+    private int rowGroupSize;
+
+    @Value("${ra3.export.compression-level:1}")
+    private int compressionLevel;
+
+    @Value("${ra3.export.progress-every:100000}")
+    private long progressEvery;
+
+    /** Destino de las filas: CSV o fichero columnar */
+    private interface Sink extends AutoCloseable {
+
+        void write(UserExportRow row) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    /**
+     * Exporta todos los usuarios (ruta relativa a ra3.export.base-dir)
+     *
+     * @param format csv (por defecto) o columnar
+     * @param progressListener Recibe las filas escritas cada ra3.export.progress-every (puede ser null)
+     * @throws IllegalArgumentException si la ruta sale de base-dir o el formato no existe
+     */
+    public UserExportResult export(String file, String format, LongConsumer progressListener) {
+        String kind = format == null || format.isBlank() ? CSV : format.toLowerCase(Locale.ROOT);
+        if (!CSV.equals(kind) && !COLUMNAR.equals(kind)) {
+            throw new IllegalArgumentException("Formato no soportado: " + format + " (csv o columnar)");
+        }
+        Path target = resolve(file);
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        long start = System.nanoTime();
+
+        try {
+            Files.createDirectories(target.getParent());
+            long rows;
+            try (Sink sink = open(temporary, kind, target.getFileName().toString().endsWith(".gz"))) {
+                rows = copyRows(sink, progressListener);
+            }
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            long bytes = Files.size(target);
+            logger.info("export_users {}: {} filas, {} bytes ({}) en {} ms", target.getFileName(), rows, bytes,
+                    kind, elapsedMs);
+            return new UserExportResult(target.toString(), kind, rows, bytes, elapsedMs);
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo escribir " + target, e);
+        } finally {
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException e) {
+                logger.warn("No se pudo borrar {}", temporary, e);
+            }
+        }
+    }
+
+    private Path resolve(String file) {
+        if (file == null || file.isBlank()) {
+            throw new IllegalArgumentException("Debe indicar el fichero de destino");
+        }
+        Path base = baseDir.toAbsolutePath().normalize();
+        Path target = base.resolve(file).normalize();
+        if (!target.startsWith(base) || target.equals(base)) {
+            throw new IllegalArgumentException("El fichero debe estar en ra3.export.base-dir: " + file);
+        }
+        return target;
+    }
+
+    private long copyRows(Sink sink, LongConsumer progressListener) {
+        return entityManager.unwrap(Session.class).doReturningWork(connection -> {
+            try (Statement lazy = connection.createStatement()) {
+                lazy.execute("SET LAZY_QUERY_EXECUTION TRUE");
+            }
+            try (PreparedStatement select = connection.prepareStatement(SELECT_EXPORT,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                select.setFetchSize(fetchSize);
+                long rows = 0;
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        sink.write(new UserExportRow(rs.getLong(1), rs.getString(2), rs.getString(3),
+                                rs.getString(4), rs.getString(5), rs.getBoolean(6),
+                                rs.getObject(7, LocalDateTime.class), rs.getObject(8, LocalDateTime.class),
+                                rs.getObject(9, Integer.class), rs.getObject(10, LocalDateTime.class)));
+                        if (++rows % progressEvery == 0) {
+                            progress(progressListener, rows);
+                        }
+                    }
+                }
+                if (rows % progressEvery != 0) {
+                    progress(progressListener, rows);
+                }
+                return rows;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                // La conexión vuelve al pool: se deja como estaba
+                try (Statement eager = connection.createStatement()) {
+                    eager.execute("SET LAZY_QUERY_EXECUTION FALSE");
+                }
+            }
+        });
+    }
+
+    private static void progress(LongConsumer progressListener, long rows) {
+        logger.debug("export_users: {} filas escritas", rows);
+        if (progressListener != null) {
+            progressListener.accept(rows);
+        }
+    }
+
+    private Sink open(Path file, String kind, boolean gzip) throws IOException {
+        OutputStream out = Files.newOutputStream(file);
+        if (COLUMNAR.equals(kind)) {
+            UserColumnarFile.Writer writer = new UserColumnarFile.Writer(out, rowGroupSize, compressionLevel);
+            return new Sink() {
+                @Override
+                public void write(UserExportRow row) throws IOException {
+                    writer.write(row);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    writer.close();
+                }
+            };
+        }
+
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                gzip ? new GZIPOutputStream(out, 64 * 1024) : out, StandardCharsets.UTF_8), 256 * 1024);
+        writer.write(CSV_HEADER);
+        writer.newLine();
+        return new Sink() {
+            @Override
+            public void write(UserExportRow row) throws IOException {
+                writer.write(Long.toString(row.id()));
+                writer.write(',');
+                writeCsv(writer, row.name());
+                writer.write(',');
+                writeCsv(writer, row.email());
+                writer.write(',');
+                writeCsv(writer, row.department());
+                writer.write(',');
+                writeCsv(writer, row.role());
+                writer.write(',');
+                writer.write(row.active() ? "true" : "false");
+                writer.write(',');
+                writeCsv(writer, row.createdAt());
+                writer.write(',');
+                writeCsv(writer, row.updatedAt());
+                writer.write(',');
+                writeCsv(writer, row.loginCount());
+                writer.write(',');
+                writeCsv(writer, row.lastLogin());
+                writer.newLine();
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+    }
+
+    /** Valor CSV: vacío si es null y entre comillas si contiene separadores o comillas */
+    private static void writeCsv(BufferedWriter writer, Object value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        String text = value.toString();
+        if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+            writer.write(text);
+        } else {
+            writer.write('"');
+            writer.write(text.replace("\"", "\"\""));
+            writer.write('"');
+        }
+    }
+}
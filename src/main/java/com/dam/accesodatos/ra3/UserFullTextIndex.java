@@ -0,0 +1,408 @@
+package com.dam.accesodatos.ra3;
+
+import com.dam.accesodatos.model.User;
+import com.dam.accesodatos.model.UserSearchHit;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.Query;
+import org.h2.api.Trigger;
+import org.h2.fulltext.FullText;
+import org.hibernate.Session;
+import org.hibernate.query.NativeQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.StringTokenizer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Índice de texto completo de users con el FullText nativo de H2
+ *
+ * RA3 - CONCEPTO: LIKE '%texto%' no puede usar un índice B-tree (el patrón empieza por %),
+ * así que recorre la tabla entera. Un índice invertido guarda, para cada palabra, las filas
+ * que la contienen: buscar "perez" es una consulta por clave, no un recorrido.
+ *
+ * H2 lo implementa en org.h2.fulltext.FullText:
+ * - FT_CREATE_INDEX parte NAME, EMAIL, DEPARTMENT y ROLE en palabras (el email
+ *   juan.perez@empresa.com da JUAN, PEREZ, EMPRESA, COM) y las guarda en el esquema FT
+ * - Un trigger sobre users actualiza el índice en cada INSERT/UPDATE/DELETE, dentro de la
+ *   misma transacción; sirve igual para persist(), dirty checking, UPDATE JPQL masivos o MERGE
+ * - FT_SEARCH_DATA devuelve la clave primaria de las filas que contienen TODAS las palabras
+ *
+ * FullText nativo no puntúa (SCORE siempre vale 1), así que la relevancia se calcula en la
+ * propia consulta sobre las filas candidatas, sumando por cada palabra buscada:
+ *   nombre +4 (+2 más si el nombre empieza por ella), email +2, departamento +1, rol +1
+ *
+ * El índice se (re)crea al arrancar: schema.sql y ddl-auto=create-drop recrean la tabla
+ * users y con ella desaparece el trigger.
+ *
+ * CARGAS MASIVAS: el trigger cuesta unas tres cuartas partes de cada INSERT (un INSERT en
+ * FT.ROWS y otro en FT.MAP por palabra). transfer_data(_chunked), upsert_users e
+ * import_users_csv llaman a deferInserts(): el trigger (UserFullTextTrigger, que sustituye al de
+ * FT_CREATE_INDEX) solo anota los IDs insertados y, tras el COMMIT, un hilo en segundo plano los
+ * indexa por páginas de INDEX_PAGE. Esas altas aparecen en search_users_text poco después de
+ * terminar la carga, no en el mismo instante. Los UPDATE y DELETE, y los INSERT de las demás
+ * herramientas, se siguen indexando dentro de la transacción.
+ */
+@Component
+public class UserFullTextIndex implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserFullTextIndex.class);
+
+    /** Separadores de palabras de FullText (FullTextSettings por defecto de H2) */
+    private static final String WORD_SEPARATORS = " \t\n\r\f+\"*%&/()=?'!,.;:-_#@|^~`{}[]<>";
+
+    /** Máximo de palabras por búsqueda (cada una añade términos a la puntuación) */
+    static final int MAX_TERMS = 8;
+
+    /** Usuarios por transacción del hilo que indexa los INSERT aplazados */
+    private static final int INDEX_PAGE = 1000;
+
+    /** Se para después del servidor web, como CreateUserGroupCommit */
+    private static final int PHASE = SmartLifecycle.DEFAULT_PHASE - 4096;
+
+    /** Nombre que da FT_CREATE_INDEX al trigger (FT_DROP_INDEX y FT_DROP_ALL lo borran por él) */
+    private static final String TRIGGER = "FT_USERS";
+
+    private static final String[] SETUP = {
+            "CREATE ALIAS IF NOT EXISTS FT_INIT FOR 'org.h2.fulltext.FullText.init'",
+            "CALL FT_INIT()",
+            "CALL FT_DROP_INDEX('PUBLIC', 'USERS')",
+            "CALL FT_CREATE_INDEX('PUBLIC', 'USERS', 'NAME,EMAIL,DEPARTMENT,ROLE')"
+    };
+
+    /** Cambia el trigger de FullText por UserFullTextTrigger (mismo nombre y eventos) */
+    private static final String[] REPLACE_TRIGGER = {
+            "DROP TRIGGER IF EXISTS PUBLIC." + TRIGGER,
+            "CREATE TRIGGER PUBLIC." + TRIGGER + " AFTER INSERT, UPDATE, DELETE ON PUBLIC.USERS FOR EACH ROW CALL '"
+                    + UserFullTextTrigger.class.getName() + "'"
+    };
+
+    private static final String SELECT_ROWS_FOR_UPDATE = "SELECT * FROM users WHERE id = ANY(?) FOR UPDATE";
+
+    /** Clave del recurso de transacción con los IDs insertados pendientes de indexar */
+    private static final Object DEFERRED_INSERTS = new Object();
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    private volatile boolean ready;
+
+    private volatile ExecutorService indexer;
+
+    /**
+     * Crea el índice (FT_CREATE_INDEX indexa también las filas existentes)
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void createIndex() {
+        if (ready) {
+            return;
+        }
+        transactionTemplate.executeWithoutResult(status ->
+                entityManager.unwrap(Session.class).doWork(connection -> {
+                    try (Statement statement = connection.createStatement()) {
+                        for (String sql : SETUP) {
+                            statement.execute(sql);
+                        }
+                        for (String sql : REPLACE_TRIGGER) {
+                            statement.execute(sql);
+                        }
+                    }
+                }));
+        ready = true;
+        logger.info("Índice de texto completo de users creado (NAME, EMAIL, DEPARTMENT, ROLE)");
+    }
+
+    /**
+     * Antes de restaurar un snapshot (DatabaseSnapshots): FT_DROP_ALL borra el esquema FT y
+     * vacía la caché de palabras que H2 guarda en memoria (palabra → id de FT.WORDS). Sin esto,
+     * los ids de esa caché no coincidirían con los de FT.WORDS restaurada.
+     */
+    synchronized void beforeRestore(Statement statement) throws SQLException {
+        statement.execute("CREATE ALIAS IF NOT EXISTS FT_DROP_ALL FOR 'org.h2.fulltext.FullText.dropAll'");
+        statement.execute("CALL FT_DROP_ALL()");
+        ready = false;
+    }
+
+    /**
+     * Después de restaurar: el snapshot ya trae el esquema FT con el índice y su trigger, así que
+     * basta con FT_INIT para recargar la caché de palabras desde FT.WORDS (sin reindexar users).
+     * El trigger se vuelve a cambiar por UserFullTextTrigger: FT_REINDEX pone el de FullText, y
+     * los snapshots anteriores a UserFullTextTrigger también lo traen.
+     *
+     * Se reindexa solo si el snapshot no tenía índice o si FT.MAP apunta a palabras que no están
+     * en FT.WORDS. Esto último pasa cuando una transacción que añadía una palabra nueva hizo
+     * ROLLBACK: H2 deshace el INSERT en FT.WORDS pero la palabra sigue en su caché con ese id, y
+     * las filas indexadas después lo usan. Con la caché recargada desde FT.WORDS esas filas ya no
+     * se encontrarían.
+     */
+    synchronized void afterRestore(Statement statement) throws SQLException {
+        if (count(statement, "SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES"
+                + " WHERE TABLE_SCHEMA = 'FT' AND TABLE_NAME = 'INDEXES'") == 0
+                || count(statement, "SELECT COUNT(*) FROM FT.INDEXES"
+                + " WHERE \"SCHEMA\" = 'PUBLIC' AND \"TABLE\" = 'USERS'") == 0) {
+            for (String sql : SETUP) {
+                statement.execute(sql);
+            }
+            logger.info("El snapshot no tenía índice de texto completo: users reindexada");
+        } else {
+            statement.execute(SETUP[0]);
+            statement.execute(SETUP[1]);
+            long dangling = count(statement, "SELECT COUNT(*) FROM FT.MAP m"
+                    + " WHERE NOT EXISTS (SELECT 1 FROM FT.WORDS w WHERE w.ID = m.WORDID)");
+            if (dangling > 0) {
+                statement.execute("CALL FT_REINDEX()");
+                logger.warn("Índice de texto completo del snapshot con {} entradas sin palabra: users reindexada",
+                        dangling);
+            }
+        }
+        for (String sql : REPLACE_TRIGGER) {
+            statement.execute(sql);
+        }
+        ready = true;
+    }
+
+    // ===== INSERT aplazados de las cargas masivas =====
+
+    /**
+     * Aplaza hasta después del COMMIT la indexación de los INSERT de la transacción actual
+     *
+     * Sin transacción no hace nada: el trigger indexa cada fila al insertarla.
+     */
+    public void deferInserts() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()
+                || TransactionSynchronizationManager.hasResource(DEFERRED_INSERTS)) {
+            return;
+        }
+        UserAutocompleteIndex.LongSet ids = new UserAutocompleteIndex.LongSet();
+        TransactionSynchronizationManager.bindResource(DEFERRED_INSERTS, ids);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                if (ids.size() > 0) {
+                    indexLater(ids.toSortedArray());
+                }
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(DEFERRED_INSERTS);
+            }
+        });
+    }
+
+    /** IDs insertados con la indexación aplazada en la transacción del hilo actual (null si no la hay) */
+    static UserAutocompleteIndex.LongSet deferredInserts() {
+        return (UserAutocompleteIndex.LongSet) TransactionSynchronizationManager.getResource(DEFERRED_INSERTS);
+    }
+
+    private void indexLater(long[] ids) {
+        ExecutorService executor = indexer;
+        if (executor != null) {
+            try {
+                executor.execute(() -> index(ids));
+                return;
+            } catch (RejectedExecutionException e) {
+                // Parando: se indexa en este hilo
+            }
+        }
+        index(ids);
+    }
+
+    /**
+     * Espera a que se indexen los INSERT aplazados de las transacciones ya confirmadas
+     * (snapshot_database, para que el volcado de FT incluya esas filas)
+     */
+    public void awaitIndexed() {
+        ExecutorService executor = indexer;
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            // Parando: stop() ya espera a las pendientes
+        }
+    }
+
+    /**
+     * Una transacción por página. SELECT ... FOR UPDATE: un UPDATE o DELETE concurrente de la
+     * misma fila espera a que esté indexada, o esta página a que él termine. Antes de indexar se
+     * quita la fila por si ya la indexó un UPDATE posterior al COMMIT (si no está, no hace nada);
+     * las filas borradas desde entonces ya no aparecen en el SELECT.
+     */
+    private void index(long[] ids) {
+        try {
+            for (int from = 0; from < ids.length; from += INDEX_PAGE) {
+                long[] page = Arrays.copyOfRange(ids, from, Math.min(from + INDEX_PAGE, ids.length));
+                transactionTemplate.executeWithoutResult(status ->
+                        entityManager.unwrap(Session.class).doWork(connection -> indexRows(connection, page)));
+            }
+        } catch (RuntimeException e) {
+            // El COMMIT de la carga ya está hecho: el error no debe llegar al cliente
+            logger.error("No se pudieron indexar {} usuarios en el índice de texto completo: {}",
+                    ids.length, e.getMessage(), e);
+        }
+    }
+
+    private static void indexRows(Connection connection, long[] ids) throws SQLException {
+        FullText.FullTextTrigger trigger = new FullText.FullTextTrigger();
+        trigger.init(connection, "PUBLIC", TRIGGER, "USERS", false, Trigger.INSERT);
+        try (PreparedStatement select = connection.prepareStatement(SELECT_ROWS_FOR_UPDATE)) {
+            select.setArray(1, connection.createArrayOf("BIGINT", Arrays.stream(ids).boxed().toArray()));
+            try (ResultSet rs = select.executeQuery()) {
+                int columns = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    Object[] row = new Object[columns];
+                    for (int i = 0; i < columns; i++) {
+                        row[i] = rs.getObject(i + 1);
+                    }
+                    trigger.fire(connection, row, null);
+                    trigger.fire(connection, null, row);
+                }
+            }
+        }
+    }
+
+    // ===== Ciclo de vida =====
+
+    @Override
+    public void start() {
+        if (indexer == null) {
+            indexer = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("user-fulltext-indexer").factory());
+        }
+    }
+
+    @Override
+    public void stop() {
+        ExecutorService executor = indexer;
+        if (executor != null) {
+            // Sin shutdownNow(): interrumpir un hilo a mitad de una escritura de H2 puede cerrar la BD
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            indexer = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return indexer != null;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    private static long count(Statement statement, String sql) throws SQLException {
+        try (ResultSet rs = statement.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * Usuarios que contienen todas las palabras del texto, de más a menos relevantes
+     *
+     * @param text Palabras a buscar (sin distinguir mayúsculas; palabras completas)
+     * @param limit Máximo de resultados
+     * @throws IllegalArgumentException si el texto no contiene ninguna palabra
+     */
+    @SuppressWarnings("unchecked")
+    public List<UserSearchHit> search(String text, int limit) {
+        List<String> terms = terms(text);
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("El texto de búsqueda no contiene ninguna palabra");
+        }
+        if (!ready) {
+            createIndex();
+        }
+
+        // Cambios pendientes de User se envían antes (flush): el trigger actualiza el índice con ellos
+        Query query = entityManager.createNativeQuery(sql(terms.size()))
+                .unwrap(NativeQuery.class)
+                .addSynchronizedEntityClass(User.class);
+        query.setParameter(1, String.join(" ", terms));
+        query.setParameter(2, limit);
+        for (int i = 0; i < terms.size(); i++) {
+            query.setParameter(i + 3, terms.get(i));
+        }
+
+        List<UserSearchHit> hits = new ArrayList<>();
+        for (Object[] row : (List<Object[]>) query.getResultList()) {
+            hits.add(new UserSearchHit(((Number) row[0]).longValue(), (String) row[1], (String) row[2],
+                    (String) row[3], (String) row[4], (Boolean) row[5], ((Number) row[6]).intValue()));
+        }
+        return hits;
+    }
+
+    /**
+     * Parte el texto en palabras igual que FullText al indexar (en mayúsculas y sin repetir)
+     */
+    static List<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        if (text != null) {
+            StringTokenizer tokenizer = new StringTokenizer(text, WORD_SEPARATORS);
+            while (tokenizer.hasMoreTokens() && terms.size() < MAX_TERMS) {
+                terms.add(tokenizer.nextToken().toUpperCase(Locale.ROOT));
+            }
+        }
+        return new ArrayList<>(terms);
+    }
+
+    /**
+     * FT_SEARCH_DATA da los candidatos por el índice; el JOIN por clave primaria lee solo esas
+     * filas de users y la puntuación se calcula sobre ellas.
+     * Parámetros: ?1 texto, ?2 límite, ?3... cada palabra.
+     */
+    static String sql(int termCount) {
+        StringJoiner score = new StringJoiner(" + ");
+        for (int i = 0; i < termCount; i++) {
+            String term = "?" + (i + 3);
+            score.add("CASE WHEN LOCATE(" + term + ", UPPER(u.name)) = 1 THEN 6"
+                    + " WHEN LOCATE(" + term + ", UPPER(u.name)) > 1 THEN 4 ELSE 0 END");
+            score.add("CASE WHEN LOCATE(" + term + ", UPPER(u.email)) > 0 THEN 2 ELSE 0 END");
+            score.add("CASE WHEN LOCATE(" + term + ", UPPER(u.department)) > 0 THEN 1 ELSE 0 END");
+            score.add("CASE WHEN LOCATE(" + term + ", UPPER(u.role)) > 0 THEN 1 ELSE 0 END");
+        }
+        return "SELECT u.id, u.name, u.email, u.department, u.role, u.active, " + score + " AS score"
+                + " FROM FT_SEARCH_DATA(?1, 0, 0) ft"
+                + " JOIN users u ON u.id = CAST(ft.KEYS[1] AS BIGINT)"
+                + " WHERE ft.\"SCHEMA\" = 'PUBLIC' AND ft.\"TABLE\" = 'USERS'"
+                + " ORDER BY score DESC, u.name, u.id"
+                + " FETCH FIRST ?2 ROWS ONLY";
+    }
+}
@@ -0,0 +1,61 @@
+package com.dam.accesodatos.ra3;
+
+import org.h2.api.Trigger;
+import org.h2.fulltext.FullText;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Trigger de FullText sobre users que permite aplazar la indexación de los INSERT
+ *
+ * Sustituye al FullText.FullTextTrigger que crea FT_CREATE_INDEX y le delega todo, salvo los
+ * INSERT de una transacción de carga masiva (UserFullTextIndex.deferInserts()): de esos solo
+ * anota el ID, y UserFullTextIndex los indexa en segundo plano tras el COMMIT. Los UPDATE y
+ * DELETE se indexan siempre dentro de la transacción, como antes: necesitan las palabras de la
+ * fila anterior para quitarlas del índice.
+ *
+ * H2 lo crea por reflexión (no es un bean) y, con la BD embebida, lo ejecuta en el hilo que
+ * lanza la sentencia: por eso ve los recursos de la transacción de Spring de ese hilo.
+ */
+public class UserFullTextTrigger implements Trigger {
+
+    private final FullText.FullTextTrigger delegate = new FullText.FullTextTrigger();
+
+    /** Posición de la columna ID en las filas que recibe fire() */
+    private int idColumn = -1;
+
+    @Override
+    public void init(Connection connection, String schema, String trigger, String table, boolean before, int type)
+            throws SQLException {
+        delegate.init(connection, schema, trigger, table, before, type);
+        try (ResultSet columns = connection.getMetaData().getColumns(null, schema, table, "ID")) {
+            if (columns.next()) {
+                idColumn = columns.getInt("ORDINAL_POSITION") - 1;
+            }
+        }
+    }
+
+    @Override
+    public void fire(Connection connection, Object[] oldRow, Object[] newRow) throws SQLException {
+        if (oldRow == null && newRow != null && idColumn >= 0) {
+            UserAutocompleteIndex.LongSet deferred = UserFullTextIndex.deferredInserts();
+            if (deferred != null) {
+                deferred.add(((Number) newRow[idColumn]).longValue());
+                return;
+            }
+        }
+        delegate.fire(connection, oldRow, newRow);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        delegate.close();
+    }
+
+    @Override
+    public void remove() throws SQLException {
+        delegate.remove();
+    }
+}
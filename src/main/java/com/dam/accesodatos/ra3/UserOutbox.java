@@ -0,0 +1,183 @@
+package com.dam.accesodatos.ra3;
+
+import com.dam.accesodatos.model.User;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outbox transaccional de cambios de usuarios (createUser, updateUser, deleteUser, transferData...)
+ *
+ * UserOutboxListener llama a record() en cada INSERT, UPDATE y DELETE de User que hace
+ * Hibernate. Los eventos de la transacción se acumulan y se insertan en user_outbox:
+ * - En la misma transacción y conexión que el cambio, justo antes del COMMIT (proceso
+ *   "before transaction completion" de Hibernate, que se ejecuta después del último flush):
+ *   si la transacción se deshace, tampoco hay eventos
+ * - Solo tipo, ID y versión del usuario: el JSON del evento lo construye UserOutboxRelay al
+ *   publicarlo
+ * - Con INSERTs de ROWS_PER_INSERT filas: transferData de 10.000 usuarios añade 100 sentencias,
+ *   no 10.000
+ * - transferDataChunked llama a writePending() tras el flush de cada bloque: los eventos se
+ *   escriben en la transacción sin esperar al COMMIT y la memoria no crece con la importación
+ * - Tras el COMMIT solo se avisa a UserOutboxRelay; la escritura en el log de cambios va
+ *   en segundo plano, fuera del camino de la petición
+ *
+ * NOTA PEDAGÓGICA: los UPDATE/DELETE masivos en JPQL y el MERGE nativo de upsert_users no
+ * pasan por los callbacks de la entidad, así que no generan eventos.
+ */
+@Component
+public class UserOutbox {
+
+    public static final String CREATED = "CREATED";
+    public static final String UPDATED = "UPDATED";
+    public static final String DELETED = "DELETED";
+
+    /** Filas por sentencia INSERT */
+    static final int ROWS_PER_INSERT = 100;
+
+    private static final String INSERT_ROW = "(NEXT VALUE FOR user_outbox_seq, ?, ?, ?, ?)";
+
+    private static final String INSERT_EVENTS = insertEvents(ROWS_PER_INSERT);
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    @Lazy
+    private UserOutboxRelay relay;
+
+    @Value("${ra3.outbox.enabled:true}")
+    private boolean enabled;
+
+    private final LongAdder recordedEvents = new LongAdder();
+
+    /** Evento pendiente de escribir en user_outbox */
+    private record PendingEvent(String type, long userId, long version) {
+    }
+
+    /** Eventos de una transacción: los aún no escritos en user_outbox y cuántos se han escrito ya */
+    private static final class TransactionEvents {
+        final List<PendingEvent> pending = new ArrayList<>();
+        long written;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Añade el evento a los de la transacción actual
+     */
+    public void record(String type, User user) {
+        if (!enabled || !TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        transactionEvents().pending.add(new PendingEvent(type, user.getId(), user.getVersion()));
+    }
+
+    /**
+     * Escribe ya en user_outbox los eventos pendientes de la transacción actual y los quita de
+     * memoria. Las filas siguen en la misma transacción: si se deshace, desaparecen con ella.
+     */
+    public void writePending() {
+        TransactionEvents events = (TransactionEvents) TransactionSynchronizationManager.getResource(this);
+        if (events != null) {
+            write(entityManager.unwrap(SessionImplementor.class), events);
+        }
+    }
+
+    /** Eventos de la transacción actual aún no escritos en user_outbox */
+    int pendingCount() {
+        TransactionEvents events = (TransactionEvents) TransactionSynchronizationManager.getResource(this);
+        return events != null ? events.pending.size() : 0;
+    }
+
+    private TransactionEvents transactionEvents() {
+        TransactionEvents events = (TransactionEvents) TransactionSynchronizationManager.getResource(this);
+        if (events == null) {
+            TransactionEvents created = new TransactionEvents();
+            TransactionSynchronizationManager.bindResource(this, created);
+            entityManager.unwrap(SessionImplementor.class).getActionQueue()
+                    .registerProcess(session -> write(session, created));
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    recordedEvents.add(created.written);
+                    relay.wakeUp();
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(UserOutbox.this);
+                }
+            });
+            events = created;
+        }
+        return events;
+    }
+
+    private void write(SessionImplementor session, TransactionEvents transactionEvents) {
+        List<PendingEvent> events = transactionEvents.pending;
+        if (events.isEmpty()) {
+            return;
+        }
+        Timestamp occurredAt = Timestamp.valueOf(LocalDateTime.now());
+        session.doWork(connection -> {
+            int full = events.size() / ROWS_PER_INSERT * ROWS_PER_INSERT;
+            if (full > 0) {
+                try (PreparedStatement insert = connection.prepareStatement(INSERT_EVENTS)) {
+                    for (int from = 0; from < full; from += ROWS_PER_INSERT) {
+                        bind(insert, events.subList(from, from + ROWS_PER_INSERT), occurredAt);
+                        insert.executeUpdate();
+                    }
+                }
+            }
+            if (full < events.size()) {
+                List<PendingEvent> rest = events.subList(full, events.size());
+                try (PreparedStatement insert = connection.prepareStatement(insertEvents(rest.size()))) {
+                    bind(insert, rest, occurredAt);
+                    insert.executeUpdate();
+                }
+            }
+        });
+        transactionEvents.written += events.size();
+        events.clear();
+    }
+
+    private static void bind(PreparedStatement insert, List<PendingEvent> events, Timestamp occurredAt)
+            throws SQLException {
+        int index = 1;
+        for (PendingEvent event : events) {
+            insert.setString(index++, event.type());
+            insert.setLong(index++, event.userId());
+            insert.setLong(index++, event.version());
+            insert.setTimestamp(index++, occurredAt);
+        }
+    }
+
+    /** INSERT de varias filas; cada fila toma su id de user_outbox_seq en orden */
+    static String insertEvents(int rows) {
+        return "INSERT INTO user_outbox (id, event_type, user_id, user_version, created_at) VALUES "
+                + String.join(", ", Collections.nCopies(rows, INSERT_ROW));
+    }
+
+    /** Eventos confirmados en user_outbox */
+    public long getRecordedEvents() {
+        return recordedEvents.sum();
+    }
+}
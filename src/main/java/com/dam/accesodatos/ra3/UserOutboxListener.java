@@ -0,0 +1,38 @@
+package com.dam.accesodatos.ra3;
+
+import com.dam.accesodatos.model.User;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import org.springframework.beans.factory.ObjectProvider;
+
+/**
+ * Entity listener JPA que registra en el outbox cada alta, modificación y borrado de User
+ *
+ * Igual que UserAutocompleteListener: Hibernate lo crea con el contenedor de Spring y
+ * UserOutbox se resuelve en el primer callback. Los callbacks Post* se ejecutan al hacer
+ * flush, cuando el usuario ya tiene ID y versión.
+ */
+public class UserOutboxListener {
+
+    private final ObjectProvider<UserOutbox> outbox;
+
+    public UserOutboxListener(ObjectProvider<UserOutbox> outbox) {
+        this.outbox = outbox;
+    }
+
+    @PostPersist
+    public void afterCreate(User user) {
+        outbox.getObject().record(UserOutbox.CREATED, user);
+    }
+
+    @PostUpdate
+    public void afterUpdate(User user) {
+        outbox.getObject().record(UserOutbox.UPDATED, user);
+    }
+
+    @PostRemove
+    public void afterDelete(User user) {
+        outbox.getObject().record(UserOutbox.DELETED, user);
+    }
+}
@@ -0,0 +1,285 @@
+package com.dam.accesodatos.ra3;
+
+import com.dam.accesodatos.model.User;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.UncheckedIOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publicador del outbox: copia los eventos de user_outbox al log de cambios (UserChangeLog)
+ *
+ * Un hilo propio espera a que UserOutbox avise de un COMMIT con eventos (o como mucho
+ * ra3.outbox.relay-interval), deja pasar ra3.outbox.relay-delay para que se acumulen los de
+ * otros COMMIT y entonces, en una transacción por lote de ra3.outbox.batch-size:
+ * 1. Lee los eventos pendientes por orden de id junto con su usuario (LEFT JOIN con users)
+ * 2. Construye el JSON de cada evento, los añade al log y hace flush() (fsync)
+ * 3. Borra esas filas de user_outbox
+ *
+ * Sin ese retraso, con cientos de altas por segundo el publicador despertaría en cada COMMIT
+ * y haría una transacción y un fsync por cada pocos eventos, quitando CPU a las peticiones.
+ *
+ * user_outbox solo guarda tipo, ID y versión: el JSON lleva el estado del usuario al publicar.
+ * Si volvió a cambiar antes de publicarse, el evento ya trae el estado más reciente (su
+ * "version" sigue siendo la del cambio y user.version la actual); si se borró, "user" es null.
+ * Aplicando los eventos en orden, un consumidor siempre acaba con el estado confirmado.
+ * "generation" es la de la BD (DatabaseGeneration): un userId solo vale dentro de su generación.
+ *
+ * Si algo falla entre 2 y el COMMIT de 3, las filas siguen en user_outbox y se vuelven a
+ * publicar: entrega "al menos una vez", los duplicados tienen el mismo eventId.
+ *
+ * Con ra3.outbox.relay-interval: 0 no hay hilo publicador y los eventos se quedan en
+ * user_outbox hasta que alguien llama a relay() (lo usan los tests para no tener consultas
+ * en segundo plano que alteren las estadísticas de Hibernate).
+ *
+ * NOTA PEDAGÓGICA (orden): solo se leen eventos confirmados. Dos transacciones que cambian el
+ * mismo usuario no pueden confirmarse a la vez (la segunda espera al bloqueo de la fila), así
+ * que los eventos de un usuario llegan al log en el orden en que se confirmaron.
+ */
+@Component
+public class UserOutboxRelay implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserOutboxRelay.class);
+
+    /** Se para después de CreateUserGroupCommit y LoginEventBuffer: publica sus últimos cambios */
+    static final int PHASE = SmartLifecycle.DEFAULT_PHASE - 8192;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private UserChangeLog changeLog;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private DatabaseGeneration generation;
+
+    @Value("${ra3.outbox.relay-interval:1s}")
+    private Duration relayInterval;
+
+    @Value("${ra3.outbox.relay-delay:100ms}")
+    private Duration relayDelay;
+
+    @Value("${ra3.outbox.batch-size:1000}")
+    private int batchSize;
+
+    /** Eventos por orden de id con el estado actual de su usuario (sin él en los borrados) */
+    static final String SELECT_EVENTS = """
+            SELECT o.id, o.event_type, o.user_id, o.user_version, o.created_at,
+                   u.name, u.email, u.department, u.role, u.active, u.created_at, u.updated_at, u.version
+            FROM user_outbox o
+            LEFT JOIN users u ON u.id = o.user_id AND o.event_type <> 'DELETED'
+            ORDER BY o.id
+            FETCH FIRST ? ROWS ONLY""";
+
+    static final String DELETE_EVENT = "DELETE FROM user_outbox WHERE id = ?";
+
+    private final Semaphore signal = new Semaphore(0);
+    private final ReentrantLock relayLock = new ReentrantLock();
+    private volatile Thread relayer;
+    private volatile boolean stopping;
+
+    private final LongAdder relayedEvents = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAccumulator maxLagMillis = new LongAccumulator(Long::max, 0);
+    private volatile long lastLagMillis;
+
+    /**
+     * Avisa de que hay eventos nuevos. No bloquea: solo despierta al hilo publicador
+     */
+    public void wakeUp() {
+        if (signal.availablePermits() == 0) {
+            signal.release();
+        }
+    }
+
+    private void run() {
+        while (!stopping) {
+            try {
+                if (signal.tryAcquire(relayInterval.toMillis(), TimeUnit.MILLISECONDS) && !stopping) {
+                    Thread.sleep(relayDelay.toMillis());
+                }
+                signal.drainPermits();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                relay();
+            } catch (RuntimeException e) {
+                failedBatches.increment();
+                logger.warn("No se pudieron publicar los eventos del outbox; se reintentará", e);
+            }
+        }
+    }
+
+    /**
+     * Publica todos los eventos pendientes
+     *
+     * @return Eventos publicados
+     */
+    public int relay() {
+        relayLock.lock();
+        try {
+            int total = 0;
+            int relayed;
+            do {
+                relayed = relayBatch();
+                total += relayed;
+            } while (relayed == batchSize);
+            return total;
+        } finally {
+            relayLock.unlock();
+        }
+    }
+
+    private int relayBatch() {
+        return transactionTemplate.execute(status -> entityManager.unwrap(Session.class).doReturningWork(connection -> {
+            List<Long> ids = new ArrayList<>();
+            LocalDateTime lastOccurredAt = null;
+            try (PreparedStatement select = connection.prepareStatement(SELECT_EVENTS)) {
+                select.setInt(1, batchSize);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        long eventId = rs.getLong(1);
+                        lastOccurredAt = rs.getTimestamp(5).toLocalDateTime();
+                        changeLog.append(eventId, payload(rs, lastOccurredAt));
+                        ids.add(eventId);
+                    }
+                }
+            }
+            if (ids.isEmpty()) {
+                return 0;
+            }
+            changeLog.flush();
+            try (PreparedStatement delete = connection.prepareStatement(DELETE_EVENT)) {
+                for (long id : ids) {
+                    delete.setLong(1, id);
+                    delete.addBatch();
+                }
+                delete.executeBatch();
+            }
+
+            long lag = Duration.between(lastOccurredAt, LocalDateTime.now()).toMillis();
+            lastLagMillis = lag;
+            maxLagMillis.accumulate(lag);
+            relayedEvents.add(ids.size());
+            batches.increment();
+            return ids.size();
+        }));
+    }
+
+    /** JSON del evento de la fila actual de SELECT_EVENTS; "user" es null si es un borrado o ya no existe */
+    private String payload(ResultSet rs, LocalDateTime occurredAt) throws SQLException {
+        User user = null;
+        if (rs.getString(6) != null) {
+            user = new User(rs.getString(6), rs.getString(7), rs.getString(8), rs.getString(9));
+            user.setId(rs.getLong(3));
+            user.setActive(rs.getBoolean(10));
+            user.setCreatedAt(rs.getTimestamp(11).toLocalDateTime());
+            user.setUpdatedAt(rs.getTimestamp(12).toLocalDateTime());
+            user.setVersion(rs.getLong(13));
+        }
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("generation", generation.current());
+        payload.put("type", rs.getString(2));
+        payload.put("userId", rs.getLong(3));
+        payload.put("version", rs.getLong(4));
+        payload.put("occurredAt", occurredAt);
+        payload.put("user", user);
+        try {
+            return objectMapper.writeValueAsString(payload);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ===== Ciclo de vida =====
+
+    @Override
+    public void start() {
+        if (relayInterval.isZero()) {
+            logger.info("Publicador del outbox desactivado (ra3.outbox.relay-interval: 0)");
+            return;
+        }
+        if (relayer == null) {
+            stopping = false;
+            // Hilo de plataforma: MappedByteBuffer.force() bloquea el hilo portador de un hilo
+            // virtual sin compensarlo, y con pocos núcleos pararía también a las peticiones
+            relayer = Thread.ofPlatform().daemon().name("user-outbox-relay").start(this::run);
+        }
+    }
+
+    @Override
+    public void stop() {
+        Thread thread = relayer;
+        if (thread != null) {
+            // Sin interrupt(): interrumpir un hilo a mitad de una escritura en fichero cierra el FileChannel
+            stopping = true;
+            wakeUp();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            relayer = null;
+            // Lo confirmado mientras el hilo terminaba se publica antes de parar el log
+            relay();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return relayer != null;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    // ===== Métricas =====
+
+    /**
+     * Eventos publicados, lotes, lotes fallidos y retraso entre el evento y su publicación
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("relayedEvents", relayedEvents.sum());
+        stats.put("batches", batches.sum());
+        stats.put("failedBatches", failedBatches.sum());
+        stats.put("lastLagMs", lastLagMillis);
+        stats.put("maxLagMs", maxLagMillis.get());
+        return stats;
+    }
+}
@@ -0,0 +1,69 @@
+package com.dam.accesodatos.ra3;
+
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionExecution;
+import org.springframework.transaction.TransactionExecutionListener;
+
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transacciones de escritura en curso y cuándo empezaron
+ *
+ * find_users_changed_since no puede avanzar la marca más allá del inicio de una transacción de
+ * escritura abierta: sus filas llevan un updated_at anterior a su COMMIT (@PrePersist/@PreUpdate
+ * de User, CURRENT_TIMESTAMP de upsert_users e import_users_csv) y, una vez confirmadas,
+ * quedarían detrás de la marca del consumidor. Una transacción larga (transfer_data_chunked,
+ * un upsert_users grande) detiene el avance del feed hasta que termina, en lugar de perder filas.
+ *
+ * Como ReadReplicaDataSource, es un TransactionExecutionListener que Spring Boot registra en
+ * el JpaTransactionManager: afterBegin() anota cada transacción nueva que no es readOnly y
+ * afterCommit()/afterRollback() la quitan.
+ */
+@Component
+public class WriteTransactionTracker implements TransactionExecutionListener {
+
+    private record Started(LocalDateTime at, Thread thread) {
+    }
+
+    private final Map<TransactionExecution, Started> inFlight = new ConcurrentHashMap<>();
+
+    @Override
+    public void afterBegin(TransactionExecution transaction, Throwable beginFailure) {
+        if (beginFailure == null && !transaction.isReadOnly()) {
+            inFlight.put(transaction, new Started(LocalDateTime.now(), Thread.currentThread()));
+        }
+    }
+
+    @Override
+    public void afterCommit(TransactionExecution transaction, Throwable commitFailure) {
+        inFlight.remove(transaction);
+    }
+
+    @Override
+    public void afterRollback(TransactionExecution transaction, Throwable rollbackFailure) {
+        inFlight.remove(transaction);
+    }
+
+    /**
+     * Inicio de la transacción de escritura abierta más antigua de otros hilos, o null si no hay
+     * ninguna. Las del hilo actual no cuentan: sus cambios ya son visibles para él.
+     */
+    public LocalDateTime oldestStart() {
+        LocalDateTime oldest = null;
+        Thread current = Thread.currentThread();
+        for (Iterator<Map.Entry<TransactionExecution, Started>> it = inFlight.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<TransactionExecution, Started> entry = it.next();
+            if (entry.getKey().isCompleted()) {
+                // Terminada por un camino que no avisa al listener: no debe frenar el feed
+                it.remove();
+            } else if (entry.getValue().thread() != current
+                    && (oldest == null || entry.getValue().at().isBefore(oldest))) {
+                oldest = entry.getValue().at();
+            }
+        }
+        return oldest;
+    }
+}
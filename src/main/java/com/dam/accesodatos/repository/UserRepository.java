@@ -1,8 +1,12 @@
 package com.dam.accesodatos.repository;
 
+import com.dam.accesodatos.config.HibernateCacheConfig;
 import com.dam.accesodatos.model.User;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
@@ -34,6 +38,10 @@ import java.util.List;
  *
  * CONSULTAS JPQL PERSONALIZADAS:
  * Se pueden definir consultas JPQL con @Query cuando la convención de nombres no es suficiente.
+ *
+ * CACHÉ DE CONSULTAS:
+ * @QueryHints con HINT_CACHEABLE guarda el resultado en la caché de consultas de Hibernate.
+ * Se invalida sola cuando cambia cualquier fila de 'users'.
  */
 @Repository
 public interface UserRepository extends JpaRepository<User, Long> {
@@ -81,6 +89,10 @@ public interface UserRepository extends JpaRepository<User, Long> {
      * @return Lista de usuarios activos ordenados
      */
     @Query("SELECT u FROM User u WHERE u.department = :dept AND u.active = true ORDER BY u.name")
+    @QueryHints({
+            @QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"),
+            @QueryHint(name = HibernateHints.HINT_CACHE_REGION, value = HibernateCacheConfig.DEPARTMENT_LIST_REGION)
+    })
     List<User> findActiveUsersByDepartment(@Param("dept") String dept);
 
     /**
@@ -92,12 +104,18 @@ public interface UserRepository extends JpaRepository<User, Long> {
      * @return Número de usuarios activos en el departamento
      */
     @Query("SELECT COUNT(u) FROM User u WHERE u.department = :dept AND u.active = true")
+    @QueryHints({
+            @QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"),
+            @QueryHint(name = HibernateHints.HINT_CACHE_REGION, value = HibernateCacheConfig.DEPARTMENT_COUNT_REGION)
+    })
     long countActiveUsersByDepartment(@Param("dept") String dept);
 
     /**
      * Busca usuarios cuyo nombre contiene un texto (case-insensitive).
      *
      * Ejemplo de búsqueda con LIKE en JPQL.
+     * El patrón empieza por '%', así que no puede usar índices y recorre la tabla entera;
+     * la herramienta search_users_text usa en su lugar un índice de texto completo.
      *
      * @param name Texto a buscar en el nombre
      * @return Lista de usuarios que coinciden
@@ -22,4 +22,4 @@ INSERT INTO user_statistics (user_id, login_count, last_login) VALUES
 
 -- Resetear la secuencia de IDs para que el próximo ID sea 100
 -- Esto permite que los tests inserten con IDs predecibles
-ALTER TABLE users ALTER COLUMN id RESTART WITH 100;
+ALTER SEQUENCE users_seq RESTART WITH 100;
@@ -3,26 +3,42 @@
 -- Estudiantes deben usar JDBC puro para interactuar con estas tablas
 
 -- Eliminar tablas si existen (para poder recrear en cada arranque)
+DROP TABLE IF EXISTS user_outbox CASCADE;
+DROP TABLE IF EXISTS user_tombstones CASCADE;
 DROP TABLE IF EXISTS user_statistics CASCADE;
 DROP TABLE IF EXISTS users CASCADE;
+DROP SEQUENCE IF EXISTS users_seq;
+DROP SEQUENCE IF EXISTS user_outbox_seq;
+
+-- Secuencia para IDs de users (Hibernate @SequenceGenerator con optimizador pooled-lo)
+-- INCREMENT BY debe coincidir con allocationSize de la entidad User: cada NEXT VALUE
+-- reserva un bloque de 50 IDs y permite que Hibernate agrupe los INSERTs en batch.
+CREATE SEQUENCE users_seq START WITH 100 INCREMENT BY 50;
 
 -- Tabla principal: users
 CREATE TABLE users (
-    id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    id BIGINT DEFAULT NEXT VALUE FOR users_seq PRIMARY KEY,
     name VARCHAR(50) NOT NULL,
     email VARCHAR(100) UNIQUE NOT NULL,
     department VARCHAR(50) NOT NULL,
     role VARCHAR(50) NOT NULL,
     active BOOLEAN DEFAULT TRUE,
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
-    updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+    updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    version BIGINT DEFAULT 0 NOT NULL  -- @Version: bloqueo optimista
 );
 
--- Índices para mejorar rendimiento de consultas
-CREATE INDEX idx_users_department ON users(department);
-CREATE INDEX idx_users_role ON users(role);
-CREATE INDEX idx_users_active ON users(active);
-CREATE INDEX idx_users_email ON users(email);
+-- Índices compuestos según las consultas reales (comprobar con la herramienta explain_queries)
+-- email ya tiene el índice de su restricción UNIQUE (findByEmail, upsert_users)
+-- find_users_by_department, COUNT por departamento, search_users por departamento
+-- y GROUP BY department, active de los contadores
+CREATE INDEX idx_users_dept_active_name ON users(department, active, name);
+-- search_users por rol: WHERE role = ? ORDER BY name, id
+CREATE INDEX idx_users_role_name ON users(role, name);
+-- Paginación por keyset de search_users sin filtros (o solo active): ORDER BY name, id
+CREATE INDEX idx_users_name_id ON users(name, id);
+-- find_users_changed_since: WHERE (updated_at, id) > marca ORDER BY updated_at, id
+CREATE INDEX idx_users_updated_id ON users(updated_at, id);
 
 -- Tabla para estadísticas agregadas (opcional - para JOINs avanzados)
 CREATE TABLE user_statistics (
@@ -32,6 +48,28 @@ CREATE TABLE user_statistics (
     last_login TIMESTAMP,
     FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE
 );
+-- Una fila por usuario; find_users_with_stats hace LEFT JOIN por user_id
+-- (sin este índice, cada usuario del resultado recorrería user_statistics entera)
+CREATE UNIQUE INDEX idx_user_statistics_user_id ON user_statistics(user_id);
+
+-- Usuarios borrados (deleteUser, bulk_delete_users) para que find_users_changed_since
+-- devuelva también los borrados. Sin FK: el usuario ya no existe
+CREATE TABLE user_tombstones (
+    user_id BIGINT PRIMARY KEY,
+    deleted_at TIMESTAMP NOT NULL
+);
+CREATE INDEX idx_user_tombstones_deleted_id ON user_tombstones(deleted_at, user_id);
+
+-- Outbox transaccional: cambios de users pendientes de copiar al log de cambios
+-- (UserOutbox los inserta en la transacción del cambio, UserOutboxRelay los publica y borra)
+CREATE SEQUENCE user_outbox_seq START WITH 1 INCREMENT BY 1;
+CREATE TABLE user_outbox (
+    id BIGINT PRIMARY KEY,
+    event_type VARCHAR(10) NOT NULL,
+    user_id BIGINT NOT NULL,
+    user_version BIGINT NOT NULL,
+    created_at TIMESTAMP NOT NULL
+);
 
 -- Nota sobre Triggers:
 -- H2 soporta triggers pero con sintaxis Java. Para este proyecto educativo,
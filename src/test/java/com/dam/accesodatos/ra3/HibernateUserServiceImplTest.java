@@ -2,26 +2,42 @@ package com.dam.accesodatos.ra3;
 
 import com.dam.accesodatos.model.User;
 import com.dam.accesodatos.model.UserCreateDto;
+import com.dam.accesodatos.model.UserDetail;
+import com.dam.accesodatos.model.UserPage;
 import com.dam.accesodatos.model.UserUpdateDto;
 import com.dam.accesodatos.model.UserQueryDto;
+import com.dam.accesodatos.model.UserSummary;
+import com.dam.accesodatos.model.UserTombstone;
 import com.dam.accesodatos.repository.UserRepository;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.Query;
 import jakarta.persistence.TypedQuery;
+import org.hibernate.CacheMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
@@ -37,7 +53,7 @@ import static org.mockito.Mockito.*;
  * 1. testEntityManager() - 2 tests
  * 2. createUser() - 1 test
  * 3. findUserById() - 2 tests
- * 4. updateUser() - 2 tests
+ * 4. updateUser() - 5 tests
  * 5. findAll() - 1 test
  * 6. findUsersByDepartment() - 2 tests
  */
@@ -51,6 +67,15 @@ class HibernateUserServiceImplTest {
     @Mock
     private UserRepository userRepository;
 
+    @Mock
+    private TransactionTemplate transactionTemplate;
+
+    @Mock
+    private UserOutbox userOutbox;
+
+    @Mock
+    private UserFullTextIndex fullTextIndex;
+
     @InjectMocks
     private HibernateUserServiceImpl service;
 
@@ -176,27 +201,76 @@ class HibernateUserServiceImplTest {
     // ========== Tests para updateUser() ==========
 
     @Test
-    @DisplayName("updateUser() - Actualiza usuario existente")
+    @DisplayName("updateUser() - Modifica la entidad gestionada sin merge()")
     void updateUser_Success() {
         // Given
+        runTransactionTemplateCallbacks();
         when(entityManager.find(User.class, 1L)).thenReturn(testUser);
-        when(entityManager.merge(any(User.class))).thenReturn(testUser);
 
         // When
         User result = service.updateUser(1L, updateDto);
 
         // Then
-        assertNotNull(result);
+        assertSame(testUser, result);
         assertEquals(updateDto.getName(), testUser.getName());
         assertEquals(updateDto.getDepartment(), testUser.getDepartment());
         verify(entityManager).find(User.class, 1L);
-        verify(entityManager).merge(any(User.class));
+        verify(entityManager, never()).merge(any(User.class));
+    }
+
+    @Test
+    @DisplayName("updateUser() - No toca updatedAt si ningún campo cambia")
+    void updateUser_NoChanges() {
+        // Given
+        runTransactionTemplateCallbacks();
+        LocalDateTime updatedAt = testUser.getUpdatedAt();
+        UserUpdateDto sameValues = new UserUpdateDto();
+        sameValues.setRole(testUser.getRole());
+        when(entityManager.find(User.class, 1L)).thenReturn(testUser);
+
+        // When
+        service.updateUser(1L, sameValues);
+
+        // Then - entidad sin cambios: Hibernate no genera UPDATE
+        assertSame(updatedAt, testUser.getUpdatedAt());
+    }
+
+    @Test
+    @DisplayName("updateUser() - Repite la transacción ante un conflicto de versión")
+    void updateUser_RetriesOnOptimisticLockConflict() {
+        // Given - el primer commit falla por @Version
+        ReflectionTestUtils.setField(service, "maxUpdateRetries", 2);
+        when(entityManager.find(User.class, 1L)).thenReturn(testUser);
+        when(transactionTemplate.execute(any()))
+                .thenThrow(new ObjectOptimisticLockingFailureException(User.class, 1L))
+                .thenAnswer(invocation -> invocation.<TransactionCallback<User>>getArgument(0).doInTransaction(null));
+
+        // When
+        User result = service.updateUser(1L, updateDto);
+
+        // Then
+        assertSame(testUser, result);
+        verify(transactionTemplate, times(2)).execute(any());
+    }
+
+    @Test
+    @DisplayName("updateUser() - Propaga el conflicto al agotar los reintentos")
+    void updateUser_GivesUpAfterMaxRetries() {
+        // Given
+        ReflectionTestUtils.setField(service, "maxUpdateRetries", 2);
+        when(transactionTemplate.execute(any()))
+                .thenThrow(new ObjectOptimisticLockingFailureException(User.class, 1L));
+
+        // When & Then
+        assertThrows(ObjectOptimisticLockingFailureException.class, () -> service.updateUser(1L, updateDto));
+        verify(transactionTemplate, times(3)).execute(any());
     }
 
     @Test
     @DisplayName("updateUser() - Lanza excepción si usuario no existe")
     void updateUser_NotFound() {
         // Given
+        runTransactionTemplateCallbacks();
         when(entityManager.find(User.class, 999L)).thenReturn(null);
 
         // When & Then
@@ -224,6 +298,44 @@ class HibernateUserServiceImplTest {
         verify(userRepository).findAll();
     }
 
+    // ========== Tests para streamAllUsers() ==========
+
+    @Test
+    @DisplayName("streamAllUsers() - Recorre el cursor y desacopla cada usuario")
+    void streamAllUsers_ScrollsForwardOnlyAndDetaches() {
+        // Given
+        Session session = mock(Session.class);
+        org.hibernate.query.Query<User> query = mock(org.hibernate.query.Query.class);
+        ScrollableResults<User> rows = mock(ScrollableResults.class);
+        User other = new User("Other", "other@example.com", "HR", "Manager");
+        when(entityManager.unwrap(Session.class)).thenReturn(session);
+        when(session.getCacheMode()).thenReturn(CacheMode.NORMAL);
+        when(session.createQuery(anyString(), eq(User.class))).thenReturn(query);
+        when(query.setFetchSize(anyInt())).thenReturn(query);
+        when(query.setReadOnly(true)).thenReturn(query);
+        when(query.setCacheMode(CacheMode.IGNORE)).thenReturn(query);
+        when(query.scroll(ScrollMode.FORWARD_ONLY)).thenReturn(rows);
+        when(rows.next()).thenReturn(true, true, false);
+        when(rows.get()).thenReturn(testUser, other);
+        List<User> received = new ArrayList<>();
+
+        // When
+        long count = service.streamAllUsers(50, received::add);
+
+        // Then
+        assertEquals(2, count);
+        assertEquals(Arrays.asList(testUser, other), received);
+        verify(query).setFetchSize(50);
+        verify(query).setCacheMode(CacheMode.IGNORE);
+        verify(session).setCacheMode(CacheMode.IGNORE);
+        verify(session).setCacheMode(CacheMode.NORMAL);
+        // SET LAZY_QUERY_EXECUTION TRUE antes del cursor y FALSE al cerrarlo
+        verify(session, times(2)).doWork(any());
+        verify(session).detach(testUser);
+        verify(session).detach(other);
+        verify(rows).close();
+    }
+
     // ========== Tests para findUsersByDepartment() ==========
 
     @Test
@@ -265,6 +377,53 @@ class HibernateUserServiceImplTest {
         verify(query).getResultList();
     }
 
+    // ========== Tests para proyecciones de solo lectura ==========
+
+    @Test
+    @DisplayName("findUserDetailById() - Usa EntityManager.find() (caché L2) y copia a UserDetail")
+    void findUserDetailById_UsesFindAndCopies() {
+        // Given
+        when(entityManager.find(User.class, 1L)).thenReturn(testUser);
+
+        // When
+        UserDetail result = service.findUserDetailById(1L);
+
+        // Then
+        assertEquals(testUser.getId(), result.id());
+        assertEquals(testUser.getEmail(), result.email());
+        assertEquals(testUser.getCreatedAt(), result.createdAt());
+        verify(entityManager).find(User.class, 1L);
+    }
+
+    @Test
+    @DisplayName("findUserDetailById() - Retorna null si no existe")
+    void findUserDetailById_NotFound() {
+        // Given
+        when(entityManager.find(User.class, 999L)).thenReturn(null);
+
+        // When & Then
+        assertNull(service.findUserDetailById(999L));
+    }
+
+    @Test
+    @DisplayName("findUserSummariesByDepartment() - Proyección con el mismo filtro que findUsersByDepartment()")
+    void findUserSummariesByDepartment_Success() {
+        // Given
+        TypedQuery<UserSummary> query = mock(TypedQuery.class);
+        when(entityManager.createQuery(anyString(), eq(UserSummary.class))).thenReturn(query);
+        when(query.setParameter("dept", "IT")).thenReturn(query);
+        when(query.getResultList()).thenReturn(
+                List.of(new UserSummary(1L, "Test User", "test@example.com", "IT", "Developer", true)));
+
+        // When
+        List<UserSummary> result = service.findUserSummariesByDepartment("IT");
+
+        // Then
+        assertEquals(1, result.size());
+        verify(entityManager).createQuery(contains("SELECT new com.dam.accesodatos.model.UserSummary("), eq(UserSummary.class));
+        verify(entityManager).createQuery(contains("u.department = :dept AND u.active = true ORDER BY u.name"), eq(UserSummary.class));
+    }
+
     // ========== Tests para deleteUser() ==========
 
     @Test
@@ -280,6 +439,7 @@ class HibernateUserServiceImplTest {
         assertTrue(result);
         verify(entityManager).find(User.class, 1L);
         verify(entityManager).remove(testUser);
+        verify(entityManager).persist(any(UserTombstone.class));
     }
 
     @Test
@@ -312,15 +472,18 @@ class HibernateUserServiceImplTest {
         when(query.getResultList()).thenReturn(Arrays.asList(testUser));
 
         // When
-        List<User> result = service.searchUsers(queryDto);
+        UserPage<User> result = service.searchUsers(queryDto);
 
         // Then
         assertNotNull(result);
-        assertEquals(1, result.size());
-        verify(entityManager).createQuery(contains("AND u.department = :dept"), eq(User.class));
-        verify(entityManager).createQuery(contains("AND u.active = :active"), eq(User.class));
+        assertEquals(1, result.getItems().size());
+        assertNull(result.getNextCursor());
+        verify(entityManager).createQuery(
+                "SELECT u FROM User u WHERE u.department = :dept AND u.active = :active ORDER BY u.name, u.id",
+                User.class);
         verify(query).setParameter("dept", "IT");
         verify(query).setParameter("active", true);
+        verify(query).setMaxResults(11);
     }
 
     @Test
@@ -333,14 +496,75 @@ class HibernateUserServiceImplTest {
         when(query.getResultList()).thenReturn(Arrays.asList(testUser));
 
         // When
-        List<User> result = service.searchUsers(queryDto);
+        UserPage<User> result = service.searchUsers(queryDto);
 
         // Then
         assertNotNull(result);
-        verify(entityManager).createQuery(anyString(), eq(User.class));
+        verify(entityManager).createQuery("SELECT u FROM User u ORDER BY u.name, u.id", User.class);
         verify(query, never()).setParameter(anyString(), any());
     }
 
+    @Test
+    @DisplayName("searchUsers() - Compila el JPQL una vez por combinación de filtros")
+    void searchUsers_CompilesOncePerShape() {
+        // Given
+        TypedQuery<User> query = mock(TypedQuery.class);
+        when(entityManager.createQuery(anyString(), eq(User.class))).thenReturn(query);
+        when(query.getResultList()).thenReturn(List.of());
+        ArgumentCaptor<String> jpql = ArgumentCaptor.forClass(String.class);
+
+        // When - dos búsquedas con la misma forma y distintos valores, y otra forma distinta
+        service.searchUsers(new UserQueryDto("IT", null, true, null, null));
+        service.searchUsers(new UserQueryDto("HR", null, false, null, null));
+        service.searchUsers(new UserQueryDto(null, "Developer", null, null, null));
+
+        // Then - la misma forma genera el mismo texto (la caché de planes se consulta con equals())
+        verify(entityManager, times(3)).createQuery(jpql.capture(), eq(User.class));
+        assertEquals("SELECT u FROM User u WHERE u.department = :dept AND u.active = :active ORDER BY u.name, u.id",
+                jpql.getAllValues().get(0));
+        assertEquals(jpql.getAllValues().get(0), jpql.getAllValues().get(1));
+        assertEquals("SELECT u FROM User u WHERE u.role = :role ORDER BY u.name, u.id", jpql.getAllValues().get(2));
+        verify(query).setParameter("dept", "HR");
+        verify(query).setParameter("active", false);
+    }
+
+    @Test
+    @DisplayName("searchUsers() - Devuelve nextCursor y lo usa como keyset en la página siguiente")
+    void searchUsers_KeysetCursor() {
+        // Given - limit=1 y la BD devuelve 2 filas (limit + 1): hay página siguiente
+        User second = new User("Zoe", "zoe@example.com", "IT", "Developer");
+        second.setId(2L);
+        UserQueryDto queryDto = new UserQueryDto(null, null, null, 1, 0);
+
+        TypedQuery<User> query = mock(TypedQuery.class);
+        when(entityManager.createQuery(anyString(), eq(User.class))).thenReturn(query);
+        when(query.getResultList()).thenReturn(Arrays.asList(testUser, second));
+
+        // When
+        UserPage<User> first = service.searchUsers(queryDto);
+        queryDto.setCursor(first.getNextCursor());
+        service.searchUsers(queryDto);
+
+        // Then
+        assertEquals(1, first.getItems().size());
+        assertNotNull(first.getNextCursor());
+        verify(entityManager).createQuery(contains("(u.name > :cName OR (u.name = :cName AND u.id > :cId))"), eq(User.class));
+        verify(query).setParameter("cName", testUser.getName());
+        verify(query).setParameter("cId", testUser.getId());
+    }
+
+    @Test
+    @DisplayName("searchUsers() - Rechaza un cursor mal formado")
+    void searchUsers_InvalidCursor() {
+        // Given
+        UserQueryDto queryDto = new UserQueryDto();
+        queryDto.setCursor("no-es-un-cursor");
+
+        // When & Then
+        assertThrows(IllegalArgumentException.class, () -> service.searchUsers(queryDto));
+        verify(entityManager, never()).createQuery(anyString(), eq(User.class));
+    }
+
     // ========== Tests para transferData() ==========
 
     @Test
@@ -357,6 +581,35 @@ class HibernateUserServiceImplTest {
         verify(entityManager, times(2)).persist(any(User.class));
     }
 
+    @Test
+    @DisplayName("transferDataChunked() - Hace flush() y clear() cada N entidades")
+    void transferDataChunked_FlushesAndClearsPerChunk() {
+        // Given
+        List<User> users = Arrays.asList(new User(), new User(), new User(), new User(), new User());
+        List<Long> progress = new ArrayList<>();
+
+        // When
+        long total = service.transferDataChunked(users.iterator(), 2, progress::add);
+
+        // Then - 2 bloques completos + 1 bloque final con el resto
+        assertEquals(5, total);
+        assertEquals(Arrays.asList(2L, 4L, 5L), progress);
+        verify(entityManager, times(5)).persist(any(User.class));
+        verify(entityManager, times(3)).flush();
+        verify(userOutbox, times(3)).writePending();
+        verify(entityManager, times(3)).clear();
+        verify(fullTextIndex).deferInserts();
+    }
+
+    @Test
+    @DisplayName("transferDataChunked() - Falla si no hay tamaño de bloque válido")
+    void transferDataChunked_InvalidChunkSize() {
+        // When & Then (sin ra3.transfer.chunk-size configurado)
+        assertThrows(IllegalArgumentException.class,
+                () -> service.transferDataChunked(List.of(testUser).iterator(), 0, null));
+        verify(entityManager, never()).persist(any(User.class));
+    }
+
     // ========== Tests para executeCountByDepartment() ==========
 
     @Test
@@ -376,5 +629,67 @@ class HibernateUserServiceImplTest {
         verify(entityManager).createQuery(contains("COUNT(u)"), eq(Long.class));
         verify(entityManager).createQuery(contains("active = true"), eq(Long.class));
         verify(query).setParameter("dept", "IT");
+        verify(query, never()).setHint(anyString(), any());
+    }
+
+    @Test
+    @DisplayName("executeCountByDepartment() - Marca la consulta como cacheable si está activado")
+    void executeCountByDepartment_QueryCacheEnabled() {
+        // Given
+        ReflectionTestUtils.setField(service, "cacheDepartmentCount", true);
+        TypedQuery<Long> query = mock(TypedQuery.class);
+        when(entityManager.createQuery(anyString(), eq(Long.class))).thenReturn(query);
+        when(query.getSingleResult()).thenReturn(5L);
+
+        // When
+        service.executeCountByDepartment("IT");
+
+        // Then
+        verify(query).setHint(HibernateHints.HINT_CACHEABLE, true);
+        verify(query).setHint(HibernateHints.HINT_CACHE_REGION, "query.count-by-department");
+    }
+
+    // ========== Tests para operaciones masivas ==========
+
+    @Test
+    @DisplayName("bulkDeactivateUsers() - Ejecuta un único UPDATE JPQL con los filtros")
+    void bulkDeactivateUsers_SingleUpdate() {
+        // Given
+        Query update = mock(Query.class);
+        when(entityManager.createQuery(anyString())).thenReturn(update);
+        when(update.executeUpdate()).thenReturn(3);
+
+        // When
+        int affected = service.bulkDeactivateUsers(new UserQueryDto("IT", null, null, null, null), List.of(1L, 2L, 3L));
+
+        // Then
+        assertEquals(3, affected);
+        verify(entityManager).createQuery(
+                "UPDATE VERSIONED User u SET u.active = false, u.updatedAt = :now"
+                        + " WHERE 1=1 AND u.department = :dept AND u.id IN :ids AND u.active = true");
+        verify(update).setParameter("dept", "IT");
+        verify(update).setParameter("ids", List.of(1L, 2L, 3L));
+        verify(entityManager, never()).find(any(), any());
+    }
+
+    @Test
+    @DisplayName("bulkDeleteUsers() - Rechaza una petición sin ids ni filtros")
+    void bulkDeleteUsers_RequiresFilterOrIds() {
+        // When & Then - un cuerpo vacío no debe borrar toda la tabla
+        assertThrows(IllegalArgumentException.class,
+                () -> service.bulkDeleteUsers(new UserQueryDto(), null));
+        assertThrows(IllegalArgumentException.class,
+                () -> service.bulkDeleteUsers(null, List.of()));
+        verify(entityManager, never()).createQuery(anyString());
+    }
+
+    // ========== Métodos auxiliares ==========
+
+    /**
+     * El TransactionTemplate simulado ejecuta el callback directamente (sin transacción real)
+     */
+    private void runTransactionTemplateCallbacks() {
+        when(transactionTemplate.execute(any()))
+                .thenAnswer(invocation -> invocation.<TransactionCallback<?>>getArgument(0).doInTransaction(null));
     }
 }
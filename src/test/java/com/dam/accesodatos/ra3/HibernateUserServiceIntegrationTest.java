@@ -1,19 +1,90 @@
 package com.dam.accesodatos.ra3;
 
+import com.dam.accesodatos.config.PoolWaitMetrics;
+import com.dam.accesodatos.config.ReadReplicaClientFilter;
+import com.dam.accesodatos.config.ReadReplicaDataSource;
+import com.dam.accesodatos.config.VirtualThreadPinningMonitor;
+import com.dam.accesodatos.mcp.ToolBulkhead;
+import com.dam.accesodatos.model.DatabaseRestoreResult;
+import com.dam.accesodatos.model.DatabaseSnapshotResult;
 import com.dam.accesodatos.model.User;
+import com.dam.accesodatos.model.UserChangeRecord;
+import com.dam.accesodatos.model.UserChanges;
 import com.dam.accesodatos.model.UserCreateDto;
+import com.dam.accesodatos.model.UserDetail;
+import com.dam.accesodatos.model.UserExportResult;
+import com.dam.accesodatos.model.UserExportRow;
+import com.dam.accesodatos.model.UserImportResult;
+import com.dam.accesodatos.model.UserPage;
 import com.dam.accesodatos.model.UserUpdateDto;
 import com.dam.accesodatos.model.UserQueryDto;
+import com.dam.accesodatos.model.UserSearchHit;
+import com.dam.accesodatos.model.UserStatistics;
+import com.dam.accesodatos.model.UserSummary;
+import com.dam.accesodatos.model.UserWithStats;
+import com.dam.accesodatos.model.UpsertResult;
 import com.dam.accesodatos.repository.UserRepository;
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.servlet.FilterChain;
+import jakarta.validation.ConstraintViolationException;
+import org.h2.engine.SessionLocal;
+import org.h2.jdbc.JdbcConnection;
+import org.hibernate.Session;
+import org.hibernate.SessionEventListener;
+import org.hibernate.SessionFactory;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -40,16 +111,109 @@ import static org.junit.jupiter.api.Assertions.*;
 @DisplayName("Tests Integración - Métodos Implementados")
 class HibernateUserServiceIntegrationTest {
 
+    /** Registra SqlCapture en Hibernate para comparar el SQL generado con QueryPlanAdvisor.SHAPES */
+    @TestConfiguration
+    static class SqlCaptureConfig {
+
+        @Bean
+        HibernatePropertiesCustomizer sqlCaptureCustomizer() {
+            return properties -> properties.put(AvailableSettings.STATEMENT_INSPECTOR, new SqlCapture());
+        }
+    }
+
+    /** StatementInspector que guarda el SQL que prepara Hibernate en el hilo actual, sin el comentario JPQL */
+    static class SqlCapture implements StatementInspector {
+
+        private static final ThreadLocal<List<String>> CAPTURED = new ThreadLocal<>();
+        private static final Pattern LEADING_COMMENT = Pattern.compile("^/\\*.*?\\*/\\s*", Pattern.DOTALL);
+
+        static List<String> capture(Runnable action) {
+            List<String> statements = new ArrayList<>();
+            CAPTURED.set(statements);
+            try {
+                action.run();
+            } finally {
+                CAPTURED.remove();
+            }
+            return statements;
+        }
+
+        @Override
+        public String inspect(String sql) {
+            List<String> statements = CAPTURED.get();
+            if (statements != null) {
+                statements.add(LEADING_COMMENT.matcher(sql).replaceFirst(""));
+            }
+            return sql;
+        }
+    }
+
     @Autowired
     private HibernateUserService service;
 
     @Autowired
     private UserRepository userRepository;
 
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private ReadReplicaDataSource readReplica;
+
+    @Autowired
+    private ReadReplicaClientFilter readReplicaClientFilter;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private ToolBulkhead toolBulkhead;
+
+    @Autowired
+    private PoolWaitMetrics poolWaitMetrics;
+
+    @Autowired
+    private VirtualThreadPinningMonitor pinningMonitor;
+
+    @Autowired
+    private LoginEventBuffer loginEventBuffer;
+
+    @Autowired
+    private CreateUserGroupCommit groupCommit;
+
+    @Autowired
+    private UserOutboxRelay outboxRelay;
+
+    @Autowired
+    private UserOutbox userOutbox;
+
+    @Autowired
+    private UserFullTextIndex fullTextIndex;
+
+    @Autowired
+    private DatabaseGeneration databaseGeneration;
+
+    @Autowired
+    private UserChangeLog changeLog;
+
+    @Autowired
+    private DatabaseSnapshots databaseSnapshots;
+
+    @Value("${ra3.csv-import.base-dir}")
+    private Path importDir;
+
+    @Value("${ra3.export.base-dir}")
+    private Path exportDir;
+
     @BeforeEach
     void setUp() {
         // Limpiar BD antes de cada test
         userRepository.deleteAll();
+        transactionTemplate.executeWithoutResult(status ->
+                entityManager.createQuery("DELETE FROM UserTombstone").executeUpdate());
     }
 
     // ========== Tests de conexión y configuración ==========
@@ -124,6 +288,65 @@ class HibernateUserServiceIntegrationTest {
         assertEquals(3, allUsers.size());
     }
 
+    @Test
+    @DisplayName("streamAllUsers() - Recorre todos los usuarios en orden de id y los desacopla")
+    void streamAllUsers_RealDB_Success() {
+        // Given
+        createTestUser("Stream 1", "stream1@test.com", "IT");
+        createTestUser("Stream 2", "stream2@test.com", "HR");
+        createTestUser("Stream 3", "stream3@test.com", "IT");
+        List<User> received = new ArrayList<>();
+
+        // When - fetchSize menor que el número de filas
+        long count = service.streamAllUsers(2, received::add);
+
+        // Then
+        assertEquals(3, count);
+        assertEquals(List.of("stream1@test.com", "stream2@test.com", "stream3@test.com"),
+                received.stream().map(User::getEmail).toList());
+        assertTrue(received.stream().noneMatch(entityManager::contains));
+    }
+
+    @Test
+    @DisplayName("streamAllUsers() - Ejecución perezosa de H2 mientras dura el cursor")
+    void streamAllUsers_LazyQueryExecutionOnlyWhileScrolling() {
+        // Given
+        createTestUser("Lazy 1", "lazy1@test.com", "IT");
+        createTestUser("Lazy 2", "lazy2@test.com", "HR");
+        List<Boolean> duringScroll = new ArrayList<>();
+
+        // When
+        long count = service.streamAllUsers(1, user -> duringScroll.add(lazyQueryExecution()));
+
+        // Then - activa solo mientras se recorre; la conexión queda como estaba
+        assertEquals(2, count);
+        assertEquals(List.of(true, true), duringScroll);
+        assertFalse(lazyQueryExecution());
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // Filas confirmadas: la carga podría llenar la caché L2
+    @DisplayName("streamAllUsers() - El recorrido no llena la caché L2")
+    void streamAllUsers_DoesNotPopulateSecondLevelCache() {
+        try {
+            // Given - usuarios confirmados y fuera de la caché
+            service.transferData(List.of(new User("Scroll 1", "scroll1@test.com", "IT", "Developer"),
+                    new User("Scroll 2", "scroll2@test.com", "HR", "Manager")));
+            entityManager.getEntityManagerFactory().getCache().evict(User.class);
+            Statistics stats = statistics();
+            stats.clear();
+
+            // When
+            long count = service.streamAllUsers(1, user -> { });
+
+            // Then
+            assertEquals(2, count);
+            assertEquals(0, stats.getSecondLevelCachePutCount());
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
     // ========== Tests de findUsersByDepartment() ==========
 
     @Test
@@ -161,6 +384,371 @@ class HibernateUserServiceIntegrationTest {
         assertTrue(result.isEmpty());
     }
 
+    // ========== Tests de proyecciones de solo lectura ==========
+
+    @Test
+    @DisplayName("Proyecciones - Las consultas de listas no cargan entidades en el contexto de persistencia")
+    void projections_DoNotLoadManagedEntities() {
+        // Given
+        User alice = createTestUser("Alice", "alice@test.com", "IT");
+        createTestUser("Bob", "bob@test.com", "IT");
+        createTestUser("Charlie", "charlie@test.com", "HR");
+        entityManager.flush();
+        entityManager.clear();
+        UserDetail detail = service.findUserDetailById(alice.getId());
+        entityManager.clear();
+        Statistics stats = statistics();
+        stats.clear();
+
+        // When
+        List<UserSummary> all = service.findAllSummaries();
+        List<UserSummary> it = service.findUserSummariesByDepartment("IT");
+        UserPage<UserSummary> page = service.searchUserSummaries(new UserQueryDto("IT", null, true, 1, 0));
+        UserPage<UserSummary> next = service.searchUserSummaries(cursorQuery("IT", page.getNextCursor()));
+
+        // Then
+        assertEquals("alice@test.com", detail.email());
+        assertNotNull(detail.createdAt());
+        assertEquals(3, all.size());
+        assertEquals(List.of("Alice", "Bob"), it.stream().map(UserSummary::name).toList());
+        assertEquals("Alice", page.getItems().get(0).name());
+        assertEquals("Bob", next.getItems().get(0).name());
+        assertNull(next.getNextCursor());
+        assertEquals(0, stats.getEntityLoadCount(), "Las proyecciones no deben instanciar entidades User");
+        assertNull(service.findUserDetailById(999_999L));
+    }
+
+    @Test
+    @DisplayName("findUsersWithStats() - Una sola sentencia SQL sea cual sea el número de usuarios (sin N+1)")
+    void findUsersWithStats_StatementCountDoesNotGrowWithResultSize() {
+        for (int size : new int[] {3, 60}) {
+            // Given - la mitad de los usuarios con estadísticas
+            String department = "Stats" + size;
+            for (int i = 0; i < size; i++) {
+                User user = createTestUser(String.format("Stats %03d", i), "stats" + size + "_" + i + "@test.com", department);
+                if (i % 2 == 0) {
+                    entityManager.persist(new UserStatistics(user, i + 1, LocalDateTime.of(2024, 2, 1, 8, 0)));
+                }
+            }
+            entityManager.flush();
+            entityManager.clear();
+            Statistics stats = statistics();
+            stats.clear();
+
+            // When
+            List<UserWithStats> users = service.findUsersWithStats(department);
+
+            // Then
+            assertEquals(1, stats.getPrepareStatementCount(), "Sentencias para " + size + " usuarios");
+            assertEquals(0, stats.getEntityLoadCount());
+            assertEquals(size, users.size());
+            assertEquals("Stats 000", users.get(0).name());
+            assertEquals(1, users.get(0).loginCount());
+            assertEquals(LocalDateTime.of(2024, 2, 1, 8, 0), users.get(0).lastLogin());
+            assertEquals(0, users.get(1).loginCount(), "Sin fila en user_statistics");
+            assertNull(users.get(1).lastLogin());
+        }
+
+        // Sin departamento: todos; y borrar un usuario borra sus estadísticas (ON DELETE CASCADE)
+        assertEquals(63, service.findUsersWithStats(null).size());
+        Long withStats = service.findUsersWithStats("Stats3").get(0).id();
+        service.deleteUser(withStats);
+        entityManager.flush();
+        assertEquals(31L, entityManager.createQuery("SELECT COUNT(s) FROM UserStatistics s", Long.class)
+                .getSingleResult());
+    }
+
+    // ========== Tests de caché de segundo nivel ==========
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // Cada llamada hace commit: la caché L2 se actualiza
+    @DisplayName("Caché L2 - find_user_by_id se sirve desde caché y se mantiene coherente en update/delete")
+    void secondLevelCache_ServesFindAndStaysCoherent() {
+        try {
+            // Given - transferData() hace commit y la caché guarda la entidad insertada
+            User cached = new User("Cached", "cached@test.com", "Cache", "Developer");
+            service.transferData(List.of(cached));
+            Statistics stats = statistics();
+            stats.clear();
+
+            // When - lecturas repetidas
+            service.findUserDetailById(cached.getId());
+            service.findUserDetailById(cached.getId());
+
+            // Then - sin SELECT a la BD
+            assertEquals(0, stats.getPrepareStatementCount());
+            assertEquals(2L, service.getCacheStatistics().get("hitCount"));
+
+            // When - updateUser() actualiza la entrada cacheada al hacer commit
+            UserUpdateDto update = new UserUpdateDto();
+            update.setRole("Architect");
+            service.updateUser(cached.getId(), update);
+            stats.clear();
+
+            // Then
+            assertEquals("Architect", service.findUserDetailById(cached.getId()).role());
+            assertEquals(0, stats.getPrepareStatementCount(), "El usuario actualizado se lee desde la caché");
+
+            // When - deleteUser() elimina la entrada
+            service.deleteUser(cached.getId());
+
+            // Then
+            assertNull(service.findUserDetailById(cached.getId()));
+            Map<String, Object> cacheStats = service.getCacheStatistics();
+            assertEquals("users", cacheStats.get("region"));
+            assertTrue(cacheStats.containsKey("evictionCount"));
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("Caché de consultas - Listado y COUNT por departamento se cachean y se invalidan al cambiar users")
+    void queryCache_DepartmentQueries_CachedAndInvalidated() {
+        try {
+            // Given
+            createTestUser("Query 1", "q1@test.com", "QCache");
+            createTestUser("Query 2", "q2@test.com", "QCache");
+            Statistics stats = statistics();
+            stats.clear();
+
+            // When - misma consulta dos veces
+            assertEquals(2, service.executeCountByDepartment("QCache"));
+            assertEquals(2, service.executeCountByDepartment("QCache"));
+            assertEquals(2, service.findUserSummariesByDepartment("QCache").size());
+            assertEquals(2, service.findUserSummariesByDepartment("QCache").size());
+            assertEquals(2, userRepository.countActiveUsersByDepartment("QCache"));
+            assertEquals(2, userRepository.countActiveUsersByDepartment("QCache"));
+
+            // Then - solo la primera ejecución de cada consulta va a la BD.
+            // executeCountByDepartment() se responde desde los contadores en memoria
+            // (ra3.counters.enabled), así que el COUNT cacheado solo lo usa el repositorio:
+            // 2 consultas a la BD y 2 aciertos
+            assertEquals(2, stats.getQueryCacheHitCount());
+            assertEquals(2, stats.getPrepareStatementCount());
+
+            // When - un INSERT en users invalida los resultados cacheados
+            createTestUser("Query 3", "q3@test.com", "QCache");
+
+            // Then
+            assertEquals(3, service.executeCountByDepartment("QCache"));
+            assertEquals(3, service.findUserSummariesByDepartment("QCache").size());
+            assertEquals(3, userRepository.findActiveUsersByDepartment("QCache").size());
+            assertEquals(3, userRepository.countActiveUsersByDepartment("QCache"));
+
+            @SuppressWarnings("unchecked")
+            Map<String, Map<String, Object>> queryCache =
+                    (Map<String, Map<String, Object>>) service.getCacheStatistics().get("queryCache");
+            assertTrue((long) queryCache.get("query.count-by-department").get("hitCount") >= 1);
+            assertTrue((long) queryCache.get("query.users-by-department").get("hitCount") >= 1);
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    // ========== Tests de contadores en memoria por departamento ==========
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("Contadores - execute_count_by_department sigue persist/update/remove sin ir a la BD")
+    void departmentCounters_TrackLifecycleWithoutQueries() {
+        try {
+            // Given
+            service.reconcileDepartmentCounters();
+            User u1 = createTestUser("Counter 1", "counter1@test.com", "Counters");
+            createTestUser("Counter 2", "counter2@test.com", "Counters");
+            Statistics stats = statistics();
+            stats.clear();
+
+            // Then - respuesta desde memoria
+            assertEquals(2, service.executeCountByDepartment("Counters"));
+            assertEquals(0, stats.getPrepareStatementCount());
+
+            // When - cambio de departamento y desactivación
+            UserUpdateDto moveAndDeactivate = new UserUpdateDto();
+            moveAndDeactivate.setDepartment("Moved");
+            service.updateUser(u1.getId(), moveAndDeactivate);
+            assertEquals(1, service.executeCountByDepartment("Counters"));
+            assertEquals(1, service.executeCountByDepartment("Moved"));
+
+            UserUpdateDto deactivate = new UserUpdateDto();
+            deactivate.setActive(false);
+            service.updateUser(u1.getId(), deactivate);
+            assertEquals(0, service.executeCountByDepartment("Moved"));
+
+            // When - borrado
+            service.deleteUser(u1.getId());
+
+            // Then - los contadores coinciden con la BD
+            assertTrue(service.reconcileDepartmentCounters().isEmpty());
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("Contadores - reconcile detecta la deriva de un UPDATE masivo y rollback no altera contadores")
+    void departmentCounters_ReconcileDetectsBulkDrift() {
+        try {
+            // Given
+            service.reconcileDepartmentCounters();
+            createTestUser("Drift 1", "drift1@test.com", "Drift");
+            createTestUser("Drift 2", "drift2@test.com", "Drift");
+
+            // When - UPDATE masivo que no pasa por los callbacks de JPA
+            transactionTemplate.executeWithoutResult(status -> entityManager
+                    .createQuery("UPDATE User u SET u.active = false WHERE u.department = 'Drift'")
+                    .executeUpdate());
+            assertEquals(2, service.executeCountByDepartment("Drift"), "Los contadores aún no ven el UPDATE masivo");
+            Map<String, Long> drift = service.reconcileDepartmentCounters();
+
+            // Then
+            assertEquals(-2L, drift.get("Drift|active"));
+            assertEquals(2L, drift.get("Drift|inactive"));
+            assertEquals(0, service.executeCountByDepartment("Drift"));
+
+            // When - una transacción que hace rollback
+            transactionTemplate.executeWithoutResult(status -> {
+                service.createUser(new UserCreateDto("Rolled Back", "rollback@test.com", "Drift", "Developer"));
+                status.setRollbackOnly();
+            });
+
+            // Then
+            assertEquals(0, service.executeCountByDepartment("Drift"));
+            assertTrue(service.reconcileDepartmentCounters().isEmpty());
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("Contadores - reconcile espera a un commit que aún no ha aplicado sus deltas")
+    void departmentCounters_ReconcileWaitsForCommitInProgress() throws Exception {
+        try {
+            // Given - una transacción confirmada en la BD que se detiene antes de aplicar sus deltas
+            service.reconcileDepartmentCounters();
+            CountDownLatch committed = new CountDownLatch(1);
+            CountDownLatch resume = new CountDownLatch(1);
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                Future<?> writer = executor.submit(() -> transactionTemplate.executeWithoutResult(status -> {
+                    // Registrado antes que el de DepartmentCounters: se ejecuta primero tras el COMMIT
+                    entityManager.unwrap(SessionImplementor.class).getActionQueue().registerProcess(
+                            (AfterTransactionCompletionProcess) (success, session) -> {
+                                committed.countDown();
+                                try {
+                                    resume.await(5, TimeUnit.SECONDS);
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            });
+                    service.createUser(new UserCreateDto("En Vuelo", "envuelo@test.com", "Race", "Developer"));
+                }));
+                assertTrue(committed.await(5, TimeUnit.SECONDS));
+
+                // When - reconcile mientras el commit está a medias
+                Future<Map<String, Long>> reconcile = executor.submit(() -> service.reconcileDepartmentCounters());
+                Thread.sleep(200);
+                assertFalse(reconcile.isDone(), "reconcile debe esperar a que el commit aplique sus deltas");
+                resume.countDown();
+                writer.get(5, TimeUnit.SECONDS);
+
+                // Then - ni se cuenta dos veces ni aparece una deriva falsa
+                assertTrue(reconcile.get(5, TimeUnit.SECONDS).isEmpty());
+                assertEquals(1, service.executeCountByDepartment("Race"));
+                assertTrue(service.reconcileDepartmentCounters().isEmpty());
+            }
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    // ========== Tests de índices (explain_queries) ==========
+
+    @Test
+    @DisplayName("explainQueries() - Ninguna consulta frecuente recorre la tabla entera")
+    void explainQueries_NoUnexpectedTableScans() {
+        // Given
+        IntStream.range(0, 30).forEach(i ->
+                createTestUser("Plan " + i, "explain" + i + "@test.com", i % 2 == 0 ? "IT" : "HR"));
+
+        // When
+        List<Map<String, Object>> report = service.explainQueries();
+
+        // Then
+        List<String> flagged = report.stream()
+                .filter(entry -> Boolean.TRUE.equals(entry.get("flagged")))
+                .map(entry -> entry.get("query") + " → " + entry.get("plan"))
+                .toList();
+        assertTrue(flagged.isEmpty(), "Consultas con tableScan: " + flagged);
+
+        Map<String, Object> hot = report.stream()
+                .filter(entry -> "find_users_by_department".equals(entry.get("query")))
+                .findFirst().orElseThrow();
+        assertEquals("IDX_USERS_DEPT_ACTIVE_NAME", hot.get("index"));
+        assertFalse((Boolean) hot.get("tableScan"));
+
+        Map<String, Object> statsJoin = report.stream()
+                .filter(entry -> "find_users_with_stats".equals(entry.get("query")))
+                .findFirst().orElseThrow();
+        // El LEFT JOIN busca las estadísticas de cada usuario por índice. Hibernate crea el índice
+        // único como restricción: H2 le añade el sufijo _INDEX_n
+        assertTrue(((String) statsJoin.get("plan")).contains("PUBLIC.IDX_USER_STATISTICS_USER_ID"),
+                "Plan: " + statsJoin.get("plan"));
+
+        Map<String, Object> changeFeed = report.stream()
+                .filter(entry -> "find_users_changed_since".equals(entry.get("query")))
+                .findFirst().orElseThrow();
+        assertEquals("IDX_USERS_UPDATED_ID", changeFeed.get("index"));
+        assertTrue((Boolean) changeFeed.get("sortedByIndex"));
+    }
+
+    @Test
+    @DisplayName("explainQueries() - Cada forma registrada es el SQL que genera Hibernate para su herramienta")
+    void explainQueries_ShapesMatchGeneratedSql() {
+        // Given - la llamada real que produce cada forma
+        Map<String, Runnable> calls = new LinkedHashMap<>();
+        calls.put("find_users_by_department", () -> service.findUsersByDepartment("IT"));
+        calls.put("execute_count_by_department", () -> service.executeCountByDepartment("IT"));
+        for (int mask = 0; mask < 16; mask++) {
+            UserSearchQueries.Shape shape = new UserSearchQueries.Shape(
+                    (mask & 1) != 0, (mask & 2) != 0, (mask & 4) != 0, (mask & 8) != 0);
+            UserQueryDto query = new UserQueryDto(shape.department() ? "IT" : null,
+                    shape.role() ? "Developer" : null, shape.active() ? true : null, 10, null);
+            if (shape.cursor()) {
+                query.setCursor(new UserCursor("", 0L).encode());
+            }
+            calls.put(QueryPlanAdvisor.searchName(shape), () -> service.searchUsers(query));
+        }
+        UserCreateDto upsert = new UserCreateDto();
+        upsert.setName("Plan");
+        upsert.setEmail("plan@test.com");
+        upsert.setDepartment("IT");
+        upsert.setRole("Developer");
+        calls.put("upsert_users", () -> service.upsertUsers(List.of(upsert)));
+        calls.put("find_users_with_stats", () -> service.findUsersWithStats("IT"));
+        Runnable changeFeed = () -> service.findUsersChangedSince(null, LocalDateTime.of(2000, 1, 1, 0, 0), 0L, 500);
+        calls.put("find_users_changed_since", changeFeed);
+        calls.put("find_users_changed_since (user_tombstones)", changeFeed);
+        calls.put("reconcile_department_counters", () -> service.reconcileDepartmentCounters());
+        calls.put("find_all_users_stream", () -> service.streamAllUsers(10, user -> { }));
+        calls.put("find_all_users", () -> service.findAll());
+
+        // Then - ninguna forma sin comprobar
+        assertEquals(calls.keySet(), QueryPlanAdvisor.SHAPES.stream()
+                .map(QueryPlanAdvisor.QueryShape::name)
+                .collect(Collectors.toCollection(LinkedHashSet::new)));
+        for (QueryPlanAdvisor.QueryShape shape : QueryPlanAdvisor.SHAPES) {
+            // When
+            List<String> executed = SqlCapture.capture(calls.get(shape.name()));
+
+            // Then
+            assertTrue(executed.contains(shape.sql()), shape.name() + " ejecutó: " + executed);
+        }
+    }
+
     // ========== Tests de casos límite ==========
 
     @Test
@@ -216,10 +804,72 @@ class HibernateUserServiceIntegrationTest {
         query.setActive(true);
 
         // When
-        List<User> results = service.searchUsers(query);
+        UserPage<User> results = service.searchUsers(query);
+
+        // Then
+        assertEquals(2, results.getItems().size());
+        assertNull(results.getNextCursor());
+    }
+
+    @Test
+    @DisplayName("searchUsers() - Las búsquedas con la misma forma se sirven de la caché de planes de Hibernate")
+    void searchUsers_SameShape_HitsQueryPlanCache() {
+        // Given - primera ejecución de la forma (department + role + cursor)
+        createTestUser("Plan 1", "plan1@test.com", "Plan");
+        String cursor = new UserCursor("", 0L).encode();
+        UserQueryDto first = new UserQueryDto("Plan", "Developer", null, null, null);
+        first.setCursor(cursor);
+        service.searchUserSummaries(first);
+        Statistics stats = statistics();
+        stats.clear();
+
+        // When - misma forma con otros valores
+        UserQueryDto second = new UserQueryDto("Other", "Manager", null, 5, null);
+        second.setCursor(cursor);
+        service.searchUserSummaries(second);
+
+        // Then - se sirve de la caché de planes
+        assertEquals(0, stats.getQueryPlanCacheMissCount());
+        assertTrue(stats.getQueryPlanCacheHitCount() > 0);
+        stats.clear();
+
+        // When - el mismo texto en otra instancia de String
+        String jpql = "SELECT new com.dam.accesodatos.model.UserSummary(u.id, u.name, u.email, u.department, u.role, u.active)"
+                + " FROM User u WHERE u.department = :dept AND u.role = :role"
+                + " AND (u.name > :cName OR (u.name = :cName AND u.id > :cId)) ORDER BY u.name, u.id";
+        entityManager.createQuery(new String(jpql), UserSummary.class);
+
+        // Then - la clave de la caché es el texto (equals), no la instancia
+        assertEquals(0, stats.getQueryPlanCacheMissCount());
+        assertTrue(stats.getQueryPlanCacheHitCount() > 0);
+    }
+
+    @Test
+    @DisplayName("searchUsers() - Recorre todas las páginas con nextCursor sin repetir filas")
+    void searchUsers_KeysetPagination_WalksAllPages() {
+        // Given - nombres repetidos para comprobar el desempate por id
+        createTestUser("Page A", "pa1@test.com", "Paging");
+        createTestUser("Page A", "pa2@test.com", "Paging");
+        createTestUser("Page B", "pb@test.com", "Paging");
+        createTestUser("Page C", "pc@test.com", "Paging");
+        createTestUser("Page D", "pd@test.com", "Paging");
+
+        UserQueryDto query = new UserQueryDto("Paging", null, null, 2, 0);
+        List<String> emails = new ArrayList<>();
+        int pages = 0;
+
+        // When
+        UserPage<User> page;
+        do {
+            page = service.searchUsers(query);
+            page.getItems().forEach(u -> emails.add(u.getEmail()));
+            query.setCursor(page.getNextCursor());
+            pages++;
+        } while (page.hasNext());
 
         // Then
-        assertEquals(2, results.size());
+        assertEquals(3, pages);
+        assertEquals(List.of("pa1@test.com", "pa2@test.com", "pb@test.com", "pc@test.com", "pd@test.com"), emails);
     }
 
     @Test
@@ -248,6 +898,77 @@ class HibernateUserServiceIntegrationTest {
         assertEquals(2, service.executeCountByDepartment("Bulk"));
     }
 
+    @Test
+    @DisplayName("transferData() - 1000 usuarios se insertan en batches JDBC (benchmark de sentencias)")
+    void transferData_1000Users_UsesJdbcBatching() {
+        // Given
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            users.add(new User("Batch " + i, "batch" + i + "@test.com", "Batch", "Developer"));
+        }
+        Statistics stats = statistics();
+        stats.clear();
+        // Statistics no cuenta batches: se cuentan las llamadas a executeBatch() de esta sesión
+        AtomicInteger batches = new AtomicInteger();
+        entityManager.unwrap(Session.class).addEventListeners(new SessionEventListener() {
+            @Override
+            public void jdbcExecuteBatchStart() {
+                batches.incrementAndGet();
+            }
+        });
+
+        // When
+        service.transferData(users);
+        entityManager.flush();
+
+        // Then - Con IDENTITY serían 1000 sentencias preparadas y ejecutadas de una en una.
+        // Con users_seq (allocationSize=50) y batch_size=20: 20 NEXT VALUE (una por bloque de
+        // 50 ids) + 1 INSERT, que se prepara una vez y se ejecuta en 50 batches de 20 filas
+        assertEquals(21, stats.getPrepareStatementCount());
+        assertEquals(50, batches.get());
+        assertEquals(1000, service.executeCountByDepartment("Batch"));
+    }
+
+    @Test
+    @DisplayName("transferDataChunked() - Inserta desde un Stream y libera el contexto por bloques")
+    void transferDataChunked_FromStream_Success() {
+        // Given - Stream perezoso: los usuarios se crean a medida que se consumen
+        List<Long> progress = new ArrayList<>();
+        User first = new User("Chunk 0", "chunk0@test.com", "Chunk", "Developer");
+        var users = IntStream.range(0, 250)
+                .mapToObj(i -> i == 0 ? first : new User("Chunk " + i, "chunk" + i + "@test.com", "Chunk", "Developer"));
+
+        // When
+        long total = service.transferDataChunked(users.iterator(), 100, progress::add);
+
+        // Then
+        assertEquals(250, total);
+        assertEquals(List.of(100L, 200L, 250L), progress);
+        assertFalse(entityManager.contains(first), "Las entidades de bloques anteriores deben estar desacopladas");
+        assertEquals(250, service.executeCountByDepartment("Chunk"));
+    }
+
+    @Test
+    @DisplayName("transferDataChunked() - Escribe los eventos del outbox en cada bloque, sin acumularlos hasta el COMMIT")
+    void transferDataChunked_WritesOutboxEventsPerChunk() {
+        // Given
+        long outboxBefore = userOutboxSize();
+        List<Integer> pendingAfterChunk = new ArrayList<>();
+        List<Long> writtenAfterChunk = new ArrayList<>();
+        var users = IntStream.range(0, 250)
+                .mapToObj(i -> new User("Outbox " + i, "outbox" + i + "@test.com", "OutboxChunk", "Developer"));
+
+        // When
+        service.transferDataChunked(users.iterator(), 100, total -> {
+            pendingAfterChunk.add(userOutbox.pendingCount());
+            writtenAfterChunk.add(userOutboxSize() - outboxBefore);
+        });
+
+        // Then - tras cada flush la lista está vacía y sus eventos ya están en user_outbox
+        assertEquals(List.of(0, 0, 0), pendingAfterChunk);
+        assertEquals(List.of(100L, 200L, 250L), writtenAfterChunk);
+    }
+
     @Test
     @DisplayName("executeCountByDepartment() - Cuenta correctamente en BD real")
     void executeCountByDepartment_RealDB_Success() {
@@ -264,8 +985,1410 @@ class HibernateUserServiceIntegrationTest {
         assertEquals(3, count);
     }
 
+    // ========== Tests de actualización parcial con @Version ==========
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("updateUser() - Incrementa la versión solo si hay cambios")
+    void updateUser_IncrementsVersionOnlyWhenChanged() {
+        try {
+            // Given
+            User created = createTestUser("Versioned", "versioned@test.com", "Version");
+            assertEquals(0L, created.getVersion());
+            UserUpdateDto role = new UserUpdateDto();
+            role.setRole("Manager");
+
+            // When & Then
+            assertEquals(1L, service.updateUser(created.getId(), role).getVersion());
+            Statistics stats = statistics();
+            stats.clear();
+            assertEquals(1L, service.updateUser(created.getId(), role).getVersion(), "Mismo rol: sin UPDATE");
+            assertEquals(0, stats.getEntityUpdateCount());
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("@Version - Una escritura concurrente con versión antigua falla y update_user conserva ambos cambios")
+    void optimisticLock_DetectsConcurrentUpdate() throws Exception {
+        try {
+            // Given - otro cliente lee el usuario y tarda en hacer commit
+            User created = createTestUser("Concurrent", "concurrent@test.com", "Version");
+            CountDownLatch loaded = new CountDownLatch(1);
+            CountDownLatch proceed = new CountDownLatch(1);
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            Future<?> slowClient = executor.submit(() -> transactionTemplate.executeWithoutResult(status -> {
+                User stale = entityManager.find(User.class, created.getId());
+                loaded.countDown();
+                await(proceed);
+                stale.setName("Slow Client");
+            }));
+            assertTrue(loaded.await(10, TimeUnit.SECONDS));
+
+            // When - update_user hace commit antes
+            UserUpdateDto department = new UserUpdateDto();
+            department.setDepartment("Moved");
+            service.updateUser(created.getId(), department);
+            proceed.countDown();
+
+            // Then - el cliente lento recibe el conflicto en lugar de pisar el cambio
+            ExecutionException conflict = assertThrows(ExecutionException.class,
+                    () -> slowClient.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(OptimisticLockingFailureException.class, conflict.getCause());
+            executor.shutdown();
+
+            // When - update_user vuelve a leer la versión actual, así no hay conflicto
+            UserUpdateDto name = new UserUpdateDto();
+            name.setName("Second Client");
+            User updated = service.updateUser(created.getId(), name);
+
+            // Then
+            assertEquals("Second Client", updated.getName());
+            assertEquals("Moved", updated.getDepartment());
+            assertEquals(2L, updated.getVersion());
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    // ========== Tests de upsert_users ==========
+
+    @Test
+    @DisplayName("upsertUsers() - Inserta los nuevos y actualiza solo los que cambian con un MERGE por lote")
+    void upsertUsers_InsertsAndUpdatesByEmail() {
+        // Given
+        User unchanged = createTestUser("Same", "same@test.com", "Upsert");
+        User changed = createTestUser("Old Name", "changed@test.com", "Upsert");
+        List<UserCreateDto> batch = new ArrayList<>();
+        batch.add(new UserCreateDto("Same", "same@test.com", "Upsert", "Developer"));
+        batch.add(new UserCreateDto("New Name", "changed@test.com", "Upsert", "Manager"));
+        IntStream.range(0, 120).forEach(i ->
+                batch.add(new UserCreateDto("New " + i, "upsert" + i + "@test.com", "Upsert", "Developer")));
+        entityManager.flush();
+        Statistics stats = statistics();
+        stats.clear();
+
+        // When
+        UpsertResult result = service.upsertUsers(batch);
+
+        // Then - 122 usuarios = 1 lote: SELECT + MERGE + como mucho 3 NEXT VALUE para
+        // los 120 IDs nuevos (bloques de 50, aprovechando lo que quede del bloque actual)
+        assertEquals(new UpsertResult(120, 1, 1), result);
+        assertTrue(stats.getPrepareStatementCount() <= 5);
+
+        entityManager.clear();
+        User reloaded = service.findUserById(changed.getId());
+        assertEquals("New Name", reloaded.getName());
+        assertEquals("Manager", reloaded.getRole());
+        assertEquals(1L, reloaded.getVersion());
+        assertEquals(0L, service.findUserById(unchanged.getId()).getVersion());
+        assertEquals(122, service.executeCountByDepartment("Upsert"));
+
+        // Repetir el mismo lote no cambia nada
+        assertEquals(new UpsertResult(0, 0, 122), service.upsertUsers(batch));
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("upsertUsers() - Invalida la caché L2 y mantiene los contadores por departamento")
+    void upsertUsers_EvictsCacheAndKeepsCounters() {
+        try {
+            // Given
+            service.reconcileDepartmentCounters();
+            User cached = createTestUser("Cached", "cached-upsert@test.com", "UpsertA");
+            service.findUserDetailById(cached.getId());
+
+            // When - se mueve a otro departamento y se crea uno nuevo
+            UpsertResult result = service.upsertUsers(List.of(
+                    new UserCreateDto("Cached", "cached-upsert@test.com", "UpsertB", "Developer"),
+                    new UserCreateDto("Fresh", "fresh-upsert@test.com", "UpsertB", "Developer")));
+
+            // Then
+            assertEquals(new UpsertResult(1, 1, 0), result);
+            assertEquals("UpsertB", service.findUserDetailById(cached.getId()).department());
+            assertEquals(0, service.executeCountByDepartment("UpsertA"));
+            assertEquals(2, service.executeCountByDepartment("UpsertB"));
+            assertTrue(service.reconcileDepartmentCounters().isEmpty(), "Los contadores no deben tener deriva");
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // La otra transacción confirma durante el MERGE
+    @DisplayName("upsertUsers() - Un email insertado por otra transacción durante el lote repite la transacción")
+    void upsertUsers_RetriesWhenEmailIsInsertedConcurrently() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // Given - otra transacción inserta el email y sigue abierta
+            service.reconcileDepartmentCounters();
+            CountDownLatch written = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            Future<?> other = executor.submit(() -> transactionTemplate.executeWithoutResult(status -> {
+                createTestUser("Carrera", "carrera-upsert@test.com", "RaceA");
+                entityManager.flush();
+                written.countDown();
+                await(release);
+            }));
+            await(written);
+
+            // When - el SELECT del upsert no ve la fila y el MERGE espera a la otra transacción
+            Future<UpsertResult> upsert = executor.submit(() -> service.upsertUsers(List.of(
+                    new UserCreateDto("Carrera", "carrera-upsert@test.com", "RaceB", "Developer"),
+                    new UserCreateDto("Nueva", "nueva-upsert@test.com", "RaceB", "Developer"))));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!otherSessionRunning("MERGE INTO users")) {
+                assertTrue(System.nanoTime() < deadline, "El MERGE debería esperar al bloqueo de la otra transacción");
+                Thread.sleep(5);
+            }
+            release.countDown();
+            other.get(10, TimeUnit.SECONDS);
+
+            // Then - el reintento ve la fila confirmada: una alta, una modificación y contadores exactos
+            assertEquals(new UpsertResult(1, 1, 0), upsert.get(10, TimeUnit.SECONDS));
+            assertEquals("RaceB", userRepository.findByEmail("carrera-upsert@test.com").getDepartment());
+            assertEquals(0, service.executeCountByDepartment("RaceA"));
+            assertEquals(2, service.executeCountByDepartment("RaceB"));
+            assertTrue(service.reconcileDepartmentCounters().isEmpty(), "Los contadores no deben tener deriva");
+        } finally {
+            executor.shutdownNow();
+            userRepository.deleteAll();
+        }
+    }
+
+    /** Si otra sesión de H2 está ejecutando una sentencia que empieza por el texto indicado */
+    private boolean otherSessionRunning(String statement) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             Statement sessions = connection.createStatement();
+             ResultSet rs = sessions.executeQuery("SELECT EXECUTING_STATEMENT FROM INFORMATION_SCHEMA.SESSIONS"
+                     + " WHERE SESSION_ID <> SESSION_ID() AND EXECUTING_STATEMENT IS NOT NULL")) {
+            while (rs.next()) {
+                // Hibernate antepone un comentario "/* dynamic native SQL query */"
+                if (rs.getString(1).replaceFirst("^/\\*.*?\\*/\\s*", "").startsWith(statement)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // ========== Tests de operaciones masivas ==========
+
+    @Test
+    @DisplayName("bulk_*() - Devuelven las filas afectadas por un único UPDATE/DELETE")
+    void bulkOperations_ReturnAffectedRows() {
+        // Given
+        User u1 = createTestUser("Bulk 1", "bulk1@test.com", "Bulk");
+        User u2 = createTestUser("Bulk 2", "bulk2@test.com", "Bulk");
+        User other = createTestUser("Bulk Other", "bulkother@test.com", "Other");
+        UserQueryDto bulkDept = new UserQueryDto("Bulk", null, null, null, null);
+
+        // When & Then
+        assertEquals(2, service.bulkUpdateRole(bulkDept, null, "Manager"));
+        assertEquals(0, service.bulkUpdateRole(bulkDept, null, "Manager"), "Ya tienen ese rol");
+        assertEquals(1, service.bulkDeactivateUsers(null, List.of(u1.getId())));
+        assertEquals(1, service.bulkDeactivateUsers(bulkDept, null), "u1 ya estaba inactivo");
+
+        entityManager.clear();
+        assertEquals("Manager", service.findUserById(u2.getId()).getRole());
+        assertFalse(service.findUserById(u2.getId()).getActive());
+        assertTrue(service.findUserById(other.getId()).getActive());
+
+        assertEquals(2, service.bulkDeleteUsers(bulkDept, null));
+        assertNull(service.findUserById(u1.getId()));
+        assertNotNull(service.findUserById(other.getId()));
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("bulk_*() - Invalidan la caché L2 y mantienen los contadores sin deriva")
+    void bulkOperations_EvictCachesAndKeepCounters() {
+        try {
+            // Given - usuarios en la caché L2 y contadores cargados
+            service.reconcileDepartmentCounters();
+            User u1 = createTestUser("Evict 1", "evict1@test.com", "Evict");
+            User u2 = createTestUser("Evict 2", "evict2@test.com", "Evict");
+            createTestUser("Evict 3", "evict3@test.com", "Evict");
+            service.findUserDetailById(u1.getId());
+            assertEquals(3, service.executeCountByDepartment("Evict"));
+
+            // When
+            int deactivated = service.bulkDeactivateUsers(null, List.of(u1.getId(), u2.getId()));
+
+            // Then - ni la caché L2 ni los contadores devuelven datos antiguos
+            assertEquals(2, deactivated);
+            assertFalse(service.findUserDetailById(u1.getId()).active());
+            assertEquals(1, service.executeCountByDepartment("Evict"));
+
+            // When
+            int deleted = service.bulkDeleteUsers(new UserQueryDto("Evict", null, null, null, null), null);
+
+            // Then
+            assertEquals(3, deleted);
+            assertNull(service.findUserDetailById(u1.getId()));
+            assertEquals(0, service.executeCountByDepartment("Evict"));
+            assertTrue(service.reconcileDepartmentCounters().isEmpty(), "Los contadores no deben tener deriva");
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    // ========== Tests de búsqueda de texto completo ==========
+
+    @Test
+    @DisplayName("search_users_text - Palabras completas en cualquier columna, ordenadas por relevancia")
+    void searchUsersText_MatchesWordsAndRanksByRelevance() {
+        // Given
+        User byName = createTestUser("Ana Torres", "ana.torres@test.com", "Ventas");
+        User byEmail = createTestUser("Luis Gómez", "luis.ana@test.com", "Ventas");
+        createTestUser("Mariana Ruiz", "mariana.ruiz@test.com", "Ventas"); // "ana" no es una palabra suya
+
+        // When
+        List<UserSearchHit> hits = service.searchUsersText("ana", 0);
+
+        // Then - nombre (+6 al empezar por la palabra) y email (+2) pesan más que solo email
+        assertEquals(List.of(byName.getId(), byEmail.getId()), hits.stream().map(UserSearchHit::id).toList());
+        assertEquals(8, hits.get(0).score());
+        assertEquals(2, hits.get(1).score());
+
+        // Todas las palabras deben aparecer (AND), en cualquier columna y sin distinguir mayúsculas
+        assertEquals(List.of(byName.getId()),
+                service.searchUsersText("ANA torres", 0).stream().map(UserSearchHit::id).toList());
+        assertEquals(3, service.searchUsersText("ventas developer", 0).size());
+        assertEquals(1, service.searchUsersText("ventas", 1).size());
+        assertTrue(service.searchUsersText("ana marketing", 0).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> service.searchUsersText(" .@ ", 0));
+    }
+
+    @Test
+    @DisplayName("search_users_text - El índice sigue los cambios de update, UPDATE masivo y delete")
+    void searchUsersText_IndexFollowsEntityChanges() {
+        // Given
+        User user = createTestUser("Pedro Sanz", "pedro.sanz@test.com", "Soporte");
+        assertEquals(8, service.searchUsersText("pedro", 0).get(0).score());
+
+        // When - dirty checking
+        UserUpdateDto update = new UserUpdateDto();
+        update.setName("Pablo Sanz");
+        service.updateUser(user.getId(), update);
+
+        // Then - "pedro" ya solo está en el email
+        assertEquals(2, service.searchUsersText("pedro", 0).get(0).score());
+        assertEquals(user.getId(), service.searchUsersText("pablo", 0).get(0).id());
+
+        // When - UPDATE JPQL masivo (no pasa por el contexto de persistencia)
+        service.bulkUpdateRole(null, List.of(user.getId()), "Arquitecto");
+        entityManager.clear(); // La entidad cargada en el test conserva la versión anterior
+
+        // Then
+        assertEquals(1, service.searchUsersText("arquitecto soporte", 0).size());
+
+        // When
+        service.deleteUser(user.getId());
+
+        // Then
+        assertTrue(service.searchUsersText("pablo", 0).isEmpty());
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // Se indexan tras el COMMIT
+    @DisplayName("search_users_text - Las altas masivas se indexan en segundo plano tras el COMMIT")
+    void searchUsersText_BulkInsertsAreIndexedAfterCommit() {
+        try {
+            // Given
+            long indexedBefore = fullTextRows();
+            List<User> users = IntStream.range(0, 250)
+                    .mapToObj(i -> new User("Masivo " + i, "masivo" + i + "@test.com", "Carga", "Developer"))
+                    .toList();
+
+            // When - dentro de la transacción el trigger solo anota los IDs
+            long indexedInTransaction = transactionTemplate.execute(status -> {
+                service.transferData(users);
+                entityManager.flush();
+                return fullTextRows();
+            });
+            fullTextIndex.awaitIndexed();
+
+            // Then
+            assertEquals(indexedBefore, indexedInTransaction);
+            assertEquals(indexedBefore + 250, fullTextRows());
+            assertEquals(250, service.searchUsersText("masivo carga", 300).size());
+
+            // Las altas de una sola fila siguen indexándose dentro de su transacción
+            User single = createTestUser("Unitario Carga", "unitario@test.com", "Carga");
+            assertEquals(List.of(single.getId()), service.searchUsersText("unitario", 0).stream()
+                    .map(UserSearchHit::id).toList());
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    private long fullTextRows() {
+        return ((Number) entityManager.createNativeQuery("SELECT COUNT(*) FROM FT.ROWS").getSingleResult()).longValue();
+    }
+
+    // ========== Tests de autocompletado ==========
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // El índice solo ve cambios confirmados
+    @DisplayName("autocomplete_users - Inicio de palabra con 1-2 letras, subcadena con 3+, sin tildes ni mayúsculas")
+    void autocompleteUsers_RanksNamePrefixFirst() {
+        try {
+            // Given
+            Long juan = createTestUser("Juan Pérez", "juan.perez@test.com", "IT").getId();
+            Long ana = createTestUser("Ana Juárez", "ana.juarez@test.com", "IT").getId();
+            Long pedro = createTestUser("Pedro Sanz", "psanz@juntos.com", "IT").getId();
+
+            // When / Then - nombre empieza > palabra del nombre o del email > en medio
+            assertEquals(List.of(juan, ana, pedro), service.autocompleteUsers("ju", 0));
+            assertEquals(List.of(juan), service.autocompleteUsers("ju", 1));
+            assertEquals(List.of(juan), service.autocompleteUsers("PÉREZ", 0));
+            assertEquals(List.of(juan, ana), service.autocompleteUsers("rez", 0));
+            assertEquals(List.of(ana), service.autocompleteUsers("ana ju", 0));
+            assertEquals(List.of(pedro), service.autocompleteUsers("psanz@", 0));
+            assertEquals(List.of(ana), service.autocompleteUsers("uarez@", 0));
+            assertEquals(List.of(juan, ana), service.autocompleteUsers("t.com", 0));
+            assertTrue(service.autocompleteUsers("ez", 0).isEmpty(), "Con 2 letras solo inicios de palabra");
+            assertTrue(service.autocompleteUsers("   ", 0).isEmpty());
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("autocomplete_users - Sigue updates, deletes, rollbacks, borrados masivos y upsert")
+    void autocompleteUsers_FollowsCommittedChanges() {
+        try {
+            // Given
+            User user = createTestUser("Marta Gil", "marta.gil@test.com", "Auto");
+            assertEquals(List.of(user.getId()), service.autocompleteUsers("marta", 0));
+
+            // When - update
+            UserUpdateDto update = new UserUpdateDto();
+            update.setName("Marina Gil");
+            service.updateUser(user.getId(), update);
+
+            // Then - el email sigue conteniendo "marta"; el nombre ya es Marina
+            assertEquals(List.of(user.getId()), service.autocompleteUsers("marina", 0));
+            assertEquals(List.of(user.getId()), service.autocompleteUsers("marta", 0));
+            assertTrue(service.autocompleteUsers("marta g", 0).isEmpty());
+
+            // When - alta que hace rollback
+            transactionTemplate.executeWithoutResult(status -> {
+                createTestUser("Rollo Rollback", "rollo@test.com", "Auto");
+                status.setRollbackOnly();
+            });
+
+            // Then
+            assertTrue(service.autocompleteUsers("rollo", 0).isEmpty());
+
+            // When - upsert (MERGE nativo) y borrado masivo (DELETE JPQL)
+            service.upsertUsers(List.of(new UserCreateDto("Upsert Nuevo", "upsert.nuevo@test.com", "Auto", "Dev")));
+            assertEquals(1, service.autocompleteUsers("upsert nu", 0).size());
+            service.bulkDeleteUsers(new UserQueryDto("Auto", null, null, null, null), null);
+
+            // Then
+            assertTrue(service.autocompleteUsers("marina", 0).isEmpty());
+            assertTrue(service.autocompleteUsers("upsert", 0).isEmpty());
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    // ========== Tests de record_login (write-behind) ==========
+
+    @Test
+    @DisplayName("recordLogin() - Acumula los accesos por usuario y los vuelca con una fila por usuario")
+    void recordLogin_CoalescesPerUserUntilFlush() {
+        // Given - Ana ya tiene fila en user_statistics, Luis no
+        User ana = createTestUser("Login Ana", "login.ana@test.com", "Login");
+        User luis = createTestUser("Login Luis", "login.luis@test.com", "Login");
+        entityManager.persist(new UserStatistics(ana, 10, LocalDateTime.of(2024, 1, 1, 0, 0)));
+        entityManager.flush();
+        loginEventBuffer.flush();
+        long discarded = (Long) loginEventBuffer.snapshot().get("discardedEvents");
+
+        // When
+        for (int i = 0; i < 5; i++) {
+            service.recordLogin(ana.getId());
+        }
+        for (int i = 0; i < 3; i++) {
+            service.recordLogin(luis.getId());
+        }
+        service.recordLogin(999_999L);
+
+        // Then - solo en memoria
+        Map<String, Object> buffered = loginEventBuffer.snapshot();
+        assertEquals(3, buffered.get("pendingUsers"));
+        assertEquals(9L, buffered.get("pendingEvents"));
+        assertEquals(List.of(10, 0), loginCounts("Login"));
+
+        // When
+        int rows = loginEventBuffer.flush();
+
+        // Then - UPDATE de Ana, INSERT de Luis; el usuario inexistente se descarta
+        assertEquals(2, rows);
+        assertEquals(List.of(15, 3), loginCounts("Login"));
+        assertTrue(service.findUsersWithStats("Login").get(0).lastLogin().isAfter(LocalDateTime.now().minusMinutes(1)));
+        Map<String, Object> flushed = loginEventBuffer.snapshot();
+        assertEquals(0, flushed.get("pendingUsers"));
+        assertEquals(0L, flushed.get("pendingEvents"));
+        assertEquals(discarded + 1, flushed.get("discardedEvents"));
+        assertThrows(IllegalArgumentException.class, () -> service.recordLogin(null));
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // Cada volcado confirma su propia transacción
+    @DisplayName("recordLogin() - No se pierde ningún acceso con registros y volcados concurrentes")
+    void recordLogin_ConcurrentRecordsAndFlushesLoseNothing() throws Exception {
+        try {
+            // Given
+            List<Long> ids = IntStream.range(0, 20)
+                    .mapToObj(i -> createTestUser("Conc " + i, "conc" + i + "@test.com", "Conc").getId())
+                    .toList();
+            loginEventBuffer.flush();
+            int threads = 8;
+            int perThread = 5_000;
+
+            // When - 8 hilos registran mientras este vuelca una y otra vez
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<?>> writers = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    writers.add(executor.submit(() -> {
+                        for (int i = 0; i < perThread; i++) {
+                            service.recordLogin(ids.get(i % ids.size()));
+                        }
+                    }));
+                }
+                while (writers.stream().anyMatch(writer -> !writer.isDone())) {
+                    loginEventBuffer.flush();
+                }
+                for (Future<?> writer : writers) {
+                    writer.get();
+                }
+            }
+            loginEventBuffer.flush();
+
+            // Then
+            assertEquals(threads * perThread, loginCounts("Conc").stream().mapToInt(Integer::intValue).sum());
+            assertEquals(0L, loginEventBuffer.snapshot().get("pendingEvents"));
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    // ========== Tests de find_users_changed_since ==========
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // El feed lee del primario fuera de transacción: solo ve lo confirmado
+    @DisplayName("findUsersChangedSince() - Devuelve altas, modificaciones y borrados posteriores a la marca")
+    void findUsersChangedSince_ReturnsCreatesUpdatesAndDeletesAfterWatermark() throws InterruptedException {
+        try {
+            // Given - sincronización inicial
+            UserChanges synced = syncChangeFeed();
+            User ana = createTestUser("Ana Feed", "ana.feed@test.com", "Feed");
+            User bea = createTestUser("Bea Feed", "bea.feed@test.com", "Feed");
+            createTestUser("Carla Feed", "carla.feed@test.com", "Feed");
+            UserChanges initial = service.findUsersChangedSince(synced.watermarkGeneration(), synced.watermarkUpdatedAt(), synced.watermarkId(), 0);
+            assertEquals(3, initial.changed().size());
+            assertFalse(initial.hasMore());
+
+            // When - cambios después de la marca
+            Thread.sleep(2); // updated_at posterior a la marca también con precisión de microsegundos
+            service.updateUser(bea.getId(), new UserUpdateDto(null, null, null, "Manager", null));
+            service.deleteUser(ana.getId());
+            User dani = createTestUser("Dani Feed", "dani.feed@test.com", "Feed");
+            UserChanges changes = service.findUsersChangedSince(initial.watermarkGeneration(), initial.watermarkUpdatedAt(), initial.watermarkId(), 0);
+
+            // Then - solo lo que ha cambiado, y la marca avanza hasta el último cambio
+            assertEquals(List.of(bea.getId(), dani.getId()), changes.changed().stream().map(User::getId).toList());
+            assertEquals(List.of(ana.getId()), changes.deletedIds());
+            assertEquals(dani.getId(), changes.watermarkId());
+            assertFalse(changes.hasMore());
+            assertFalse(changes.resyncRequired());
+
+            // Sin cambios nuevos: nada que sincronizar y la marca no se mueve
+            UserChanges none = service.findUsersChangedSince(changes.watermarkGeneration(), changes.watermarkUpdatedAt(), changes.watermarkId(), 0);
+            assertTrue(none.changed().isEmpty());
+            assertTrue(none.deletedIds().isEmpty());
+            assertEquals(changes.watermarkUpdatedAt(), none.watermarkUpdatedAt());
+            assertEquals(changes.watermarkId(), none.watermarkId());
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("findUsersChangedSince() - Pagina por la marca sin repetir ni saltar cambios")
+    void findUsersChangedSince_PagesThroughWatermark() {
+        try {
+            // Given - 5 altas y 2 borrados masivos (marcas con INSERT ... SELECT)
+            UserChanges synced = syncChangeFeed();
+            List<Long> created = IntStream.range(0, 7)
+                    .mapToObj(i -> createTestUser("Page " + i, "page" + i + "@test.com", "Page").getId())
+                    .toList();
+            service.bulkDeleteUsers(null, created.subList(5, 7));
+
+            // When - páginas de 2
+            List<Long> changed = new ArrayList<>();
+            List<Long> deleted = new ArrayList<>();
+            List<Boolean> hasMore = new ArrayList<>();
+            UserChanges page = service.findUsersChangedSince(synced.watermarkGeneration(), synced.watermarkUpdatedAt(), synced.watermarkId(), 2);
+            while (true) {
+                page.changed().forEach(user -> changed.add(user.getId()));
+                deleted.addAll(page.deletedIds());
+                hasMore.add(page.hasMore());
+                if (!page.hasMore()) {
+                    break;
+                }
+                page = service.findUsersChangedSince(page.watermarkGeneration(), page.watermarkUpdatedAt(), page.watermarkId(), 2);
+            }
+
+            // Then
+            assertEquals(created.subList(0, 5), changed);
+            assertEquals(created.subList(5, 7), deleted);
+            assertEquals(List.of(true, true, true, false), hasMore);
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    /** Marca al día: recorre el feed hasta el final (los tests NOT_SUPPORTED dejan borrados confirmados) */
+    private UserChanges syncChangeFeed() {
+        UserChanges synced = service.findUsersChangedSince(null, null, null, 0);
+        while (synced.hasMore()) {
+            synced = service.findUsersChangedSince(synced.watermarkGeneration(), synced.watermarkUpdatedAt(),
+                    synced.watermarkId(), 0);
+        }
+        return synced;
+    }
+
+    @Test
+    @DisplayName("findUsersChangedSince() - Una marca anterior a la retención de borrados exige resincronizar")
+    void findUsersChangedSince_WatermarkOlderThanRetentionRequiresResync() {
+        // When
+        UserChanges stale = service.findUsersChangedSince(null, LocalDateTime.now().minusDays(30), 0L, 0);
+        UserChanges recent = service.findUsersChangedSince(null, LocalDateTime.now().minusHours(1), 0L, 0);
+
+        // Then
+        assertTrue(stale.resyncRequired());
+        assertFalse(recent.resyncRequired());
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // Una transacción de otro hilo sigue abierta mientras se consulta
+    @DisplayName("findUsersChangedSince() - La marca no pasa del inicio de una transacción de escritura abierta")
+    void findUsersChangedSince_DoesNotSkipChangesOfOpenWriteTransaction() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Given - consumidor al día
+            UserChanges synced = syncChangeFeed();
+
+            // Una transacción escribe a Lenta y sigue abierta; después se confirma Rápida, que llega
+            // por transfer_data con un updatedAt del cliente en el pasado
+            CountDownLatch written = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            Future<?> slow = executor.submit(() -> transactionTemplate.executeWithoutResult(status -> {
+                createTestUser("Lenta Feed", "lenta.feed@test.com", "Feed");
+                entityManager.flush();
+                written.countDown();
+                await(release);
+            }));
+            await(written);
+            Thread.sleep(2); // updated_at distinto también con precisión de microsegundos
+            User fast = new User("Rapida Feed", "rapida.feed@test.com", "Feed", "Developer");
+            fast.setUpdatedAt(LocalDateTime.of(2000, 1, 1, 0, 0));
+            service.transferData(List.of(fast));
+
+            // When - el consumidor consulta con la transacción abierta, y otra vez tras su COMMIT
+            UserChanges whileOpen = service.findUsersChangedSince(synced.watermarkGeneration(),
+                    synced.watermarkUpdatedAt(), synced.watermarkId(), 0);
+            release.countDown();
+            slow.get(10, TimeUnit.SECONDS);
+            UserChanges afterCommit = service.findUsersChangedSince(whileOpen.watermarkGeneration(),
+                    whileOpen.watermarkUpdatedAt(), whileOpen.watermarkId(), 0);
+
+            // Then - Rápida espera a la transacción abierta y ninguna de las dos se pierde
+            assertTrue(whileOpen.changed().isEmpty());
+            assertEquals(synced.watermarkUpdatedAt(), whileOpen.watermarkUpdatedAt());
+            assertEquals(List.of("lenta.feed@test.com", "rapida.feed@test.com"),
+                    afterCommit.changed().stream().map(User::getEmail).toList());
+            assertTrue(afterCommit.changed().get(1).getUpdatedAt().isAfter(LocalDateTime.now().minusMinutes(1)),
+                    "updated_at lo pone @PrePersist, no el cliente");
+        } finally {
+            executor.shutdownNow();
+            userRepository.deleteAll();
+        }
+    }
+
+    // ========== Tests de group commit (create_user) ==========
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // Cada grupo confirma su propia transacción
+    @DisplayName("Group commit - Las altas simultáneas comparten COMMIT y los errores son por petición")
+    void groupCommit_ConcurrentCreatesShareCommitsAndFailIndividually() throws Exception {
+        try {
+            // Given - un email ya existente, uno repetido, uno inválido y 40 altas válidas
+            createTestUser("Existente", "existente@test.com", "Group");
+            List<UserCreateDto> dtos = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                dtos.add(new UserCreateDto("Group " + i, "group" + i + "@test.com", "Group", "Developer"));
+            }
+            dtos.add(new UserCreateDto("Duplicado", "existente@test.com", "Group", "Developer"));
+            dtos.add(new UserCreateDto("Repetido", "group7@test.com", "Group", "Developer"));
+            dtos.add(new UserCreateDto("Invalido", "no-es-un-email", "Group", "Developer"));
+            long groupsBefore = (long) groupCommit.snapshot().get("groups");
+
+            // When - todas a la vez
+            CountDownLatch start = new CountDownLatch(1);
+            List<CompletableFuture<User>> results = new ArrayList<>();
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<CompletableFuture<User>>> submitted = new ArrayList<>();
+                for (UserCreateDto dto : dtos) {
+                    submitted.add(executor.submit(() -> {
+                        start.await();
+                        return groupCommit.submit(dto);
+                    }));
+                }
+                start.countDown();
+                for (Future<CompletableFuture<User>> future : submitted) {
+                    results.add(future.get());
+                }
+            }
+            CompletableFuture.allOf(results.stream()
+                    .map(result -> result.exceptionally(e -> null))
+                    .toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+
+            // Then - cada alta válida tiene su ID; de las dos con group7 falla la que llega después
+            List<User> created = results.stream().filter(r -> !r.isCompletedExceptionally()).map(CompletableFuture::join).toList();
+            assertEquals(40, created.size());
+            assertTrue(created.stream().allMatch(user -> user.getId() != null));
+            assertInstanceOf(DataIntegrityViolationException.class, failure(results.get(40)));
+            CompletableFuture<User> repeated = results.get(7).isCompletedExceptionally() ? results.get(7) : results.get(41);
+            assertInstanceOf(DataIntegrityViolationException.class, failure(repeated));
+            assertInstanceOf(ConstraintViolationException.class, failure(results.get(42)));
+            assertEquals(41, userRepository.findByDepartment("Group").size());
+
+            // ...y se han necesitado menos COMMITs que altas
+            long groups = (long) groupCommit.snapshot().get("groups") - groupsBefore;
+            assertTrue(groups < dtos.size(), "Grupos: " + groups);
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("Group commit - Si la transacción del grupo falla, se repite alta a alta")
+    void groupCommit_FailedGroupFallsBackToOneTransactionPerCreate() throws Exception {
+        try {
+            // Given - un departamento de 60 caracteres pasa Bean Validation pero no cabe en la columna
+            long fallbacksBefore = (long) groupCommit.snapshot().get("fallbacks");
+            List<UserCreateDto> dtos = List.of(
+                    new UserCreateDto("Bueno Uno", "bueno1@test.com", "Fallback", "Developer"),
+                    new UserCreateDto("Largo", "largo@test.com", "F".repeat(60), "Developer"),
+                    new UserCreateDto("Bueno Dos", "bueno2@test.com", "Fallback", "Developer"));
+
+            // When - se encolan juntas: mismo grupo
+            List<CompletableFuture<User>> results = dtos.stream().map(groupCommit::submit).toList();
+            CompletableFuture.allOf(results.stream()
+                    .map(result -> result.exceptionally(e -> null))
+                    .toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+
+            // Then - solo falla la que no cabe
+            assertNotNull(results.get(0).join().getId());
+            assertNotNull(failure(results.get(1)));
+            assertNotNull(results.get(2).join().getId());
+            assertEquals(2, userRepository.findByDepartment("Fallback").size());
+            assertEquals(fallbacksBefore + 1, groupCommit.snapshot().get("fallbacks"));
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    // ========== Tests de enrutado lectura/escritura ==========
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("Réplica - readOnly va a la réplica; justo después de un COMMIT de escritura, al primario")
+    void readReplica_RoutesReadOnlyAndHonorsLagWindow() throws InterruptedException {
+        try {
+            // Given - la ventana de retraso (300ms en el perfil test) abierta por setUp() ya ha pasado
+            Thread.sleep(400);
+            long replicaBefore = readReplica.getReplicaConnections();
+
+            // When - transacción readOnly
+            service.findAll();
+
+            // Then
+            assertEquals(replicaBefore + 1, readReplica.getReplicaConnections());
+
+            // When - una escritura no usa la réplica...
+            createTestUser("Replica", "replica@test.com", "Replica");
+            assertEquals(replicaBefore + 1, readReplica.getReplicaConnections());
+            long fallbacksBefore = readReplica.getPrimaryFallbacks();
+
+            // ...y la lectura inmediatamente posterior va al primario y ve el INSERT
+            assertEquals(1, service.findAll().size());
+
+            // Then
+            assertEquals(fallbacksBefore + 1, readReplica.getPrimaryFallbacks());
+            assertEquals(replicaBefore + 1, readReplica.getReplicaConnections());
+
+            // When - pasada la ventana, la réplica vuelve a servir las lecturas
+            Thread.sleep(400);
+            assertEquals(1, service.findAll().size());
+            assertEquals(replicaBefore + 2, readReplica.getReplicaConnections());
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("Réplica - La ventana de retraso es del cliente que escribe: los demás siguen leyendo de la réplica")
+    void readReplica_LagWindowIsPerClient() throws Exception {
+        try {
+            Thread.sleep(400);
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                // Given - otro cliente escribiendo sin parar
+                AtomicBoolean writing = new AtomicBoolean(true);
+                Future<?> writer = executor.submit(() -> {
+                    for (int i = 0; writing.get(); i++) {
+                        createTestUser("Escritor " + i, "escritor" + i + "@test.com", "Writer");
+                    }
+                });
+                while (service.executeCountByDepartment("Writer") == 0) {
+                    Thread.sleep(5);
+                }
+                long replicaBefore = readReplica.getReplicaConnections();
+                long fallbacksBefore = readReplica.getPrimaryFallbacks();
+
+                // When - este hilo lee mientras tanto
+                for (int i = 0; i < 10; i++) {
+                    service.findAll();
+                }
+                writing.set(false);
+                writer.get(5, TimeUnit.SECONDS);
+
+                // Then - todas sus lecturas van a la réplica
+                assertEquals(fallbacksBefore, readReplica.getPrimaryFallbacks());
+                assertTrue(readReplica.getReplicaConnections() >= replicaBefore + 10);
+            }
+
+            // When - la sesión MCP "a" escribe y vuelve a leer en otra petición (otro hilo)
+            FilterChain write = (request, response) ->
+                    createTestUser("Sesion A", "sesiona@test.com", "Sessions");
+            FilterChain read = (request, response) -> service.findAll();
+            readReplicaClientFilter.doFilter(sessionRequest("a"), new MockHttpServletResponse(), write);
+            long replicaBefore = readReplica.getReplicaConnections();
+            long fallbacksBefore = readReplica.getPrimaryFallbacks();
+            CompletableFuture.runAsync(() -> {
+                try {
+                    readReplicaClientFilter.doFilter(sessionRequest("a"), new MockHttpServletResponse(), read);
+                    readReplicaClientFilter.doFilter(sessionRequest("b"), new MockHttpServletResponse(), read);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }).get(5, TimeUnit.SECONDS);
+
+            // Then - "a" lee del primario, "b" de la réplica
+            assertEquals(fallbacksBefore + 1, readReplica.getPrimaryFallbacks());
+            assertEquals(replicaBefore + 1, readReplica.getReplicaConnections());
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("Réplica - reconcile_department_counters y find_users_changed_since leen siempre del primario")
+    void readReplica_ReconcileAndChangeFeedUsePrimary() throws InterruptedException {
+        try {
+            // Given - ventana de retraso cerrada: una lectura readOnly iría a la réplica
+            createTestUser("Primario", "primario@test.com", "Replica");
+            Thread.sleep(400);
+            long replicaBefore = readReplica.getReplicaConnections();
+            long fallbacksBefore = readReplica.getPrimaryFallbacks();
+
+            // When
+            Map<String, Long> drift = service.reconcileDepartmentCounters();
+            UserChanges changes = service.findUsersChangedSince(null, null, null, 10);
+
+            // Then - ninguna conexión a la réplica ni por la ventana de retraso: primario directo
+            assertTrue(drift.isEmpty());
+            assertEquals(1, changes.changed().size());
+            assertEquals(replicaBefore, readReplica.getReplicaConnections());
+            assertEquals(fallbacksBefore, readReplica.getPrimaryFallbacks());
+
+            // Control: una lectura readOnly del mismo hilo sí va a la réplica
+            service.findAll();
+            assertEquals(replicaBefore + 1, readReplica.getReplicaConnections());
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    private static MockHttpServletRequest sessionRequest(String session) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/mcp/find_all_users");
+        request.addHeader("Mcp-Session-Id", session);
+        return request;
+    }
+
+    @Test
+    @DisplayName("Réplica - Las lecturas dentro de una transacción de escritura usan su conexión del primario")
+    void readReplica_ReadsInsideWriteTransactionStayOnPrimary() {
+        // Given - el test entero es una transacción de escritura (@Transactional de la clase)
+        long replicaBefore = readReplica.getReplicaConnections();
+        createTestUser("Same Tx", "sametx@test.com", "Replica");
+
+        // When - findAll() (readOnly) se une a la transacción existente
+        List<User> users = service.findAll();
+
+        // Then - ve el INSERT sin confirmar: misma conexión, misma transacción
+        assertEquals(1, users.size());
+        assertEquals(replicaBefore, readReplica.getReplicaConnections());
+    }
+
+    // ========== Tests de hilos virtuales y bulkhead ==========
+
+    @Test
+    @DisplayName("Bulkhead - Tantos permisos como conexiones del pool; sin hueco, 503 con Retry-After")
+    void toolBulkhead_SizedToPoolAndRejectsWhenFull() throws Exception {
+        // Given - el pool primario lleno de herramientas bloqueadas
+        int poolSize = dataSource.unwrap(HikariDataSource.class).getMaximumPoolSize();
+        assertEquals(poolSize, toolBulkhead.snapshot().get("maxConcurrent"));
+        CountDownLatch started = new CountDownLatch(poolSize);
+        CountDownLatch release = new CountDownLatch(1);
+        FilterChain blockedTool = (request, response) -> {
+            started.countDown();
+            await(release);
+        };
+        long rejectedBefore = (Long) toolBulkhead.snapshot().get("rejected");
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Integer>> inFlight = IntStream.range(0, poolSize)
+                    .mapToObj(i -> executor.submit(() -> callTool(blockedTool)))
+                    .toList();
+            await(started);
+            assertEquals(poolSize, toolBulkhead.snapshot().get("inFlight"));
+
+            // When - una herramienta más (max-wait 200ms en el perfil test)
+            int status = callTool(new MockFilterChain());
+
+            // Then
+            assertEquals(503, status);
+            assertEquals(rejectedBefore + 1, toolBulkhead.snapshot().get("rejected"));
+
+            // When - las herramientas bloqueadas terminan y devuelven su permiso
+            release.countDown();
+            for (Future<Integer> call : inFlight) {
+                assertEquals(200, call.get());
+            }
+        }
+        assertEquals(0, toolBulkhead.snapshot().get("inFlight"));
+        assertEquals(200, callTool(new MockFilterChain()));
+    }
+
+    @Test
+    @DisplayName("Métricas - Espera de conexión por pool Hikari")
+    void poolWaitMetrics_RecordConnectionAcquisition() {
+        // Given - la transacción del test ya ha pedido su conexión al primario
+        service.findAll();
+
+        // When
+        Map<String, Object> pools = poolWaitMetrics.snapshot();
+
+        // Then
+        @SuppressWarnings("unchecked")
+        Map<String, Object> primary = (Map<String, Object>) pools.get("ra3-primary");
+        assertNotNull(primary, "Pools registrados: " + pools.keySet());
+        assertTrue((Long) primary.get("acquired") > 0);
+        assertEquals(0L, primary.get("timeouts"));
+    }
+
+    @Test
+    @DisplayName("Métricas - Un hilo virtual bloqueado dentro de synchronized se detecta como anclado")
+    void pinningMonitor_DetectsPinnedVirtualThread() throws InterruptedException {
+        // Given
+        long before = (Long) pinningMonitor.snapshot().get("pinnedEvents");
+        Object lock = new Object();
+
+        // When - sleep() dentro de synchronized no libera el hilo portador (Java 21)
+        Thread pinned = Thread.ofVirtual().start(() -> {
+            synchronized (lock) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        pinned.join();
+
+        // Then - JFR entrega los eventos en bloques (aprox. cada segundo)
+        long deadline = System.currentTimeMillis() + 10_000;
+        while ((Long) pinningMonitor.snapshot().get("pinnedEvents") == before
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        Map<String, Object> stats = pinningMonitor.snapshot();
+        assertTrue((Long) stats.get("pinnedEvents") > before, "Se esperaba un evento jdk.VirtualThreadPinned");
+        assertTrue((Long) stats.get("maxPinnedMs") >= 20);
+        assertTrue(String.valueOf(stats.get("lastPinnedAt")).startsWith(getClass().getName()),
+                "Último anclaje en " + stats.get("lastPinnedAt"));
+    }
+
+    // ========== Tests de outbox y read_user_changes ==========
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // Los eventos se escriben al confirmar
+    @DisplayName("Outbox - Altas, modificaciones y borrados confirmados llegan al log de cambios en orden")
+    void outbox_CommittedChangesAreRelayedToChangeLogInOrder() {
+        try {
+            // Given - outbox vacío
+            outboxRelay.relay();
+            long offset = changeLog.endOffset();
+
+            // When
+            User ana = createTestUser("Ana Outbox", "ana.outbox@test.com", "Outbox");
+            service.updateUser(ana.getId(), new UserUpdateDto(null, null, null, "Manager", null));
+
+            // Then - nada publicado hasta que el publicador copia el outbox al log
+            assertTrue(service.readUserChanges(offset, 0).isEmpty());
+            assertEquals(2, outboxRelay.relay());
+
+            // When
+            service.transferData(List.of(new User("Bea Outbox", "bea.outbox@test.com", "Outbox", "Developer"),
+                    new User("Carla Outbox", "carla.outbox@test.com", "Outbox", "Developer")));
+            service.deleteUser(ana.getId());
+
+            // Then
+            assertEquals(3, outboxRelay.relay());
+            assertEquals(0L, userOutboxSize());
+
+            List<UserChangeRecord> records = service.readUserChanges(offset, 0);
+            assertEquals(List.of("CREATED", "UPDATED", "CREATED", "CREATED", "DELETED"),
+                    records.stream().map(record -> eventType(record.event())).toList());
+            // El JSON lleva la versión del cambio y el estado del usuario al publicarse
+            assertTrue(records.get(0).event().contains("\"version\":0"));
+            assertTrue(records.get(1).event().contains("\"version\":1"));
+            assertTrue(records.get(1).event().contains("\"role\":\"Manager\""));
+            assertTrue(records.get(2).event().contains("bea.outbox@test.com"));
+            assertTrue(records.get(4).event().contains("\"userId\":" + ana.getId()));
+            assertTrue(records.get(4).event().contains("\"user\":null"));
+            for (int i = 1; i < records.size(); i++) {
+                assertEquals(records.get(i - 1).nextOffset(), records.get(i).offset());
+                assertTrue(records.get(i - 1).eventId() < records.get(i).eventId());
+            }
+
+            // Paginación por nextOffset
+            List<UserChangeRecord> firstPage = service.readUserChanges(offset, 2);
+            assertEquals(records.subList(0, 2), firstPage);
+            assertEquals(records.subList(2, 5), service.readUserChanges(firstPage.get(1).nextOffset(), 10));
+            assertThrows(IllegalArgumentException.class, () -> service.readUserChanges(records.get(0).offset() + 1, 1));
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("Outbox - Una transacción deshecha no deja eventos")
+    void outbox_RolledBackTransactionLeavesNoEvents() {
+        try {
+            // Given
+            outboxRelay.relay();
+            long offset = changeLog.endOffset();
+
+            // When - el alta se inserta (y pasa por el listener) pero la transacción se deshace
+            transactionTemplate.executeWithoutResult(status -> {
+                createTestUser("Rollback Outbox", "rollback.outbox@test.com", "Outbox");
+                entityManager.flush();
+                status.setRollbackOnly();
+            });
+
+            // Then
+            assertEquals(0L, userOutboxSize());
+            assertEquals(0, outboxRelay.relay());
+            assertTrue(service.readUserChanges(offset, 0).isEmpty());
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("Log de cambios - Cambia de segmento y conserva los registros al reabrirse")
+    void changeLog_RollsSegmentsAndRecoversAfterRestart() {
+        try {
+            // Given - 600 altas en una transacción: más de un segmento de 64KB
+            outboxRelay.relay();
+            long offset = changeLog.endOffset();
+            long rolledBefore = (long) changeLog.snapshot().get("rolledSegments");
+            List<User> users = IntStream.range(0, 600)
+                    .mapToObj(i -> new User("Segment " + i, "segment" + i + "@test.com", "Segment", "Developer"))
+                    .toList();
+            service.transferData(users);
+            assertEquals(600, outboxRelay.relay());
+            assertTrue((long) changeLog.snapshot().get("rolledSegments") > rolledBefore);
+
+            // When - se cierra y se vuelve a abrir el log
+            long end = changeLog.endOffset();
+            changeLog.stop();
+            changeLog.start();
+
+            // Then - mismos offsets y todos los registros, seguidos aunque crucen segmentos
+            assertEquals(end, changeLog.endOffset());
+            List<UserChangeRecord> records = service.readUserChanges(offset, 1000);
+            assertEquals(600, records.size());
+            assertEquals(end, records.get(599).nextOffset());
+            for (int i = 0; i < records.size(); i++) {
+                assertTrue(records.get(i).event().contains("segment" + i + "@test.com"));
+            }
+
+            // El log sigue aceptando eventos tras reabrirse
+            createTestUser("After Restart", "after.restart@test.com", "Segment");
+            assertEquals(1, outboxRelay.relay());
+            assertEquals(1, service.readUserChanges(end, 0).size());
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("Log de cambios - Los eventId no se repiten aunque user_outbox_seq vuelva a empezar al arrancar")
+    void changeLog_EventIdsStayUniqueWhenSequenceIsRecreated() {
+        try {
+            // Given - eventos en el log
+            createTestUser("Antes Reinicio", "antes.reinicio@test.com", "Restart");
+            outboxRelay.relay();
+            long offset = changeLog.endOffset();
+            List<UserChangeRecord> before = service.readUserChanges(0, Integer.MAX_VALUE);
+            long lastEventId = before.get(before.size() - 1).eventId();
+
+            // When - schema.sql recrea la secuencia (empieza en 1) y el log se vuelve a abrir
+            transactionTemplate.executeWithoutResult(status ->
+                    entityManager.createNativeQuery("ALTER SEQUENCE user_outbox_seq RESTART WITH 1").executeUpdate());
+            changeLog.stop();
+            changeLog.start();
+            createTestUser("Tras Reinicio", "tras.reinicio@test.com", "Restart");
+            assertEquals(1, outboxRelay.relay());
+
+            // Then - el evento nuevo sigue la numeración del log y lleva la generación de la BD
+            UserChangeRecord record = service.readUserChanges(offset, 0).get(0);
+            assertEquals(lastEventId + 1, record.eventId());
+            assertTrue(record.event().contains("\"generation\":" + databaseGeneration.current()));
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    // ========== Tests de import_users_csv ==========
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // Un COMMIT por bloque
+    @DisplayName("importUsersCsv() - Importa las filas válidas por bloques y deja las rechazadas en un fichero aparte")
+    void importUsersCsv_ImportsValidRowsAndWritesRejects() throws Exception {
+        try {
+            // Given - 250 filas válidas (3 bloques de 100) y 6 que se deben rechazar
+            createTestUser("Existente", "existente.csv@test.com", "Csv");
+            List<String> lines = new ArrayList<>();
+            lines.add("email,name,role,department,active");
+            for (int i = 0; i < 250; i++) {
+                lines.add("csv" + i + "@test.com,Csv User " + i + ",Developer,Csv," + (i % 10 == 0 ? "false" : "true"));
+            }
+            lines.add("quoted@test.com,\"Pérez, \"\"Pepe\"\"\",Developer,Csv,");   // línea 252: válida
+            lines.add("");
+            lines.add("corta@test.com,Corta,Developer");                            // línea 254
+            lines.add("comillas@test.com,\"Sin cerrar,Developer,Csv,true");          // línea 255
+            lines.add("no-es-un-email,Mal Email,Developer,Csv,true");               // línea 256
+            lines.add("csv7@test.com,Repetido,Developer,Csv,true");                 // línea 257
+            lines.add("existente.csv@test.com,Existente,Developer,Csv,true");       // línea 258
+            lines.add("activo@test.com,Activo Raro,Developer,Csv,quizas");          // línea 259
+            Files.createDirectories(importDir);
+            Files.write(importDir.resolve("users.csv"), lines, StandardCharsets.UTF_8);
+            List<Long> progress = new ArrayList<>();
+
+            // When
+            UserImportResult result = service.importUsersCsv("users.csv", progress::add);
+
+            // Then - 251 importadas, 6 rechazadas; la línea en blanco no cuenta
+            assertEquals(257, result.rows());
+            assertEquals(251, result.imported());
+            assertEquals(6, result.rejected());
+            assertEquals(List.of(100L, 200L, 257L), progress);
+            assertEquals(252, userRepository.findByDepartment("Csv").size());
+            assertEquals(1 + 251 - 25, service.executeCountByDepartment("Csv")); // csv0, csv10... inactivos
+
+            User quoted = userRepository.findByEmail("quoted@test.com");
+            assertEquals("Pérez, \"Pepe\"", quoted.getName());
+            assertTrue(quoted.getActive());
+            assertFalse(userRepository.findByEmail("csv0@test.com").getActive());
+            assertEquals(List.of(userRepository.findByEmail("csv42@test.com").getId()),
+                    service.autocompleteUsers("csv42@", 10));
+
+            // Rechazos: número de línea, motivo y la fila original
+            List<String> rejects = Files.readAllLines(Path.of(result.rejectsFile()), StandardCharsets.UTF_8);
+            assertEquals("line,reason,row", rejects.get(0));
+            assertEquals(List.of("254", "255", "256", "257", "259", "258"),
+                    rejects.subList(1, 7).stream().map(line -> line.substring(0, line.indexOf(','))).toList());
+            assertTrue(rejects.get(4).contains("Email repetido en el fichero"));
+            assertTrue(rejects.get(6).contains("Ya existe un usuario con el email existente.csv@test.com"));
+            assertTrue(rejects.get(3).contains("\"no-es-un-email,Mal Email,Developer,Csv,true\""));
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @DisplayName("importUsersCsv() - Rechaza rutas fuera del directorio de importación y cabeceras incompletas")
+    void importUsersCsv_RejectsPathsOutsideBaseDirAndBadHeaders() throws Exception {
+        Files.createDirectories(importDir);
+        Files.write(importDir.resolve("sin-email.csv"), List.of("name,department,role", "Ana,Csv,Developer"));
+
+        assertThrows(IllegalArgumentException.class, () -> service.importUsersCsv("../users.csv", null));
+        assertThrows(IllegalArgumentException.class, () -> service.importUsersCsv("no-existe.csv", null));
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> service.importUsersCsv("sin-email.csv", null));
+        assertTrue(e.getMessage().contains("email"));
+        assertEquals(0, userRepository.count());
+    }
+
+    // ========== Tests de export_users ==========
+
+    @Test
+    @DisplayName("exportUsers() - CSV y columnar contienen los mismos usuarios con sus estadísticas")
+    void exportUsers_CsvAndColumnarContainSameRows() throws Exception {
+        // Given - 250 usuarios (3 bloques de 100), la mitad con estadísticas
+        LocalDateTime lastLogin = LocalDateTime.of(2025, 1, 15, 10, 30, 0, 123456000);
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            User user = new User("Export " + i, "export" + i + "@test.com", "Dept" + (i % 3), i % 2 == 0 ? "Developer" : "Manager");
+            users.add(user);
+        }
+        users.get(7).setName("Pérez, \"Pepe\"");
+        users.get(9).setActive(false);
+        service.transferData(users);
+        for (int i = 0; i < 250; i += 2) {
+            entityManager.persist(new UserStatistics(users.get(i), i + 1, lastLogin));
+        }
+        entityManager.flush();
+        List<Long> progress = new ArrayList<>();
+
+        // When
+        UserExportResult csv = service.exportUsers("users.csv", null, null);
+        UserExportResult columnar = service.exportUsers("users.ucol", "columnar", progress::add);
+
+        // Then - CSV: cabecera, una línea por usuario y valores con comas entre comillas
+        List<String> lines = Files.readAllLines(Path.of(csv.file()), StandardCharsets.UTF_8);
+        assertEquals(250, csv.rows());
+        assertEquals(251, lines.size());
+        assertEquals("id,name,email,department,role,active,created_at,updated_at,login_count,last_login", lines.get(0));
+        assertTrue(lines.get(8).startsWith(users.get(7).getId() + ",\"Pérez, \"\"Pepe\"\"\",export7@test.com,Dept1,Manager,true,"));
+        assertTrue(lines.get(1).endsWith(",1,2025-01-15T10:30:00.123456"));
+        assertTrue(lines.get(2).endsWith(",,"), "Sin estadísticas: login_count y last_login vacíos");
+
+        // Columnar: mismas filas en orden de id, con null donde no hay estadísticas
+        List<UserExportRow> rows = new ArrayList<>();
+        assertEquals(250, UserColumnarFile.read(Path.of(columnar.file()), rows::add));
+        assertEquals(List.of(100L, 200L, 250L), progress);
+        assertEquals(users.stream().map(User::getId).toList(), rows.stream().map(UserExportRow::id).toList());
+        assertEquals("Pérez, \"Pepe\"", rows.get(7).name());
+        assertEquals("Dept1", rows.get(7).department());
+        assertEquals("Manager", rows.get(7).role());
+        assertFalse(rows.get(9).active());
+        assertEquals(1, rows.get(0).loginCount());
+        assertEquals(lastLogin, rows.get(0).lastLogin());
+        assertNull(rows.get(1).loginCount());
+        assertNull(rows.get(1).lastLogin());
+        assertEquals(LocalDateTime.parse(lines.get(6).split(",")[6]), rows.get(5).createdAt()); // Microsegundos, como en la BD
+
+        // Diccionario + Deflate: mucho más pequeño que el CSV
+        assertTrue(columnar.bytes() < csv.bytes() / 2, columnar.bytes() + " vs " + csv.bytes());
+        assertFalse(Files.exists(Path.of(columnar.file() + ".tmp")));
+    }
+
+    @Test
+    @DisplayName("exportUsers() - CSV comprimido con .gz y errores de ruta o formato")
+    void exportUsers_GzipCsvAndInvalidArguments() throws Exception {
+        // Given
+        createTestUser("Gzip User", "gzip@test.com", "Gzip");
+        entityManager.flush();
+
+        // When
+        UserExportResult gzip = service.exportUsers("nightly/users.csv.gz", "csv", null);
+
+        // Then
+        try (GZIPInputStream in = new GZIPInputStream(Files.newInputStream(Path.of(gzip.file())))) {
+            String content = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            assertTrue(content.contains(",Gzip User,gzip@test.com,Gzip,Developer,true,"));
+        }
+        assertEquals(exportDir.toAbsolutePath().normalize().resolve("nightly/users.csv.gz").toString(), gzip.file());
+        assertThrows(IllegalArgumentException.class, () -> service.exportUsers("../fuera.csv", "csv", null));
+        assertThrows(IllegalArgumentException.class, () -> service.exportUsers("users.parquet", "parquet", null));
+    }
+
+    // ========== Tests de snapshot_database y restore_database ==========
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) // RUNSCRIPT sustituye la BD: solo ve datos confirmados
+    @DisplayName("restoreDatabase() - Devuelve la BD al snapshot con búsquedas, contadores, secuencias y generación coherentes")
+    void restoreDatabase_BringsBackSnapshotAndInMemoryIndexes() throws Exception {
+        try {
+            // Given - snapshot con Ana y Luis; después se da de alta Eva y se borra Luis
+            deleteSnapshots();
+            User ana = createTestUser("Ana Snapshot", "ana.snapshot@test.com", "Snap");
+            User luis = createTestUser("Luis Snapshot", "luis.snapshot@test.com", "Snap");
+            DatabaseSnapshotResult snapshot = service.snapshotDatabase(null);
+            User eva = createTestUser("Eva Posterior", "eva.posterior@test.com", "Snap");
+            assertTrue(service.deleteUser(luis.getId()));
+            assertEquals(2, service.executeCountByDepartment("Snap"));
+            UserChanges synced = service.findUsersChangedSince(null, null, null, 100);
+            long generationBefore = databaseGeneration.current();
+
+            // When
+            DatabaseRestoreResult restored = service.restoreDatabase(Path.of(snapshot.file()).getFileName().toString());
+
+            // Then - los datos, el índice de texto completo y los índices en memoria son los del snapshot
+            assertEquals("script", snapshot.format());
+            assertTrue(snapshot.file().endsWith(".sql.gz"));
+            assertTrue(snapshot.bytes() > 0);
+            assertEquals(2, restored.users());
+            assertNotNull(userRepository.findByEmail("luis.snapshot@test.com"));
+            assertNull(userRepository.findByEmail("eva.posterior@test.com"));
+            assertEquals(List.of(luis.getId()), service.searchUsersText("luis", 10).stream().map(UserSearchHit::id).toList());
+            assertTrue(service.searchUsersText("eva", 10).isEmpty());
+            assertEquals(2, service.executeCountByDepartment("Snap"));
+            assertEquals(List.of(luis.getId()), service.autocompleteUsers("luis.snap", 10));
+            assertNull(service.findUserById(eva.getId()));
+            assertEquals(0L, userOutboxSize(), "Los eventos pendientes del snapshot se descartan");
+
+            // Los consumidores del change feed reciben la señal de resincronizar
+            assertTrue(restored.generation() > generationBefore);
+            assertEquals(restored.generation(), databaseGeneration.current());
+            UserChanges afterRestore = service.findUsersChangedSince(synced.watermarkGeneration(),
+                    synced.watermarkUpdatedAt(), synced.watermarkId(), 100);
+            assertTrue(afterRestore.resyncRequired());
+            assertEquals(restored.generation(), afterRestore.watermarkGeneration());
+            assertEquals(List.of(ana.getId(), luis.getId()),
+                    afterRestore.changed().stream().map(User::getId).sorted().toList());
+            assertFalse(service.findUsersChangedSince(afterRestore.watermarkGeneration(),
+                    afterRestore.watermarkUpdatedAt(), afterRestore.watermarkId(), 0).resyncRequired());
+
+            // Las secuencias no retroceden y el trigger de FullText sigue indexando las altas
+            User marta = createTestUser("Marta Restaurada", "marta.restaurada@test.com", "Snap");
+            assertTrue(marta.getId() > eva.getId());
+            long offset = changeLog.endOffset();
+            assertEquals(1, outboxRelay.relay());
+            assertTrue(service.readUserChanges(offset, 0).get(0).event()
+                    .contains("\"generation\":" + restored.generation()));
+            assertEquals(List.of(marta.getId()), service.searchUsersText("marta", 10).stream().map(UserSearchHit::id).toList());
+            assertEquals(List.of(ana.getId(), luis.getId(), marta.getId()),
+                    service.searchUsersText("snap", 10).stream().map(UserSearchHit::id).sorted().toList());
+        } finally {
+            userRepository.deleteAll();
+        }
+    }
+
+    @Test
+    @DisplayName("snapshotDatabase() - Rota los snapshots antiguos y rechaza restauraciones no válidas")
+    void snapshotDatabase_RotatesOldSnapshotsAndRejectsInvalidRestores() throws Exception {
+        // Given
+        deleteSnapshots();
+        Path dir = Path.of(service.snapshotDatabase("script").file()).getParent();
+
+        // When - 4 snapshots con ra3.snapshot.keep = 3
+        List<DatabaseSnapshotResult> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(service.snapshotDatabase("SCRIPT"));
+        }
+
+        // Then - solo quedan los 3 más recientes
+        assertEquals(results.stream().map(r -> Path.of(r.file())).toList().reversed(), databaseSnapshots.list());
+        assertEquals(1, results.get(2).rotated().size());
+        assertTrue(results.get(0).rotated().isEmpty());
+
+        // BACKUP copia el fichero .mv.db: no hay fichero con una BD en memoria
+        assertThrows(IllegalArgumentException.class, () -> service.snapshotDatabase("backup"));
+        assertThrows(IllegalArgumentException.class, () -> service.snapshotDatabase("tar"));
+        assertThrows(IllegalArgumentException.class, () -> service.restoreDatabase("../fuera.sql.gz"));
+        assertThrows(IllegalArgumentException.class, () -> service.restoreDatabase("no-existe.sql.gz"));
+        assertThrows(IllegalArgumentException.class, () -> service.restoreDatabase("ra3db-20250101-000000-000.zip"));
+
+        // Un fichero corrupto se rechaza antes de tocar la BD
+        createTestUser("Sigue Aqui", "sigue@test.com", "Snap");
+        Files.write(dir.resolve("ra3db-corrupto.sql.gz"), "no es gzip".getBytes(StandardCharsets.UTF_8));
+        assertThrows(IllegalArgumentException.class, () -> service.restoreDatabase("ra3db-corrupto.sql.gz"));
+        assertNotNull(userRepository.findByEmail("sigue@test.com"));
+        Files.delete(dir.resolve("ra3db-corrupto.sql.gz"));
+    }
+
     // ========== Métodos auxiliares ==========
 
+    private UserQueryDto cursorQuery(String department, String cursor) {
+        UserQueryDto query = new UserQueryDto(department, null, true, 1, 0);
+        query.setCursor(cursor);
+        return query;
+    }
+
+    private int callTool(FilterChain tool) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/mcp/find_all_users");
+        request.setServletPath("/mcp/find_all_users");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        toolBulkhead.doFilter(request, response, tool);
+        return response.getStatus();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** H2 no publica LAZY_QUERY_EXECUTION en INFORMATION_SCHEMA: se lee de la sesión embebida */
+    private boolean lazyQueryExecution() {
+        return entityManager.unwrap(Session.class).doReturningWork(connection ->
+                ((SessionLocal) connection.unwrap(JdbcConnection.class).getSession()).isLazyQueryExecution());
+    }
+
+    private Statistics statistics() {
+        return entityManager.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+    }
+
+    private List<Integer> loginCounts(String department) {
+        return service.findUsersWithStats(department).stream().map(UserWithStats::loginCount).toList();
+    }
+
+    private long userOutboxSize() {
+        return transactionTemplate.execute(status ->
+                entityManager.createQuery("SELECT COUNT(e) FROM UserOutboxEvent e", Long.class).getSingleResult());
+    }
+
+    private static String eventType(String event) {
+        return event.substring(event.indexOf("\"type\":\"") + 8, event.indexOf('"', event.indexOf("\"type\":\"") + 8));
+    }
+
+    private static Throwable failure(CompletableFuture<User> result) {
+        ExecutionException e = assertThrows(ExecutionException.class, result::get);
+        return e.getCause();
+    }
+
+    private void deleteSnapshots() throws Exception {
+        for (Path snapshot : databaseSnapshots.list()) {
+            Files.delete(snapshot);
+        }
+    }
+
     private User createTestUser(String name, String email, String department) {
         UserCreateDto dto = new UserCreateDto();
         dto.setName(name);